@@ -1,18 +1,24 @@
 package org.apache.solr.core;
 
 import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sun.misc.Unsafe;
 
+import java.io.Closeable;
 import java.io.File;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.reflect.Field;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class HS
 {
@@ -23,6 +29,18 @@ public class HS
   public static final int FORMAT_INT32     = 4;
   public static final int FORMAT_INT64     = 5;
   public static final int FORMAT_MONOTONIC = 6;
+  public static final int FORMAT_ROARING   = 7;
+  public static final int FORMAT_PACKED    = 8;  // the bits per value are in the second byte, see packedFormat()
+
+  /** set operation codes to pass to native code */
+  public static final int OP_AND    = 0;
+  public static final int OP_OR     = 1;
+  public static final int OP_ANDNOT = 2;
+
+  /** Returns the format code of a packed array with the given number of bits per value */
+  public static int packedFormat(int bitsPerValue) {
+    return FORMAT_PACKED | (bitsPerValue << 8);
+  }
 
   public interface NativeData {
     public long getNativeData();
@@ -37,6 +55,23 @@ public class HS
   public static final int FLOAT_SIZE  = 4;
   public static final int DOUBLE_SIZE = 8;
 
+  /** categories of off-heap memory, for accounting.  The category of an array is stored in its header. */
+  public static final int MEM_OTHER        = 0;
+  public static final int MEM_DOCSET       = 1;
+  public static final int MEM_FIELD_VALUES = 2;
+  public static final int MEM_FACET        = 3;
+  public static final int MEM_POOL         = 4;  // free buffers held by the buffer pool
+  public static final String[] MEM_CATEGORY_NAMES = {"other", "docSets", "fieldValues", "facets", "bufferPool"};
+
+  /**
+   * Frees off-heap memory on request, when an allocation would exceed the budget.
+   * Caches holding off-heap values register one with {@link #addReclaimer}.
+   */
+  public interface Reclaimer {
+    /** Releases up to the given number of bytes, if possible. */
+    public void reclaim(long bytesWanted);
+  }
+
   private static Logger log = LoggerFactory.getLogger(HS.class);
 
   public static boolean loaded = false;
@@ -125,41 +160,64 @@ public class HS
 
 
   public static class Allocator {
-    // buffer pool - guaranteed to be power of two sized so it can be used in hash tables, etc.
+    // Freed arrays are kept in pools by power-of-two size class and reused by later allocations
+    // of the same class, rather than going back to malloc.  Arrays of many different sizes churn
+    // constantly, and this keeps them from fragmenting the native heap.
+    // Smaller arrays are left to malloc's own bins, and larger ones are normally mmapped by malloc.
+    public static final int MIN_CLASS_BITS = 10;
+    public static final int MAX_CLASS_BITS = 20;
+
+    // All classes together are bounded to the bytes of this many buffers of BUFFER_SIZE_BYTES (bufferPoolSize),
+    // so that the pools never hold more than that however the freed sizes are spread over the classes.
+    // The 8K class is the buffer pool - guaranteed to be power of two sized so it can be used in hash tables, etc.
     // 8K was picked to be small compared to the typical L1 data cache size of 32K.
-    private final long[] bufferList;
-    private int numCached = 0;  // number of buffers in the pool
-    private long cachedBufferRetrievals;  // number of cache "hits"
+    private final SizeClass[] sizeClasses;  // indexed by class bits, empty if pooling is disabled
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();  // reserved before an array is pooled
 
     public Allocator() {
       this(1024);
     }
 
     public Allocator(int bufferPoolSize) {
-      bufferList = new long[bufferPoolSize];
+      if (bufferPoolSize <= 0) {
+        sizeClasses = new SizeClass[0];
+        maxPooledBytes = 0;
+        return;
+      }
+      maxPooledBytes = (long)bufferPoolSize << BUFFER_SIZE_BITS;
+      // a power of two at least as large as the number of CPUs
+      int numStripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+      sizeClasses = new SizeClass[MAX_CLASS_BITS + 1];
+      for (int bits = MIN_CLASS_BITS; bits <= MAX_CLASS_BITS; bits++) {
+        // a single class may take up the whole budget
+        long capacity = Math.max(1, maxPooledBytes >> bits);
+        sizeClasses[bits] = new SizeClass(bits, numStripes, (int)Math.min(capacity, Integer.MAX_VALUE));
+      }
+    }
+
+    /** Returns the size class for an array of the given size, or 0 if arrays of that size aren't pooled */
+    private int getClassBits(long sz) {
+      if (sizeClasses.length == 0 || sz <= (1L << (MIN_CLASS_BITS - 1)) || sz > (1L << MAX_CLASS_BITS)) {
+        return 0;
+      }
+      return 64 - Long.numberOfLeadingZeros(sz - 1);
     }
 
     /** Returns a buffer of BUFFER_SIZE_BYTES in bytes.
      *  Scale size according to your element size.
      */
     public long getBuffer() {
-      synchronized (bufferList) {
-        if (numCached > 0) {
-          cachedBufferRetrievals++;
-          return bufferList[--numCached];
-        }
-      }
-      return allocator.allocArray(BUFFER_SIZE_BYTES, 1, false);
+      return allocArray(BUFFER_SIZE_BYTES, 1, false, MEM_OTHER);
     }
 
     public long tryGetBuffer() {
-      synchronized (bufferList) {
-        if (numCached > 0) {
-          cachedBufferRetrievals++;
-          return bufferList[--numCached];
-        }
+      if (sizeClasses.length == 0) return 0;
+      long buffer = sizeClasses[BUFFER_SIZE_BITS].take();
+      if (buffer != 0) {
+        unsafe.putLong(buffer - SIZE_OFFSET, BUFFER_SIZE_BYTES);
       }
-      return 0;
+      return buffer;
     }
 
     public void releaseBuffer(long buffer) {
@@ -169,45 +227,92 @@ public class HS
     }
 
     public boolean tryAddPool(long buffer) {
-      assert arraySizeBytes(buffer) == BUFFER_SIZE_BYTES;
-      synchronized (bufferList) {
-        if (numCached < bufferList.length) {
-          bufferList[numCached++] = buffer;
-          return true;
-        }
-      }
-      return false;
+      assert getArrayClassBits(buffer) == BUFFER_SIZE_BITS;
+      if (sizeClasses.length == 0) return false;
+      return sizeClasses[BUFFER_SIZE_BITS].put(buffer);
     }
 
     public void clearBufferPool() {
-      synchronized (bufferList) {
-        while (numCached > 0) {
-          allocator.doFree( bufferList[--numCached] );
+      for (SizeClass sizeClass : sizeClasses) {
+        if (sizeClass != null) {
+          sizeClass.clear();
         }
       }
     }
 
+    /** Returns the number of pooled arrays taken from the shared overflow pools */
     public long getCachedBufferRetrievals() {
-      return cachedBufferRetrievals;
+      long hits = 0;
+      for (SizeClass sizeClass : sizeClasses) {
+        if (sizeClass != null) {
+          hits += sizeClass.getCachedBufferRetrievals();
+        }
+      }
+      return hits;
+    }
+
+    /** Returns the number of pooled arrays taken from the per-thread stripes without locking */
+    public long getLocalBufferRetrievals() {
+      long hits = 0;
+      for (SizeClass sizeClass : sizeClasses) {
+        if (sizeClass != null) {
+          hits += sizeClass.getLocalBufferRetrievals();
+        }
+      }
+      return hits;
+    }
+
+    /** Returns the number of arrays of a pooled size class that had to be allocated because the pool was empty */
+    public long getFreshBufferAllocations() {
+      long n = 0;
+      for (SizeClass sizeClass : sizeClasses) {
+        if (sizeClass != null) {
+          n += sizeClass.freshAllocations.get();
+        }
+      }
+      return n;
+    }
+
+    /** Returns the bytes held by the pools of all size classes, never more than bufferPoolSize buffers */
+    public long getPooledBytes() {
+      return pooledBytes.get();
+    }
+
+    /** Returns the bytes held by the pool of the given size class, or 0 if the class isn't pooled */
+    public long getPooledBytes(int classBits) {
+      if (classBits >= sizeClasses.length || sizeClasses[classBits] == null) return 0;
+      return sizeClasses[classBits].getPooledBytes();
     }
 
 
     public long allocArray(long numElements, int elementSize, boolean zero) throws OutOfMemoryError {
+      return allocArray(numElements, elementSize, zero, MEM_OTHER);
+    }
+
+    public long allocArray(long numElements, int elementSize, boolean zero, int category) throws OutOfMemoryError {
       // any JVM accounting for memory allocated this way?
       long sz = numElements * elementSize;
+      long capacity = sz;
 
-      // try to use buffer pool
-      if (sz == BUFFER_SIZE_BYTES) {
-        long ret = tryGetBuffer();
+      // try to reuse an array of the same size class
+      int classBits = getClassBits(sz);
+      if (classBits != 0) {
+        SizeClass sizeClass = sizeClasses[classBits];
+        long ret = sizeClass.take();
         if (ret != 0) {
           if (zero) {
             unsafe.setMemory(ret, sz, (byte)0);
           }
+          unsafe.putLong(ret - SIZE_OFFSET, sz);
+          setCategory(ret, category);
           return ret;
         }
+        sizeClass.freshAllocations.incrementAndGet();
+        capacity = sizeClass.size;
       }
 
-      long addr = unsafe.allocateMemory(sz + HEADER_SIZE);
+      reserve(capacity + HEADER_SIZE);
+      long addr = unsafe.allocateMemory(capacity + HEADER_SIZE);
 
       numAlloc.incrementAndGet();
 
@@ -219,14 +324,44 @@ public class HS
       // should never be 0 since we always add a header
       addr += HEADER_SIZE;
       unsafe.putLong(addr - SIZE_OFFSET, sz);
+      unsafe.putLong(addr - CATEGORY_OFFSET, category | ((long)classBits << 8));
+      categoryBytes[category].addAndGet(capacity + HEADER_SIZE);
 
       return addr;
     }
 
+    /** Accounts for an allocation of the given size, first trying to make room if it would exceed the budget */
+    private void reserve(long bytes) {
+      long live = liveBytes.addAndGet(bytes);
+      if (live <= maxBytes) return;
+
+      // Over budget: drop the pooled buffers and ask the caches to evict off-heap values.
+      // Values still in use by a request are only freed once released, so this may not be enough.
+      numReclaims.incrementAndGet();
+      clearBufferPool();
+      for (Reclaimer reclaimer : reclaimers) {
+        long over = liveBytes.get() - maxBytes;
+        if (over <= 0) break;
+        reclaimer.reclaim(over);
+        clearBufferPool();  // evicted values may have been freed to the pools
+      }
+
+      live = liveBytes.get();
+      if (live > maxBytes) {
+        liveBytes.addAndGet(-bytes);
+        numRejected.incrementAndGet();
+        throw new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE,
+            "Off-heap memory limit of " + maxBytes + " bytes exceeded: unable to allocate " + bytes
+                + " bytes with " + (live - bytes) + " bytes in use");
+      }
+    }
+
     public void freeArray(long ptr) {
       long sz = arraySizeBytes(ptr);
       assert sz >= 0;
-      if (sz == BUFFER_SIZE_BYTES && tryAddPool(ptr)) {
+      int classBits = getArrayClassBits(ptr);
+      assert classBits == getClassBits(sz);  // if this assertion trips, it's most likely because of a double free
+      if (classBits != 0 && classBits < sizeClasses.length && sizeClasses[classBits].put(ptr)) {
         return;
       }
       doFree(ptr);
@@ -234,10 +369,144 @@ public class HS
 
     private void doFree(long ptr) {
       numFree.incrementAndGet();
+      long sz = allocatedBytes(ptr);
+      categoryBytes[getArrayCategory(ptr)].addAndGet(-sz);
+      liveBytes.addAndGet(-sz);
       unsafe.putLong(ptr - SIZE_OFFSET, -123456789L);  // put negative length to trip asserts
       unsafe.freeMemory(ptr - HEADER_SIZE);
     }
 
+    /**
+     * Pool of freed arrays of one size class.  Arrays are first returned to, and taken from, a small
+     * stripe picked by thread id, using compare-and-set on its slots so that query threads don't
+     * contend on a lock.  The synchronized bufferList is the shared overflow pool behind the stripes.
+     */
+    private final class SizeClass {
+      private static final int MAX_STRIPE_SIZE = 16;
+      final long size;
+      private final AtomicLongArray[] stripes;  // 0 for an empty slot
+      private final AtomicLong[] stripeHits;
+      private final long[] bufferList;
+      private int numCached = 0;  // number of buffers in the overflow pool
+      private long cachedBufferRetrievals;  // number of overflow pool "hits"
+      final AtomicLong freshAllocations = new AtomicLong();
+
+      SizeClass(int bits, int numStripes, int capacity) {
+        size = 1L << bits;
+        // keep at most half of the class in the stripes
+        int stripeSize = Math.min(MAX_STRIPE_SIZE, capacity / (2 * numStripes));
+        if (stripeSize == 0) numStripes = 0;
+        stripes = new AtomicLongArray[numStripes];
+        stripeHits = new AtomicLong[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+          stripes[i] = new AtomicLongArray(stripeSize);
+          stripeHits[i] = new AtomicLong();
+        }
+        bufferList = new long[capacity - numStripes * stripeSize];
+      }
+
+      private int getStripe() {
+        return (int)Thread.currentThread().getId() & (stripes.length - 1);
+      }
+
+      long take() {
+        if (stripes.length > 0) {
+          int stripeNum = getStripe();
+          AtomicLongArray stripe = stripes[stripeNum];
+          for (int i = 0; i < stripe.length(); i++) {
+            long buffer = stripe.get(i);
+            if (buffer != 0 && stripe.compareAndSet(i, buffer, 0)) {
+              stripeHits[stripeNum].incrementAndGet();
+              pooledBytes.addAndGet(-size);
+              return buffer;
+            }
+          }
+        }
+        synchronized (bufferList) {
+          if (numCached > 0) {
+            cachedBufferRetrievals++;
+            pooledBytes.addAndGet(-size);
+            return bufferList[--numCached];
+          }
+        }
+        return 0;
+      }
+
+      boolean put(long buffer) {
+        if (pooledBytes.addAndGet(size) > maxPooledBytes) {
+          pooledBytes.addAndGet(-size);
+          return false;
+        }
+        // set before publishing the buffer.  If it isn't pooled after all, it's freed as a pool buffer.
+        setCategory(buffer, MEM_POOL);
+        // put negative length while pooled to trip asserts on a double free; take() callers set the size again
+        long sz = unsafe.getLong(buffer - SIZE_OFFSET);
+        unsafe.putLong(buffer - SIZE_OFFSET, -123456789L);
+        if (stripes.length > 0) {
+          AtomicLongArray stripe = stripes[getStripe()];
+          for (int i = 0; i < stripe.length(); i++) {
+            if (stripe.get(i) == 0 && stripe.compareAndSet(i, 0, buffer)) {
+              return true;
+            }
+          }
+        }
+        synchronized (bufferList) {
+          if (numCached < bufferList.length) {
+            bufferList[numCached++] = buffer;
+            return true;
+          }
+        }
+        pooledBytes.addAndGet(-size);
+        unsafe.putLong(buffer - SIZE_OFFSET, sz);
+        return false;
+      }
+
+      void clear() {
+        for (AtomicLongArray stripe : stripes) {
+          for (int i = 0; i < stripe.length(); i++) {
+            long buffer = stripe.getAndSet(i, 0);
+            if (buffer != 0) {
+              pooledBytes.addAndGet(-size);
+              doFree(buffer);
+            }
+          }
+        }
+        synchronized (bufferList) {
+          while (numCached > 0) {
+            pooledBytes.addAndGet(-size);
+            doFree( bufferList[--numCached] );
+          }
+        }
+      }
+
+      long getCachedBufferRetrievals() {
+        synchronized (bufferList) {
+          return cachedBufferRetrievals;
+        }
+      }
+
+      long getLocalBufferRetrievals() {
+        long hits = 0;
+        for (AtomicLong h : stripeHits) {
+          hits += h.get();
+        }
+        return hits;
+      }
+
+      long getPooledBytes() {
+        long n = 0;
+        for (AtomicLongArray stripe : stripes) {
+          for (int i = 0; i < stripe.length(); i++) {
+            if (stripe.get(i) != 0) n++;
+          }
+        }
+        synchronized (bufferList) {
+          n += numCached;
+        }
+        return n * size;
+      }
+    }
+
     public void reset() {
       // TODO - reset numAlloc and numFree here?
     }
@@ -261,7 +530,7 @@ public class HS
     }
 
     @Override
-    public long allocArray(long numElements, int elementSize, boolean zero) throws OutOfMemoryError {
+    public long allocArray(long numElements, int elementSize, boolean zero, int category) throws OutOfMemoryError {
       Info info = new Info();
       Thread thread = Thread.currentThread();
       info.stack = thread.getStackTrace();
@@ -269,7 +538,7 @@ public class HS
       // ManagementFactory.getThreadMXBean().getThreadInfo(Thread.currentThread().getId());
 
       synchronized (this) {
-        long ptr = super.allocArray(numElements, elementSize, zero);
+        long ptr = super.allocArray(numElements, elementSize, zero, category);
 
         info.ptr = ptr;
         Info prev = map.put(ptr, info);
@@ -322,6 +591,31 @@ public class HS
 
   public static final int HEADER_SIZE = 16;
   public static final int SIZE_OFFSET = 8;
+  public static final int CATEGORY_OFFSET = 16;
+
+  /**
+   * Set in the category word of the header of arrays that are part of a memory mapped file rather than
+   * allocated here.  Freeing such an array does nothing: the memory goes away when the file is unmapped.
+   */
+  public static final long MAPPED_FLAG = 1L << 32;
+
+  // off-heap budget, settable with the system property solr.offHeap.maxMB
+  private static volatile long maxBytes = getMaxBytesProperty();
+  private static final AtomicLong liveBytes = new AtomicLong();
+  private static final AtomicLong[] categoryBytes = new AtomicLong[MEM_CATEGORY_NAMES.length];
+  static {
+    for (int i = 0; i < categoryBytes.length; i++) {
+      categoryBytes[i] = new AtomicLong();
+    }
+  }
+  private static final AtomicLong numReclaims = new AtomicLong();
+  private static final AtomicLong numRejected = new AtomicLong();
+  private static final CopyOnWriteArrayList<Reclaimer> reclaimers = new CopyOnWriteArrayList<>();
+
+  private static long getMaxBytesProperty() {
+    String str = System.getProperty("solr.offHeap.maxMB");
+    return str == null ? Long.MAX_VALUE : (long)(Double.parseDouble(str) * 1024 * 1024);
+  }
 
   public static long getNumAllocations() {
     return numAlloc.get();
@@ -331,6 +625,80 @@ public class HS
     return numFree.get();
   }
 
+  /** Sets the limit on the off-heap bytes that may be allocated, or Long.MAX_VALUE for no limit */
+  public static void setMaxBytes(long max) {
+    maxBytes = max;
+  }
+
+  public static long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /** Returns the off-heap bytes currently allocated, including headers and pooled buffers */
+  public static long getLiveBytes() {
+    return liveBytes.get();
+  }
+
+  /** Returns the off-heap bytes currently allocated in the given category */
+  public static long getLiveBytes(int category) {
+    return categoryBytes[category].get();
+  }
+
+  /** Returns the number of times an allocation exceeded the budget and memory was reclaimed */
+  public static long getNumReclaims() {
+    return numReclaims.get();
+  }
+
+  /** Returns the number of allocations rejected because the budget could not be met */
+  public static long getNumRejected() {
+    return numRejected.get();
+  }
+
+  public static void addReclaimer(Reclaimer reclaimer) {
+    reclaimers.add(reclaimer);
+  }
+
+  public static void removeReclaimer(Reclaimer reclaimer) {
+    reclaimers.remove(reclaimer);
+  }
+
+  /** Moves the bytes of an array to another category */
+  private static void setCategory(long ptr, int category) {
+    long word = unsafe.getLong(ptr - CATEGORY_OFFSET);
+    int old = (int)(word & 0xff);
+    if (old == category) return;
+    long sz = allocatedBytes(ptr);
+    categoryBytes[old].addAndGet(-sz);
+    categoryBytes[category].addAndGet(sz);
+    unsafe.putLong(ptr - CATEGORY_OFFSET, (word & ~0xffL) | category);
+  }
+
+  private static int getArrayCategory(long ptr) {
+    return (int)(unsafe.getLong(ptr - CATEGORY_OFFSET) & 0xff);
+  }
+
+  /** Returns the size class of the array's memory, or 0 if it was allocated at its exact size */
+  private static int getArrayClassBits(long ptr) {
+    return (int)((unsafe.getLong(ptr - CATEGORY_OFFSET) >>> 8) & 0xff);
+  }
+
+  /** Returns the category word to store in the header of an array in a memory mapped file */
+  public static long mappedHeader(int category) {
+    return MAPPED_FLAG | category;
+  }
+
+  /** Returns true if the array is part of a memory mapped file */
+  public static boolean isMapped(long ptr) {
+    return (unsafe.getLong(ptr - CATEGORY_OFFSET) & MAPPED_FLAG) != 0;
+  }
+
+  /** Returns the bytes of native memory behind the array, including the header */
+  private static long allocatedBytes(long ptr) {
+    int classBits = getArrayClassBits(ptr);
+    return (classBits == 0 ? arraySizeBytes(ptr) : 1L << classBits) + HEADER_SIZE;
+  }
+
+
 
   // buffer pool - guaranteed to be power of two sized so it can be used in hash tables, etc.
   // 8K was picked to be small compared to the typical L1 data cache size of 32K.
@@ -345,10 +713,46 @@ public class HS
     return allocator.allocArray(numElements, elementSize, zero);
   }
 
+  /** Allocates an array whose bytes are accounted to the given MEM_* category */
+  public static long allocArray(long numElements, int elementSize, boolean zero, int category) throws OutOfMemoryError {
+    return allocator.allocArray(numElements, elementSize, zero, category);
+  }
+
   public static void freeArray(long ptr) {
+    if (isMapped(ptr)) return;  // released when its file is unmapped
     allocator.freeArray(ptr);
   }
 
+  /**
+   * Allocates arrays that are all freed together when the arena is closed, for the many short lived
+   * arrays of a single request.  Arrays from an arena must not be freed individually.
+   */
+  public static class Arena implements Closeable {
+    private long[] ptrs = new long[16];
+    private int numArrays;
+
+    public synchronized long allocArray(long numElements, int elementSize, boolean zero, int category) {
+      long ptr = HS.allocArray(numElements, elementSize, zero, category);
+      if (numArrays == ptrs.length) {
+        ptrs = Arrays.copyOf(ptrs, numArrays << 1);
+      }
+      ptrs[numArrays++] = ptr;
+      return ptr;
+    }
+
+    public synchronized int getNumArrays() {
+      return numArrays;
+    }
+
+    @Override
+    public synchronized void close() {
+      for (int i = 0; i < numArrays; i++) {
+        freeArray(ptrs[i]);
+      }
+      numArrays = 0;
+    }
+  }
+
   public static long arraySizeBytes(long ptr) {
     assert ptr >= 4095 && unsafe.getLong(ptr - SIZE_OFFSET) >= 0;     // if this assertion trips, it's most likely because of a double free
     long sz = unsafe.getLong(ptr - SIZE_OFFSET);
@@ -418,6 +822,20 @@ public class HS
     return unsafe.getLong(ptr + (((long) index) << 3));
   }
 
+  private static final boolean BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
+  /** Reads the 8 bytes at any byte offset as a little endian long, for bit packed arrays */
+  public static long getLongUnaligned(long ptr, long byteOffset) {
+    assert byteOffset >= 0 && byteOffset + 8 <= arraySizeBytes(ptr);
+    long val = unsafe.getLong(ptr + byteOffset);
+    return BIG_ENDIAN ? Long.reverseBytes(val) : val;
+  }
+
+  public static void setLongUnaligned(long ptr, long byteOffset, long val) {
+    assert byteOffset >= 0 && byteOffset + 8 <= arraySizeBytes(ptr);
+    unsafe.putLong(ptr + byteOffset, BIG_ENDIAN ? Long.reverseBytes(val) : val);
+  }
+
   public static void setLong(long ptr, int index, long val) {
     assert (index>=0) && ((((long)index+1)<<3)) <= arraySizeBytes(ptr);
     unsafe.putLong(ptr + (((long) index) << 3), val);
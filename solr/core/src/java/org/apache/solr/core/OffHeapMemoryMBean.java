@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.core;
+
+import java.net.URL;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+/**
+ * A SolrInfoMBean that reports the process-wide off-heap memory allocated through {@link HS},
+ * in total and by category.
+ */
+public class OffHeapMemoryMBean implements SolrInfoMBean {
+
+  @Override
+  public String getName() { return this.getClass().getName(); }
+  @Override
+  public String getVersion() { return SolrCore.version; }
+  @Override
+  public String getDescription() {
+    return "Off-heap memory used by docsets, field values and facets, shared by all cores.";
+  }
+  @Override
+  public Category getCategory() { return Category.OTHER; }
+  @Override
+  public String getSource() { return null; }
+  @Override
+  public URL[] getDocs() {
+    return null;
+  }
+  @Override
+  public NamedList getStatistics() {
+    NamedList stats = new SimpleOrderedMap();
+    long max = HS.getMaxBytes();
+    stats.add("maxBytes", max == Long.MAX_VALUE ? -1L : max);
+    stats.add("liveBytes", HS.getLiveBytes());
+    for (int i = 0; i < HS.MEM_CATEGORY_NAMES.length; i++) {
+      stats.add(HS.MEM_CATEGORY_NAMES[i] + "Bytes", HS.getLiveBytes(i));
+    }
+    stats.add("allocations", HS.getNumAllocations());
+    stats.add("frees", HS.getNumFrees());
+    stats.add("localBufferRetrievals", HS.allocator.getLocalBufferRetrievals());
+    stats.add("cachedBufferRetrievals", HS.allocator.getCachedBufferRetrievals());
+    stats.add("freshBufferAllocations", HS.allocator.getFreshBufferAllocations());
+    stats.add("reclaims", HS.getNumReclaims());
+    stats.add("rejectedAllocations", HS.getNumRejected());
+    return stats;
+  }
+
+}
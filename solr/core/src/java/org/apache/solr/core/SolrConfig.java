@@ -208,6 +208,13 @@ public class SolrConfig extends Config {
     queryResultWindowSize = Math.max(1, getInt("query/queryResultWindowSize", 1));
     queryResultMaxDocsCached = getInt("query/queryResultMaxDocsCached", Integer.MAX_VALUE);
     enableLazyFieldLoading = getBool("query/enableLazyFieldLoading", false);
+    compressFilterCache = getBool("query/compressFilterCache", false);
+    nCacheWarmThreads = getInt("query/nCacheWarmThreads", 0);
+    nCacheWarmTimeout = getInt("query/nCacheWarmTimeout", 60000);
+    nCachePersist = getBool("query/nCachePersist", false);
+    filterThreads = getInt("query/filterThreads", 0);
+    searchThreads = getInt("query/searchThreads", 0);
+    facetThreads = getInt("query/facetThreads", 0);
 
     CacheConfig conf = CacheConfig.getConfig(this, "query/filterCache");
     if (conf == null) {
@@ -233,6 +240,8 @@ public class SolrConfig extends Config {
     }
     nCacheConfig = conf;
 
+    joinCacheConfig = CacheConfig.getConfig(this, "query/joinCache");
+
 
     queryResultCacheConfig = CacheConfig.getConfig(this, "query/queryResultCache");
     documentCacheConfig = CacheConfig.getConfig(this, "query/documentCache");
@@ -403,12 +412,20 @@ public class SolrConfig extends Config {
   public final CacheConfig documentCacheConfig;
   public final CacheConfig fieldValueCacheConfig;
   public final CacheConfig nCacheConfig;
+  public final CacheConfig joinCacheConfig;
   public final CacheConfig[] userCacheConfigs;
   // SolrIndexSearcher - more...
   public final boolean useFilterForSortedQuery;
   public final int queryResultWindowSize;
   public final int queryResultMaxDocsCached;
   public final boolean enableLazyFieldLoading;
+  public final boolean compressFilterCache;
+  public final int nCacheWarmThreads;   // threads that build the field values of new segments while warming, 0 to disable
+  public final int nCacheWarmTimeout;   // ms to wait for them before registering a new searcher, -1 for no limit
+  public final boolean nCachePersist;   // keep per-segment field values in files next to the index, mapped on restart
+  public final int filterThreads;       // threads that compute the uncached filters of a request concurrently, 0 to disable
+  public final int searchThreads;       // threads that search slices of the segments of a query concurrently, 0 to disable
+  public final int facetThreads;        // threads that collect JSON facets over groups of segments concurrently, 0 to disable
   public final boolean nrtMode;
   // DocSet
   public final float hashSetInverseLoadFactor;
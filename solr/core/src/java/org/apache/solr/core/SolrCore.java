@@ -78,6 +78,7 @@ import org.apache.solr.search.QParserPlugin;
 import org.apache.solr.search.SolrFieldCacheMBean;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.search.ValueSourceParser;
+import org.apache.solr.search.field.LeafValuesStore;
 import org.apache.solr.update.DefaultSolrCoreState;
 import org.apache.solr.update.DirectUpdateHandler2;
 import org.apache.solr.update.SolrCoreState;
@@ -136,6 +137,9 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
@@ -445,6 +449,15 @@ public final class SolrCore implements SolrInfoMBean, Closeable {
   }
 
 
+  private LeafValuesStore initLeafValuesStore() {
+    if (!solrConfig.nCachePersist) return null;
+    if (!(directoryFactory instanceof StandardDirectoryFactory)) {
+      log.warn(logid + "nCachePersist needs an index on the local file system, field values will not be persisted");
+      return null;
+    }
+    return new LeafValuesStore(new File(dataDir, "nvalues"));
+  }
+
    private void initDirectoryFactory() {
     DirectoryFactory dirFactory;
     PluginInfo info = solrConfig.getPluginInfo(DirectoryFactory.class.getName());
@@ -744,6 +757,7 @@ public final class SolrCore implements SolrInfoMBean, Closeable {
     }
 
     infoRegistry.put("fieldCache", new SolrFieldCacheMBean());
+    infoRegistry.put("offHeapMemory", new OffHeapMemoryMBean());
 
     if (schema==null) {
       schema = IndexSchemaFactory.buildIndexSchema(IndexSchema.DEFAULT_SCHEMA_FILE, config);
@@ -783,6 +797,7 @@ public final class SolrCore implements SolrInfoMBean, Closeable {
       }
       
       initIndex(prev != null);
+      leafValuesStore = initLeafValuesStore();
       
       initWriters();
       initQParsers();
@@ -1099,6 +1114,35 @@ public final class SolrCore implements SolrInfoMBean, Closeable {
       }
     }
 
+    // no requests are running by now, and field values still being built for a warming searcher are abandoned
+    List<ExecutorService> executors;
+    synchronized (lazyExecutors) {
+      executors = new ArrayList<>(lazyExecutors.values());
+      lazyExecutors.clear();
+    }
+    for (ExecutorService executor : executors) {
+      try {
+        ExecutorUtil.shutdownNowAndAwaitTermination(executor);
+      } catch (Throwable e) {
+        SolrException.log(log, e);
+        if (e instanceof Error) {
+          throw (Error) e;
+        }
+      }
+    }
+
+    if (leafValuesStore != null) {
+      // finishes writing the field values already built
+      try {
+        leafValuesStore.close();
+      } catch (Throwable e) {
+        SolrException.log(log, e);
+        if (e instanceof Error) {
+          throw (Error) e;
+        }
+      }
+    }
+
     try {
       // Since we waited for the searcherExecutor to shut down,
       // there should be no more searchers warming in the background
@@ -1344,6 +1388,8 @@ public final class SolrCore implements SolrInfoMBean, Closeable {
 
   final ExecutorService searcherExecutor = Executors.newSingleThreadExecutor(
       new DefaultSolrThreadFactory("searcherExecutor"));
+  private final Map<String,ExecutorService> lazyExecutors = new HashMap<>();  // by name, created on first use
+  private LeafValuesStore leafValuesStore;
   private int onDeckSearchers;  // number of searchers preparing
   // Lock ordering: one can acquire the openSearcherLock and then the searcherLock, but not vice-versa.
   private Object searcherLock = new Object();  // the sync object for the searcher
@@ -1353,6 +1399,64 @@ public final class SolrCore implements SolrInfoMBean, Closeable {
   private RefCounted<SolrIndexSearcher> realtimeSearcher;
   private Callable<DirectoryReader> newReaderCreator;
 
+  /**
+   * Returns the executor that builds the field values of new segments while a searcher is warming,
+   * or null if that is disabled.
+   */
+  public ExecutorService getValuesWarmingExecutor() {
+    return getOrCreateExecutor("valuesWarming", solrConfig.nCacheWarmThreads);
+  }
+
+  /**
+   * Returns the executor that computes the uncached filters of a request concurrently,
+   * or null if that is disabled.
+   */
+  public ExecutorService getFilterExecutor() {
+    return getOrCreateExecutor("filterExecutor", solrConfig.filterThreads);
+  }
+
+  /**
+   * Returns the executor that searches slices of the segments of a single query concurrently,
+   * or null if that is disabled.
+   */
+  public ExecutorService getSliceExecutor() {
+    return getOrCreateExecutor("sliceExecutor", solrConfig.searchThreads);
+  }
+
+  /**
+   * Returns the executor that collects the JSON facets of a request over groups of segments concurrently
+   * (when facet.threads is set), or null if that is disabled.
+   */
+  public ExecutorService getFacetExecutor() {
+    return getOrCreateExecutor("facetExecutor", solrConfig.facetThreads);
+  }
+
+  /**
+   * Returns the executor with the given name, creating a pool of <code>threads</code> threads (that time out
+   * when idle) on first use.  Returns null if <code>threads</code> is not positive or the core is closed.
+   * These executors are shut down when the core is closed.
+   */
+  private ExecutorService getOrCreateExecutor(String name, int threads) {
+    if (threads <= 0) return null;
+
+    synchronized (lazyExecutors) {
+      ExecutorService executor = lazyExecutors.get(name);
+      if (executor == null && !isClosed()) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new DefaultSolrThreadFactory(name));
+        pool.allowCoreThreadTimeOut(true);
+        lazyExecutors.put(name, pool);
+        executor = pool;
+      }
+      return executor;
+    }
+  }
+
+  /** Returns the store of persisted field values, or null if they aren't persisted */
+  public LeafValuesStore getLeafValuesStore() {
+    return leafValuesStore;
+  }
+
   /**
   * Return a registered {@link RefCounted}&lt;{@link SolrIndexSearcher}&gt; with
   * the reference count incremented.  It <b>must</b> be decremented when no longer needed.
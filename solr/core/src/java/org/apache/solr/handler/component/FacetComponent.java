@@ -48,6 +48,7 @@ import org.apache.solr.search.QueryParsing;
 import org.apache.solr.search.SyntaxError;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.apache.solr.search.facet.FacetModule;
 import org.apache.solr.search.facet.SimpleFacets;
 
 /**
@@ -125,6 +126,11 @@ public class FacetComponent extends SearchComponent {
       return ResponseBuilder.STAGE_DONE;
     }
     
+    if (rb.stage == ResponseBuilder.STAGE_GET_FIELDS && rb._facetInfo != null
+        && rb._facetInfo.jsonFacets != null) {
+      enqueueJsonFacetRefinements(rb);
+    }
+
     if (rb.stage == ResponseBuilder.STAGE_GET_FIELDS) {
       // overlap facet refinement requests (those shards that we need a count
       // for particular facet values from), where possible, with
@@ -211,6 +217,7 @@ public class FacetComponent extends SearchComponent {
           shardsRefineRequest.params.set(FacetParams.FACET, "true");
           shardsRefineRequest.params.remove(FacetParams.FACET_FIELD);
           shardsRefineRequest.params.remove(FacetParams.FACET_QUERY);
+          shardsRefineRequest.params.remove("json.facet");  // refined separately
           
           for (int i = 0; i < distribFieldFacetRefinements.size();) {
             String facetCommand = distribFieldFacetRefinements.get(i++);
@@ -242,6 +249,33 @@ public class FacetComponent extends SearchComponent {
     return ResponseBuilder.STAGE_DONE;
   }
   
+  private void enqueueJsonFacetRefinements(ResponseBuilder rb) {
+    FacetModule jsonFacets = rb._facetInfo.jsonFacets;
+    for (int shardNum = 0; shardNum < rb.shards.length; shardNum++) {
+      String refinement = jsonFacets.getRefinement(shardNum);
+      if (refinement == null) continue;
+
+      ShardRequest sreq = new ShardRequest();
+      sreq.purpose = ShardRequest.PURPOSE_REFINE_JSON_FACETS;
+      sreq.shards = new String[] { rb.shards[shardNum] };
+      sreq.params = new ModifiableSolrParams(rb.req.getParams());
+      // don't request any documents
+      sreq.params.remove(CommonParams.START);
+      sreq.params.set(CommonParams.ROWS, "0");
+      sreq.params.set(FacetParams.FACET, "true");
+      sreq.params.set("json.facet", refinement);
+      // the facet_counts were already merged from the first response
+      sreq.params.remove(FacetParams.FACET_QUERY);
+      sreq.params.remove(FacetParams.FACET_FIELD);
+      sreq.params.remove(FacetParams.FACET_DATE);
+      sreq.params.remove(FacetParams.FACET_RANGE);
+      sreq.params.remove(FacetParams.FACET_INTERVAL);
+      sreq.params.remove(FacetParams.FACET_PIVOT);
+
+      rb.addRequest(this, sreq);
+    }
+  }
+
   private void enqueuePivotFacetShardRequests
     (HashMap<String,List<String>> pivotFacetRefinements, 
      ResponseBuilder rb, int shardNum) {
@@ -262,6 +296,7 @@ public class FacetComponent extends SearchComponent {
     shardsRefineRequestPivot.params.set(FacetParams.FACET_PIVOT_MINCOUNT, -1);
     shardsRefineRequestPivot.params.remove(FacetParams.FACET_PIVOT);
     shardsRefineRequestPivot.params.remove(FacetParams.FACET_OFFSET);
+    shardsRefineRequestPivot.params.remove("json.facet");  // refined separately
     
     for (int pivotIndex = 0; pivotIndex < fi.pivotFacets.size(); pivotIndex++) {
       String pivotFacetKey = fi.pivotFacets.getName(pivotIndex);
@@ -476,6 +511,9 @@ public class FacetComponent extends SearchComponent {
       if ((sreq.purpose & ShardRequest.PURPOSE_REFINE_PIVOT_FACETS) != 0) {
         refinePivotFacets(rb, sreq);
       }
+      if ((sreq.purpose & ShardRequest.PURPOSE_REFINE_JSON_FACETS) != 0) {
+        refineJsonFacets(rb, sreq);
+      }
     }
   }
   
@@ -484,6 +522,13 @@ public class FacetComponent extends SearchComponent {
     
     for (ShardResponse srsp : sreq.responses) {
       int shardNum = rb.getShardNum(srsp.getShard());
+
+      if (fi.jsonFacets != null) {
+        // shards only return json facets when they are requested
+        fi.jsonFacets.merge(shardNum, srsp.getSolrResponse().getResponse().get("facets"));
+        if (!fi.facetCounts) continue;
+      }
+
       NamedList facet_counts = null;
       try {
         facet_counts = (NamedList) srsp.getSolrResponse().getResponse().get("facet_counts");
@@ -793,6 +838,14 @@ public class FacetComponent extends SearchComponent {
     }
   }
   
+  private void refineJsonFacets(ResponseBuilder rb, ShardRequest sreq) {
+    FacetModule jsonFacets = rb._facetInfo.jsonFacets;
+    for (ShardResponse srsp : sreq.responses) {
+      int shardNum = rb.getShardNum(srsp.getShard());
+      jsonFacets.mergeRefinement(shardNum, srsp.getSolrResponse().getResponse().get("facets"));
+    }
+  }
+
   private void refinePivotFacets(ResponseBuilder rb, ShardRequest sreq) {
     // This is after the shard has returned the refinement request
     FacetInfo fi = rb._facetInfo;
@@ -863,6 +916,11 @@ public class FacetComponent extends SearchComponent {
     // so that "result" is already stored in the response (for aesthetics)
     
     FacetInfo fi = rb._facetInfo;
+
+    if (fi.jsonFacets != null) {
+      rb.rsp.add("facets", fi.jsonFacets.getMergedResult());
+      if (!fi.facetCounts) return;
+    }
     
     NamedList<Object> facet_counts = new SimpleOrderedMap<>();
     
@@ -1001,10 +1059,17 @@ public class FacetComponent extends SearchComponent {
       = new SimpleOrderedMap<>();
     public SimpleOrderedMap<PivotFacet> pivotFacets
       = new SimpleOrderedMap<>();
+    public FacetModule jsonFacets;  // merges json.facet responses, null if not requested
+    public boolean facetCounts;     // false if only json.facet was requested, so there are no facet_counts
 
     void parse(SolrParams params, ResponseBuilder rb) {
       queryFacets = new LinkedHashMap<>();
       facets = new LinkedHashMap<>();
+      jsonFacets = FacetModule.createDistributed(rb.req, rb.shards.length);
+      facetCounts = jsonFacets == null
+          || params.get(FacetParams.FACET_QUERY) != null || params.get(FacetParams.FACET_FIELD) != null
+          || params.get(FacetParams.FACET_DATE) != null || params.get(FacetParams.FACET_RANGE) != null
+          || params.get(FacetParams.FACET_INTERVAL) != null || params.get(FacetParams.FACET_PIVOT) != null;
 
       String[] facetQs = params.getParams(FacetParams.FACET_QUERY);
       if (facetQs != null) {
@@ -93,6 +93,18 @@ public class SolrRequestInfo {
     }
   }
 
+  /** Sets the request info of a thread doing part of the work of a request on behalf of the thread that owns it.
+   * The owner is responsible for closing the request info, so this thread should call this method again with
+   * null when done instead of calling {@link #clearRequestInfo}.
+   */
+  public static void setWorkerRequestInfo(SolrRequestInfo info) {
+    if (info == null) {
+      threadLocal.remove();
+    } else {
+      threadLocal.set(info);
+    }
+  }
+
   public SolrRequestInfo(SolrQueryRequest req, SolrQueryResponse rsp) {
     this.req = req;
     this.rsp = rsp;    
@@ -42,22 +42,28 @@ public class BitDocSetNative extends DocSetBaseNative implements Bits, Cloneable
 
   public BitDocSetNative(int numBits) {
     this.wlen = FixedBitSet.bits2words(numBits);
-    this.array = HS.allocArray(wlen, 8, true);
+    this.array = HS.allocArray(wlen, 8, true, HS.MEM_DOCSET);
   }
 
   public BitDocSetNative(BitDocSetNative other) {
     this.wlen = other.wlen;
-    this.array = HS.allocArray(wlen, 8, false);  // don't zero memory since we will copy over it
+    this.array = HS.allocArray(wlen, 8, false, HS.MEM_DOCSET);  // don't zero memory since we will copy over it
     HS.copyLongs(other.array, 0, array, 0, wlen);
     // Don't set size... the purpose of making a copy will be to change it.
   }
 
   public BitDocSetNative(FixedBitSet other) {
     this.wlen = FixedBitSet.bits2words(other.length());  // hmmm, we want numWords back!
-    this.array = HS.allocArray(wlen, 8, false);  // don't zero memory since we will copy over it
+    this.array = HS.allocArray(wlen, 8, false, HS.MEM_DOCSET);  // don't zero memory since we will copy over it
     HS.copyLongs(other.getBits(), 0, this.array, 0, wlen);
   }
 
+  /** takes ownership of a native array of wlen words */
+  private BitDocSetNative(long array, int wlen) {
+    this.array = array;
+    this.wlen = wlen;
+  }
+
   public FixedBitSet toFixedBitSet() {
     long[] longArray = new long[wlen];
     HS.copyLongs(array, 0, longArray, 0, wlen);
@@ -252,6 +258,17 @@ public class BitDocSetNative extends DocSetBaseNative implements Bits, Cloneable
   }
 
   public static native void setBits(long words, long wlen, long intArr, int size);
+  public static native void clearBits(long words, long wlen, long intArr, int size);
+
+  /** Returns the cardinality of (a OP b) where OP is one of the HS.OP_ codes */
+  static native int opCountNative(long a, long b, int wlen, int op);
+  /** Sets target = (a OP b) and returns the cardinality of the result */
+  static native int opNative(long target, long a, long b, int wlen, int op);
+  static native boolean intersectsNative(long a, long b, int wlen);
+  /** Returns the number of the sorted ints that are set in the bitset */
+  static native int intersectionSizeIntsNative(long words, int wlen, long intArr, int len);
+  /** Copies the sorted ints that are (keep=true) or are not (keep=false) set in the bitset to target, returning the number copied */
+  static native int filterIntsNative(long words, int wlen, long intArr, int len, boolean keep, long target);
 
   /**
    * The number of set bits - size - is cached.  If the bitset is changed externally,
@@ -388,6 +405,9 @@ public class BitDocSetNative extends DocSetBaseNative implements Bits, Cloneable
 
   public static boolean intersects(BitDocSetNative a, BitDocSetNative b) {
     assert(a.wlen == b.wlen);
+    if (nativeOps()) {
+      return intersectsNative(a.array, b.array, a.wlen);
+    }
     int nWords = a.wlen;
     for (int i=0; i<nWords; i++) {
       if ( (HS.getLong(a.array, i) & HS.getLong(b.array, i)) != 0 ) {
@@ -402,6 +422,9 @@ public class BitDocSetNative extends DocSetBaseNative implements Bits, Cloneable
    */
   public static int intersectionCount(BitDocSetNative a, BitDocSetNative b) {
     assert(a.wlen == b.wlen);
+    if (nativeOps()) {
+      return opCountNative(a.array, b.array, a.wlen, HS.OP_AND);
+    }
     int nWords = a.numWords();
     int result = 0;
     for (int i=0; i<nWords; i++) {
@@ -427,6 +450,9 @@ public class BitDocSetNative extends DocSetBaseNative implements Bits, Cloneable
 
   public static int unionCount(BitDocSetNative a, BitDocSetNative b) {
     assert(a.wlen == b.wlen);
+    if (nativeOps()) {
+      return opCountNative(a.array, b.array, a.wlen, HS.OP_OR);
+    }
     int nWords = a.numWords();
     int result = 0;
     for (int i=0; i<nWords; i++) {
@@ -439,6 +465,9 @@ public class BitDocSetNative extends DocSetBaseNative implements Bits, Cloneable
 
   public static int andNotCount(BitDocSetNative a, BitDocSetNative b) {
     assert(a.wlen == b.wlen);
+    if (nativeOps()) {
+      return opCountNative(a.array, b.array, a.wlen, HS.OP_ANDNOT);
+    }
     int nWords = a.numWords();
     int result = 0;
     for (int i=0; i<nWords; i++) {
@@ -645,28 +674,88 @@ public class BitDocSetNative extends DocSetBaseNative implements Bits, Cloneable
     throw new UnsupportedOperationException();
   }
 
+  /** Returns a new set of (a OP b), computing its size in the same pass */
+  static BitDocSetNative op(BitDocSetNative a, BitDocSetNative b, int op) {
+    assert a.wlen == b.wlen;
+    int wlen = a.wlen;
+    BitDocSetNative result = new BitDocSetNative(HS.allocArray(wlen, 8, false, HS.MEM_DOCSET), wlen);
+    if (nativeOps()) {
+      result.size = opNative(result.array, a.array, b.array, wlen, op);
+      return result;
+    }
+
+    long target = result.array;
+    int count = 0;
+    switch (op) {
+      case HS.OP_AND:
+        for (int i=0; i<wlen; i++) {
+          long w = HS.getLong(a.array, i) & HS.getLong(b.array, i);
+          HS.setLong(target, i, w);
+          count += Long.bitCount(w);
+        }
+        break;
+      case HS.OP_OR:
+        for (int i=0; i<wlen; i++) {
+          long w = HS.getLong(a.array, i) | HS.getLong(b.array, i);
+          HS.setLong(target, i, w);
+          count += Long.bitCount(w);
+        }
+        break;
+      default:
+        for (int i=0; i<wlen; i++) {
+          long w = HS.getLong(a.array, i) & ~HS.getLong(b.array, i);
+          HS.setLong(target, i, w);
+          count += Long.bitCount(w);
+        }
+        break;
+    }
+    result.size = count;
+    return result;
+  }
+
+  @Override
+  public DocSet intersection(DocSet other) {
+    if (other instanceof BitDocSetNative) {
+      return op(this, (BitDocSetNative)other, HS.OP_AND);
+    }
+    // the other sets are smaller, so dispatch to them
+    return other.intersection(this);
+  }
+
   @Override
   public DocSet andNot(DocSet other) {
+    if (other instanceof BitDocSetNative) {
+      return op(this, (BitDocSetNative)other, HS.OP_ANDNOT);
+    }
     BitDocSetNative newbits = clone();
-     if (other instanceof BitDocSetNative) {
-       newbits.remove(((BitDocSetNative) other));
-     } else {
-       DocIterator iter = other.iterator();
-       while (iter.hasNext()) newbits.fastClear(iter.nextDoc());
-     }
-     return newbits;
+    if (other instanceof SortedIntDocSetNative && nativeOps()) {
+      SortedIntDocSetNative ints = (SortedIntDocSetNative)other;
+      clearBits(newbits.array, wlen, ints.array, ints.len);
+    } else if (other instanceof RoaringDocSetNative) {
+      ((RoaringDocSetNative)other).applyToBits(newbits, HS.OP_ANDNOT);
+    } else {
+      DocIterator iter = other.iterator();
+      while (iter.hasNext()) newbits.fastClear(iter.nextDoc());
+    }
+    return newbits;
   }
 
   @Override
-   public DocSet union(DocSet other) {
+  public DocSet union(DocSet other) {
+    if (other instanceof BitDocSetNative) {
+      return op(this, (BitDocSetNative)other, HS.OP_OR);
+    }
     BitDocSetNative newbits = clone();
-     if (other instanceof BitDocSetNative) {
-       newbits.unionMe(((BitDocSetNative) other));
-     } else {
-       DocIterator iter = other.iterator();
-       while (iter.hasNext()) newbits.fastSet(iter.nextDoc());
-     }
-     return newbits;
+    if (other instanceof SortedIntDocSetNative && nativeOps()) {
+      SortedIntDocSetNative ints = (SortedIntDocSetNative)other;
+      setBits(newbits.array, wlen, ints.array, ints.len);
+    } else if (other instanceof RoaringDocSetNative) {
+      ((RoaringDocSetNative)other).applyToBits(newbits, HS.OP_OR);
+    } else {
+      DocIterator iter = other.iterator();
+      while (iter.hasNext()) newbits.fastSet(iter.nextDoc());
+    }
+    return newbits;
   }
 
   @Override
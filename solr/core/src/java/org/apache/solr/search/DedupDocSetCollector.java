@@ -51,7 +51,7 @@ public class DedupDocSetCollector extends Collector implements AutoCloseable {
   }
 
   private void allocBuffer() {
-    buffer = HS.getBuffer();
+    buffer = HS.allocArray(HS.BUFFER_SIZE_BYTES, 1, false, HS.MEM_DOCSET);
   }
 
   @Override
@@ -105,7 +105,7 @@ public class DedupDocSetCollector extends Collector implements AutoCloseable {
 
   private static DocSet makeSmallSet(BitDocSetNative bits) throws IOException {
     int numDocs = (int)bits.cardinality();
-    long answer = HS.allocArray(numDocs, 4, false);
+    long answer = HS.allocArray(numDocs, 4, false, HS.MEM_DOCSET);
     DocIdSetIterator iter = bits.docIterator();
     for(int i=0; i<numDocs; i++) {
       int docid = iter.nextDoc();
@@ -147,7 +147,7 @@ public class DedupDocSetCollector extends Collector implements AutoCloseable {
       all = buffer;  // steal the buffer
       buffer = 0;
     } else {
-      all = HS.allocArray(sz, 4, false);
+      all = HS.allocArray(sz, 4, false, HS.MEM_DOCSET);
       int allPos = 0;
       for (long buf : bufferList) {
         HS.copyInts(buf, 0, all, allPos, bufferSize);
@@ -162,7 +162,7 @@ public class DedupDocSetCollector extends Collector implements AutoCloseable {
 
     // resize if more than 1/16 slop after dedup, or if we are using a buffer pool buffer
     if (bufferList==null || nDocs < sz - (sz>>4)) {
-      long arr2 = HS.allocArray(nDocs, 4, false);
+      long arr2 = HS.allocArray(nDocs, 4, false, HS.MEM_DOCSET);
       HS.copyInts(all, 0, arr2, 0, nDocs);
       HS.freeArray(all);
       all = arr2;
@@ -40,6 +40,14 @@ public abstract class DocSetBaseNative implements RefCount, DocSet, HS.NativeDat
 
   private final AtomicInteger refcount = new AtomicInteger(1);
 
+  /** Set operations use the native library when it is loaded, unless this is false.
+   * The java implementations are kept as a fallback and for benchmarking against. */
+  public static volatile boolean useNativeOps = true;
+
+  static boolean nativeOps() {
+    return HS.loaded && useNativeOps;
+  }
+
   public static void debug(boolean clear) {}
 
   /********************* uncomment to track all incref/decref calls
@@ -17,7 +17,9 @@ package org.apache.solr.search;
  */
 
 import org.apache.solr.common.SolrException;
+import org.apache.solr.core.HS;
 import org.apache.solr.core.RefCount;
+import org.apache.solr.search.field.TopValues;
 import org.apache.solr.util.ConcurrentLRUCache;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
@@ -34,6 +36,12 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * This implementation does not use a separate cleanup thread. Instead it uses the calling thread
  * itself to do the cleanup when the size of the cache exceeds certain limits.
  * <p/>
+ * Besides the number of entries, the cache can be bounded by the memory used by its values
+ * with <code>maxRamMB</code> (java heap plus off-heap) and <code>maxOffHeapMB</code> (off-heap only).
+ * The size of {@link DocSet} and {@link TopValues} values is known; other values are not counted.
+ * When the process runs short of off-heap memory (see {@link HS#setMaxBytes}), the cache is asked
+ * to evict its least recently used off-heap values.
+ * <p/>
  * Also see <a href="http://wiki.apache.org/solr/SolrCaching">SolrCaching</a>
  *
  *
@@ -51,12 +59,41 @@ public class FastLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,V> {
   private String description = "Concurrent LRU Cache";
   private ConcurrentLRUCache<K,V> cache;
   private int showItems = 0;
+  private HS.Reclaimer reclaimer;
+
+  /** Measures DocSets and TopValues, the large values held by the filterCache and nCache */
+  static final ConcurrentLRUCache.RamEstimator<Object> RAM_ESTIMATOR = new ConcurrentLRUCache.RamEstimator<Object>() {
+    @Override
+    public long ramBytes(Object value) {
+      if (value instanceof DocSet && !(value instanceof HS.NativeData)) {
+        return ((DocSet)value).memSize();
+      }
+      return 0;
+    }
+
+    @Override
+    public long offHeapBytes(Object value) {
+      if (value instanceof DocSet && value instanceof HS.NativeData) {
+        return ((DocSet)value).memSize();
+      } else if (value instanceof TopValues) {
+        return ((TopValues)value).getSizeInBytes();
+      }
+      return 0;
+    }
+  };
 
   @Override
   public Object init(Map args, Object persistence, CacheRegenerator regenerator) {
     super.init(args, regenerator);
-    String str = (String) args.get("size");
-    int limit = str == null ? 1024 : Integer.parseInt(str);
+    String str = (String) args.get("maxRamMB");
+    long maxRamBytes = str == null ? -1 : (long) (Double.parseDouble(str) * 1024 * 1024);
+    str = (String) args.get("maxOffHeapMB");
+    long maxOffHeapBytes = str == null ? -1 : (long) (Double.parseDouble(str) * 1024 * 1024);
+    boolean ramLimited = maxRamBytes > 0 || maxOffHeapBytes > 0;
+
+    str = (String) args.get("size");
+    // when bounded by memory, the number of entries is only limited if asked for
+    int limit = str == null ? (ramLimited ? Integer.MAX_VALUE - 1 : 1024) : Integer.parseInt(str);
     int minLimit;
     str = (String) args.get("minSize");
     if (str == null) {
@@ -78,15 +115,23 @@ public class FastLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,V> {
     acceptableLimit = Math.max(minLimit, acceptableLimit);
 
     str = (String) args.get("initialSize");
-    final int initialSize = str == null ? limit : Integer.parseInt(str);
+    final int initialSize = str == null ? Math.min(limit, 1024) : Integer.parseInt(str);
     str = (String) args.get("cleanupThread");
     boolean newThread = str == null ? false : Boolean.parseBoolean(str);
 
     str = (String) args.get("showItems");
     showItems = str == null ? 0 : Integer.parseInt(str);
-    description = generateDescription(limit, initialSize, minLimit, acceptableLimit, newThread);
-    cache = new ConcurrentLRUCache<K,V>(limit, minLimit, acceptableLimit, initialSize, newThread, false, null);
+    description = generateDescription(limit, initialSize, minLimit, acceptableLimit, newThread, maxRamBytes, maxOffHeapBytes);
+    cache = new ConcurrentLRUCache<K,V>(limit, minLimit, acceptableLimit, initialSize, newThread, false, null,
+        maxRamBytes, maxOffHeapBytes, RAM_ESTIMATOR);
     cache.setAlive(false);
+    reclaimer = new HS.Reclaimer() {
+      @Override
+      public void reclaim(long bytesWanted) {
+        cache.evictOffHeap(bytesWanted);
+      }
+    };
+    HS.addReclaimer(reclaimer);
 
     statsList = (List<ConcurrentLRUCache.Stats>) persistence;
     if (statsList == null) {
@@ -105,9 +150,16 @@ public class FastLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,V> {
   /**
    * @return Returns the description of this Cache.
    */
-  protected String generateDescription(int limit, int initialSize, int minLimit, int acceptableLimit, boolean newThread) {
+  protected String generateDescription(int limit, int initialSize, int minLimit, int acceptableLimit, boolean newThread,
+                                       long maxRamBytes, long maxOffHeapBytes) {
     String description = "Concurrent LRU Cache(maxSize=" + limit + ", initialSize=" + initialSize +
         ", minSize="+minLimit + ", acceptableSize="+acceptableLimit+", cleanupThread="+newThread;
+    if (maxRamBytes > 0) {
+      description += ", maxRamBytes=" + maxRamBytes;
+    }
+    if (maxOffHeapBytes > 0) {
+      description += ", maxOffHeapBytes=" + maxOffHeapBytes;
+    }
     if (isAutowarmingOn()) {
       description += ", " + getAutowarmDescription();
     }
@@ -191,6 +243,7 @@ public class FastLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,V> {
 
   @Override
   public void close() {
+    HS.removeReclaimer(reclaimer);
     // add the stats to the cumulative stats object (the first in the statsList)
     statsList.get(0).add(cache.getStats());
     statsList.remove(cache.getStats());
@@ -242,6 +295,8 @@ public class FastLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,V> {
     lst.add("inserts", inserts);
     lst.add("evictions", evictions);
     lst.add("size", size);
+    lst.add("ramBytes", stats.getRamBytes());
+    lst.add("offHeapBytes", stats.getOffHeapBytes());
 
     lst.add("warmupTime", warmupTime);
     lst.add("cumulative_lookups", clookups);
@@ -16,6 +16,7 @@
  */
 package org.apache.solr.search;
 
+import com.carrotsearch.hppc.LongOpenHashSet;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.similarities.Similarity;
@@ -34,7 +35,21 @@ import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.request.LocalSolrQueryRequest;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.schema.FieldProperties;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.StrField;
 import org.apache.solr.schema.TrieField;
+import org.apache.solr.schema.TrieIntField;
+import org.apache.solr.schema.TrieLongField;
+import org.apache.solr.search.field.FieldStats;
+import org.apache.solr.search.field.FieldValues;
+import org.apache.solr.search.field.IntFieldValues;
+import org.apache.solr.search.field.LeafValues;
+import org.apache.solr.search.field.LongFieldValues;
+import org.apache.solr.search.field.StrFieldValues;
+import org.apache.solr.search.field.StrLeafValues;
+import org.apache.solr.search.field.TopValues;
 import org.apache.solr.util.RefCounted;
 
 import java.io.Closeable;
@@ -61,6 +76,7 @@ public class JoinQParserPlugin extends QParserPlugin {
         String fromField = getParam("from");
         String fromIndex = getParam("fromIndex");
         String toField = getParam("to");
+        String method = getParam("method");
         String v = localParams.get("v");
         Query fromQuery;
         long fromCoreOpenTime = 0;
@@ -91,21 +107,109 @@ public class JoinQParserPlugin extends QParserPlugin {
           fromQuery = fromQueryParser.getQuery();
         }
 
+        if (method != null && !(JoinQuery.METHOD_TERMS.equals(method) || JoinQuery.METHOD_VALUES.equals(method))) {
+          throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Unknown join method " + method);
+        }
+
         JoinQuery jq = new JoinQuery(fromField, toField, fromIndex, fromQuery);
         jq.fromCoreOpenTime = fromCoreOpenTime;
+        jq.method = method;
         return jq;
       }
     };
   }
+
+
+  /** Key of a cross-core join result in the join cache of the to-side searcher.
+   * The to-side searcher is implicit (each searcher has its own cache), and the from-side searcher is identified
+   * by its core and index version, so entries computed against an older from searcher will not be used.
+   */
+  static class JoinCacheKey {
+    final String fromIndex;
+    final String fromField;
+    final String toField;
+    final Query fromQuery;
+    final long fromCoreStartTime;
+    final long fromVersion;
+    final int hash;
+
+    JoinCacheKey(JoinQuery jq, SolrIndexSearcher fromSearcher) {
+      this.fromIndex = jq.fromIndex;
+      this.fromField = jq.fromField;
+      this.toField = jq.toField;
+      this.fromQuery = jq.q;
+      this.fromCoreStartTime = fromSearcher.getCore().getStartTime();
+      this.fromVersion = fromSearcher.getIndexReader().getVersion();
+
+      int h = fromQuery.hashCode();
+      h = h * 31 + fromIndex.hashCode();
+      h = h * 31 + fromField.hashCode();
+      h = h * 31 + toField.hashCode();
+      h = h * 31 + (int)(fromVersion ^ (fromVersion >>> 32));
+      this.hash = h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof JoinCacheKey)) return false;
+      JoinCacheKey other = (JoinCacheKey)o;
+      return this.hash == other.hash
+          && this.fromVersion == other.fromVersion
+          && this.fromCoreStartTime == other.fromCoreStartTime
+          && this.fromIndex.equals(other.fromIndex)
+          && this.fromField.equals(other.fromField)
+          && this.toField.equals(other.toField)
+          && this.fromQuery.equals(other.fromQuery);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public String toString() {
+      return "{!join from="+fromField+" to="+toField+" fromIndex="+fromIndex+"}"+fromQuery
+          + " fromVersion=" + fromVersion;
+    }
+  }
+
+  /**
+   * Autowarms the join cache of a new to-side searcher by redoing the joins against the from-side searcher.
+   * Entries cached against an older from-side searcher are dropped, since no request will look them up again.
+   */
+  static class JoinCacheRegenerator implements CacheRegenerator {
+    @Override
+    public boolean regenerateItem(SolrIndexSearcher.WarmContext warmContext, Object oldKey, Object oldVal) throws IOException {
+      JoinCacheKey key = (JoinCacheKey)oldKey;
+      JoinQuery jq = new JoinQuery(key.fromField, key.toField, key.fromIndex, key.fromQuery);
+      jq.regenerate(warmContext.searcher, key);
+      return true;
+    }
+  }
 }
 
 
 class JoinQuery extends Query {
+  /** Join by enumerating the terms of the from field and looking each one up in the to field */
+  static final String METHOD_TERMS = "terms";
+  /** Join by scanning the cached (nCache) values of both fields, see {@link #TERM_COST} */
+  static final String METHOD_VALUES = "values";
+
+  /** Enumerating a term is considered this many times as expensive as reading a single document's value.
+   * Unless it is requested, the values method is only used if it is cheaper and both fields are already in the
+   * nCache, since uninverting them (and autowarming them from then on) would cost more than any join saves,
+   * especially for id fields with about as many terms as documents.  Both must be single valued fields of the
+   * same kind that can be uninverted into the nCache.
+   */
+  static final int TERM_COST = 8;
+
   String fromField;
   String toField;
   String fromIndex;
   Query q;
   long fromCoreOpenTime;
+  String method;  // METHOD_TERMS or METHOD_VALUES, or null to pick one based on cost. Not part of equals since results don't change.
 
   public JoinQuery(String fromField, String toField, String fromIndex, Query subQuery) {
     this.fromField = fromField;
@@ -131,6 +235,19 @@ class JoinQuery extends Query {
     return new JoinQueryWeight((SolrIndexSearcher)searcher);
   }
 
+  /**
+   * Puts the result of this join in the join cache of <code>toSearcher</code>, if the current from-side
+   * searcher is still the one <code>oldKey</code> was cached against.  Returns false if it isn't.
+   */
+  boolean regenerate(SolrIndexSearcher toSearcher, JoinQParserPlugin.JoinCacheKey oldKey) throws IOException {
+    JoinQueryWeight weight = new JoinQueryWeight(toSearcher);
+    if (weight.fromSearcher == toSearcher || !oldKey.equals(new JoinQParserPlugin.JoinCacheKey(this, weight.fromSearcher))) {
+      return false;
+    }
+    weight.getCachedDocSet().decref();
+    return true;
+  }
+
   private class JoinQueryWeight extends Weight {
     SolrIndexSearcher fromSearcher;
     RefCounted<SolrIndexSearcher> fromRef;
@@ -221,14 +338,25 @@ class JoinQuery extends Query {
 
     @Override
     public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+      Filter filter = getFilter();
+
+      // Although this set only includes live docs, other filters can be pushed down to queries.
+      DocIdSet readerSet = filter.getDocIdSet(context, acceptDocs);
+      return new JoinScorer(this, readerSet == null ? DocIdSetIterator.empty() : readerSet.iterator(), getBoost());
+    }
+
+    /** Computes the join on first use.  Leaves may be scored concurrently by a segment-parallel search. */
+    private synchronized Filter getFilter() throws IOException {
       if (filter == null) {
         boolean debug = rb != null && rb.isDebug();
         long start = debug ? System.currentTimeMillis() : 0;
-        resultSet = getDocSet();
+        resultSet = getCachedDocSet();
         long end = debug ? System.currentTimeMillis() : 0;
 
         if (debug) {
           SimpleOrderedMap<Object> dbg = new SimpleOrderedMap<Object>();
+          dbg.add("method", usedMethod);
+          dbg.add("cached", cached);
           dbg.add("time", (end-start));
           dbg.add("fromSetSize", fromSetSize);  // the input
           dbg.add("toSetSize", resultSet.size());    // the output
@@ -244,16 +372,20 @@ class JoinQuery extends Query {
           dbg.add("smallSetsDeferred", smallSetsDeferred);
           dbg.add("toSetDocsAdded", resultListDocs);
 
-          // TODO: perhaps synchronize  addDebug in the future...
-          rb.addDebug(dbg, "join", JoinQuery.this.toString());
+          // filters may be computed concurrently (see filterThreads)
+          synchronized (rb) {
+            // The join may be evaluated again later in the request (e.g. by the debug explain of each doc),
+            // which finds it in the join cache.  Keep the debug info of the first evaluation.
+            Object joinDebug = rb.getDebugInfo() == null ? null : rb.getDebugInfo().get("join");
+            if (!(joinDebug instanceof NamedList) || ((NamedList<?>)joinDebug).get(JoinQuery.this.toString()) == null) {
+              rb.addDebug(dbg, "join", JoinQuery.this.toString());
+            }
+          }
         }
 
         filter = resultSet.getTopFilter();
       }
-
-      // Although this set only includes live docs, other filters can be pushed down to queries.
-      DocIdSet readerSet = filter.getDocIdSet(context, acceptDocs);
-      return new JoinScorer(this, readerSet == null ? DocIdSetIterator.empty() : readerSet.iterator(), getBoost());
+      return filter;
     }
 
 
@@ -268,9 +400,247 @@ class JoinQuery extends Query {
     long toTermHitsTotalDf;   // sum of the df for the toTermHits
     int toTermDirectCount;    // number of toTerms that we set directly on a bitset rather than doing set intersections
     int smallSetsDeferred;    // number of small sets collected to be used later to intersect w/ bitset or create another small set
+    String usedMethod;        // the join method actually used, METHOD_TERMS or METHOD_VALUES
+    boolean cached;           // true if the result came from the join cache
+
+
+    /** Returns the result of a cross-core join from the join cache of the to searcher, computing and caching
+     * it if needed.  Joins within a single searcher are cached by the filterCache instead, when used as filters.
+     */
+    public DocSet getCachedDocSet() throws IOException {
+      SolrCache<JoinQParserPlugin.JoinCacheKey,DocSet> joinCache = fromSearcher == toSearcher ? null : toSearcher.getJoinCache();
+      if (joinCache == null) {
+        return getDocSet();
+      }
+
+      JoinQParserPlugin.JoinCacheKey key = new JoinQParserPlugin.JoinCacheKey(JoinQuery.this, fromSearcher);
+      DocSet answer = joinCache.get(key);
+      if (answer != null) {
+        cached = true;
+        return answer;
+      }
+
+      answer = getDocSet();
+      answer.incref();
+      joinCache.put(key, answer);
+      return answer;
+    }
 
 
     public DocSet getDocSet() throws IOException {
+      // TODO: set new SolrRequestInfo???
+      DocSet fromSet = fromSearcher.getDocSet(q);
+      fromSetSize = fromSet.size();
+
+      try {
+        FieldValues fromValues = null;
+        FieldValues toValues = null;
+        // the nCache entries are released at the end of the request, so we need one
+        if (!METHOD_TERMS.equals(method) && SolrRequestInfo.getRequestInfo() != null) {
+          fromValues = getJoinValues(fromSearcher, fromField);
+          toValues = getJoinValues(toSearcher, toField);
+        }
+
+        if (fromValues != null && toValues != null && fromValues.getClass() == toValues.getClass()
+            && (METHOD_VALUES.equals(method) || (method == null && fromValues.isCached(fromSearcher)
+                && toValues.isCached(toSearcher) && getValuesCost() < getTermsCost()))) {
+          usedMethod = METHOD_VALUES;
+          if (fromValues instanceof StrFieldValues) {
+            return getDocSetByStrValues(fromSet, fromValues, toValues);
+          } else {
+            return getDocSetByLongValues(fromSet, fromValues, toValues);
+          }
+        }
+
+        usedMethod = METHOD_TERMS;
+        return getDocSetByTerms(fromSet);
+      } finally {
+        fromSet.decref();
+      }
+    }
+
+
+    /** Returns the values to use for the value scan join method, or null if the field does not support it. */
+    private FieldValues getJoinValues(SolrIndexSearcher searcher, String fieldName) {
+      if (searcher.getnCache() == null) return null;
+      SchemaField sf = searcher.getSchema().getFieldOrNull(fieldName);
+      if (sf == null || !sf.indexed() || sf.multiValued() || sf.hasDocValues()
+          || (sf.getProperties() & FieldProperties.LUCENE_FIELDCACHE) != 0) {
+        return null;
+      }
+
+      FieldType ft = sf.getType();
+      if (ft instanceof StrField) {
+        return new StrFieldValues(sf, null);
+      } else if (ft instanceof TrieIntField) {
+        return new IntFieldValues(sf, null);
+      } else if (ft instanceof TrieLongField) {
+        return new LongFieldValues(sf, null);
+      }
+      return null;
+    }
+
+    /** Estimated cost of the term enumeration method: the number of terms in the from field */
+    private long getTermsCost() throws IOException {
+      long numTerms = 0;
+      for (AtomicReaderContext leaf : fromSearcher.getTopReaderContext().leaves()) {
+        Terms terms = leaf.reader().terms(fromField);
+        if (terms == null) continue;
+        long n = terms.size();
+        numTerms += n >= 0 ? n : terms.getDocCount();
+      }
+      return numTerms * TERM_COST;
+    }
+
+    /** Estimated cost of the values method: one pass over the from set, and one over all to documents */
+    private long getValuesCost() {
+      return (long)fromSetSize + toSearcher.maxDoc();
+    }
+
+
+    /** Single pass over the from set collecting the ords it covers in each segment, a lookup of each of those
+     * terms in the ords of each to segment, and a single pass over the to values.
+     */
+    private DocSet getDocSetByStrValues(DocSet fromSet, FieldValues fromValues, FieldValues toValues) throws IOException {
+      QueryContext fromContext = QueryContext.newContext(fromSearcher);
+      QueryContext toContext = fromSearcher == toSearcher ? fromContext : QueryContext.newContext(toSearcher);
+      TopValues fromTop = fromValues.getTopValues(fromContext);
+      TopValues toTop = toValues.getTopValues(toContext);
+
+      List<AtomicReaderContext> fromLeaves = fromSearcher.getTopReaderContext().leaves();
+      StrLeafValues[] fromLeafValues = new StrLeafValues[fromLeaves.size()];
+      FixedBitSet[] fromOrds = new FixedBitSet[fromLeaves.size()];
+
+      int leafOrd = -1;
+      int base = 0;
+      int end = 0;
+      StrLeafValues vals = null;
+      FixedBitSet ords = null;
+      for (DocIterator iter = fromSet.iterator(); iter.hasNext(); ) {
+        int doc = iter.nextDoc();
+        if (doc >= end) {
+          AtomicReaderContext leaf;
+          do {
+            leaf = fromLeaves.get(++leafOrd);
+            base = leaf.docBase;
+            end = base + leaf.reader().maxDoc();
+          } while (doc >= end);
+          vals = fromLeafValues[leafOrd] = (StrLeafValues)fromTop.getLeafValues(fromContext, leaf);
+          FieldStats stats = vals.getFieldStats();
+          ords = fromOrds[leafOrd] = new FixedBitSet((int)stats.getNumUniqueValues());
+        }
+        int ord = vals.ordVal(doc - base);
+        if (ord >= 0) ords.set(ord);
+      }
+
+      for (FixedBitSet segOrds : fromOrds) {
+        if (segOrds != null) fromTermHits += segOrds.cardinality();
+      }
+      if (fromTermHits == 0) return DocSet.EMPTY;
+
+      // the ords of each segment are the same if we are joining a field to itself
+      boolean sameField = fromSearcher == toSearcher && fromField.equals(toField);
+
+      FixedBitSet resultBits = new FixedBitSet(toSearcher.maxDoc());
+      List<AtomicReaderContext> toLeaves = toSearcher.getTopReaderContext().leaves();
+      for (int i=0; i<toLeaves.size(); i++) {
+        AtomicReaderContext leaf = toLeaves.get(i);
+        StrLeafValues toVals = (StrLeafValues)toTop.getLeafValues(toContext, leaf);
+        FieldStats stats = toVals.getFieldStats();
+        int numOrds = (int)stats.getNumUniqueValues();
+        if (numOrds == 0) continue;
+
+        FixedBitSet toOrds = new FixedBitSet(numOrds);
+        for (int j=0; j<fromOrds.length; j++) {
+          FixedBitSet segOrds = fromOrds[j];
+          if (segOrds == null) continue;
+          if (sameField && i == j && segOrds.length() == numOrds) {
+            toOrds.or(segOrds);
+            continue;
+          }
+          StrLeafValues segVals = fromLeafValues[j];
+          DocIdSetIterator ordIter = segOrds.iterator();
+          for (int ord = ordIter.nextDoc(); ord != DocIdSetIterator.NO_MORE_DOCS; ord = ordIter.nextDoc()) {
+            int toOrd = toVals.termPointerToOrd(segVals.ordToTermPointer(ord));
+            if (toOrd >= 0) toOrds.set(toOrd);
+          }
+        }
+
+        int hits = (int)toOrds.cardinality();
+        if (hits == 0) continue;
+        toTermHits += hits;
+
+        Bits liveDocs = leaf.reader().getLiveDocs();
+        int maxDoc = leaf.reader().maxDoc();
+        int docBase = leaf.docBase;
+        for (int doc=0; doc<maxDoc; doc++) {
+          int ord = toVals.ordVal(doc);
+          if (ord >= 0 && toOrds.get(ord) && (liveDocs == null || liveDocs.get(doc))) {
+            resultBits.set(docBase + doc);
+            resultListDocs++;
+          }
+        }
+      }
+
+      return resultListDocs == 0 ? DocSet.EMPTY : new BitDocSet(resultBits);
+    }
+
+
+    /** Single pass over the from set collecting its values into a hash set, and a single pass over the to values. */
+    private DocSet getDocSetByLongValues(DocSet fromSet, FieldValues fromValues, FieldValues toValues) throws IOException {
+      QueryContext fromContext = QueryContext.newContext(fromSearcher);
+      QueryContext toContext = fromSearcher == toSearcher ? fromContext : QueryContext.newContext(toSearcher);
+      TopValues fromTop = fromValues.getTopValues(fromContext);
+      TopValues toTop = toValues.getTopValues(toContext);
+
+      List<AtomicReaderContext> fromLeaves = fromSearcher.getTopReaderContext().leaves();
+      LongOpenHashSet fromSetValues = new LongOpenHashSet();
+
+      int leafOrd = -1;
+      int base = 0;
+      int end = 0;
+      LeafValues vals = null;
+      for (DocIterator iter = fromSet.iterator(); iter.hasNext(); ) {
+        int doc = iter.nextDoc();
+        if (doc >= end) {
+          AtomicReaderContext leaf;
+          do {
+            leaf = fromLeaves.get(++leafOrd);
+            base = leaf.docBase;
+            end = base + leaf.reader().maxDoc();
+          } while (doc >= end);
+          vals = fromTop.getLeafValues(fromContext, leaf);
+        }
+        int segDoc = doc - base;
+        if (vals.exists(segDoc)) {
+          fromSetValues.add(vals.longVal(segDoc));
+        }
+      }
+
+      fromTermHits = fromSetValues.size();
+      if (fromTermHits == 0) return DocSet.EMPTY;
+
+      FixedBitSet resultBits = new FixedBitSet(toSearcher.maxDoc());
+      for (AtomicReaderContext leaf : toSearcher.getTopReaderContext().leaves()) {
+        LeafValues toVals = toTop.getLeafValues(toContext, leaf);
+        if (toVals.getFieldStats().getNumDocsWithField() == 0) continue;
+
+        Bits liveDocs = leaf.reader().getLiveDocs();
+        int maxDoc = leaf.reader().maxDoc();
+        int docBase = leaf.docBase;
+        for (int doc=0; doc<maxDoc; doc++) {
+          if (toVals.exists(doc) && fromSetValues.contains(toVals.longVal(doc)) && (liveDocs == null || liveDocs.get(doc))) {
+            resultBits.set(docBase + doc);
+            resultListDocs++;
+          }
+        }
+      }
+
+      return resultListDocs == 0 ? DocSet.EMPTY : new BitDocSet(resultBits);
+    }
+
+
+    private DocSet getDocSetByTerms(DocSet fromSet) throws IOException {
       FixedBitSet resultBits = null;
 
       // minimum docFreq to use the cache
@@ -280,10 +650,6 @@ class JoinQuery extends Query {
       // use a smaller size than normal since we will need to sort and dedup the results
       int maxSortedIntSize = Math.max(10, toSearcher.maxDoc() >> 10);
 
-      // TODO: set new SolrRequestInfo???
-      DocSet fromSet = fromSearcher.getDocSet(q);
-      fromSetSize = fromSet.size();
-
       LinkedList<DocSet> resultList = new LinkedList<DocSet>();
       try {
 
@@ -411,7 +777,7 @@ class JoinQuery extends Query {
                     // shouldn't happen any more?
                     resultBits = (FixedBitSet)((BitDocSet)toTermSet).bits.clone();
                   } else {
-                    // should be SortedIntDocSetNative
+                    // should be SortedIntDocSetNative, or RoaringDocSetNative if the filterCache is compressed
                     resultList.add(toTermSet);
                   }
                 }
@@ -486,8 +852,13 @@ class JoinQuery extends Query {
           if (set == null) break;
           if (set instanceof SortedIntDocSet) {
             System.arraycopy(((SortedIntDocSet)set).getDocs(), 0, docs, pos, set.size());
-          } else {
+          } else if (set instanceof SortedIntDocSetNative) {
             HS.copyInts(((SortedIntDocSetNative)set).getIntArrayPointer(), 0, docs, pos, set.size());
+          } else {
+            int i = pos;
+            for (DocIterator iter = set.iterator(); iter.hasNext();) {
+              docs[i++] = iter.nextDoc();
+            }
           }
           pos += set.size();
           set.decref();
@@ -510,7 +881,6 @@ class JoinQuery extends Query {
         return new SortedIntDocSet(dedup, dedup.length);
 
       } finally {
-        fromSet.decref();
         // resultList should be empty, except if an exception happened somewhere
         for (DocSet set : resultList) {
           set.decref();
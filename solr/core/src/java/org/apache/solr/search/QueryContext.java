@@ -19,6 +19,7 @@ package org.apache.solr.search;
 
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.solr.common.SolrException;
+import org.apache.solr.core.HS;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.request.SolrRequestInfo;
 import org.apache.solr.search.field.FieldValues;
@@ -32,12 +33,20 @@ import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
+/** Per-request context.  It may be shared by threads collecting different parts of the index for the same
+ * request, so the maps and close hooks are guarded by a lock.  The first close hook registers this context
+ * with the {@link SolrRequestInfo} of the calling thread, so per-request setup has to happen on the requesting
+ * thread before any other thread uses the context (parallel facet collection does this by positioning its
+ * first partition before handing out the others).
+ */
 public class QueryContext implements Closeable {
+  private final Object lock = new Object();
   private IdentityHashMap map;
   private final SolrIndexSearcher searcher;
   private final IndexSearcher indexSearcher;
   private List<Closeable> closeHooks;
   private Map<String,TopValues> topValues;
+  private HS.Arena arena;
 
   // migrated from ValueSource
   public static QueryContext newContext(IndexSearcher searcher) {
@@ -61,32 +70,58 @@ public class QueryContext implements Closeable {
   }
 
   public Object get(Object key) {
-    if (map == null) return null;
-    return map.get(key);
+    synchronized (lock) {
+      if (map == null) return null;
+      return map.get(key);
+    }
   }
 
   public Object put(Object key, Object val) {
-    if (map == null) {
-      map = new IdentityHashMap();
+    synchronized (lock) {
+      if (map == null) {
+        map = new IdentityHashMap();
+      }
+      return map.put(key, val);
     }
-    return map.put(key, val);
   }
 
-  public void addCloseHook(Closeable closeable) {
-    if (closeHooks == null) {
-      closeHooks = new ArrayList<>();
-      // for now, defer closing until the end of the request
-      SolrRequestInfo.getRequestInfo().addCloseHook(this);
+  /** Like put, but leaves an existing value in place.  Returns the existing value, or null if val was added. */
+  public Object putIfAbsent(Object key, Object val) {
+    synchronized (lock) {
+      Object prev = get(key);
+      if (prev == null) {
+        put(key, val);
+      }
+      return prev;
     }
+  }
 
-    closeHooks.add(closeable);
+  public void addCloseHook(Closeable closeable) {
+    synchronized (lock) {
+      if (closeHooks == null) {
+        closeHooks = new ArrayList<>();
+        // for now, defer closing until the end of the request
+        SolrRequestInfo.getRequestInfo().addCloseHook(this);
+      }
+
+      closeHooks.add(closeable);
+    }
   }
 
   /** Don't call close explicitly!  This will be automatically closed at the end of the request */
   @Override
   public void close() throws IOException {
-    if (closeHooks != null) {
-      for (Closeable hook : closeHooks) {
+    List<Closeable> hooks;
+    synchronized (lock) {
+      hooks = closeHooks;
+      closeHooks = null;
+      map = null;
+      topValues = null;
+      arena = null;
+    }
+
+    if (hooks != null) {
+      for (Closeable hook : hooks) {
         try {
           hook.close();
         } catch (Exception e) {
@@ -94,25 +129,35 @@ public class QueryContext implements Closeable {
         }
       }
     }
-
-    closeHooks = null;
-    map = null;
-    topValues = null;
   }
 
 
+  /** Returns an arena for off-heap arrays that only need to live until the end of the request */
+  public HS.Arena getArena() {
+    synchronized (lock) {
+      if (arena == null) {
+        arena = new HS.Arena();
+        addCloseHook(arena);
+      }
+      return arena;
+    }
+  }
+
   /** This can return null */
   public TopValues getTopValues(String fieldName) {
-    if (topValues == null) return null;
-    return topValues.get(fieldName);
+    synchronized (lock) {
+      if (topValues == null) return null;
+      return topValues.get(fieldName);
+    }
   }
 
   public void setTopValues(String fieldName, TopValues topVals) {
-    if (topValues == null) {
-      topValues = new HashMap<>();
+    synchronized (lock) {
+      if (topValues == null) {
+        topValues = new HashMap<>();
+      }
+      TopValues prev = topValues.put(fieldName, topVals);
     }
-
-    TopValues prev = topValues.put(fieldName, topVals);
     addCloseHook(topVals);
     // prev may be non-null if we switched from non-topVal to topVal, but
     // it will be cleaned up via closeHooks
@@ -19,8 +19,15 @@ package org.apache.solr.search;
 
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
 import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.PhraseQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopTermsRewrite;
 
 import java.util.List;
 
@@ -41,6 +48,38 @@ public class QueryUtils {
     return true;
   }
 
+  /** Returns true if the documents this query matches in a segment depend only on that segment, so that
+   * they stay the same as long as the segment does (apart from new deletions).  This is false for queries
+   * that are not known to be segment local, such as joins or functions over top-level ords.
+   */
+  public static boolean isSegmentLocal(Query q) {
+    if (q instanceof WrappedQuery) {
+      return isSegmentLocal(((WrappedQuery)q).getWrappedQuery());
+    }
+    if (q instanceof BooleanQuery) {
+      for (BooleanClause clause : ((BooleanQuery)q).clauses()) {
+        if (!isSegmentLocal(clause.getQuery())) return false;
+      }
+      return true;
+    }
+    if (q instanceof DisjunctionMaxQuery) {
+      for (Query disjunct : ((DisjunctionMaxQuery)q).getDisjuncts()) {
+        if (!isSegmentLocal(disjunct)) return false;
+      }
+      return true;
+    }
+    if (q instanceof ConstantScoreQuery) {
+      Query inner = ((ConstantScoreQuery)q).getQuery();
+      return inner != null && isSegmentLocal(inner);
+    }
+    if (q instanceof MultiTermQuery) {
+      // top terms rewrites pick their terms by statistics over the whole index
+      return !(((MultiTermQuery)q).getRewriteMethod() instanceof TopTermsRewrite);
+    }
+    return q instanceof TermQuery || q instanceof PhraseQuery || q instanceof MultiPhraseQuery
+        || q instanceof MatchAllDocsQuery;
+  }
+
   /** Returns the original query if it was already a positive query, otherwise
    * return the negative of the query (i.e., a positive query).
    * <p>
@@ -0,0 +1,914 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.solr.core.HS;
+
+/**
+ * A compressed DocSet in a single off-heap array, in the style of a roaring bitmap.
+ * The doc id space is split into chunks of 65536 docs keyed by the high 16 bits of the id,
+ * and each non-empty chunk is stored in whichever of three containers is smallest:
+ * a sorted array of the low 16 bits, a 1024 word bitmap, or a list of runs.
+ * <p>
+ * Layout (all offsets in bytes from the start of the array):
+ * <pre>
+ *   0   int numContainers
+ *   4   int cardinality
+ *   8   directory, 16 bytes per container: int key, int type, int cardinality, int offset
+ *   ... container data, each container starting on an 8 byte boundary
+ *         ARRAY:  cardinality uint16 values
+ *         BITMAP: 1024 uint64 words
+ *         RUN:    int numRuns, followed by numRuns pairs of uint16 (start, length-1)
+ * </pre>
+ * The native code in docset.cpp knows this layout, so it must not be changed independently.
+ */
+public class RoaringDocSetNative extends DocSetBaseNative {
+  static final int HEADER_BYTES = 8;
+  static final int DIR_ENTRY_BYTES = 16;
+
+  // container types
+  static final int ARRAY = 0;
+  static final int BITMAP = 1;
+  static final int RUN = 2;
+
+  static final int BITMAP_WORDS = 1024;
+  static final int BITMAP_BYTES = BITMAP_WORDS << 3;
+  static final int MAX_ARRAY_CARDINALITY = BITMAP_BYTES >> 1;
+
+  protected final long array;
+  protected final int numContainers;
+  protected final int size;
+
+  @Override
+  protected void free() {
+    HS.freeArray(array);
+  }
+
+  /** Wraps a native array in the roaring layout, taking ownership of it. */
+  public RoaringDocSetNative(long nativeArray) {
+    this.array = nativeArray;
+    this.numContainers = HS.getInt(array, 0);
+    this.size = HS.getInt(array, 1);
+  }
+
+  /**
+   * @param docs Sorted list of ids
+   * @param len  Number of ids in the list
+   */
+  public static RoaringDocSetNative fromSortedDocs(int[] docs, int len) {
+    Builder builder = new Builder();
+    for (int i=0; i<len; i++) {
+      builder.add(docs[i]);
+    }
+    return builder.build();
+  }
+
+  /** Returns a compressed copy of the given set.  The original set is not released. */
+  public static RoaringDocSetNative compress(BitDocSetNative bits) {
+    Builder builder = new Builder();
+    long[] words = new long[BITMAP_WORDS];
+    int wlen = bits.numWords();
+    for (int start=0, key=0; start<wlen; start+=BITMAP_WORDS, key++) {
+      int n = Math.min(BITMAP_WORDS, wlen - start);
+      HS.copyLongs(bits.getNativeData(), start, words, 0, n);
+      if (n < BITMAP_WORDS) Arrays.fill(words, n, BITMAP_WORDS, 0);
+      builder.addWords(key, words);
+    }
+    return builder.build();
+  }
+
+  @Override
+  public long getNativeData() {
+    return array;
+  }
+
+  @Override
+  public int getNativeFormat() {
+    return HS.FORMAT_ROARING;
+  }
+
+  @Override
+  public long getNativeSize() {
+    return size;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public long memSize() {
+    return HS.arraySizeBytes(array) + 16;
+  }
+
+  public int getNumContainers() {
+    return numContainers;
+  }
+
+  private int key(int container) {
+    return HS.getInt(array, 2 + (container << 2));
+  }
+
+  private int cardinality(int container) {
+    return HS.getInt(array, 2 + (container << 2) + 2);
+  }
+
+  /** Binary searches the directory in [low, numContainers) for the key, returning -(insertionPoint+1) if not found */
+  private int findContainer(int key, int low) {
+    int high = numContainers - 1;
+    while (low <= high) {
+      int mid = (low+high) >>> 1;
+      int k = key(mid);
+      if (k < key) {
+        low = mid+1;
+      } else if (k > key) {
+        high = mid-1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low+1);
+  }
+
+  /** Expands the container into a 1024 word bitmap */
+  private void decode(int container, long[] words) {
+    int d = 2 + (container << 2);
+    int type = HS.getInt(array, d+1);
+    int card = HS.getInt(array, d+2);
+    int off = HS.getInt(array, d+3);
+
+    if (type == BITMAP) {
+      HS.copyLongs(array, off >> 3, words, 0, BITMAP_WORDS);
+      return;
+    }
+
+    Arrays.fill(words, 0);
+    if (type == ARRAY) {
+      int s = off >> 1;
+      for (int i=0; i<card; i++) {
+        int low = HS.getShort(array, s+i) & 0xffff;
+        words[low >>> 6] |= 1L << low;
+      }
+    } else {
+      int runs = HS.getInt(array, off >> 2);
+      int s = (off+4) >> 1;
+      for (int i=0; i<runs; i++) {
+        int start = HS.getShort(array, s + (i<<1)) & 0xffff;
+        int len = (HS.getShort(array, s + (i<<1) + 1) & 0xffff) + 1;
+        setRange(words, start, start+len);
+      }
+    }
+  }
+
+  /** sets the bits from "from" (inclusive) to "to" (exclusive) */
+  static void setRange(long[] words, int from, int to) {
+    int startWord = from >>> 6;
+    int endWord = (to-1) >>> 6;
+    long startMask = -1L << from;
+    long endMask = -1L >>> -to;
+    if (startWord == endWord) {
+      words[startWord] |= startMask & endMask;
+      return;
+    }
+    words[startWord] |= startMask;
+    for (int i=startWord+1; i<endWord; i++) {
+      words[i] = -1L;
+    }
+    words[endWord] |= endMask;
+  }
+
+  @Override
+  public boolean exists(int doc) {
+    int container = findContainer(doc >>> 16, 0);
+    if (container < 0) return false;
+    int low = doc & 0xffff;
+
+    int d = 2 + (container << 2);
+    int type = HS.getInt(array, d+1);
+    int off = HS.getInt(array, d+3);
+
+    if (type == BITMAP) {
+      return (HS.getLong(array, (off >> 3) + (low >>> 6)) & (1L << low)) != 0;
+    }
+
+    int s, lo = 0, hi;
+    if (type == ARRAY) {
+      s = off >> 1;
+      hi = HS.getInt(array, d+2) - 1;
+      while (lo <= hi) {
+        int mid = (lo+hi) >>> 1;
+        int v = HS.getShort(array, s+mid) & 0xffff;
+        if (v < low) {
+          lo = mid+1;
+        } else if (v > low) {
+          hi = mid-1;
+        } else {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    // find the last run starting at or before "low"
+    s = (off+4) >> 1;
+    hi = HS.getInt(array, off >> 2) - 1;
+    while (lo <= hi) {
+      int mid = (lo+hi) >>> 1;
+      int start = HS.getShort(array, s + (mid<<1)) & 0xffff;
+      if (start <= low) {
+        lo = mid+1;
+      } else {
+        hi = mid-1;
+      }
+    }
+    if (hi < 0) return false;
+    int start = HS.getShort(array, s + (hi<<1)) & 0xffff;
+    int len = HS.getShort(array, s + (hi<<1) + 1) & 0xffff;
+    return low <= start + len;
+  }
+
+  /** Iterates over the containers in order, supporting forward skipping. */
+  private class Iter {
+    int idx = -1;     // current container
+    int type;
+    int n;            // number of values (ARRAY) or runs (RUN) in the current container
+    int off;          // byte offset of the container data
+    int hi;           // high bits of the current container
+    int pos;          // next value or run (ARRAY, RUN), or current word (BITMAP)
+    long word;        // remaining bits of the current word (BITMAP)
+    int cur;          // next value in the current run (RUN)
+    int runEnd;       // one past the last value of the current run (RUN)
+
+    private void load(int container) {
+      idx = container;
+      int d = 2 + (container << 2);
+      hi = HS.getInt(array, d) << 16;
+      type = HS.getInt(array, d+1);
+      off = HS.getInt(array, d+3);
+      n = type == RUN ? HS.getInt(array, off >> 2) : HS.getInt(array, d+2);
+      pos = type == BITMAP ? -1 : 0;
+      word = 0;
+      cur = runEnd = 0;
+    }
+
+    private void loadRun() {
+      int s = ((off+4) >> 1) + (pos << 1);
+      cur = HS.getShort(array, s) & 0xffff;
+      runEnd = cur + (HS.getShort(array, s+1) & 0xffff) + 1;
+      pos++;
+    }
+
+    int nextDoc() {
+      for (;;) {
+        if (idx >= 0) {
+          switch (type) {
+            case ARRAY:
+              if (pos < n) return hi | (HS.getShort(array, (off >> 1) + pos++) & 0xffff);
+              break;
+            case BITMAP:
+              while (word == 0 && pos < BITMAP_WORDS-1) {
+                word = HS.getLong(array, (off >> 3) + (++pos));
+              }
+              if (word != 0) {
+                int bit = Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                return hi | (pos << 6) | bit;
+              }
+              break;
+            default:
+              if (cur < runEnd) return hi | cur++;
+              if (pos < n) {
+                loadRun();
+                return hi | cur++;
+              }
+              break;
+          }
+        }
+        if (idx+1 >= numContainers) {
+          idx = numContainers;
+          return DocIdSetIterator.NO_MORE_DOCS;
+        }
+        load(idx+1);
+      }
+    }
+
+    /** Returns the first doc >= target, which must be greater than the last doc returned */
+    int advance(int target) {
+      if (idx >= numContainers) return DocIdSetIterator.NO_MORE_DOCS;
+      int key = target >>> 16;
+      if (idx < 0 || (hi >>> 16) != key) {
+        int container = findContainer(key, Math.max(idx, 0));
+        if (container < 0) {
+          container = -container - 1;
+          if (container >= numContainers) {
+            idx = numContainers;
+            return DocIdSetIterator.NO_MORE_DOCS;
+          }
+          load(container);
+          return nextDoc();
+        }
+        load(container);
+      }
+
+      int low = target & 0xffff;
+      switch (type) {
+        case ARRAY: {
+          int s = off >> 1;
+          int lo = pos, high = n-1;
+          while (lo <= high) {
+            int mid = (lo+high) >>> 1;
+            if ((HS.getShort(array, s+mid) & 0xffff) < low) {
+              lo = mid+1;
+            } else {
+              high = mid-1;
+            }
+          }
+          pos = lo;
+          break;
+        }
+        case BITMAP: {
+          int w = low >>> 6;
+          if (w > pos) {
+            pos = w;
+            word = HS.getLong(array, (off >> 3) + pos);
+          }
+          word &= -1L << low;
+          break;
+        }
+        default:
+          while (low >= runEnd && pos < n) {
+            loadRun();
+          }
+          cur = low < runEnd ? Math.max(cur, low) : runEnd;
+          break;
+      }
+      return nextDoc();
+    }
+  }
+
+  @Override
+  public DocIterator iterator() {
+    return new DocIterator() {
+      final Iter iter = new Iter();
+      int next = iter.nextDoc();
+
+      @Override
+      public boolean hasNext() {
+        return next != DocIdSetIterator.NO_MORE_DOCS;
+      }
+
+      @Override
+      public Integer next() {
+        return nextDoc();
+      }
+
+      /**
+       * The remove  operation is not supported by this Iterator.
+       */
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("The remove  operation is not supported by this Iterator.");
+      }
+
+      @Override
+      public int nextDoc() {
+        int doc = next;
+        next = iter.nextDoc();
+        return doc;
+      }
+
+      @Override
+      public float score() {
+        return 0.0f;
+      }
+    };
+  }
+
+  @Override
+  public Filter getTopFilter() {
+    return new Filter() {
+      @Override
+      public DocIdSet getDocIdSet(final AtomicReaderContext context, final Bits acceptDocs) {
+        AtomicReader reader = context.reader();
+        // all Solr DocSets that are used as filters already only include live docs
+        final Bits acceptDocs2 = acceptDocs == null ? null : (reader.getLiveDocs() == acceptDocs ? null : acceptDocs);
+
+        final int base = context.docBase;
+        final int max = base + reader.maxDoc();   // one past the max doc in this segment.
+
+        return BitsFilteredDocIdSet.wrap(new DocIdSet() {
+          @Override
+          public DocIdSetIterator iterator() {
+            return new DocIdSetIterator() {
+              final Iter iter = new Iter();
+              int adjustedDoc = -1;
+
+              @Override
+              public int docID() {
+                return adjustedDoc;
+              }
+
+              @Override
+              public int nextDoc() {
+                int doc = adjustedDoc < 0 ? iter.advance(base) : iter.nextDoc();
+                return adjustedDoc = doc < max ? doc - base : NO_MORE_DOCS;
+              }
+
+              @Override
+              public int advance(int target) {
+                if (target == NO_MORE_DOCS || adjustedDoc == NO_MORE_DOCS) return adjustedDoc = NO_MORE_DOCS;
+                int doc = iter.advance(target + base);
+                return adjustedDoc = doc < max ? doc - base : NO_MORE_DOCS;
+              }
+
+              @Override
+              public long cost() {
+                return size;
+              }
+            };
+          }
+
+          @Override
+          public boolean isCacheable() {
+            return true;
+          }
+
+          @Override
+          public Bits bits() {
+            // random access is expensive for this set
+            return null;
+          }
+
+        }, acceptDocs2);
+      }
+    };
+  }
+
+  @Override
+  public int intersectionSize(DocSet other) {
+    if (other instanceof RoaringDocSetNative) {
+      RoaringDocSetNative o = (RoaringDocSetNative)other;
+      if (nativeOps()) {
+        return intersectionSizeNative(array, o.array);
+      }
+      long[] a = new long[BITMAP_WORDS];
+      long[] b = new long[BITMAP_WORDS];
+      int count = 0;
+      for (int i=0, j=0; i<numContainers && j<o.numContainers;) {
+        int ka = key(i);
+        int kb = o.key(j);
+        if (ka < kb) {
+          i++;
+        } else if (ka > kb) {
+          j++;
+        } else {
+          decode(i++, a);
+          o.decode(j++, b);
+          for (int w=0; w<BITMAP_WORDS; w++) {
+            count += Long.bitCount(a[w] & b[w]);
+          }
+        }
+      }
+      return count;
+    }
+
+    if (other instanceof BitDocSetNative) {
+      BitDocSetNative bits = (BitDocSetNative)other;
+      if (nativeOps()) {
+        return intersectionSizeBitsNative(array, bits.array, bits.wlen);
+      }
+      long[] a = new long[BITMAP_WORDS];
+      long[] b = new long[BITMAP_WORDS];
+      int count = 0;
+      for (int i=0; i<numContainers; i++) {
+        decode(i, a);
+        bitsWindow(bits, key(i), b);
+        for (int w=0; w<BITMAP_WORDS; w++) {
+          count += Long.bitCount(a[w] & b[w]);
+        }
+      }
+      return count;
+    }
+
+    // assume other implementations are better at random access than we are
+    int count = 0;
+    for (DocIterator iter = iterator(); iter.hasNext();) {
+      if (other.exists(iter.nextDoc())) count++;
+    }
+    return count;
+  }
+
+  @Override
+  public boolean intersects(DocSet other) {
+    if (other instanceof RoaringDocSetNative || (other instanceof BitDocSetNative && nativeOps())) {
+      return intersectionSize(other) > 0;
+    }
+    for (DocIterator iter = iterator(); iter.hasNext();) {
+      if (other.exists(iter.nextDoc())) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public DocSet intersection(DocSet other) {
+    if (other instanceof RoaringDocSetNative) {
+      return combine((RoaringDocSetNative)other, HS.OP_AND);
+    }
+    if (other instanceof BitDocSetNative) {
+      return combineBits((BitDocSetNative)other, HS.OP_AND);
+    }
+    Builder builder = new Builder();
+    for (DocIterator iter = iterator(); iter.hasNext();) {
+      int doc = iter.nextDoc();
+      if (other.exists(doc)) builder.add(doc);
+    }
+    return builder.build();
+  }
+
+  @Override
+  public DocSet andNot(DocSet other) {
+    if (other.size()==0) {
+      this.incref();
+      return this;
+    }
+    if (other instanceof RoaringDocSetNative) {
+      return combine((RoaringDocSetNative)other, HS.OP_ANDNOT);
+    }
+    if (other instanceof BitDocSetNative) {
+      return combineBits((BitDocSetNative)other, HS.OP_ANDNOT);
+    }
+    Builder builder = new Builder();
+    for (DocIterator iter = iterator(); iter.hasNext();) {
+      int doc = iter.nextDoc();
+      if (!other.exists(doc)) builder.add(doc);
+    }
+    return builder.build();
+  }
+
+  @Override
+  public DocSet union(DocSet other) {
+    if (other instanceof RoaringDocSetNative) {
+      return combine((RoaringDocSetNative)other, HS.OP_OR);
+    }
+    return super.union(other);
+  }
+
+  private RoaringDocSetNative combine(RoaringDocSetNative other, int op) {
+    if (nativeOps()) {
+      return combineUsingNative(other, op);
+    }
+
+    Builder builder = new Builder();
+    long[] a = new long[BITMAP_WORDS];
+    long[] b = new long[BITMAP_WORDS];
+    int i=0, j=0;
+    while (i<numContainers || j<other.numContainers) {
+      int ka = i < numContainers ? key(i) : Integer.MAX_VALUE;
+      int kb = j < other.numContainers ? other.key(j) : Integer.MAX_VALUE;
+      if (ka == kb) {
+        decode(i++, a);
+        other.decode(j++, b);
+        switch (op) {
+          case HS.OP_AND:
+            for (int w=0; w<BITMAP_WORDS; w++) a[w] &= b[w];
+            break;
+          case HS.OP_OR:
+            for (int w=0; w<BITMAP_WORDS; w++) a[w] |= b[w];
+            break;
+          default:
+            for (int w=0; w<BITMAP_WORDS; w++) a[w] &= ~b[w];
+            break;
+        }
+        builder.addWords(ka, a);
+      } else if (ka < kb) {
+        if (op != HS.OP_AND) {
+          decode(i, a);
+          builder.addWords(ka, a);
+        }
+        i++;
+      } else {
+        if (op == HS.OP_OR) {
+          other.decode(j, b);
+          builder.addWords(kb, b);
+        }
+        j++;
+      }
+    }
+    return builder.build();
+  }
+
+  private RoaringDocSetNative combineUsingNative(RoaringDocSetNative other, int op) {
+    // Size the result from an upper bound on the cardinality of each output container,
+    // since a container never takes more than min(2*cardinality, BITMAP_BYTES) bytes.
+    int maxContainers = 0;
+    long dataBytes = 0;
+    int i=0, j=0;
+    while (i<numContainers || j<other.numContainers) {
+      int ka = i < numContainers ? key(i) : Integer.MAX_VALUE;
+      int kb = j < other.numContainers ? other.key(j) : Integer.MAX_VALUE;
+      long card;
+      if (ka == kb) {
+        int ca = cardinality(i);
+        int cb = other.cardinality(j);
+        card = op == HS.OP_AND ? Math.min(ca, cb) : op == HS.OP_OR ? (long)ca + cb : ca;
+        i++; j++;
+      } else if (ka < kb) {
+        card = op == HS.OP_AND ? 0 : cardinality(i);
+        i++;
+      } else {
+        card = op == HS.OP_OR ? other.cardinality(j) : 0;
+        j++;
+      }
+      if (card == 0) continue;
+      maxContainers++;
+      dataBytes += align8(Math.min(card << 1, BITMAP_BYTES));
+    }
+
+    long bound = align8(HEADER_BYTES + (long)maxContainers * DIR_ENTRY_BYTES) + dataBytes;
+    long out = HS.allocArray(bound, 1, false, HS.MEM_DOCSET);
+    return result(out, bound, combineNative(array, other.array, op, maxContainers, out));
+  }
+
+  /** this AND bits, or this AND NOT bits */
+  private RoaringDocSetNative combineBits(BitDocSetNative bits, int op) {
+    if (nativeOps()) {
+      // every output container is no bigger than the container it came from
+      long dataBytes = 0;
+      for (int i=0; i<numContainers; i++) {
+        dataBytes += align8(Math.min((long)cardinality(i) << 1, BITMAP_BYTES));
+      }
+      long bound = align8(HEADER_BYTES + (long)numContainers * DIR_ENTRY_BYTES) + dataBytes;
+      long out = HS.allocArray(bound, 1, false, HS.MEM_DOCSET);
+      return result(out, bound, combineBitsNative(array, bits.array, bits.wlen, op, numContainers, out));
+    }
+
+    Builder builder = new Builder();
+    long[] a = new long[BITMAP_WORDS];
+    long[] b = new long[BITMAP_WORDS];
+    for (int i=0; i<numContainers; i++) {
+      decode(i, a);
+      bitsWindow(bits, key(i), b);
+      if (op == HS.OP_AND) {
+        for (int w=0; w<BITMAP_WORDS; w++) a[w] &= b[w];
+      } else {
+        for (int w=0; w<BITMAP_WORDS; w++) a[w] &= ~b[w];
+      }
+      builder.addWords(key(i), a);
+    }
+    return builder.build();
+  }
+
+  /** Sets (op=OR) or clears (op=ANDNOT) the docs of this set in the target bitset */
+  void applyToBits(BitDocSetNative target, int op) {
+    if (nativeOps()) {
+      applyToBitsNative(array, target.array, target.wlen, op);
+      return;
+    }
+    for (DocIterator iter = iterator(); iter.hasNext();) {
+      if (op == HS.OP_OR) {
+        target.fastSet(iter.nextDoc());
+      } else {
+        target.fastClear(iter.nextDoc());
+      }
+    }
+  }
+
+  /** copies the words of the bitset that correspond to a container, zero padded past the end of the bitset */
+  private static void bitsWindow(BitDocSetNative bits, int key, long[] words) {
+    int start = key * BITMAP_WORDS;
+    int n = Math.max(0, Math.min(BITMAP_WORDS, bits.wlen - start));
+    if (n > 0) {
+      HS.copyLongs(bits.array, start, words, 0, n);
+    }
+    Arrays.fill(words, n, BITMAP_WORDS, 0);
+  }
+
+  /** Wraps the result of a native operation that used "used" of the "bound" bytes allocated */
+  private static RoaringDocSetNative result(long out, long bound, long used) {
+    if (used < bound - (bound >> 2)) {
+      // don't keep the slack of a loose bound (e.g. a sparse intersection of two bitmaps) in the cache
+      long exact = HS.allocArray(used, 1, false, HS.MEM_DOCSET);
+      HS.copyBytes(out, 0, exact, 0, used);
+      HS.freeArray(out);
+      out = exact;
+    }
+    return new RoaringDocSetNative(out);
+  }
+
+  private static long align8(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+
+  /** Returns the number of docs in both sets */
+  public static native int intersectionSizeNative(long a, long b);
+
+  /** Writes the result of the operation to "out", which must be large enough for maxContainers containers.
+   * Returns the number of bytes used. */
+  public static native long combineNative(long a, long b, int op, int maxContainers, long out);
+
+  /** Returns the number of docs in both the roaring set and the bitset */
+  public static native int intersectionSizeBitsNative(long a, long bits, int wlen);
+
+  /** Like combineNative, for a roaring set and a bitset.  Only AND and ANDNOT are supported. */
+  public static native long combineBitsNative(long a, long bits, int wlen, int op, int maxContainers, long out);
+
+  /** Sets (OR) or clears (ANDNOT) the docs of the roaring set in the bitset */
+  public static native void applyToBitsNative(long a, long bits, int wlen, int op);
+
+  @Override
+  public RoaringDocSetNative clone() {
+    long bytes = HS.arraySizeBytes(array);
+    long newArr = HS.allocArray(bytes, 1, false, HS.MEM_DOCSET);
+    HS.copyBytes(array, 0, newArr, 0, bytes);
+    return new RoaringDocSetNative(newArr);
+  }
+
+
+  /** A single encoded container waiting to be written by the Builder */
+  private static class Container {
+    int key;
+    int type;
+    int card;
+    int bytes;
+    short[] values;   // ARRAY values, or RUN (start, length-1) pairs
+    long[] words;     // BITMAP
+  }
+
+  /** Builds a RoaringDocSetNative from docs added in increasing order. */
+  public static class Builder {
+    private final long[] words = new long[BITMAP_WORDS];
+    private final List<Container> containers = new ArrayList<>();
+    private int key = -1;
+    private int lastDoc = -1;
+    private int cardinality;
+    private long dataBytes;
+
+    /** Adds a doc, which must be greater than any doc previously added */
+    public void add(int doc) {
+      assert doc > lastDoc;
+      lastDoc = doc;
+      int k = doc >>> 16;
+      if (k != key) {
+        flush();
+        key = k;
+      }
+      words[(doc & 0xffff) >>> 6] |= 1L << doc;
+    }
+
+    private void flush() {
+      if (key >= 0) {
+        addWords(key, words);
+        Arrays.fill(words, 0);
+      }
+    }
+
+    /** Adds the docs key*65536 + i for every bit i set in the 1024 words.  Keys must be added in increasing order
+     * and may not be mixed with {@link #add}. */
+    public void addWords(int key, long[] words) {
+      int card = 0;
+      int runs = 0;
+      long carry = 0;   // highest bit of the previous word
+      for (int i=0; i<BITMAP_WORDS; i++) {
+        long w = words[i];
+        card += Long.bitCount(w);
+        runs += Long.bitCount(w & ~((w << 1) | carry));
+        carry = w >>> 63;
+      }
+      if (card == 0) return;
+
+      Container c = new Container();
+      c.key = key;
+      c.card = card;
+      int arrayBytes = card << 1;
+      int runBytes = 4 + (runs << 2);
+
+      if (runBytes < Math.min(arrayBytes, BITMAP_BYTES)) {
+        c.type = RUN;
+        c.bytes = runBytes;
+        short[] values = c.values = new short[runs << 1];
+        int n = 0;
+        int start = nextSetBit(words, 0);
+        while (start >= 0) {
+          int end = nextClearBit(words, start);
+          values[n++] = (short)start;
+          values[n++] = (short)(end - start - 1);
+          start = nextSetBit(words, end);
+        }
+      } else if (card <= MAX_ARRAY_CARDINALITY) {
+        c.type = ARRAY;
+        c.bytes = arrayBytes;
+        short[] values = c.values = new short[card];
+        int n = 0;
+        for (int i=0; i<BITMAP_WORDS; i++) {
+          long w = words[i];
+          while (w != 0) {
+            values[n++] = (short)((i << 6) | Long.numberOfTrailingZeros(w));
+            w &= w - 1;
+          }
+        }
+      } else {
+        c.type = BITMAP;
+        c.bytes = BITMAP_BYTES;
+        c.words = words.clone();
+      }
+
+      containers.add(c);
+      cardinality += card;
+      dataBytes += align8(c.bytes);
+    }
+
+    /** Returns the index of the next set bit at or after "from", or -1 */
+    private static int nextSetBit(long[] words, int from) {
+      int i = from >>> 6;
+      if (i >= BITMAP_WORDS) return -1;
+      long w = words[i] >>> from;
+      if (w != 0) return from + Long.numberOfTrailingZeros(w);
+      while (++i < BITMAP_WORDS) {
+        if (words[i] != 0) return (i << 6) + Long.numberOfTrailingZeros(words[i]);
+      }
+      return -1;
+    }
+
+    /** Returns the index of the next clear bit at or after "from", or 65536 */
+    private static int nextClearBit(long[] words, int from) {
+      int i = from >>> 6;
+      long w = ~words[i] >>> from;
+      if (w != 0) return from + Long.numberOfTrailingZeros(w);
+      while (++i < BITMAP_WORDS) {
+        if (words[i] != -1L) return (i << 6) + Long.numberOfTrailingZeros(~words[i]);
+      }
+      return BITMAP_WORDS << 6;
+    }
+
+    public RoaringDocSetNative build() {
+      flush();
+      key = -1;
+
+      int n = containers.size();
+      long off = align8(HEADER_BYTES + (long)n * DIR_ENTRY_BYTES);
+      long arr = HS.allocArray(off + dataBytes, 1, false, HS.MEM_DOCSET);
+      HS.setInt(arr, 0, n);
+      HS.setInt(arr, 1, cardinality);
+
+      for (int i=0; i<n; i++) {
+        Container c = containers.get(i);
+        int d = 2 + (i << 2);
+        HS.setInt(arr, d, c.key);
+        HS.setInt(arr, d+1, c.type);
+        HS.setInt(arr, d+2, c.card);
+        HS.setInt(arr, d+3, (int)off);
+
+        switch (c.type) {
+          case BITMAP:
+            HS.copyLongs(c.words, 0, arr, off >> 3, BITMAP_WORDS);
+            break;
+          case ARRAY:
+            for (int j=0; j<c.values.length; j++) {
+              HS.setShort(arr, (int)(off >> 1) + j, c.values[j]);
+            }
+            break;
+          default:
+            HS.setInt(arr, (int)(off >> 2), c.values.length >> 1);
+            for (int j=0; j<c.values.length; j++) {
+              HS.setShort(arr, (int)((off+4) >> 1) + j, c.values[j]);
+            }
+            break;
+        }
+        off += align8(c.bytes);
+      }
+
+      containers.clear();
+      cardinality = 0;
+      dataBytes = 0;
+      lastDoc = -1;
+      return new RoaringDocSetNative(arr);
+    }
+  }
+}
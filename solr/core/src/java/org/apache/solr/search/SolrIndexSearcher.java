@@ -32,7 +32,15 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.lucene.document.Document;
@@ -88,6 +96,7 @@ import org.apache.lucene.search.Weight;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Counter;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.params.ModifiableSolrParams;
@@ -105,6 +114,7 @@ import org.apache.solr.search.facet.UnInvertedField;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.field.LeafValuesStore;
 import org.apache.solr.search.field.TopValues;
 import org.apache.solr.update.SolrIndexConfig;
 import org.slf4j.Logger;
@@ -135,13 +145,17 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
   private long openTime = System.currentTimeMillis();
   private long registerTime = 0;
   private long warmupTime = 0;
+  private int filtersWarmedIncrementally = 0;  // filterCache entries warmed from the old sets of shared segments
+  private int filtersRecomputed = 0;           // filterCache entries warmed by executing the query on the whole index
   private final DirectoryReader reader;
   private final boolean closeReader;
+  private volatile WarmContext warming;  // set while warm() runs, so that close() can cancel the values it queued
 
   private final int queryResultWindowSize;
   private final int queryResultMaxDocsCached;
   private final boolean useFilterForSortedQuery;
   public final boolean enableLazyFieldLoading;
+  private final boolean compressFilterCache;
 
   private final boolean cachingEnabled;
   private final SolrCache<Query,DocSet> filterCache;
@@ -150,6 +164,7 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
   private final SolrCache<String,UnInvertedField> fieldValueCache;
 
   private final SolrCache<String,TopValues> nCache;
+  private final SolrCache<JoinQParserPlugin.JoinCacheKey,DocSet> joinCache;
 
   // map of generic caches - not synchronized since it's read-only after the constructor.
   private final HashMap<String, SolrCache> cacheMap;
@@ -219,6 +234,133 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     }        
   }
   
+  /**
+   * Returns the leaves of this searcher split into contiguous slices of about the same number of documents, to be
+   * searched concurrently by {@link #runSliceCollectors}, or null if the query should be searched on this thread.
+   * Post filters, rank queries and early termination need to see all of the matches in a single collector.
+   */
+  private List<List<AtomicReaderContext>> getSearchSlices(QueryCommand cmd, ProcessedFilter pf) {
+    int threads = core.getSolrConfig().searchThreads;
+    if (core.getSliceExecutor() == null || leafContexts.size() < 2 || pf.postFilter != null
+        || cmd.getQuery() instanceof RankQuery || (cmd.getFlags() & TERMINATE_EARLY) != 0) {
+      return null;
+    }
+
+    // this thread searches a slice too
+    int numSlices = Math.min(threads + 1, leafContexts.size());
+    long maxDoc = maxDoc();
+    long docs = 0;
+    List<List<AtomicReaderContext>> slices = new ArrayList<>(numSlices);
+    List<AtomicReaderContext> slice = null;
+    for (AtomicReaderContext leaf : leafContexts) {
+      if (slice == null || (slices.size() < numSlices && docs >= maxDoc * slices.size() / numSlices)) {
+        slice = new ArrayList<>();
+        slices.add(slice);
+      }
+      slice.add(leaf);
+      docs += leaf.reader().maxDoc();
+    }
+    return slices.size() < 2 ? null : slices;
+  }
+
+  /**
+   * Searches each slice of leaves with the collector at the same index, concurrently.  This is the segment-parallel
+   * counterpart of {@link #buildAndRunCollectorChain}, and all slices share the time allowed for the query.
+   * Each slice gets its own weight, since weights may keep per-request state that isn't thread safe (like the
+   * context of a function query).  They are all created on this thread, which has the request info.
+   */
+  private void runSliceCollectors(QueryResult qr, final Query query, Filter luceneFilter,
+      Collector[] collectors, QueryCommand cmd, List<List<AtomicReaderContext>> slices) throws IOException {
+    Query filtered = wrapFilter(query, luceneFilter);
+    final long timeAllowed = cmd.getTimeAllowed();
+    final Counter clock = TimeLimitingCollector.getGlobalCounter();
+    final long baseline = clock.get();
+
+    List<Callable<Boolean>> calls = new ArrayList<>(slices.size());
+    for (int i=0; i<slices.size(); i++) {
+      final List<AtomicReaderContext> slice = slices.get(i);
+      final Weight weight = createNormalizedWeight(filtered);
+      Collector collector = collectors[i];
+      if (timeAllowed > 0) {
+        TimeLimitingCollector timeLimiting = new TimeLimitingCollector(collector, clock, timeAllowed);
+        timeLimiting.setBaseline(baseline);
+        collector = timeLimiting;
+      }
+      final Collector sliceCollector = collector;
+      calls.add(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws IOException {
+          try {
+            search(slice, weight, sliceCollector);
+            return false;
+          } catch (TimeLimitingCollector.TimeExceededException x) {
+            log.warn( "Query: " + query + "; " + x.getMessage() );
+            return true;
+          }
+        }
+      });
+    }
+
+    List<Boolean> partial = new ArrayList<>(slices.size());
+    Throwable error = invokeAll(core.getSliceExecutor(), calls, partial);
+    if (error != null) {
+      rethrow(error);
+    }
+    if (partial.contains(Boolean.TRUE)) {
+      qr.setPartialResults(true);
+    }
+  }
+
+  /**
+   * Merges the top documents collected from the slices of a segment-parallel search.  Ties go to the earlier slice,
+   * so they are broken by docid just like in a serial search.
+   */
+  private TopDocs mergeTopDocs(int len, QueryCommand cmd, TopDocsCollector[] collectors) throws IOException {
+    TopDocs[] sliceDocs = new TopDocs[collectors.length];
+    for (int i=0; i<collectors.length; i++) {
+      sliceDocs[i] = collectors[i].topDocs(0, len);
+    }
+    return TopDocs.merge(cmd.getSort() == null ? null : weightSort(cmd.getSort()), len, sliceDocs);
+  }
+
+  /**
+   * Merges the sets collected from the slices of a segment-parallel search.  The slices are disjoint and in
+   * index order, so small sets can simply be concatenated.
+   */
+  private static DocSet mergeDocSets(DocSetCollector[] collectors, int smallSetSize, int maxDoc) {
+    DocSet[] sets = new DocSet[collectors.length];
+    BitDocSetNative bits = null;
+    int size = 0;
+    for (int i=0; i<collectors.length; i++) {
+      sets[i] = collectors[i].getDocSet();
+      size += sets[i].size();
+      if (bits == null && sets[i] instanceof BitDocSetNative) {
+        bits = (BitDocSetNative)sets[i];
+      }
+    }
+
+    if (bits == null && size <= smallSetSize) {
+      int[] docs = new int[size];
+      int pos = 0;
+      for (DocSet set : sets) {
+        DocIterator iter = set.iterator();
+        while (iter.hasNext()) docs[pos++] = iter.nextDoc();
+        set.decref();
+      }
+      return new SortedIntDocSetNative(docs, size);
+    }
+
+    if (bits == null) bits = new BitDocSetNative(maxDoc);
+    for (DocSet set : sets) {
+      if (set != bits) {
+        set.setBitsOn(bits);
+        set.decref();
+      }
+    }
+    bits.setSize(size);
+    return bits;
+  }
+
   public SolrIndexSearcher(SolrCore core, String path, IndexSchema schema, SolrIndexConfig config, String name, boolean enableCache, DirectoryFactory directoryFactory) throws IOException {
     // we don't need to reserve the directory because we get it from the factory
     this(core, path, schema, config, name, null, true, enableCache, false, directoryFactory);
@@ -260,6 +402,7 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     queryResultMaxDocsCached = solrConfig.queryResultMaxDocsCached;
     useFilterForSortedQuery = solrConfig.useFilterForSortedQuery;
     enableLazyFieldLoading = solrConfig.enableLazyFieldLoading;
+    compressFilterCache = solrConfig.compressFilterCache;
 
     cachingEnabled=enableCache;
     if (cachingEnabled) {
@@ -269,6 +412,9 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
  
       fieldValueCache = solrConfig.fieldValueCacheConfig==null ? null : solrConfig.fieldValueCacheConfig.newInstance();
       if (fieldValueCache!=null) clist.add(fieldValueCache);
+      // before the filterCache, so that warming joins used as filters can find their results
+      joinCache = solrConfig.joinCacheConfig==null ? null : solrConfig.joinCacheConfig.newInstance();
+      if (joinCache!=null) clist.add(joinCache);
       filterCache= solrConfig.filterCacheConfig==null ? null : solrConfig.filterCacheConfig.newInstance();
       if (filterCache!=null) clist.add(filterCache);
       queryResultCache = solrConfig.queryResultCacheConfig==null ? null : solrConfig.queryResultCacheConfig.newInstance();
@@ -293,6 +439,7 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       cacheList = clist.toArray(new SolrCache[clist.size()]);
     } else {
       nCache = null;
+      joinCache = null;
       filterCache=null;
       queryResultCache=null;
       documentCache=null;
@@ -380,6 +527,12 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
 
     core.getInfoRegistry().remove(name);
 
+    WarmContext warmContext = warming;
+    if (warmContext != null) {
+      // closed before it was registered
+      cancelValues(warmContext);
+    }
+
     // super.close();
     // can't use super.close() since it just calls reader.close() and that may only be called once
     // per reader (even if incRef() was previously called).
@@ -453,6 +606,10 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       solrConfig.nCacheConfig.setRegenerator(new TopValues.Regenerator());
     }
 
+    if (solrConfig.joinCacheConfig != null && solrConfig.joinCacheConfig.getRegenerator() == null) {
+      solrConfig.joinCacheConfig.setRegenerator(new JoinQParserPlugin.JoinCacheRegenerator());
+    }
+
     if (solrConfig.fieldValueCacheConfig != null && solrConfig.fieldValueCacheConfig.getRegenerator() == null) {
       solrConfig.fieldValueCacheConfig.setRegenerator(
           new CacheRegenerator() {
@@ -472,7 +629,7 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
           new CacheRegenerator() {
             @Override
             public boolean regenerateItem(WarmContext warmContext, Object oldKey, Object oldVal) throws IOException {
-              warmContext.searcher.cacheDocSet((Query)oldKey, null, false);
+              warmContext.searcher.regenerateDocSet(warmContext, (Query)oldKey, (DocSet)oldVal);
               return true;
             }
           }
@@ -734,6 +891,11 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     return nCache;
   }
 
+  /** Cache of cross-core join results, may be null */
+  SolrCache<JoinQParserPlugin.JoinCacheKey,DocSet> getJoinCache() {
+    return joinCache;
+  }
+
   /** Returns a weighted sort according to this searcher */
   public Sort weightSort(Sort sort) throws IOException {
     return (sort != null) ? sort.rewrite(this) : null;
@@ -826,6 +988,53 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     answer.decref();
   }
 
+  /**
+   * Caches the set of documents matching a filterCache entry of the old searcher being warmed from.
+   * For segments shared with the old searcher the documents are copied from <code>oldSet</code>, less any new
+   * deletions, and the query is only executed against the new segments.  Queries whose matches in a segment may
+   * depend on other segments are executed against the whole index, like {@link #cacheDocSet} does.
+   */
+  void regenerateDocSet(WarmContext warmContext, Query query, DocSet oldSet) throws IOException {
+    if (filterCache == null || warmContext.segmentsShared == 0 || !QueryUtils.isSegmentLocal(query)) {
+      cacheDocSet(query, null, false);
+      filtersRecomputed++;
+      return;
+    }
+
+    List<AtomicReaderContext> oldLeaves = warmContext.oldSearcher.getTopReaderContext().leaves();
+    Filter oldFilter = oldSet.getTopFilter();
+    Weight weight = null;  // only needed if there are new segments
+    DocSet answer;
+
+    try (
+        DocSetCollector collector = new DocSetCollector(smallSetSize, maxDoc())
+    ) {
+      // in index order, as the collector expects
+      for (AtomicReaderContext leaf : leafContexts) {
+        int oldOrd = warmContext.newToOldOrd[leaf.ord];
+        if (oldOrd < 0) {
+          if (weight == null) weight = createNormalizedWeight(query);
+          search(Collections.singletonList(leaf), weight, collector);
+          continue;
+        }
+
+        // the old set only has docs that were live in the old searcher, so only new deletions must be removed
+        DocIdSet oldDocs = oldFilter.getDocIdSet(oldLeaves.get(oldOrd), leaf.reader().getLiveDocs());
+        DocIdSetIterator iter = oldDocs == null ? null : oldDocs.iterator();
+        if (iter == null) continue;
+        collector.setNextReader(leaf);
+        for (int doc = iter.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iter.nextDoc()) {
+          collector.collect(doc);
+        }
+      }
+
+      answer = compressForCache(collector.getDocSet());
+    }
+
+    filterCache.put(query, answer);
+    filtersWarmedIncrementally++;
+  }
+
   /**
    * Returns the set of document ids matching a query.
    * This method is cache-aware and attempts to retrieve the answer from the cache if possible.
@@ -868,7 +1077,7 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       }
     }
 
-    DocSet absAnswer = getDocSetNC(absQ, null);
+    DocSet absAnswer = compressForCache(getDocSetNC(absQ, null));
     DocSet answer = absAnswer;
     if (positive) {
       absAnswer.incref();
@@ -917,7 +1126,12 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
         return answer;
       }
     }
-    answer = getDocSetNC(q, null);
+    return cacheDocSet(q);
+  }
+
+  /** Computes the DocSet of a filter that is not in the filterCache, and caches it if there is a filterCache. */
+  private DocSet cacheDocSet(Query q) throws IOException {
+    DocSet answer = compressForCache(getDocSetNC(q, null));
     if (filterCache != null) {
       answer.incref();
       filterCache.put(q, answer);
@@ -927,6 +1141,23 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
 
   private static Query matchAllDocsQuery = new MatchAllDocsQuery();
 
+  /**
+   * If filterCache compression is enabled, returns a compressed copy of a bitset that is about to be
+   * cached when it takes at most half the memory, releasing the original.  Otherwise returns the set unchanged.
+   */
+  private DocSet compressForCache(DocSet set) {
+    if (!compressFilterCache || filterCache == null || !(set instanceof BitDocSetNative)) {
+      return set;
+    }
+    RoaringDocSetNative compressed = RoaringDocSetNative.compress((BitDocSetNative)set);
+    if ((compressed.memSize() << 1) > set.memSize()) {
+      compressed.decref();
+      return set;
+    }
+    set.decref();
+    return compressed;
+  }
+
 
 
   public static class ProcessedFilter implements AutoCloseable {
@@ -1052,6 +1283,124 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
   }
 
 
+  /**
+   * Computes and caches the positive DocSets of the filters in <code>queries</code> that are not null, storing them
+   * at the same index of <code>sets</code>.  They must already have been looked up in the filterCache and missed.  When there is more than one, they are submitted to the executor in order
+   * of cost, and this thread computes any that the executor has not started yet, so nested filters can't deadlock.
+   */
+  private void getPositiveDocSets(ExecutorService executor, Query[] queries, int numQueries, DocSet[] sets) throws IOException {
+    if (numQueries == 1) {
+      for (int i=0; i<queries.length; i++) {
+        if (queries[i] != null) sets[i] = cacheDocSet(queries[i]);
+      }
+      return;
+    }
+
+    Integer[] order = new Integer[numQueries];
+    for (int i=0, j=0; i<queries.length; i++) {
+      if (queries[i] != null) order[j++] = i;
+    }
+    final int[] costs = new int[queries.length];
+    for (Integer idx : order) {
+      costs[idx] = queries[idx] instanceof ExtendedQuery ? ((ExtendedQuery)queries[idx]).getCost() : 0;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return costs[a] - costs[b];
+      }
+    });
+
+    List<Callable<DocSet>> calls = new ArrayList<>(numQueries);
+    for (Integer idx : order) {
+      final Query q = queries[idx];
+      calls.add(new Callable<DocSet>() {
+        @Override
+        public DocSet call() throws IOException {
+          return cacheDocSet(q);
+        }
+      });
+    }
+
+    List<DocSet> results = new ArrayList<>(numQueries);
+    Throwable error = invokeAll(executor, calls, results);
+    for (int i=0; i<order.length; i++) {
+      sets[order[i]] = results.get(i);
+    }
+
+    if (error != null) {
+      for (Integer idx : order) {
+        if (sets[idx] != null) {
+          sets[idx].decref();
+          sets[idx] = null;
+        }
+      }
+      rethrow(error);
+    }
+  }
+
+  /**
+   * Runs <code>calls</code> on <code>executor</code> with the request info of this thread, adding their results to
+   * <code>results</code> in order.  This thread runs any call the executor has not started yet (all of them if the
+   * executor is null because the core is closing), so calls that use the same executor themselves cannot deadlock
+   * it.  Returns the first exception thrown once all calls are done, or null.
+   */
+  private static <T> Throwable invokeAll(ExecutorService executor, List<Callable<T>> calls, List<T> results) {
+    final SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+    List<FutureTask<T>> tasks = new ArrayList<>(calls.size());
+    for (final Callable<T> call : calls) {
+      FutureTask<T> task = new FutureTask<>(new Callable<T>() {
+        @Override
+        public T call() throws Exception {
+          // queries like joins need the request info of the thread they were submitted from
+          boolean worker = requestInfo != null && SolrRequestInfo.getRequestInfo() == null;
+          if (worker) SolrRequestInfo.setWorkerRequestInfo(requestInfo);
+          try {
+            return call.call();
+          } finally {
+            if (worker) SolrRequestInfo.setWorkerRequestInfo(null);
+          }
+        }
+      });
+      tasks.add(task);
+      try {
+        if (executor != null) executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        // the core is closing, we'll run it ourselves below
+      }
+    }
+
+    Throwable error = null;
+    boolean interrupted = false;
+    for (FutureTask<T> task : tasks) {
+      task.run();  // does nothing if the executor already started it
+      T result = null;
+      for (;;) {
+        try {
+          result = task.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;  // we still need to wait, the result may have to be released
+        } catch (ExecutionException e) {
+          if (error == null) error = e.getCause();
+          break;
+        }
+      }
+      results.add(result);
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    return error;
+  }
+
+  private static void rethrow(Throwable error) throws IOException {
+    if (error instanceof IOException) throw (IOException)error;
+    if (error instanceof RuntimeException) throw (RuntimeException)error;
+    if (error instanceof Error) throw (Error)error;
+    throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, error);
+  }
+
   public ProcessedFilter getProcessedFilter(DocSet setFilter, List<Query> queries) throws IOException {
     ProcessedFilter pf = new ProcessedFilter();
     if (queries==null || queries.size()==0) {
@@ -1078,6 +1427,12 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       smallestIndex = end;
     }
 
+    // filterCache misses are computed concurrently if there is a filter executor
+    ExecutorService filterExecutor = filterCache == null ? null : core.getFilterExecutor();
+    Query[] missing = null;
+    int numMissing = 0;
+    int firstQuerySet = end;
+
     int smallestCount = Integer.MAX_VALUE;
     for (Query q : queries) {
       if (q instanceof ExtendedQuery) {
@@ -1104,24 +1459,38 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       }
 
       Query posQuery = QueryUtils.getAbs(q);
-      sets[end] = getPositiveDocSet(posQuery);
+      if (filterExecutor == null) {
+        sets[end] = getPositiveDocSet(posQuery);
+      } else {
+        sets[end] = filterCache.get(posQuery);
+        if (sets[end] == null) {
+          if (missing == null) missing = new Query[sets.length];
+          missing[end] = posQuery;
+          numMissing++;
+        }
+      }
       // Negative query if absolute value different from original
-      if (q==posQuery) {
-        neg[end] = false;
+      neg[end] = q != posQuery;
+
+      end++;
+    }
+
+    if (numMissing > 0) {
+      getPositiveDocSets(filterExecutor, missing, numMissing, sets);
+    }
+
+    for (int i=firstQuerySet; i<end; i++) {
+      if (!neg[i]) {
         // keep track of the smallest positive set.
         // This optimization is only worth it if size() is cached, which it would
         // be if we don't do any set operations.
-        int sz = sets[end].size();
+        int sz = sets[i].size();
         if (sz<smallestCount) {
           smallestCount=sz;
-          smallestIndex=end;
-          scratch = sets[end];
+          smallestIndex=i;
+          scratch = sets[i];
         }
-      } else {
-        neg[end] = true;
       }
-
-      end++;
     }
 
     // Are all of our normal cached filters negative?
@@ -1676,6 +2045,11 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
    *        TopDocsCollector to use.
    */
   private TopDocsCollector buildTopDocsCollector(int len, QueryCommand cmd) throws IOException {
+    return buildTopDocsCollector(len, cmd, false);
+  }
+
+  /** @param forMerge true if the collected documents will be merged with those of other slices of the index */
+  private TopDocsCollector buildTopDocsCollector(int len, QueryCommand cmd, boolean forMerge) throws IOException {
 
     Query q = cmd.getQuery();
     if(q instanceof RankQuery) {
@@ -1694,7 +2068,7 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
 
       // :TODO: make fillFields it's own QueryCommand flag? ...
       // ... see comments in populateNextCursorMarkFromTopDocs for cache issues (SOLR-5595)
-      final boolean fillFields = (null != cursor);
+      final boolean fillFields = forMerge || (null != cursor);
       final FieldDoc searchAfter = (null != cursor ? cursor.getSearchAfterFieldDoc() : null);
       return TopFieldCollector.create(weightedSort, len, searchAfter,
           fillFields, needScores, needScores, true);
@@ -1785,12 +2159,25 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
         // no docs on this page, so cursor doesn't change
         qr.setNextCursorMark(cmd.getCursorMark());
       } else {
-        final TopDocsCollector topCollector = buildTopDocsCollector(len, cmd);
-        Collector collector = topCollector;
-        buildAndRunCollectorChain(qr, query, luceneFilter, collector, cmd, pf.postFilter);
+        TopDocs topDocs;
+        List<List<AtomicReaderContext>> slices = getSearchSlices(cmd, pf);
+        if (slices == null) {
+          final TopDocsCollector topCollector = buildTopDocsCollector(len, cmd);
+          Collector collector = topCollector;
+          buildAndRunCollectorChain(qr, query, luceneFilter, collector, cmd, pf.postFilter);
+
+          totalHits = topCollector.getTotalHits();
+          topDocs = topCollector.topDocs(0, len);
+        } else {
+          TopDocsCollector[] topCollectors = new TopDocsCollector[slices.size()];
+          for (int i=0; i<topCollectors.length; i++) {
+            topCollectors[i] = buildTopDocsCollector(len, cmd, true);
+          }
+          runSliceCollectors(qr, query, luceneFilter, topCollectors, cmd, slices);
 
-        totalHits = topCollector.getTotalHits();
-        TopDocs topDocs = topCollector.topDocs(0, len);
+          topDocs = mergeTopDocs(len, cmd, topCollectors);
+          totalHits = topDocs.totalHits;
+        }
         populateNextCursorMarkFromTopDocs(qr, cmd, topDocs);
 
         maxScore = totalHits > 0 ? topDocs.getMaxScore() : 0.0f;
@@ -1833,6 +2220,7 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     int smallSetSize = maxDoc>>6;
 
     DocSetCollector setCollector = null;
+    DocSetCollector[] sliceCollectors = null;
     ProcessedFilter pf = getProcessedFilter(cmd.getFilter(), cmd.getFilterList());
     final Filter luceneFilter = pf.filter;
 
@@ -1841,38 +2229,49 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     Query query = QueryUtils.makeQueryable(cmd.getQuery());
 
     // handle zero case...
+    List<List<AtomicReaderContext>> slices = getSearchSlices(cmd, pf);
     if (lastDocRequested<=0) {
       final float[] topscore = new float[] { Float.NEGATIVE_INFINITY };
 
-      Collector collector;
+      if (!needScores && slices != null) {
+        sliceCollectors = new DocSetCollector[slices.size()];
+        for (int i=0; i<sliceCollectors.length; i++) {
+          sliceCollectors[i] = new DocSetCollector(smallSetSize, maxDoc);
+        }
+        runSliceCollectors(qr, query, luceneFilter, sliceCollectors, cmd, slices);
 
-      if (!needScores) {
-        collector = setCollector = new DocSetCollector(smallSetSize, maxDoc);
+        set = mergeDocSets(sliceCollectors, smallSetSize, maxDoc);
       } else {
-        collector = setCollector = new DocSetDelegateCollector(smallSetSize, maxDoc, new Collector() {
-          Scorer scorer;
-          @Override
-          public void setScorer(Scorer scorer) {
-            this.scorer = scorer;
-          }
-          @Override
-          public void collect(int doc) throws IOException {
-            float score = scorer.score();
-            if (score > topscore[0]) topscore[0]=score;
-          }
-          @Override
-          public void setNextReader(AtomicReaderContext context) {
-          }
-          @Override
-          public boolean acceptsDocsOutOfOrder() {
-            return false;
-          }
-        });
-      }
+        Collector collector;
 
-      buildAndRunCollectorChain(qr, query, luceneFilter, collector, cmd, pf.postFilter);
+        if (!needScores) {
+          collector = setCollector = new DocSetCollector(smallSetSize, maxDoc);
+        } else {
+          collector = setCollector = new DocSetDelegateCollector(smallSetSize, maxDoc, new Collector() {
+            Scorer scorer;
+            @Override
+            public void setScorer(Scorer scorer) {
+              this.scorer = scorer;
+            }
+            @Override
+            public void collect(int doc) throws IOException {
+              float score = scorer.score();
+              if (score > topscore[0]) topscore[0]=score;
+            }
+            @Override
+            public void setNextReader(AtomicReaderContext context) {
+            }
+            @Override
+            public boolean acceptsDocsOutOfOrder() {
+              return false;
+            }
+          });
+        }
 
-      set = setCollector.getDocSet();
+        buildAndRunCollectorChain(qr, query, luceneFilter, collector, cmd, pf.postFilter);
+
+        set = setCollector.getDocSet();
+      }
 
       nDocsReturned = 0;
       ids = new int[nDocsReturned];
@@ -1883,18 +2282,34 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       qr.setNextCursorMark(cmd.getCursorMark());
     } else {
 
-      final TopDocsCollector topCollector = buildTopDocsCollector(len, cmd);
-      setCollector = new DocSetDelegateCollector(maxDoc>>6, maxDoc, topCollector);
-      Collector collector = setCollector;
+      TopDocs topDocs;
+      if (slices == null) {
+        final TopDocsCollector topCollector = buildTopDocsCollector(len, cmd);
+        setCollector = new DocSetDelegateCollector(maxDoc>>6, maxDoc, topCollector);
+        Collector collector = setCollector;
+
+        buildAndRunCollectorChain(qr, query, luceneFilter, collector, cmd, pf.postFilter);
+
+        set = setCollector.getDocSet();
 
-      buildAndRunCollectorChain(qr, query, luceneFilter, collector, cmd, pf.postFilter);
+        totalHits = topCollector.getTotalHits();
+        topDocs = topCollector.topDocs(0, len);
+      } else {
+        TopDocsCollector[] topCollectors = new TopDocsCollector[slices.size()];
+        sliceCollectors = new DocSetCollector[slices.size()];
+        for (int i=0; i<sliceCollectors.length; i++) {
+          topCollectors[i] = buildTopDocsCollector(len, cmd, true);
+          sliceCollectors[i] = new DocSetDelegateCollector(smallSetSize, maxDoc, topCollectors[i]);
+        }
+        runSliceCollectors(qr, query, luceneFilter, sliceCollectors, cmd, slices);
 
-      set = setCollector.getDocSet();
+        set = mergeDocSets(sliceCollectors, smallSetSize, maxDoc);
 
-      totalHits = topCollector.getTotalHits();
+        topDocs = mergeTopDocs(len, cmd, topCollectors);
+        totalHits = topDocs.totalHits;
+      }
       assert(totalHits == set.size());
 
-      TopDocs topDocs = topCollector.topDocs(0, len);
       populateNextCursorMarkFromTopDocs(qr, cmd, topDocs);
       maxScore = totalHits>0 ? topDocs.getMaxScore() : 0.0f;
       nDocsReturned = topDocs.scoreDocs.length;
@@ -1922,6 +2337,11 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
 
     } finally {
       if (setCollector != null) setCollector.close();
+      if (sliceCollectors != null) {
+        for (DocSetCollector sliceCollector : sliceCollectors) {
+          if (sliceCollector != null) sliceCollector.close();
+        }
+      }
       pf.close();
     }
 
@@ -2292,7 +2712,12 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     public SolrCache cache;
     public SolrCache oldCache;
     public int[] oldToNewOrd;
+    public int[] newToOldOrd;
     public int segmentsShared;
+    public ExecutorService valuesExecutor;  // builds field values of new segments in the background, may be null
+    // the values queued on valuesExecutor, which warm() waits for.  Those that haven't started are cancelled once
+    // it stops waiting, or by close() if the searcher is closed while warming.
+    public final List<Future<?>> valueFutures = new CopyOnWriteArrayList<>();
   }
 
   /**
@@ -2315,17 +2740,25 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     for (int i=0; i<warmContext.oldToNewOrd.length; i++) {
       warmContext.oldToNewOrd[i] = -1;
     }
+    warmContext.newToOldOrd = new int[leaves.size()];
+    for (int i=0; i<warmContext.newToOldOrd.length; i++) {
+      warmContext.newToOldOrd[i] = -1;
+    }
 
     for (AtomicReaderContext oldLeaf : oldLeaves) {
       AtomicReaderContext newLeaf = coreKeyToNewContext.get(oldLeaf.reader().getCoreCacheKey());
       if (newLeaf != null) {
         warmContext.oldToNewOrd[oldLeaf.ord] = newLeaf.ord;
+        warmContext.newToOldOrd[newLeaf.ord] = oldLeaf.ord;
         warmContext.segmentsShared++;
       }
     }
 
+    warmContext.valuesExecutor = core.getValuesWarmingExecutor();
+
     // Make sure nCache is first, followed by filters... then filters can help queryResults execute!
     long warmingStartTime = System.nanoTime();
+    warming = warmContext;  // until the values queued while warming are done or cancelled
     // warm the caches in order...
     ModifiableSolrParams params = new ModifiableSolrParams();
     params.add("warming","true");
@@ -2356,7 +2789,58 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
 
       if (debug) log.debug("autowarming result for " + this + "\n\t" + this.cacheList[i]);
     }
+
+    waitForValues(warmContext, warmingStartTime);
+    warming = null;
+    cancelValues(warmContext);  // those not started before a timeout
     warmupTime = TimeUnit.MILLISECONDS.convert(System.nanoTime() - warmingStartTime, TimeUnit.NANOSECONDS);
+
+    // segments merged away since the last searcher won't need their stored field values again
+    LeafValuesStore valuesStore = core.getLeafValuesStore();
+    if (valuesStore != null) {
+      valuesStore.removeUnused(this);
+    }
+  }
+
+  /**
+   * Waits for the field values being built for new segments, so that this searcher isn't registered
+   * before they are ready.  Gives up after nCacheWarmTimeout (measured from the start of warming) or if
+   * interrupted.  Nothing is cancelled here: warm() cancels the values that haven't started building
+   * afterwards, and those are built on first use instead.
+   */
+  private void waitForValues(WarmContext warmContext, long warmingStartTime) {
+    if (warmContext.valueFutures.isEmpty()) return;
+
+    int timeoutMs = core.getSolrConfig().nCacheWarmTimeout;
+    long deadline = timeoutMs < 0 ? Long.MAX_VALUE : warmingStartTime + TimeUnit.NANOSECONDS.convert(timeoutMs, TimeUnit.MILLISECONDS);
+    for (Future<?> future : warmContext.valueFutures) {
+      try {
+        if (deadline == Long.MAX_VALUE) {
+          future.get();
+        } else {
+          future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+      } catch (TimeoutException e) {
+        log.warn("Field values for new segments were not built after " + timeoutMs + "ms, registering " + this + " without them");
+        return;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        SolrException.log(log, "Exception building field values for " + this, e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Cancels the field values queued for warming that haven't started yet.  Those being built are left to
+   * finish, since interrupting them could close the index files they are reading.  Each task holds a reference
+   * to the reader, so it stays open until they are done.
+   */
+  private static void cancelValues(WarmContext warmContext) {
+    for (Future<?> future : warmContext.valueFutures) {
+      future.cancel(false);
+    }
   }
 
   /**
@@ -2425,6 +2909,8 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     lst.add("openedAt", new Date(openTime));
     if (registerTime!=0) lst.add("registeredAt", new Date(registerTime));
     lst.add("warmupTime", warmupTime);
+    lst.add("filtersWarmedIncrementally", filtersWarmedIncrementally);
+    lst.add("filtersRecomputed", filtersRecomputed);
     return lst;
   }
 
@@ -54,7 +54,7 @@ public class SortedIntDocSetNative extends DocSetBaseNative implements RefCount
   public SortedIntDocSetNative(int[] docs, int len) {
     assert len>=0 && len <= docs.length;
     this.len = len;
-    array = HS.allocArray(len, 4, false);
+    array = HS.allocArray(len, 4, false, HS.MEM_DOCSET);
     HS.copyInts(docs, 0, array, 0, len);
   }
 
@@ -95,6 +95,12 @@ public class SortedIntDocSetNative extends DocSetBaseNative implements RefCount
 
 
   public static native int intersectionSizeNative(long smallerSortedList, int a_size, long biggerSortedList, int b_size);
+  /** Writes the intersection to target, which must have room for min(lena, lenb) ints, and returns its size */
+  public static native int intersectionNative(long a, int lena, long b, int lenb, long target);
+  /** Writes a AND NOT b to target, which must have room for lena ints, and returns its size */
+  public static native int andNotNative(long a, int lena, long b, int lenb, long target);
+  /** Writes the union to target, which must have room for lena + lenb ints, and returns its size */
+  public static native int unionNative(long a, int lena, long b, int lenb, long target);
   public static long count_isizeNative; // debugging count
 
   public static int intersectionSize(long smallerSortedList, int a_size, long biggerSortedList, int b_size) {
@@ -236,6 +242,10 @@ public class SortedIntDocSetNative extends DocSetBaseNative implements RefCount
 
   @Override
   public int intersectionSize(DocSet other) {
+    if (other instanceof BitDocSetNative && nativeOps()) {
+      BitDocSetNative bits = (BitDocSetNative)other;
+      return BitDocSetNative.intersectionSizeIntsNative(bits.array, bits.wlen, array, len);
+    }
     if (!(other instanceof SortedIntDocSetNative)) {
       // assume other implementations are better at random access than we are,
       // true of BitDocSet and HashDocSet.
@@ -266,7 +276,7 @@ public class SortedIntDocSetNative extends DocSetBaseNative implements RefCount
 
     // if b is 8 times bigger than a, use the modified binary search.
     if ((b_size>>3) >= a_size) {
-      if (HS.loaded) {
+      if (nativeOps()) {
         count_isizeNative++;
         return intersectionSizeNative(a,a_size,b,b_size);
       } else {
@@ -460,6 +470,18 @@ public class SortedIntDocSetNative extends DocSetBaseNative implements RefCount
 
   @Override
   public DocSet intersection(DocSet other) {
+    if (nativeOps()) {
+      if (other instanceof SortedIntDocSetNative) {
+        SortedIntDocSetNative o = (SortedIntDocSetNative)other;
+        int bound = Math.min(len, o.len);
+        long target = HS.allocArray(bound, 4, false, HS.MEM_DOCSET);
+        return result(target, bound, intersectionNative(array, len, o.array, o.len, target));
+      }
+      if (other instanceof BitDocSetNative) {
+        return filter((BitDocSetNative)other, true);
+      }
+    }
+
     if (!(other instanceof SortedIntDocSetNative)) {
       int icount = 0;
       int arr[] = new int[len];
@@ -591,6 +613,17 @@ public class SortedIntDocSetNative extends DocSetBaseNative implements RefCount
       return this;
     }
 
+    if (nativeOps()) {
+      if (other instanceof SortedIntDocSetNative) {
+        SortedIntDocSetNative o = (SortedIntDocSetNative)other;
+        long target = HS.allocArray(len, 4, false, HS.MEM_DOCSET);
+        return result(target, len, andNotNative(array, len, o.array, o.len, target));
+      }
+      if (other instanceof BitDocSetNative) {
+        return filter((BitDocSetNative)other, false);
+      }
+    }
+
     if (!(other instanceof SortedIntDocSetNative)) {
       int count = 0;
       int arr[] = new int[len];
@@ -607,6 +640,64 @@ public class SortedIntDocSetNative extends DocSetBaseNative implements RefCount
     return new SortedIntDocSetNative(arr,sz);
   }
 
+  /** puts the union of a and b into the target array and returns the size */
+  public static int union(long a, int lena, long b, int lenb, int[] target) {
+    int count=0;
+    int i=0,j=0;
+    while (i<lena && j<lenb) {
+      int doca=HS.getInt(a,i), docb=HS.getInt(b,j);
+      if (doca < docb) {
+        target[count++] = doca;
+        i++;
+      } else if (doca > docb) {
+        target[count++] = docb;
+        j++;
+      } else {
+        target[count++] = doca;
+        i++;
+        j++;
+      }
+    }
+    while (i<lena) target[count++] = HS.getInt(a,i++);
+    while (j<lenb) target[count++] = HS.getInt(b,j++);
+    return count;
+  }
+
+  @Override
+  public DocSet union(DocSet other) {
+    if (!(other instanceof SortedIntDocSetNative)) {
+      return super.union(other);
+    }
+
+    SortedIntDocSetNative o = (SortedIntDocSetNative)other;
+    int bound = len + o.len;
+    if (nativeOps()) {
+      long target = HS.allocArray(bound, 4, false, HS.MEM_DOCSET);
+      return result(target, bound, unionNative(array, len, o.array, o.len, target));
+    }
+    int[] arr = new int[bound];
+    int sz = union(array, len, o.array, o.len, arr);
+    return new SortedIntDocSetNative(arr, sz);
+  }
+
+  /** The docs in this set that are (keep=true) or are not (keep=false) in the bitset */
+  private SortedIntDocSetNative filter(BitDocSetNative bits, boolean keep) {
+    long target = HS.allocArray(len, 4, false, HS.MEM_DOCSET);
+    return result(target, len, BitDocSetNative.filterIntsNative(bits.array, bits.wlen, array, len, keep, target));
+  }
+
+  /** Wraps the result of a native operation that wrote "count" of at most "bound" ints to the target array */
+  private static SortedIntDocSetNative result(long target, int bound, int count) {
+    if (count < bound - (bound >> 2)) {
+      // don't hold on to the slack of a loose bound
+      long exact = HS.allocArray(count, 4, false, HS.MEM_DOCSET);
+      HS.copyInts(target, 0, exact, 0, count);
+      HS.freeArray(target);
+      target = exact;
+    }
+    return new SortedIntDocSetNative(target, count);
+  }
+
   @Override
   public void setBitsOn(FixedBitSet target) {
     for (int i=0; i<len; i++) {
@@ -823,7 +914,7 @@ public class SortedIntDocSetNative extends DocSetBaseNative implements RefCount
 
   @Override
   public SortedIntDocSetNative clone() {
-    long newArr = HS.allocArray(len, 4, false);
+    long newArr = HS.allocArray(len, 4, false, HS.MEM_DOCSET);
     HS.copyInts(array, 0, newArr, 0, len);
     return new SortedIntDocSetNative(newArr, len);
   }
@@ -23,8 +23,10 @@ import org.apache.lucene.index.Term;
 import org.apache.solr.search.facet.AggValueSource;
 import org.apache.solr.search.facet.AvgAgg;
 import org.apache.solr.search.facet.CountAgg;
+import org.apache.solr.search.facet.HLLAgg;
 import org.apache.solr.search.facet.MaxAgg;
 import org.apache.solr.search.facet.MinAgg;
+import org.apache.solr.search.facet.PercentileAgg;
 import org.apache.solr.search.facet.SumAgg;
 import org.apache.solr.search.facet.SumsqAgg;
 import org.apache.solr.search.facet.UniqueAgg;
@@ -829,6 +831,41 @@ public abstract class ValueSourceParser implements NamedListInitializedPlugin {
       }
     });
 
+    addParser("agg_hll", new ValueSourceParser() {
+      @Override
+      public ValueSource parse(FunctionQParser fp) throws SyntaxError {
+        String field = fp.parseArg();
+        int log2m = fp.hasMoreArguments() ? fp.parseInt() : HLLAgg.DEFAULT_LOG2M;
+        if (log2m < HLLAgg.MIN_LOG2M || log2m > HLLAgg.MAX_LOG2M) {
+          throw new SyntaxError("hll precision must be between " + HLLAgg.MIN_LOG2M + " and " + HLLAgg.MAX_LOG2M + ", got " + log2m);
+        }
+        return new HLLAgg(field, log2m);
+      }
+    });
+
+    addParser("agg_percentile", new ValueSourceParser() {
+      @Override
+      public ValueSource parse(FunctionQParser fp) throws SyntaxError {
+        ValueSource vs = fp.parseValueSource();
+        List<Double> lst = new ArrayList<>();
+        while (fp.hasMoreArguments()) {
+          double p = fp.parseDouble();
+          if (p < 0 || p > 100) {
+            throw new SyntaxError("percentile must be between 0 and 100, got " + p);
+          }
+          lst.add(p);
+        }
+        if (lst.isEmpty()) {
+          throw new SyntaxError("expected percentiles to compute for " + vs.description());
+        }
+        double[] percentiles = new double[lst.size()];
+        for (int i=0; i<percentiles.length; i++) {
+          percentiles[i] = lst.get(i);
+        }
+        return new PercentileAgg(vs, percentiles);
+      }
+    });
+
     addParser("agg_sum", new ValueSourceParser() {
       @Override
       public ValueSource parse(FunctionQParser fp) throws SyntaxError {
@@ -20,6 +20,7 @@ package org.apache.solr.search.facet;
 import java.io.IOException;
 
 import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.search.QueryContext;
 import org.apache.solr.search.SolrIndexSearcher;
@@ -60,5 +61,10 @@ public abstract class AggValueSource extends ValueSource {
     throw new UnsupportedOperationException("NOT IMPLEMENTED " + name + " " + this);
   }
 
+  /** Returns a merger for the values of this stat from each shard, given the first value returned by a shard. */
+  public FacetMerger createFacetMerger(Object prototype) {
+    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Aggregation " + name + " is not supported in distributed search");
+  }
+
 }
 
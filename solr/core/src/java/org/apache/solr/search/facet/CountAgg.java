@@ -32,4 +32,9 @@ public class CountAgg extends SimpleAggValueSource {
   public SlotAcc createSlotAcc(MutableValueInt slot, QueryContext qContext, SolrQueryRequest req, int numDocs, int numSlots) throws IOException {
     return new CountSlotAcc(slot,  qContext, numSlots);
   }
+
+  @Override
+  public FacetMerger createFacetMerger(Object prototype) {
+    return new FacetLongMerger();
+  }
 }
@@ -0,0 +1,525 @@
+package org.apache.solr.search.facet;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+
+/** Merges the partial results of a single facet or stat from the responses of each shard */
+abstract class FacetMerger {
+  public abstract void merge(Object facetResult, Context mcontext);
+  public abstract Object getMergedResult();
+
+  static class Context {
+    final int numShards;
+    int shardNum;  // the shard the response currently being merged came from
+
+    Context(int numShards) {
+      this.numShards = numShards;
+    }
+  }
+}
+
+
+/** A merger of a stat that may be used to sort buckets */
+abstract class FacetSortableMerger extends FacetMerger {
+  public abstract int compareTo(FacetSortableMerger other);
+}
+
+
+class FacetLongMerger extends FacetSortableMerger {
+  long val;
+
+  @Override
+  public void merge(Object facetResult, Context mcontext) {
+    val += ((Number)facetResult).longValue();
+  }
+
+  @Override
+  public Object getMergedResult() {
+    return val;
+  }
+
+  @Override
+  public int compareTo(FacetSortableMerger other) {
+    return Long.compare(val, ((FacetLongMerger)other).val);
+  }
+}
+
+
+abstract class FacetDoubleMerger extends FacetSortableMerger {
+  protected abstract double getDouble();
+
+  @Override
+  public Object getMergedResult() {
+    return getDouble();
+  }
+
+  @Override
+  public int compareTo(FacetSortableMerger other) {
+    return Double.compare(getDouble(), ((FacetDoubleMerger)other).getDouble());
+  }
+}
+
+
+class FacetSumMerger extends FacetDoubleMerger {
+  double val;
+
+  @Override
+  public void merge(Object facetResult, Context mcontext) {
+    val += ((Number)facetResult).doubleValue();
+  }
+
+  @Override
+  protected double getDouble() {
+    return val;
+  }
+}
+
+
+class FacetMinMerger extends FacetDoubleMerger {
+  double val = Double.NaN;
+
+  @Override
+  public void merge(Object facetResult, Context mcontext) {
+    double v = ((Number)facetResult).doubleValue();
+    if (Double.isNaN(v)) return;  // no values on that shard
+    if (!(v >= val)) {  // v>=val will be false for the starting value: v>=NaN
+      val = v;
+    }
+  }
+
+  @Override
+  protected double getDouble() {
+    return val;
+  }
+}
+
+
+class FacetMaxMerger extends FacetDoubleMerger {
+  double val = Double.NaN;
+
+  @Override
+  public void merge(Object facetResult, Context mcontext) {
+    double v = ((Number)facetResult).doubleValue();
+    if (Double.isNaN(v)) return;
+    if (!(v <= val)) {  // reversed order to handle NaN
+      val = v;
+    }
+  }
+
+  @Override
+  protected double getDouble() {
+    return val;
+  }
+}
+
+
+/** Shards send avg as a [sum, count] pair so that it can be merged */
+class FacetAvgMerger extends FacetDoubleMerger {
+  double sum;
+  long count;
+
+  @Override
+  public void merge(Object facetResult, Context mcontext) {
+    List<Number> lst = (List<Number>)facetResult;
+    sum += lst.get(0).doubleValue();
+    count += lst.get(1).longValue();
+  }
+
+  @Override
+  protected double getDouble() {
+    return count == 0 ? 0 : sum / count;  // same as AvgSlotAcc
+  }
+}
+
+
+/** Shards send the set of values seen, so that the number of unique values across all shards is exact */
+class FacetUniqueMerger extends FacetSortableMerger {
+  Set<Object> values = new HashSet<>();
+
+  @Override
+  public void merge(Object facetResult, Context mcontext) {
+    values.addAll((Collection<Object>)facetResult);
+  }
+
+  @Override
+  public Object getMergedResult() {
+    return (long)values.size();
+  }
+
+  @Override
+  public int compareTo(FacetSortableMerger other) {
+    return Integer.compare(values.size(), ((FacetUniqueMerger)other).values.size());
+  }
+}
+
+
+/** Shards send their HyperLogLog registers, which are merged before estimating */
+class FacetHLLMerger extends FacetSortableMerger {
+  byte[] regs;
+
+  FacetHLLMerger(int numRegisters) {
+    regs = new byte[numRegisters];
+  }
+
+  @Override
+  public void merge(Object facetResult, Context mcontext) {
+    HLL.union(regs, (byte[])facetResult);
+  }
+
+  @Override
+  public Object getMergedResult() {
+    return HLL.estimate(regs);
+  }
+
+  @Override
+  public int compareTo(FacetSortableMerger other) {
+    return Long.compare(HLL.estimate(regs), HLL.estimate(((FacetHLLMerger)other).regs));
+  }
+}
+
+
+/** Shards send their serialized t-digest, which are merged before estimating the percentiles */
+class FacetPercentileMerger extends FacetSortableMerger {
+  final double[] percentiles;
+  TDigest digest = new TDigest(TDigest.DEFAULT_COMPRESSION);
+
+  FacetPercentileMerger(double[] percentiles) {
+    this.percentiles = percentiles;
+  }
+
+  @Override
+  public void merge(Object facetResult, Context mcontext) {
+    digest.add(TDigest.fromBytes((byte[])facetResult, TDigest.DEFAULT_COMPRESSION));
+  }
+
+  @Override
+  public Object getMergedResult() {
+    return PercentileAgg.getValue(digest, percentiles);
+  }
+
+  private double sortValue() {
+    return digest.quantile(percentiles[0] / 100);
+  }
+
+  @Override
+  public int compareTo(FacetSortableMerger other) {
+    return Double.compare(sortValue(), ((FacetPercentileMerger)other).sortValue());
+  }
+}
+
+
+/** The merged stats and sub-facets for a single bucket */
+class FacetBucket {
+  final FacetRequest freq;
+  final Object bucketValue;
+  final BitSet shards = new BitSet();  // shards that have contributed to this bucket
+  long count;
+  boolean hasCount;
+  Map<String,FacetMerger> subs;
+
+  FacetBucket(FacetRequest freq, Object bucketValue) {
+    this.freq = freq;
+    this.bucketValue = bucketValue;
+  }
+
+  /** Returns the merger for the given stat or sub-facet, or null if no shard has returned it */
+  FacetMerger getMerger(String key) {
+    return subs == null ? null : subs.get(key);
+  }
+
+  private FacetMerger getOrCreateMerger(String key, Object prototype) {
+    if (subs == null) {
+      subs = new LinkedHashMap<>();
+    }
+    FacetMerger merger = subs.get(key);
+    if (merger == null) {
+      AggValueSource stat = freq.getfacetStats().get(key);
+      if (stat != null) {
+        merger = stat.createFacetMerger(prototype);
+      } else {
+        FacetRequest subFacet = freq.getSubFacets().get(key);
+        if (subFacet == null) {
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Unexpected key '" + key + "' in shard facet response");
+        }
+        merger = subFacet.createFacetMerger(prototype);
+      }
+      subs.put(key, merger);
+    }
+    return merger;
+  }
+
+  void mergeBucket(NamedList<Object> bucket, FacetMerger.Context mcontext) {
+    shards.set(mcontext.shardNum);
+
+    for (int i=0; i<bucket.size(); i++) {
+      String key = bucket.getName(i);
+      Object val = bucket.getVal(i);
+      if ("val".equals(key)) {
+        continue;
+      }
+      if ("count".equals(key)) {
+        count += ((Number)val).longValue();
+        hasCount = true;
+        continue;
+      }
+      getOrCreateMerger(key, val).merge(val, mcontext);
+    }
+  }
+
+  SimpleOrderedMap<Object> getMergedBucket() {
+    SimpleOrderedMap<Object> out = new SimpleOrderedMap<>();
+    if (bucketValue != null) {
+      out.add("val", bucketValue);
+    }
+    if (hasCount) {
+      out.add("count", count);
+    }
+    if (subs != null) {
+      for (Map.Entry<String,FacetMerger> entry : subs.entrySet()) {
+        out.add(entry.getKey(), entry.getValue().getMergedResult());
+      }
+    }
+    return out;
+  }
+}
+
+
+class FacetQueryMerger extends FacetMerger {
+  FacetBucket bucket;
+
+  FacetQueryMerger(FacetRequest freq) {
+    bucket = new FacetBucket(freq, null);
+  }
+
+  FacetMerger getSubMerger(String key) {
+    return bucket.getMerger(key);
+  }
+
+  @Override
+  public void merge(Object facetResult, Context mcontext) {
+    bucket.mergeBucket((NamedList<Object>)facetResult, mcontext);
+  }
+
+  @Override
+  public Object getMergedResult() {
+    return bucket.getMergedBucket();
+  }
+}
+
+
+class FacetFieldMerger extends FacetMerger {
+  final FacetField freq;
+  final LinkedHashMap<Object,FacetBucket> buckets = new LinkedHashMap<>();
+  FacetBucket allBuckets;
+  int[] numReturned;  // the number of buckets returned by each shard
+  List<FacetBucket> sortedBuckets;
+
+  FacetFieldMerger(FacetField freq) {
+    this.freq = freq;
+  }
+
+  @Override
+  public void merge(Object facetResult, Context mcontext) {
+    if (numReturned == null) {
+      numReturned = new int[mcontext.numShards];
+    }
+    sortedBuckets = null;
+
+    NamedList<Object> res = (NamedList<Object>)facetResult;
+    NamedList<Object> all = (NamedList<Object>)res.get("allBuckets");
+    if (all != null) {
+      if (allBuckets == null) {
+        allBuckets = new FacetBucket(freq, null);
+      }
+      allBuckets.mergeBucket(all, mcontext);
+    }
+
+    List<NamedList<Object>> bucketList = (List<NamedList<Object>>)res.get("buckets");
+    if (bucketList == null) return;
+    numReturned[mcontext.shardNum] = bucketList.size();
+    for (NamedList<Object> shardBucket : bucketList) {
+      Object val = shardBucket.get("val");
+      FacetBucket bucket = buckets.get(val);
+      if (bucket == null) {
+        bucket = new FacetBucket(freq, val);
+        buckets.put(val, bucket);
+      }
+      bucket.mergeBucket(shardBucket, mcontext);
+    }
+  }
+
+  private List<FacetBucket> sortBuckets() {
+    if (sortedBuckets != null) return sortedBuckets;
+
+    sortedBuckets = new ArrayList<>(buckets.values());
+    final int sortMul = freq.sortDirection.getMultiplier();
+    final String sortKey = freq.sortVariable;
+
+    final Comparator<FacetBucket> byValue = new Comparator<FacetBucket>() {
+      @Override
+      public int compare(FacetBucket a, FacetBucket b) {
+        Comparable va = (Comparable)a.bucketValue;
+        Comparable vb = (Comparable)b.bucketValue;
+        if (va == null) return vb == null ? 0 : -1;
+        if (vb == null) return 1;
+        return va.compareTo(vb);
+      }
+    };
+
+    Comparator<FacetBucket> comparator;
+    if ("index".equals(sortKey)) {
+      comparator = new Comparator<FacetBucket>() {
+        @Override
+        public int compare(FacetBucket a, FacetBucket b) {
+          return byValue.compare(a, b) * -sortMul;  // "index asc" is natural order
+        }
+      };
+    } else if ("count".equals(sortKey)) {
+      comparator = new Comparator<FacetBucket>() {
+        @Override
+        public int compare(FacetBucket a, FacetBucket b) {
+          int cmp = -Long.compare(a.count, b.count) * sortMul;
+          return cmp == 0 ? byValue.compare(a, b) : cmp;
+        }
+      };
+    } else {
+      comparator = new Comparator<FacetBucket>() {
+        @Override
+        public int compare(FacetBucket a, FacetBucket b) {
+          FacetSortableMerger ma = (FacetSortableMerger)a.getMerger(sortKey);
+          FacetSortableMerger mb = (FacetSortableMerger)b.getMerger(sortKey);
+          int cmp;
+          if (ma == null || mb == null) {
+            cmp = ma == mb ? 0 : (ma == null ? 1 : -1);  // buckets without the stat sort last
+          } else {
+            cmp = -ma.compareTo(mb) * sortMul;
+          }
+          return cmp == 0 ? byValue.compare(a, b) : cmp;
+        }
+      };
+    }
+
+    Collections.sort(sortedBuckets, comparator);
+    return sortedBuckets;
+  }
+
+  /** Returns the buckets, best first, that would be returned from the currently merged responses */
+  List<FacetBucket> getTopBuckets() {
+    List<FacetBucket> sorted = sortBuckets();
+    List<FacetBucket> top = new ArrayList<>();
+    long end = freq.limit < 0 ? Long.MAX_VALUE : freq.offset + freq.limit;
+    for (FacetBucket bucket : sorted) {
+      if (top.size() >= end) break;
+      if (bucket.hasCount && bucket.count < freq.mincount) continue;
+      top.add(bucket);
+    }
+    return top;
+  }
+
+  /** Returns true if the given shard may have information for the bucket that it did not return */
+  boolean needsRefinement(FacetBucket bucket, int shardNum) {
+    if (bucket.bucketValue == null || bucket.shards.get(shardNum)) return false;
+    long shardLimit = freq.getShardLimit();
+    // if the shard returned fewer buckets than were asked for, it returned every bucket it has
+    return shardLimit >= 0 && numReturned != null && numReturned[shardNum] >= shardLimit;
+  }
+
+  @Override
+  public Object getMergedResult() {
+    sortedBuckets = null;  // refinement may have changed the order
+    List<FacetBucket> top = getTopBuckets();
+
+    SimpleOrderedMap<Object> res = new SimpleOrderedMap<>();
+    if (allBuckets != null) {
+      res.add("allBuckets", allBuckets.getMergedBucket());
+    }
+
+    List<Object> bucketList = new ArrayList<>();
+    for (int i=(int)Math.min(freq.offset, top.size()); i<top.size(); i++) {
+      bucketList.add(top.get(i).getMergedBucket());
+    }
+    res.add("buckets", bucketList);
+    return res;
+  }
+}
+
+
+class FacetRangeMerger extends FacetMerger {
+  final FacetRange freq;
+  final LinkedHashMap<Object,FacetBucket> buckets = new LinkedHashMap<>();
+  final LinkedHashMap<String,FacetBucket> others = new LinkedHashMap<>();  // before, after, between
+
+  FacetRangeMerger(FacetRange freq) {
+    this.freq = freq;
+  }
+
+  @Override
+  public void merge(Object facetResult, Context mcontext) {
+    NamedList<Object> res = (NamedList<Object>)facetResult;
+    for (int i=0; i<res.size(); i++) {
+      String key = res.getName(i);
+      if ("buckets".equals(key)) {
+        for (NamedList<Object> shardBucket : (List<NamedList<Object>>)res.getVal(i)) {
+          Object val = shardBucket.get("val");
+          FacetBucket bucket = buckets.get(val);
+          if (bucket == null) {
+            bucket = new FacetBucket(freq, val);
+            buckets.put(val, bucket);
+          }
+          bucket.mergeBucket(shardBucket, mcontext);
+        }
+      } else {
+        FacetBucket bucket = others.get(key);
+        if (bucket == null) {
+          bucket = new FacetBucket(freq, null);
+          others.put(key, bucket);
+        }
+        bucket.mergeBucket((NamedList<Object>)res.getVal(i), mcontext);
+      }
+    }
+  }
+
+  @Override
+  public Object getMergedResult() {
+    SimpleOrderedMap<Object> res = new SimpleOrderedMap<>();
+    List<Object> bucketList = new ArrayList<>(buckets.size());
+    for (FacetBucket bucket : buckets.values()) {
+      bucketList.add(bucket.getMergedBucket());
+    }
+    res.add("buckets", bucketList);
+    for (Map.Entry<String,FacetBucket> entry : others.entrySet()) {
+      res.add(entry.getKey(), entry.getValue().getMergedBucket());
+    }
+    return res;
+  }
+}
@@ -0,0 +1,191 @@
+package org.apache.solr.search.facet;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.DateField;
+import org.apache.solr.search.QueryContext;
+import org.apache.solr.search.QueryParsing;
+import org.apache.solr.search.SyntaxError;
+import org.noggit.JSONUtil;
+import org.noggit.ObjectBuilder;
+
+
+/**
+ * Entry point for the json.facet API.  The static methods execute a facet request locally,
+ * while an instance is used by a distributed request to merge the responses from each shard.
+ * <p>
+ * <b>This API is experimental and subject to change</b>
+ */
+public class FacetModule {
+  private final FacetRequest freq;
+  private final FacetMerger merger;
+  private final FacetMerger.Context mcontext;
+
+  // refinement key -> the bucket the refined response should be merged into
+  private Map<String,FacetBucket> refineBuckets;
+
+  private FacetModule(FacetRequest freq, int numShards) {
+    this.freq = freq;
+    this.merger = freq.createFacetMerger(null);
+    this.mcontext = new FacetMerger.Context(numShards);
+  }
+
+  public static FacetRequest getFacetRequest(SolrQueryRequest req) {
+    // String[] jsonFacets = req.getParams().getParams("json.facet");
+    // TODO: allow multiple
+
+    String jsonFacet = req.getParams().get("json.facet"); // TODO... allow just "facet" also?
+    if (jsonFacet == null) {
+      return null;
+    }
+
+    Object facetArgs = null;
+    try {
+      facetArgs = ObjectBuilder.fromJSON(jsonFacet);
+    } catch (IOException e) {
+      // should be impossible
+     // TODO: log
+    }
+
+    FacetParser parser = new FacetTopParser(req);
+    try {
+      FacetRequest facetReq = parser.parse(facetArgs);
+      return facetReq;
+    } catch (SyntaxError syntaxError) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, syntaxError);
+    }
+  }
+
+
+  public static boolean doFacets(ResponseBuilder rb) throws IOException {
+    FacetRequest freq = getFacetRequest(rb.req);
+    if (freq == null) return false;
+
+    FacetContext fcontext = new FacetContext();
+    fcontext.base = rb.getResults().docSet;
+    fcontext.req = rb.req;
+    fcontext.searcher = rb.req.getSearcher();
+    fcontext.qcontext = QueryContext.newContext(fcontext.searcher);
+    fcontext.threads = rb.req.getParams().getInt(FacetParams.FACET_THREADS, 0);
+    fcontext.isShard = rb.req.getParams().getBool(ShardParams.IS_SHARD, false);
+
+    FacetProcessor fproc = freq.createFacetProcessor(fcontext);
+    fproc.process();
+    rb.rsp.add("facets", fproc.getResponse());
+
+    if (rb.isDebug()) {
+      rb.addDebug(SlotArrays.getPeakBytes(fcontext.qcontext), "facets", "slotArrayPeakBytes");
+    }
+    return true;
+  }
+
+
+  /** Returns an object to merge the json.facet responses of each shard, or null if the request has no json.facet */
+  public static FacetModule createDistributed(SolrQueryRequest req, int numShards) {
+    FacetRequest freq = getFacetRequest(req);
+    if (freq == null) return null;
+    return new FacetModule(freq, numShards);
+  }
+
+  /** Merges the "facets" section of a shard response */
+  public void merge(int shardNum, Object facets) {
+    if (facets == null) return;
+    mcontext.shardNum = shardNum;
+    merger.merge(facets, mcontext);
+  }
+
+  /**
+   * Returns the json.facet command that will fill in the buckets missing from the given
+   * shard's response, or null if no refinement is needed for that shard.
+   * Must only be called after the responses from all shards have been merged.
+   */
+  public String getRefinement(int shardNum) {
+    if (refineBuckets == null) {
+      refineBuckets = new HashMap<>();
+    }
+
+    Map<String,Object> refinement = null;
+    for (Map.Entry<String,FacetRequest> entry : freq.getSubFacets().entrySet()) {
+      if (!(entry.getValue() instanceof FacetField)) continue;
+      FacetField ff = (FacetField)entry.getValue();
+      if (!ff.refine) continue;
+
+      FacetFieldMerger fmerger = (FacetFieldMerger)((FacetQueryMerger)merger).getSubMerger(entry.getKey());
+      if (fmerger == null) continue;
+
+      List<FacetBucket> topBuckets = fmerger.getTopBuckets();
+      for (int i=0; i<topBuckets.size(); i++) {
+        FacetBucket bucket = topBuckets.get(i);
+        if (!fmerger.needsRefinement(bucket, shardNum)) continue;
+
+        String refineKey = entry.getKey() + "__refine" + i;
+        refineBuckets.put(refineKey, bucket);
+
+        Map<String,Object> queryArgs = new LinkedHashMap<>();
+        queryArgs.put("q", "{!term f=" + ff.field + " v=" + encodeTermValue(bucket.bucketValue) + "}");
+        if (ff.subFacetArgs != null) {
+          queryArgs.put("facet", ff.subFacetArgs);
+        }
+        Map<String,Object> queryFacet = new LinkedHashMap<>();
+        queryFacet.put("query", queryArgs);
+
+        if (refinement == null) {
+          refinement = new LinkedHashMap<>();
+        }
+        refinement.put(refineKey, queryFacet);
+      }
+    }
+
+    return refinement == null ? null : JSONUtil.toJSON(refinement, -1);
+  }
+
+  /** Merges the "facets" section of a shard's response to a request generated by {@link #getRefinement} */
+  public void mergeRefinement(int shardNum, Object facets) {
+    if (facets == null || refineBuckets == null) return;
+    mcontext.shardNum = shardNum;
+
+    NamedList<Object> lst = (NamedList<Object>)facets;
+    for (int i=0; i<lst.size(); i++) {
+      FacetBucket bucket = refineBuckets.get(lst.getName(i));
+      if (bucket == null) continue;  // the top level count
+      bucket.mergeBucket((NamedList<Object>)lst.getVal(i), mcontext);
+    }
+  }
+
+  private static String encodeTermValue(Object val) {
+    String s = val instanceof Date ? DateField.formatExternal((Date)val) : val.toString();
+    return QueryParsing.encodeLocalParamVal(s);
+  }
+
+  public Object getMergedResult() {
+    return merger.getMergedResult();
+  }
+}
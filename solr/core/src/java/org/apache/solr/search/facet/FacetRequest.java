@@ -20,6 +20,7 @@ package org.apache.solr.search.facet;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.Iterator;
@@ -28,22 +29,31 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.CharsRef;
-import org.apache.lucene.util.PriorityQueue;
+import org.apache.lucene.util.NumericUtils;
 import org.apache.lucene.util.UnicodeUtil;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.FacetParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.common.util.StrUtils;
-import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.core.HS;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.schema.DateField;
 import org.apache.solr.schema.FieldType;
@@ -53,9 +63,11 @@ import org.apache.solr.schema.SortableDoubleField;
 import org.apache.solr.schema.SortableFloatField;
 import org.apache.solr.schema.SortableIntField;
 import org.apache.solr.schema.SortableLongField;
+import org.apache.solr.schema.TrieDateField;
 import org.apache.solr.schema.TrieField;
 import org.apache.solr.search.DocIterator;
 import org.apache.solr.search.DocSet;
+import org.apache.solr.search.DocSetBaseNative;
 import org.apache.solr.search.FunctionQParser;
 import org.apache.solr.search.FunctionQParserPlugin;
 import org.apache.solr.search.QParser;
@@ -63,57 +75,14 @@ import org.apache.solr.search.QueryContext;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.search.SyntaxError;
 import org.apache.solr.search.field.FieldUtil;
+import org.apache.solr.search.field.LongArray;
+import org.apache.solr.search.field.NativeSortedDocValues;
+import org.apache.solr.search.field.StrGlobalValues;
+import org.apache.solr.search.field.StrLeafValues;
+import org.apache.solr.search.function.FuncValues;
+import org.apache.solr.search.function.ValueSource;
 import org.apache.solr.search.mutable.MutableValueInt;
 import org.apache.solr.util.DateMathParser;
-import org.noggit.ObjectBuilder;
-
-
-class FacetModule {
-  public static FacetRequest getFacetRequest(SolrQueryRequest req) {
-    // String[] jsonFacets = req.getParams().getParams("json.facet");
-    // TODO: allow multiple
-
-    String jsonFacet = req.getParams().get("json.facet"); // TODO... allow just "facet" also?
-    if (jsonFacet == null) {
-      return null;
-    }
-
-    Object facetArgs = null;
-    try {
-      facetArgs = ObjectBuilder.fromJSON(jsonFacet);
-    } catch (IOException e) {
-      // should be impossible
-     // TODO: log
-    }
-
-    FacetParser parser = new FacetTopParser(req);
-    try {
-      FacetRequest facetReq = parser.parse(facetArgs);
-      return facetReq;
-    } catch (SyntaxError syntaxError) {
-      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, syntaxError);
-    }
-  }
-
-
-  public static boolean doFacets(ResponseBuilder rb) throws IOException {
-    FacetRequest freq = getFacetRequest(rb.req);
-    if (freq == null) return false;
-
-    FacetContext fcontext = new FacetContext();
-    fcontext.base = rb.getResults().docSet;
-    fcontext.req = rb.req;
-    fcontext.searcher = rb.req.getSearcher();
-    fcontext.qcontext = QueryContext.newContext(fcontext.searcher);
-
-
-    FacetProcessor fproc = freq.createFacetProcessor(fcontext);
-    fproc.process();
-    rb.rsp.add("facets", fproc.getResponse());
-    return true;
-  }
-
-}
 
 
 abstract class FacetRequest {
@@ -142,6 +111,9 @@ abstract class FacetRequest {
   }
 
   public abstract FacetProcessor createFacetProcessor(FacetContext fcontext);
+
+  /** Returns a merger for the responses of each shard to this facet, given the first response returned by a shard. */
+  public abstract FacetMerger createFacetMerger(Object prototype);
 }
 
 
@@ -152,6 +124,8 @@ class FacetContext {
   SolrIndexSearcher searcher;
   DocSet base;
   FacetContext parent;
+  int threads;  // max threads to collect with, 0 to collect on the calling thread, negative for unlimited
+  boolean isShard;  // this is a shard request, so return mergeable stats and over-request buckets
 
   public FacetContext sub() {
     FacetContext ctx = new FacetContext();
@@ -159,6 +133,8 @@ class FacetContext {
     ctx.req = req;
     ctx.searcher = searcher;
     ctx.base = base;
+    ctx.threads = threads;
+    ctx.isShard = isShard;
 
     ctx.parent = this;
     return ctx;
@@ -175,6 +151,8 @@ class FacetProcessor<FacetRequestT extends FacetRequest>  {
   protected SlotAcc[] accs;
   protected SlotAcc countAcc;
   protected MutableValueInt slot;
+  protected int accNumDocs;
+  protected int accNumSlots;
 
   FacetProcessor(FacetContext fcontext, FacetRequestT freq) {
     this.fcontext = fcontext;
@@ -192,9 +170,16 @@ class FacetProcessor<FacetRequestT extends FacetRequest>  {
 
 
   protected void createAccs(int docCount, int slotCount) throws IOException {
+    createAccs(docCount, slotCount, freq.getfacetStats());
+  }
+
+  /** Creates accumulators for only the given stats */
+  protected void createAccs(int docCount, int slotCount, Map<String,AggValueSource> stats) throws IOException {
     accMap = new LinkedHashMap<String,SlotAcc>();
     slot = new MutableValueInt();
-    for (Map.Entry<String,AggValueSource> entry : freq.getfacetStats().entrySet()) {
+    accNumDocs = docCount;
+    accNumSlots = slotCount;
+    for (Map.Entry<String,AggValueSource> entry : stats.entrySet()) {
       SlotAcc acc = entry.getValue().createSlotAcc(slot, fcontext.qcontext, fcontext.req, docCount, slotCount); // TODO - pass fcontext instead?
       acc.key = entry.getKey();
       accMap.put(acc.key, acc);
@@ -207,18 +192,19 @@ class FacetProcessor<FacetRequestT extends FacetRequest>  {
 
   /** Create the actual accs array from accMap before starting to collect stats. */
   protected void prepareForCollection() {
-    accs = new SlotAcc[accMap.size()];
-    int i=0;
+    List<SlotAcc> lst = new ArrayList<>(accMap.size() + 1);
     if (countAcc != null) {
       // put countAcc first in case others depend on it...
-      accs[i++] = countAcc;
+      // it may not be in the accMap if it was only added to track counts internally
+      lst.add(countAcc);
     }
     for (SlotAcc acc : accMap.values()) {
       if (acc == countAcc) {
         continue;
       }
-      accs[i++] = acc;
+      lst.add(acc);
     }
+    accs = lst.toArray(new SlotAcc[lst.size()]);
   }
 
   protected void processStats(NamedList<Object> bucket, DocSet docs, int docCount) throws IOException {
@@ -227,6 +213,17 @@ class FacetProcessor<FacetRequestT extends FacetRequest>  {
     prepareForCollection();
     collect(docs);
     addStats(bucket, 0);
+    closeAccs();
+  }
+
+  /** Frees the accumulators once their values are in the response, so that their memory is reused by the rest
+   * of the facets.  Slot arrays that are never freed this way (e.g. after an error) are freed at the end of the request.
+   */
+  protected void closeAccs() throws IOException {
+    if (accs == null) return;
+    for (SlotAcc acc : accs) {
+      acc.close();
+    }
   }
 
 
@@ -240,6 +237,16 @@ class FacetProcessor<FacetRequestT extends FacetRequest>  {
 
 
   protected int collect(DocSet docs) throws IOException {
+    if (useParallel()) {
+      final int slotNum = slot.value;
+      return collectParallel(docs, new SlotMapper() {
+        @Override
+        public int getSlot(int doc) {
+          return slotNum;
+        }
+      });
+    }
+
     int count = 0;
     SolrIndexSearcher searcher = fcontext.searcher;
 
@@ -277,16 +284,228 @@ class FacetProcessor<FacetRequestT extends FacetRequest>  {
     }
   }
 
+
+  /** Maps a top-level docid to the slot it should be collected into, or -1 if it should not be collected */
+  interface SlotMapper {
+    public int getSlot(int doc);
+  }
+
+  /** Returns true if collection should be split across multiple threads */
+  protected boolean useParallel() {
+    if (fcontext.threads == 0) return false;
+    if (fcontext.searcher.getTopReaderContext().leaves().size() <= 1) return false;
+    if (fcontext.searcher.getCore().getFacetExecutor() == null) return false;
+    for (SlotAcc acc : accs) {
+      if (!acc.canMerge()) return false;
+    }
+    return true;
+  }
+
+  /** Creates a new set of accumulators, like the current accs but using the given slot, for a single collection thread. */
+  protected SlotAcc[] createPartitionAccs(MutableValueInt partitionSlot) throws IOException {
+    SlotAcc[] partitionAccs = new SlotAcc[accs.length];
+    for (int i=0; i<accs.length; i++) {
+      SlotAcc acc = accs[i];
+      AggValueSource agg = freq.getfacetStats().get(acc.key);
+      SlotAcc partitionAcc;
+      if (agg != null) {
+        partitionAcc = agg.createSlotAcc(partitionSlot, fcontext.qcontext, fcontext.req, accNumDocs, accNumSlots);
+      } else if (acc instanceof CountSlotAcc) {
+        // an implicit count added for sorting
+        partitionAcc = new CountSlotAcc(partitionSlot, fcontext.qcontext, accNumSlots);
+      } else {
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Can't collect " + acc + " in parallel");
+      }
+      partitionAcc.key = acc.key;
+      partitionAccs[i] = partitionAcc;
+    }
+    return partitionAccs;
+  }
+
+  /** The accumulators and leaves that a single thread is responsible for during parallel collection */
+  private static class Partition implements Callable<Partition> {
+    final List<AtomicReaderContext> leaves = new ArrayList<>();
+    final MutableValueInt slot = new MutableValueInt();
+    Filter filter;
+    SlotMapper mapper;
+    SlotAcc[] accs;
+    int count;
+
+    @Override
+    public Partition call() throws IOException {
+      for (AtomicReaderContext ctx : leaves) {
+        DocIdSet docIdSet = filter.getDocIdSet(ctx, null);  // DocSets only contain live docs
+        if (docIdSet == null) continue;
+        DocIdSetIterator iter = docIdSet.iterator();
+        if (iter == null) continue;
+
+        for (SlotAcc acc : accs) {
+          acc.setNextReader(ctx);
+        }
+
+        final int segBase = ctx.docBase;
+        int doc;
+        while ((doc = iter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+          int slotNum = mapper.getSlot(doc + segBase);
+          if (slotNum < 0) continue;
+          slot.value = slotNum;
+          for (SlotAcc acc : accs) {
+            acc.collect(doc);
+          }
+          count++;
+        }
+      }
+      return this;
+    }
+  }
+
+  /** A partition collected on the facet executor, unless the requesting thread claims it first, either to
+   * collect it itself or to skip it after an error.  Whichever thread claims it is the only one to touch its
+   * accumulators until it is done.
+   */
+  private static class PartitionTask extends FutureTask<Partition> {
+    private final AtomicBoolean claimed = new AtomicBoolean();
+
+    PartitionTask(Partition partition) {
+      super(partition);
+    }
+
+    @Override
+    public void run() {
+      if (claimed.compareAndSet(false, true)) {
+        super.run();
+      }
+    }
+
+    /** Prevents the partition from being collected if no thread has started it, and returns true if so. */
+    boolean skip() {
+      return claimed.compareAndSet(false, true);
+    }
+  }
+
+  /** Splits the leaves into contiguous groups of roughly equal maxDoc, collects each group with it's own
+   * set of accumulators on the facet executor, and then merges the results into accs.
+   * A negative number of threads uses as many as the executor has.
+   * <p>
+   * Per-request setup (close hooks, field values cached in the QueryContext) must happen on the requesting
+   * thread, since that is the only one with a SolrRequestInfo.  So the accumulators are created here, and
+   * partition 0 is positioned on its first leaf before any other partition is handed to the executor.
+   * The other partitions then find that state in the QueryContext rather than creating it.
+   */
+  protected int collectParallel(DocSet docs, SlotMapper mapper) throws IOException {
+    final List<AtomicReaderContext> leaves = fcontext.searcher.getTopReaderContext().leaves();
+    int threads = fcontext.threads < 0 ? fcontext.searcher.getCore().getSolrConfig().facetThreads : fcontext.threads;
+    int nPartitions = Math.max(1, Math.min(threads, leaves.size()));
+    long docsPerPartition = (fcontext.searcher.maxDoc() + nPartitions - 1) / nPartitions;
+
+    // accumulators are created on this thread since creation may register close hooks with the request
+    Filter filter = docs.getTopFilter();
+    List<Partition> partitions = new ArrayList<>(nPartitions);
+    Partition partition = null;
+    long partitionDocs = 0;
+    for (AtomicReaderContext ctx : leaves) {
+      if (partition == null || (partitionDocs >= docsPerPartition && partitions.size() < nPartitions)) {
+        partition = new Partition();
+        partition.filter = filter;
+        partition.mapper = mapper;
+        partition.accs = createPartitionAccs(partition.slot);
+        partitions.add(partition);
+        partitionDocs = 0;
+      }
+      partition.leaves.add(ctx);
+      partitionDocs += ctx.reader().maxDoc();
+    }
+
+    try {
+      // Partition 0 is collected on this thread.  Positioning it first means that any per-request
+      // state needed by the accumulators (like the field values of a stat) is set up by this thread.
+      Partition first = partitions.get(0);
+      for (SlotAcc acc : first.accs) {
+        acc.setNextReader(first.leaves.get(0));
+      }
+
+      ExecutorService executor = fcontext.searcher.getCore().getFacetExecutor();
+      List<PartitionTask> tasks = new ArrayList<>(partitions.size() - 1);
+      for (int i=1; i<partitions.size(); i++) {
+        PartitionTask task = new PartitionTask(partitions.get(i));
+        tasks.add(task);
+        try {
+          if (executor != null) executor.execute(task);
+        } catch (RejectedExecutionException e) {
+          // the core is closing, we'll collect it ourselves below
+        }
+      }
+
+      Throwable error = null;
+      try {
+        first.call();
+      } catch (Throwable t) {
+        error = t;
+      }
+
+      // Every partition must be done or skipped before the accumulators are closed, since their
+      // arrays go back to a pool shared with other requests.
+      boolean interrupted = false;
+      for (PartitionTask task : tasks) {
+        if (error == null) {
+          task.run();  // does nothing if the executor already started it
+        } else if (task.skip()) {
+          continue;
+        }
+        for (;;) {
+          try {
+            task.get();
+            break;
+          } catch (InterruptedException e) {
+            interrupted = true;  // we still need to wait before the accumulators can be closed
+          } catch (ExecutionException e) {
+            if (error == null) error = e.getCause();
+            break;
+          }
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+
+      if (error != null) {
+        if (error instanceof IOException) throw (IOException)error;
+        if (error instanceof RuntimeException) throw (RuntimeException)error;
+        if (error instanceof Error) throw (Error)error;
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Error during parallel facet collection", error);
+      }
+
+      int count = 0;
+      for (Partition p : partitions) {
+        count += p.count;
+        for (int i=0; i<accs.length; i++) {
+          accs[i].merge(p.accs[i]);
+        }
+      }
+      return count;
+    } finally {
+      for (Partition p : partitions) {
+        for (SlotAcc acc : p.accs) {
+          acc.close();
+        }
+      }
+    }
+  }
+
   void setNextReader(AtomicReaderContext ctx) throws IOException {
     for (SlotAcc acc : accs) {
       acc.setNextReader(ctx);
     }
   }
 
-  void addStats(NamedList<Object> target, int slotNum) {
+  void addStats(NamedList<Object> target, int slotNum) throws IOException {
     slot.value = slotNum;
-    for (Acc acc : accs) {
-      acc.setValues(target);
+    for (SlotAcc acc : accs) {
+      if (fcontext.isShard) {
+        acc.setShardValues(target, slotNum);
+      } else {
+        acc.setValues(target);
+      }
     }
   }
 
@@ -307,7 +526,7 @@ class FacetProcessor<FacetRequestT extends FacetRequest>  {
         result = fcontext.base;
         result.incref();
       } else {
-        result = fcontext.searcher.getDocSet(q);
+        result = fcontext.searcher.getDocSet(q, fcontext.base);
       }
       count = result.size();
     } else {
@@ -404,6 +623,12 @@ class FacetFieldProcessor extends FacetProcessor<FacetField> {
         // and hence does not need to find it's way into the accMap or accs array.
       }
     }
+
+    if (countAcc == null) {
+      // counts are needed to apply mincount and to skip empty slots when finding the top buckets,
+      // but with no key they are not added to the response
+      countAcc = new CountSlotAcc(slot, fcontext.qcontext, numSlots);
+    }
   }
 
   public SimpleOrderedMap<Object> getFieldCacheCounts() throws IOException {
@@ -414,8 +639,78 @@ class FacetFieldProcessor extends FacetProcessor<FacetField> {
     }
   }
 
-  private static class Slot {
-    int slot;
+  /**
+   * A bounded heap of slot numbers, ordered by a SlotAcc, with the weakest slot at the top.
+   * Slots are compared directly through the accumulator so that no values are boxed.
+   * Ties are broken by slot number, lower slots (earlier in index order) being stronger.
+   */
+  private static final class SlotQueue {
+    private final SlotAcc acc;
+    private final int sortMul;
+    private final int maxSize;
+    private final int[] heap;  // 1 based
+    private int size;
+
+    SlotQueue(SlotAcc acc, int sortMul, int maxSize) {
+      this.acc = acc;
+      this.sortMul = sortMul;
+      this.maxSize = maxSize;
+      this.heap = new int[maxSize + 1];
+    }
+
+    int size() {
+      return size;
+    }
+
+    private boolean lessThan(int slotA, int slotB) {
+      int cmp = acc.compare(slotA, slotB) * sortMul;
+      return cmp == 0 ? slotB < slotA : cmp < 0;
+    }
+
+    /** Adds the slot if the queue is not full or the slot is stronger than the weakest in the queue */
+    void insertWithOverflow(int slotNum) {
+      if (size < maxSize) {
+        heap[++size] = slotNum;
+        upHeap(size);
+      } else if (size > 0 && lessThan(heap[1], slotNum)) {
+        heap[1] = slotNum;
+        downHeap(1);
+      }
+    }
+
+    /** Removes and returns the weakest slot */
+    int pop() {
+      int result = heap[1];
+      heap[1] = heap[size--];
+      downHeap(1);
+      return result;
+    }
+
+    private void upHeap(int i) {
+      int node = heap[i];
+      int parent = i >>> 1;
+      while (parent > 0 && lessThan(node, heap[parent])) {
+        heap[i] = heap[parent];
+        i = parent;
+        parent = i >>> 1;
+      }
+      heap[i] = node;
+    }
+
+    private void downHeap(int i) {
+      int node = heap[i];
+      int child = i << 1;
+      while (child <= size) {
+        if (child < size && lessThan(heap[child + 1], heap[child])) {
+          child++;
+        }
+        if (!lessThan(heap[child], node)) break;
+        heap[i] = heap[child];
+        i = child;
+        child = i << 1;
+      }
+      heap[i] = node;
+    }
   }
 
 
@@ -432,8 +727,6 @@ class FacetFieldProcessor extends FacetProcessor<FacetField> {
     FieldType ft = sf.getType();
     SortedDocValues si = FieldUtil.getSortedDocValues(qcontext, sf, null);
 
-    // TODO: native code acceleration
-
     SimpleOrderedMap<Object> res = new SimpleOrderedMap<>();
 
     final BytesRef prefixRef;
@@ -463,7 +756,14 @@ class FacetFieldProcessor extends FacetProcessor<FacetField> {
     final int nTerms=endTermIndex-startTermIndex;
     int nDocs = docs.size();
 
-    createAccs(nDocs, nTerms);
+    Map<String,AggValueSource> deferredStats = getDeferredStats(nTerms);
+    if (deferredStats == null) {
+      createAccs(nDocs, nTerms);
+    } else {
+      Map<String,AggValueSource> sortStats = new LinkedHashMap<>(freq.getfacetStats());
+      sortStats.keySet().removeAll(deferredStats.keySet());
+      createAccs(nDocs, nTerms, sortStats);
+    }
     setSortAcc(nTerms);
     prepareForCollection();
 
@@ -472,89 +772,81 @@ class FacetFieldProcessor extends FacetProcessor<FacetField> {
 
     // TODO: do stats include "missing"???
 
-    // count collection array only needs to be as big as the number of terms we are
-    // going to collect counts for.
-    final int[] counts = new int[nTerms];
-
-    DocIterator iter = docs.iterator();
-
-
-    final List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
-    final Iterator<AtomicReaderContext> ctxIt = leaves.iterator();
-    AtomicReaderContext ctx = null;
-    int segBase = 0;
-    int segMax;
-    int adjustedMax = 0;
-    for (DocIterator docsIt = docs.iterator(); docsIt.hasNext(); ) {
-      final int doc = docsIt.nextDoc();
-      if (doc >= adjustedMax) {
-        do {
-          ctx = ctxIt.next();
-          if (ctx == null) {
-            // should be impossible
-            throw new RuntimeException("INTERNAL FACET ERROR");
-          }
-          segBase = ctx.docBase;
-          segMax = ctx.reader().maxDoc();
-          adjustedMax = segBase + segMax;
-        } while (doc >= adjustedMax);
-        assert doc >= ctx.docBase;
-        setNextReader(ctx);
-      }
+    if (fillCountsNative(si, docs, startTermIndex, endTermIndex)) {
+      // all done
+    } else if (si instanceof NativeSortedDocValues && useParallel()) {
+      // native ords are safe to share across threads
+      final SortedDocValues ords = si;
+      final int startIdx = startTermIndex;
+      collectParallel(docs, new SlotMapper() {
+        @Override
+        public int getSlot(int doc) {
+          int arrIdx = ords.getOrd(doc) - startIdx;
+          return arrIdx>=0 && arrIdx<nTerms ? arrIdx : -1;
+        }
+      });
+    } else {
+      // counts are collected by countAcc, which is always present
+      DocIterator iter = docs.iterator();
+
+
+      final List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+      final Iterator<AtomicReaderContext> ctxIt = leaves.iterator();
+      AtomicReaderContext ctx = null;
+      int segBase = 0;
+      int segMax;
+      int adjustedMax = 0;
+      for (DocIterator docsIt = docs.iterator(); docsIt.hasNext(); ) {
+        final int doc = docsIt.nextDoc();
+        if (doc >= adjustedMax) {
+          do {
+            ctx = ctxIt.next();
+            if (ctx == null) {
+              // should be impossible
+              throw new RuntimeException("INTERNAL FACET ERROR");
+            }
+            segBase = ctx.docBase;
+            segMax = ctx.reader().maxDoc();
+            adjustedMax = segBase + segMax;
+          } while (doc >= adjustedMax);
+          assert doc >= ctx.docBase;
+          setNextReader(ctx);
+        }
 
-      int term = si.getOrd(iter.nextDoc());
-      int arrIdx = term-startTermIndex;
-      if (arrIdx>=0 && arrIdx<nTerms) {
-        slot.value = arrIdx;
-        collect(doc - segBase);  // per-seg collectors
-        counts[arrIdx]++;
+        int term = si.getOrd(iter.nextDoc());
+        int arrIdx = term-startTermIndex;
+        if (arrIdx>=0 && arrIdx<nTerms) {
+          slot.value = arrIdx;
+          collect(doc - segBase);  // per-seg collectors
+        }
       }
     }
 
 
     // TODO: missing should perhaps be mutually exclusive with facet.prefix???
 
-    int off=(int)freq.offset;
-    int lim=freq.limit>=0 ? (int)freq.limit : Integer.MAX_VALUE;
+    // a shard returns the top offset+limit buckets (plus some extra) since it can't know which will make the final cut
+    long effectiveOffset = fcontext.isShard ? 0 : freq.offset;
+    long effectiveLimit = fcontext.isShard ? freq.getShardLimit() : freq.limit;
+    long effectiveMincount = fcontext.isShard ? Math.min(1, freq.mincount) : freq.mincount;
+
+    int off=(int)effectiveOffset;
+    int lim=effectiveLimit>=0 ? (int)effectiveLimit : Integer.MAX_VALUE;
 
-    int maxsize = freq.limit>0 ? (int)freq.offset+(int)freq.limit : Integer.MAX_VALUE-1;
+    int maxsize = effectiveLimit>0 ? (int)effectiveOffset+(int)effectiveLimit : Integer.MAX_VALUE-1;
     maxsize = Math.min(maxsize, nTerms);
 
     final int sortMul = freq.sortDirection.getMultiplier();
+    final CountSlotAcc slotCounts = (CountSlotAcc)countAcc;
 
-    PriorityQueue<Slot> queue = new PriorityQueue<Slot>(maxsize) {
-      final SlotAcc acc = sortAcc;
-      @Override
-      protected boolean lessThan(Slot a, Slot b) {
-        int cmp = acc.compare(a.slot, b.slot) * sortMul;
-        return cmp == 0 ? b.slot < a.slot : cmp < 0;
-      }
-    };
-
-    Slot bottom = null;
+    // slots below mincount (typically the empty ones) are skipped before ever being compared,
+    // so expensive sort values are only calculated for slots that could make the cut
+    SlotQueue queue = new SlotQueue(sortAcc, sortMul, maxsize);
     for (int i=(startTermIndex==-1)?1:0; i<nTerms; i++) {
-       if (countAcc != null && freq.mincount > 0) {
-         // TODO: track counts separately?
-         int slotDocCount = ((Number)countAcc.getValue(i)).intValue();
-         if (slotDocCount < freq.mincount) {
-           continue;
-         }
-       }
-
-      if (bottom != null) {
-        if (sortAcc.compare(bottom.slot, i) * sortMul < 0) {
-          bottom.slot = i;
-          bottom = queue.updateTop();
-        }
-      } else {
-        // queue not full
-        Slot s = new Slot();
-        s.slot = i;
-        queue.add(s);
-        if (queue.size() >= maxsize) {
-          bottom = queue.top();
-        }
+      if (slotCounts.get(i) < effectiveMincount) {
+        continue;
       }
+      queue.insertWithOverflow(i);
     }
 
 
@@ -563,13 +855,22 @@ class FacetFieldProcessor extends FacetProcessor<FacetField> {
     assert collectCount <= lim;
     int[] sortedSlots = new int[collectCount];
     for (int i=collectCount-1; i>=0; i--) {
-      sortedSlots[i] = queue.pop().slot;
+      sortedSlots[i] = queue.pop();
+    }
+
+    DeferredAccs deferred = null;
+    if (deferredStats != null && collectCount > 0) {
+      deferred = collectDeferred(deferredStats, sortedSlots, si, startTermIndex);
     }
 
     if (freq.allBuckets) {
       SimpleOrderedMap<Object> allBuckets = new SimpleOrderedMap<>();
       for (SlotAcc acc : accs) {
-        acc.setValues(allBuckets, -1);
+        if (fcontext.isShard) {
+          acc.setShardValues(allBuckets, -1);
+        } else {
+          acc.setValues(allBuckets, -1);
+        }
       }
       res.add("allBuckets", allBuckets);
     }
@@ -602,10 +903,13 @@ class FacetFieldProcessor extends FacetProcessor<FacetField> {
       bucket.add("val", val);
       // add stats for this bucket
       addStats(bucket, slotNum);
+      if (deferred != null) {
+        deferred.addStats(bucket, slotNum);
+      }
 
       // handle sub-facets for this bucket
       if (subContext != null) {
-        subContext.base = fcontext.searcher.getDocSet( new TermQuery(new Term(sf.getName(), br.clone())) );
+        subContext.base = fcontext.searcher.getDocSet( new TermQuery(new Term(sf.getName(), br.clone())), fcontext.base );
         try {
           fillBucketSubs(bucket, subContext);
         } finally {
@@ -617,11 +921,165 @@ class FacetFieldProcessor extends FacetProcessor<FacetField> {
       bucketList.add(bucket);
     }
 
-
+    closeAccs();
+    if (deferred != null) {
+      for (SlotAcc acc : deferred.accs) {
+        acc.close();
+      }
+    }
 
     return res;
   }
 
+  /**
+   * Returns the stats that can wait until the top buckets are known, or null if all stats should be
+   * collected for every slot up front.  Deferring avoids allocating and filling arrays for every term
+   * when only a few buckets are returned, at the cost of a second pass over the base docs.
+   * The sort stat and count are needed to select the top buckets, so they are never deferred.
+   */
+  private Map<String,AggValueSource> getDeferredStats(int nTerms) {
+    if (freq.allBuckets) return null;  // needs the stats of every bucket
+    long limit = fcontext.isShard ? freq.getShardLimit() : freq.limit;
+    if (limit < 0) return null;
+    long numBuckets = (fcontext.isShard ? 0 : freq.offset) + limit;
+    if (numBuckets >= nTerms) return null;
+
+    Map<String,AggValueSource> deferred = null;
+    for (Map.Entry<String,AggValueSource> entry : freq.getfacetStats().entrySet()) {
+      if (entry.getKey().equals(freq.sortVariable) || entry.getValue() instanceof CountAgg) continue;
+      if (deferred == null) {
+        deferred = new LinkedHashMap<>();
+      }
+      deferred.put(entry.getKey(), entry.getValue());
+    }
+    return deferred;
+  }
+
+  /** Stats collected in a second pass, for only the buckets being returned */
+  private class DeferredAccs {
+    final MutableValueInt deferredSlot = new MutableValueInt();
+    final int[] slots;  // sorted slots of the returned buckets, the index of a slot is its deferred slot
+    final SlotAcc[] accs;
+
+    DeferredAccs(Map<String,AggValueSource> stats, int[] sortedSlots) throws IOException {
+      slots = sortedSlots.clone();
+      Arrays.sort(slots);
+      accs = new SlotAcc[stats.size()];
+      int i = 0;
+      for (Map.Entry<String,AggValueSource> entry : stats.entrySet()) {
+        SlotAcc acc = entry.getValue().createSlotAcc(deferredSlot, fcontext.qcontext, fcontext.req, accNumDocs, slots.length);
+        acc.key = entry.getKey();
+        accs[i++] = acc;
+      }
+    }
+
+    void addStats(NamedList<Object> bucket, int slotNum) throws IOException {
+      int deferredSlotNum = Arrays.binarySearch(slots, slotNum);
+      deferredSlot.value = deferredSlotNum;
+      for (SlotAcc acc : accs) {
+        if (fcontext.isShard) {
+          acc.setShardValues(bucket, deferredSlotNum);
+        } else {
+          acc.setValues(bucket);
+        }
+      }
+    }
+  }
+
+  /** Collects the deferred stats of the returned buckets by making another pass over the base docs */
+  private DeferredAccs collectDeferred(Map<String,AggValueSource> stats, int[] sortedSlots, SortedDocValues si, int startTermIndex) throws IOException {
+    DeferredAccs deferred = new DeferredAccs(stats, sortedSlots);
+    final int[] slots = deferred.slots;
+    final SlotAcc[] deferredAccs = deferred.accs;
+
+    final List<AtomicReaderContext> leaves = fcontext.searcher.getIndexReader().leaves();
+    final Iterator<AtomicReaderContext> ctxIt = leaves.iterator();
+    AtomicReaderContext ctx = null;
+    int segBase = 0;
+    int adjustedMax = 0;
+    for (DocIterator docsIt = fcontext.base.iterator(); docsIt.hasNext(); ) {
+      final int doc = docsIt.nextDoc();
+      if (doc >= adjustedMax) {
+        do {
+          ctx = ctxIt.next();
+          segBase = ctx.docBase;
+          adjustedMax = segBase + ctx.reader().maxDoc();
+        } while (doc >= adjustedMax);
+        for (SlotAcc acc : deferredAccs) {
+          acc.setNextReader(ctx);
+        }
+      }
+
+      int deferredSlotNum = Arrays.binarySearch(slots, si.getOrd(doc) - startTermIndex);
+      if (deferredSlotNum < 0) continue;
+      deferred.deferredSlot.value = deferredSlotNum;
+      for (SlotAcc acc : deferredAccs) {
+        acc.collect(doc - segBase);
+      }
+    }
+
+    return deferred;
+  }
+
+  /** When the only thing we are collecting per-bucket is the count, and both the base DocSet and
+   * the ords are off-heap, count in native code and copy the results into the count accumulator.
+   * Returns false if native counting could not be used.
+   */
+  private boolean fillCountsNative(SortedDocValues si, DocSet docs, int startTermIndex, int endTermIndex) {
+    if (!HS.loaded || !(si instanceof NativeSortedDocValues) || !(docs instanceof DocSetBaseNative)) {
+      return false;
+    }
+
+    // any other stats need to be collected doc-by-doc
+    if (accs.length != 1 || accs[0] != countAcc) {
+      return false;
+    }
+
+    final CountSlotAcc counter = (CountSlotAcc)countAcc;
+    final int nTerms = endTermIndex - startTermIndex;
+    if (nTerms <= 0) {
+      return true;
+    }
+
+    StrLeafValues values = ((NativeSortedDocValues)si).getWrappedValues();
+    LongArray ordArr = values.getOrdArray();
+    if (ordArr == null && si.getValueCount() == 0) {
+      // no values indexed for this field, so every doc is "missing"
+      if (startTermIndex == -1) {
+        HS.setInt(counter.result, 0, docs.size());
+        counter.total = docs.size();
+      }
+      SimpleFacets.numNativeCounts.incrementAndGet();
+      return true;
+    }
+
+    DocSetBaseNative base = (DocSetBaseNative)docs;
+    // the count accumulator is already off-heap, so native code can fill it in directly
+    if (ordArr != null) {
+      SimpleFacets.fillCounts(base.getNativeData(), base.getNativeFormat(), base.getNativeSize()
+          , ordArr.getNativeData(), ordArr.getNativeFormat(), ordArr.getNativeSize(), si.getValueCount()
+          , startTermIndex, endTermIndex
+          , 0, -1
+          , counter.result
+      );
+    } else if (values instanceof StrGlobalValues) {
+      // global ords have no top level ord array, so each segment is counted by its own ords
+      SimpleFacets.fillGlobalCounts(fcontext.searcher, base, (StrGlobalValues)values, startTermIndex, endTermIndex, counter.result);
+    } else {
+      // a slice of some other values, not something native code can handle
+      return false;
+    }
+    SimpleFacets.numNativeCounts.incrementAndGet();
+
+    int total = 0;
+    for (int i=0; i<nTerms; i++) {
+      total += counter.get(i);
+    }
+    counter.total = total;
+
+    return true;
+  }
+
   // TODO: multi-valued
   /***
    public SimpleOrderedMap<Object> getUninvertedCounts(DocSet baseDocs, String field, int offset, int limit, int mincount, boolean missing, String prefix, boolean unique) throws IOException {
@@ -739,6 +1197,7 @@ class FacetRangeProcessor extends FacetProcessor<FacetRange> {
     final int minCount = 0;
 
     T low = start;
+    List<Range> ranges = new ArrayList<>();
 
     while (low.compareTo(end) < 0) {
       T high = calc.addGap(low, gap);
@@ -769,15 +1228,27 @@ class FacetRangeProcessor extends FacetProcessor<FacetRange> {
               (include.contains(FacetParams.FacetRangeInclude.EDGE) &&
                   0 == high.compareTo(end)));
 
-      final String lowS = calc.formatValue(low);
-      final String highS = calc.formatValue(high);
-
-      Object label = low;
-      buckets.add( rangeStats(low, minCount,lowS, highS, includeLower, includeUpper) );
+      Range range = new Range();
+      range.label = low;
+      range.low = calc.formatValue(low);
+      range.high = calc.formatValue(high);
+      range.lowKey = calc.toSortableLong(low);
+      range.highKey = calc.toSortableLong(high);
+      range.includeLower = includeLower;
+      range.includeUpper = includeUpper;
+      ranges.add(range);
 
       low = high;
     }
 
+    if (ranges.size() > 0 && canCollectInOnePass()) {
+      collectRanges(ranges, calc, buckets);
+    } else {
+      for (Range range : ranges) {
+        buckets.add( rangeStats(range.label, minCount, range.low, range.high, range.includeLower, range.includeUpper) );
+      }
+    }
+
       // no matter what other values are listed, we don't do
       // anything if "none" is specified.
       if (! freq.others.contains(FacetParams.FacetRangeOther.NONE) ) {
@@ -820,6 +1291,107 @@ class FacetRangeProcessor extends FacetProcessor<FacetRange> {
     return res;
   }
 
+  /** A single gap between start and end */
+  private static class Range {
+    Object label;
+    String low;
+    String high;
+    long lowKey;   // low and high as sortable longs, for single pass collection
+    long highKey;
+    boolean includeLower;
+    boolean includeUpper;
+  }
+
+  /**
+   * Returns true if the ranges can be counted in a single pass over the base docs, reading each doc's value
+   * from the field cache, rather than intersecting the base with a range query per bucket.
+   * Sub-facets need the docs in each range, so they still use range queries.
+   */
+  private boolean canCollectInOnePass() {
+    if (freq.getSubFacets().size() > 0) return false;
+    if (sf.multiValued()) return false;
+    if (!sf.indexed() && !sf.hasDocValues()) return false;
+    FieldType ft = sf.getType();
+    return ft instanceof TrieField || ft instanceof TrieDateField;
+  }
+
+  /**
+   * Collects the count and stats of every range in a single pass over the base docs.  Since the ranges are
+   * contiguous, the bucket for a value is found with a binary search over the range boundaries.  A value
+   * on a boundary may fall in both neighboring ranges, depending on the include options.
+   */
+  private <T extends Comparable<T>> void collectRanges(List<Range> ranges, RangeEndpointCalculator<T> calc, List<SimpleOrderedMap<Object>> buckets) throws IOException {
+    final int numRanges = ranges.size();
+    final long[] bounds = new long[numRanges + 1];
+    final boolean[] includeLower = new boolean[numRanges];
+    final boolean[] includeUpper = new boolean[numRanges];
+    for (int i=0; i<numRanges; i++) {
+      Range range = ranges.get(i);
+      bounds[i] = range.lowKey;
+      includeLower[i] = range.includeLower;
+      includeUpper[i] = range.includeUpper;
+    }
+    bounds[numRanges] = ranges.get(numRanges - 1).highKey;
+
+    createAccs(fcontext.base.size(), numRanges);
+    prepareForCollection();
+    CountSlotAcc counts = new CountSlotAcc(slot, fcontext.qcontext, numRanges);
+
+    ValueSource vs = sf.getType().getValueSource(sf, null);
+    FuncValues vals = null;
+
+    final List<AtomicReaderContext> leaves = fcontext.searcher.getIndexReader().leaves();
+    final Iterator<AtomicReaderContext> ctxIt = leaves.iterator();
+    AtomicReaderContext ctx = null;
+    int segBase = 0;
+    int adjustedMax = 0;
+    for (DocIterator docsIt = fcontext.base.iterator(); docsIt.hasNext(); ) {
+      final int doc = docsIt.nextDoc();
+      if (doc >= adjustedMax) {
+        do {
+          ctx = ctxIt.next();
+          segBase = ctx.docBase;
+          adjustedMax = segBase + ctx.reader().maxDoc();
+        } while (doc >= adjustedMax);
+        setNextReader(ctx);
+        vals = vs.getValues(fcontext.qcontext, ctx);
+      }
+
+      final int segDoc = doc - segBase;
+      if (!vals.exists(segDoc)) continue;
+      long v = calc.sortableVal(vals, segDoc);
+      if (v < bounds[0] || v > bounds[numRanges]) continue;
+
+      int idx = Arrays.binarySearch(bounds, v);
+      if (idx >= 0) {
+        if (idx < numRanges && includeLower[idx]) {
+          collectSlot(counts, idx, segDoc);
+        }
+        if (idx > 0 && includeUpper[idx - 1]) {
+          collectSlot(counts, idx - 1, segDoc);
+        }
+      } else {
+        collectSlot(counts, -idx - 2, segDoc);  // the range below the insertion point
+      }
+    }
+
+    for (int i=0; i<numRanges; i++) {
+      SimpleOrderedMap<Object> bucket = new SimpleOrderedMap<>();
+      bucket.add("val", ranges.get(i).label);
+      bucket.add("count", counts.getValue(i));
+      addStats(bucket, i);
+      buckets.add(bucket);
+    }
+    closeAccs();
+    counts.close();
+  }
+
+  private void collectSlot(CountSlotAcc counts, int slotNum, int segDoc) throws IOException {
+    slot.value = slotNum;
+    counts.collect(segDoc);
+    collect(segDoc);
+  }
+
   private SimpleOrderedMap<Object> rangeStats(Object label, int mincount, String low, String high, boolean iLow, boolean iHigh) throws IOException {
     SimpleOrderedMap<Object> bucket = new SimpleOrderedMap<>();
 
@@ -931,6 +1503,12 @@ class FacetRangeProcessor extends FacetProcessor<FacetRange> {
     protected abstract T parseAndAddGap(T value, String gap)
         throws java.text.ParseException;
 
+    /** Returns a long that sorts the same as the Range endpoint value */
+    public abstract long toSortableLong(T value);
+
+    /** Returns the value of the doc as by {@link #toSortableLong} */
+    public abstract long sortableVal(FuncValues vals, int doc);
+
   }
 
   private static class FloatRangeEndpointCalculator
@@ -945,6 +1523,14 @@ class FacetRangeProcessor extends FacetProcessor<FacetRange> {
     public Float parseAndAddGap(Float value, String gap) {
       return new Float(value.floatValue() + Float.valueOf(gap).floatValue());
     }
+    @Override
+    public long toSortableLong(Float value) {
+      return NumericUtils.doubleToSortableLong(value.doubleValue());
+    }
+    @Override
+    public long sortableVal(FuncValues vals, int doc) {
+      return NumericUtils.doubleToSortableLong(vals.doubleVal(doc));
+    }
   }
   private static class DoubleRangeEndpointCalculator
       extends RangeEndpointCalculator<Double> {
@@ -958,6 +1544,14 @@ class FacetRangeProcessor extends FacetProcessor<FacetRange> {
     public Double parseAndAddGap(Double value, String gap) {
       return new Double(value.doubleValue() + Double.valueOf(gap).doubleValue());
     }
+    @Override
+    public long toSortableLong(Double value) {
+      return NumericUtils.doubleToSortableLong(value.doubleValue());
+    }
+    @Override
+    public long sortableVal(FuncValues vals, int doc) {
+      return NumericUtils.doubleToSortableLong(vals.doubleVal(doc));
+    }
   }
   private static class IntegerRangeEndpointCalculator
       extends RangeEndpointCalculator<Integer> {
@@ -971,6 +1565,14 @@ class FacetRangeProcessor extends FacetProcessor<FacetRange> {
     public Integer parseAndAddGap(Integer value, String gap) {
       return new Integer(value.intValue() + Integer.valueOf(gap).intValue());
     }
+    @Override
+    public long toSortableLong(Integer value) {
+      return value.longValue();
+    }
+    @Override
+    public long sortableVal(FuncValues vals, int doc) {
+      return vals.longVal(doc);
+    }
   }
   private static class LongRangeEndpointCalculator
       extends RangeEndpointCalculator<Long> {
@@ -984,6 +1586,14 @@ class FacetRangeProcessor extends FacetProcessor<FacetRange> {
     public Long parseAndAddGap(Long value, String gap) {
       return new Long(value.longValue() + Long.valueOf(gap).longValue());
     }
+    @Override
+    public long toSortableLong(Long value) {
+      return value.longValue();
+    }
+    @Override
+    public long sortableVal(FuncValues vals, int doc) {
+      return vals.longVal(doc);
+    }
   }
   private static class DateRangeEndpointCalculator
       extends RangeEndpointCalculator<Date> {
@@ -1015,6 +1625,14 @@ class FacetRangeProcessor extends FacetProcessor<FacetRange> {
       dmp.setNow(value);
       return dmp.parseMath(gap);
     }
+    @Override
+    public long toSortableLong(Date value) {
+      return value.getTime();
+    }
+    @Override
+    public long sortableVal(FuncValues vals, int doc) {
+      return vals.longVal(doc);
+    }
   }
 
 }
@@ -1320,12 +1938,16 @@ class FacetFieldParser extends FacetParser<FacetField> {
       facet.limit = getLong(m, "limit", facet.limit);
       facet.mincount = getLong(m, "mincount", facet.mincount);
       facet.missing = getBoolean(m, "missing", facet.missing);
+      facet.prefix = getString(m, "prefix", facet.prefix);
       facet.allBuckets = getBoolean(m, "allBuckets", facet.allBuckets);
+      facet.overrequest = getLong(m, "overrequest", facet.overrequest);
+      facet.refine = getBoolean(m, "refine", facet.refine);
 
       // facet.sort may depend on a facet stat...
       // should we be parsing / validating this here, or in the execution environment?
       Object o = m.get("facet");
       parseSubs(o);
+      facet.subFacetArgs = o;  // sent to the shards that need to fill in stats for a bucket
 
       parseSort( m.get("sort") );
     }
@@ -1444,6 +2066,9 @@ class FacetField extends FacetRequest {
   String sortVariable;
   SortDirection sortDirection;
   boolean allBuckets;   // show cumulative stats across all buckets (this can be different than non-bucketed stats across all docs because of multi-valued docs)
+  long overrequest = -1;  // extra buckets to request from each shard, or -1 to pick a default
+  boolean refine;         // ask shards for the stats of top buckets they didn't originally return
+  Object subFacetArgs;    // the unparsed stats and sub-facets for each bucket
 
   // TODO: put this somewhere more generic?
   public static enum SortDirection {
@@ -1462,10 +2087,22 @@ class FacetField extends FacetRequest {
   }
 
 
+  /** The number of buckets each shard should return, or -1 for all of them */
+  public long getShardLimit() {
+    if (limit < 0) return -1;
+    if (overrequest >= 0) return offset + limit + overrequest;
+    return (long)((offset + limit) * 1.1 + 4);
+  }
+
   @Override
   public FacetProcessor createFacetProcessor(FacetContext fcontext) {
     return new FacetFieldProcessor(fcontext, this);
   }
+
+  @Override
+  public FacetMerger createFacetMerger(Object prototype) {
+    return new FacetFieldMerger(this);
+  }
 }
 
 
@@ -1477,6 +2114,11 @@ class FacetQuery extends FacetRequest {
   public FacetProcessor createFacetProcessor(FacetContext fcontext) {
     return new FacetQueryProcessor(fcontext, this);
   }
+
+  @Override
+  public FacetMerger createFacetMerger(Object prototype) {
+    return new FacetQueryMerger(this);
+  }
 }
 
 
@@ -1493,6 +2135,11 @@ class FacetRange extends FacetRequest {
   public FacetProcessor createFacetProcessor(FacetContext fcontext) {
     return new FacetRangeProcessor(fcontext, this);
   }
+
+  @Override
+  public FacetMerger createFacetMerger(Object prototype) {
+    return new FacetRangeMerger(this);
+  }
 }
 
 
@@ -0,0 +1,119 @@
+package org.apache.solr.search.facet;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.util.Hash;
+import org.apache.solr.core.HS;
+
+/**
+ * HyperLogLog register math.  Registers are one byte each, either in an off-heap array from
+ * {@link HS#allocArray} or a byte[] (the form sent between shards).  Values are hashed from their
+ * indexed bytes so that registers from different segments and shards can be merged.
+ */
+final class HLL {
+  private HLL() {}
+
+  /** 64 bit hash of the value, built from two 32 bit murmur3 hashes */
+  public static long hash(BytesRef value) {
+    long h1 = Hash.murmurhash3_x86_32(value.bytes, value.offset, value.length, 0);
+    long h2 = Hash.murmurhash3_x86_32(value.bytes, value.offset, value.length, 0x9747b28c);
+    return (h1 << 32) | (h2 & 0xffffffffL);
+  }
+
+  /** The register a hash is counted in, taken from the top log2m bits */
+  public static int register(long hash, int log2m) {
+    return (int)(hash >>> (64 - log2m));
+  }
+
+  /** The position of the first set bit in the hash after the register bits */
+  public static byte rank(long hash, int log2m) {
+    long w = (hash << log2m) | (1L << (log2m - 1));  // guard bit so that rank <= 64-log2m+1
+    return (byte)(Long.numberOfLeadingZeros(w) + 1);
+  }
+
+  /** Adds a hash to off-heap registers */
+  public static void add(long regs, long hash, int log2m) {
+    int idx = register(hash, log2m);
+    byte r = rank(hash, log2m);
+    if (HS.getByte(regs, idx) < r) {
+      HS.setByte(regs, idx, r);
+    }
+  }
+
+  /** Sets each off-heap register in target to the max of itself and the corresponding register in other */
+  public static void union(long target, long other, int m) {
+    for (int i=0; i<m; i++) {
+      byte r = HS.getByte(other, i);
+      if (HS.getByte(target, i) < r) {
+        HS.setByte(target, i, r);
+      }
+    }
+  }
+
+  public static void union(byte[] target, byte[] other) {
+    for (int i=0; i<target.length; i++) {
+      if (target[i] < other[i]) {
+        target[i] = other[i];
+      }
+    }
+  }
+
+  public static byte[] toBytes(long regs, int m) {
+    byte[] arr = new byte[m];
+    HS.copyBytes(regs, 0, arr, 0, m);
+    return arr;
+  }
+
+  public static long estimate(long regs, int m) {
+    double sum = 0;
+    int zeros = 0;
+    for (int i=0; i<m; i++) {
+      byte r = HS.getByte(regs, i);
+      if (r == 0) zeros++;
+      sum += 1.0 / (1L << r);
+    }
+    return estimate(sum, zeros, m);
+  }
+
+  public static long estimate(byte[] regs) {
+    double sum = 0;
+    int zeros = 0;
+    for (byte r : regs) {
+      if (r == 0) zeros++;
+      sum += 1.0 / (1L << r);
+    }
+    return estimate(sum, zeros, regs.length);
+  }
+
+  private static long estimate(double sum, int zeros, int m) {
+    double alpha;
+    switch (m) {
+      case 16: alpha = 0.673; break;
+      case 32: alpha = 0.697; break;
+      case 64: alpha = 0.709; break;
+      default: alpha = 0.7213 / (1 + 1.079 / m);
+    }
+    double e = alpha * m * m / sum;
+    if (e <= 2.5 * m && zeros != 0) {
+      e = m * Math.log((double)m / zeros);  // linear counting for small cardinalities
+    }
+    // with a 64 bit hash, no large range correction is needed
+    return Math.round(e);
+  }
+}
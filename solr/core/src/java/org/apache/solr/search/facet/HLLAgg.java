@@ -0,0 +1,73 @@
+package org.apache.solr.search.facet;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.QueryContext;
+import org.apache.solr.search.mutable.MutableValueInt;
+
+/** Approximate count of unique values using HyperLogLog: hll(field) or hll(field,log2m) */
+public class HLLAgg extends StrAggValueSource {
+  public static final int DEFAULT_LOG2M = 11;  // 2048 registers, ~2.3% standard error
+  public static final int MIN_LOG2M = 4;
+  public static final int MAX_LOG2M = 16;
+
+  protected int log2m;
+
+  public HLLAgg(String field, int log2m) {
+    super("hll", field);
+    this.log2m = log2m;
+  }
+
+  public int getLog2m() {
+    return log2m;
+  }
+
+  @Override
+  public SlotAcc createSlotAcc(MutableValueInt slot, QueryContext qContext, SolrQueryRequest req, int numDocs, int numSlots) throws IOException {
+    SchemaField sf = qContext.searcher().getSchema().getField(getArg());
+    if (sf.multiValued() || sf.getType().multiValuedFieldCache()) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "hll() does not support multiValued field " + sf.getName());
+    }
+    return new HLLSlotAcc(slot, qContext, getArg(), log2m, numSlots);
+  }
+
+  @Override
+  public FacetMerger createFacetMerger(Object prototype) {
+    return new FacetHLLMerger(((byte[])prototype).length);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return super.equals(o) && log2m == ((HLLAgg)o).log2m;
+  }
+
+  @Override
+  public int hashCode() {
+    return super.hashCode() * 31 + log2m;
+  }
+
+  @Override
+  public String description() {
+    return name() + "(" + arg + "," + log2m + ")";
+  }
+}
@@ -33,4 +33,9 @@ public class MinAgg extends SimpleAggValueSource {
   public SlotAcc createSlotAcc(MutableValueInt slot, QueryContext qContext, SolrQueryRequest req, int numDocs, int numSlots) throws IOException {
     return new MinSlotAcc(slot, getArg(), qContext, numSlots);
   }
+
+  @Override
+  public FacetMerger createFacetMerger(Object prototype) {
+    return new FacetMinMerger();
+  }
 }
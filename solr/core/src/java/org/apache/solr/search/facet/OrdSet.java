@@ -0,0 +1,131 @@
+package org.apache.solr.search.facet;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * A set of term ords that adapts to how many ords it holds.  It starts as a small open-addressing
+ * hash set and switches to a bitset of all possible ords once that would take less memory.
+ * The number of ords in the set is always known without a scan.
+ */
+final class OrdSet {
+  private static final int INITIAL_CAPACITY = 4;  // must be a power of 2
+
+  private final int maxOrd;
+  private int[] keys;  // ord+1 so that 0 can mean empty, null once switched to bits
+  private FixedBitSet bits;
+  private int size;
+
+  OrdSet(int maxOrd) {
+    this.maxOrd = maxOrd;
+    keys = new int[INITIAL_CAPACITY];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /** Adds the ord, returning true if it was not already in the set */
+  public boolean add(int ord) {
+    if (bits != null) {
+      if (bits.get(ord)) return false;
+      bits.set(ord);
+      size++;
+      return true;
+    }
+
+    if (!addKey(keys, ord + 1)) return false;
+    size++;
+    if (size > keys.length - (keys.length >> 2)) {  // load factor of .75
+      grow();
+    }
+    return true;
+  }
+
+  private static boolean addKey(int[] keys, int key) {
+    int mask = keys.length - 1;
+    int h = key * 0x9E3779B9;
+    int pos = (h ^ (h >>> 16)) & mask;
+    for (;;) {
+      int k = keys[pos];
+      if (k == 0) {
+        keys[pos] = key;
+        return true;
+      }
+      if (k == key) return false;
+      pos = (pos + 1) & mask;
+    }
+  }
+
+  private void grow() {
+    int newCapacity = keys.length << 1;
+    long bitsBytes = ((maxOrd + 63L) >>> 6) << 3;
+    if ((long)newCapacity * 4 >= bitsBytes) {
+      toBits();
+      return;
+    }
+
+    int[] newKeys = new int[newCapacity];
+    for (int key : keys) {
+      if (key != 0) addKey(newKeys, key);
+    }
+    keys = newKeys;
+  }
+
+  private void toBits() {
+    if (bits != null) return;
+    bits = new FixedBitSet(maxOrd);
+    for (int key : keys) {
+      if (key != 0) bits.set(key - 1);
+    }
+    keys = null;
+  }
+
+  /** Adds all of the ords in other to this set */
+  public void addAll(OrdSet other) {
+    if (other.bits != null) {
+      toBits();
+      bits.or(other.bits);
+      size = (int)bits.cardinality();
+      return;
+    }
+    for (int key : other.keys) {
+      if (key != 0) add(key - 1);
+    }
+  }
+
+  /** Returns the ords in the set, in sorted order */
+  public int[] getOrds() {
+    int[] ords = new int[size];
+    int n = 0;
+    if (bits != null) {
+      for (int ord = size == 0 ? -1 : bits.nextSetBit(0); ord >= 0; ord = ord+1 < maxOrd ? bits.nextSetBit(ord+1) : -1) {
+        ords[n++] = ord;
+      }
+    } else {
+      for (int key : keys) {
+        if (key != 0) ords[n++] = key - 1;
+      }
+      Arrays.sort(ords);
+    }
+    return ords;
+  }
+}
@@ -0,0 +1,88 @@
+package org.apache.solr.search.facet;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.QueryContext;
+import org.apache.solr.search.function.ValueSource;
+import org.apache.solr.search.mutable.MutableValueInt;
+
+/**
+ * Approximate percentiles of a numeric function using a t-digest per bucket: percentile(field, 50, 95, 99)
+ * The result is a single number when one percentile is requested, otherwise a list.
+ * Buckets are sorted by the first percentile.
+ */
+public class PercentileAgg extends SimpleAggValueSource {
+  protected final double[] percentiles;  // between 0 and 100
+
+  public PercentileAgg(ValueSource vs, double[] percentiles) {
+    super("percentile", vs);
+    this.percentiles = percentiles;
+  }
+
+  public double[] getPercentiles() {
+    return percentiles;
+  }
+
+  @Override
+  public SlotAcc createSlotAcc(MutableValueInt slot, QueryContext qContext, SolrQueryRequest req, int numDocs, int numSlots) throws IOException {
+    return new PercentileSlotAcc(slot, getArg(), qContext, numSlots, percentiles);
+  }
+
+  @Override
+  public FacetMerger createFacetMerger(Object prototype) {
+    return new FacetPercentileMerger(percentiles);
+  }
+
+  /** Returns the requested percentiles of the digest, or NaN for each if the digest is null or empty */
+  static Object getValue(TDigest digest, double[] percentiles) {
+    if (percentiles.length == 1) {
+      return digest == null ? Double.NaN : digest.quantile(percentiles[0] / 100);
+    }
+    List<Double> lst = new ArrayList<>(percentiles.length);
+    for (double p : percentiles) {
+      lst.add(digest == null ? Double.NaN : digest.quantile(p / 100));
+    }
+    return lst;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return super.equals(o) && Arrays.equals(percentiles, ((PercentileAgg)o).percentiles);
+  }
+
+  @Override
+  public int hashCode() {
+    return super.hashCode() * 31 + Arrays.hashCode(percentiles);
+  }
+
+  @Override
+  public String description() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(name()).append('(').append(arg == null ? "" : arg.description());
+    for (double p : percentiles) {
+      sb.append(',').append(p);
+    }
+    return sb.append(')').toString();
+  }
+}
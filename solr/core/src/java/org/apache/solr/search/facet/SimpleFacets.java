@@ -18,6 +18,7 @@
 package org.apache.solr.search.facet;
 
 import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.Fields;
 import org.apache.lucene.index.MultiDocsEnum;
@@ -78,6 +79,7 @@ import org.apache.solr.search.SyntaxError;
 import org.apache.solr.search.field.FieldUtil;
 import org.apache.solr.search.field.LongArray;
 import org.apache.solr.search.field.NativeSortedDocValues;
+import org.apache.solr.search.field.StrGlobalValues;
 import org.apache.solr.search.field.StrLeafValues;
 import org.apache.solr.search.grouping.AbstractAllGroupHeadsCollector;
 import org.apache.solr.search.grouping.GroupingSpecification;
@@ -109,6 +111,7 @@ import java.util.concurrent.Semaphore;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.apache.solr.request.IntervalFacets.FacetInterval;
 
@@ -362,9 +365,8 @@ public class SimpleFacets {
     SimpleOrderedMap<Object> facets = new SimpleOrderedMap<>();         // version >= 2
 
     try {
-      if (rb != null && FacetModule.doFacets(rb)) {
-        return;
-      }
+      // json.facet is returned as "facets", along with any facet.field, facet.query etc. in the same request
+      boolean jsonFacets = rb != null && FacetModule.doFacets(rb);
 
       NamedList<Object> facet_queries = new SimpleOrderedMap<>();
       getFacetQueryCounts(facets, facet_queries);
@@ -380,7 +382,7 @@ public class SimpleFacets {
 
       NamedList<Object> facet_intervals = getFacetIntervalCounts();
 
-      if (facet_queries.size() + facet_fields.size() + facet_dates.size() + facet_ranges.size() +facet_intervals.size() > 0 || facets.size()==0 ) {
+      if (facet_queries.size() + facet_fields.size() + facet_dates.size() + facet_ranges.size() +facet_intervals.size() > 0 || (facets.size()==0 && !jsonFacets) ) {
         // we also add this empty info if there are no v2 facets since distrib search testing expects this empty facet info
         facet_counts.add("facet_queries", facet_queries);
         facet_counts.add("facet_fields", facet_fields);
@@ -391,7 +393,11 @@ public class SimpleFacets {
       }
 
       if (facets.size() > 0) {
-        parent.add("facets", facets);
+        if (jsonFacets) {
+          ((NamedList<Object>)parent.get("facets")).addAll(facets);
+        } else {
+          parent.add("facets", facets);
+        }
       }
 
     } catch (IOException e) {
@@ -955,10 +961,72 @@ public class SimpleFacets {
 
 
 //  private static native void getFieldCacheCounts(long baseArr, int baseSize, int baseFormat, long ordArr, int ordSize, int ordFormat, int startIndex, int endIndex, int offset, int limit);
-  private static native void fillCounts(long baseArr, int baseFormat, long baseSize,
+  // package private so that the json facet processors can share it
+  static native void fillCounts(long baseArr, int baseFormat, long baseSize,
                                         long ordArr, int ordFormat, long ordSize, int numTermsInField,
                                         int startTermIndex, int endTermIndex, int offset, int limit, long counts);
 
+  // counts the base docs in [docBase, docBase+maxDoc) by the ords of that segment: slot 0 is missing, slot ord+1 is ord
+  static native void fillSegmentCounts(long baseArr, int baseFormat, long baseSize, int docBase, int maxDoc,
+                                       long ordArr, int ordFormat, long counts);
+
+  /** The number of times facet counts were filled in by native code, for testing */
+  public static final AtomicLong numNativeCounts = new AtomicLong();
+
+  /**
+   * Like fillCounts, for global ords over the per-segment values, which have no top level ord array.
+   * Each segment is counted natively by its own ords, and the counts are then added to the global ords
+   * they map to.  counts has a slot for each ord from startTermIndex (-1 for missing) to endTermIndex.
+   */
+  static void fillGlobalCounts(SolrIndexSearcher searcher, DocSetBaseNative base, StrGlobalValues global,
+                               int startTermIndex, int endTermIndex, long counts) {
+    final List<AtomicReaderContext> leaves = searcher.getTopReaderContext().leaves();
+    assert leaves.size() == global.getNumSegments();
+    final int nTerms = endTermIndex - startTermIndex;
+
+    int maxSegTerms = 0;
+    for (int seg=0; seg<leaves.size(); seg++) {
+      LongArray toGlobal = global.getSegmentToGlobal(seg);
+      if (toGlobal != null) {
+        assert global.getSegmentValues(seg).getOrdArray() != null;
+        maxSegTerms = Math.max(maxSegTerms, (int)toGlobal.getSize());
+      }
+    }
+
+    // slot 0 is missing and slot ord+1 is the segment ord, each slot is zeroed again as it is read
+    long segCounts = HS.allocArray(maxSegTerms + 1, HS.INT_SIZE, true, HS.MEM_FACET);
+    try {
+      for (int seg=0; seg<leaves.size(); seg++) {
+        AtomicReaderContext leaf = leaves.get(seg);
+        LongArray ordArr = global.getSegmentValues(seg).getOrdArray();
+        fillSegmentCounts(base.getNativeData(), base.getNativeFormat(), base.getNativeSize(), leaf.docBase, leaf.reader().maxDoc()
+            , ordArr == null ? 0 : ordArr.getNativeData(), ordArr == null ? 0 : ordArr.getNativeFormat()
+            , segCounts
+        );
+
+        if (startTermIndex == -1) {
+          HS.incInt(counts, 0, HS.getInt(segCounts, 0));
+        }
+        HS.setInt(segCounts, 0, 0);
+
+        LongArray toGlobal = global.getSegmentToGlobal(seg);
+        if (toGlobal == null) continue;
+        int segTerms = (int)toGlobal.getSize();
+        for (int ord=0; ord<segTerms; ord++) {
+          int c = HS.getInt(segCounts, ord + 1);
+          if (c == 0) continue;
+          HS.setInt(segCounts, ord + 1, 0);
+          int arrIdx = toGlobal.getInt(ord) - startTermIndex;
+          if (arrIdx >= 0 && arrIdx < nTerms) {
+            HS.incInt(counts, arrIdx, c);
+          }
+        }
+      }
+    } finally {
+      HS.freeArray(segCounts);
+    }
+  }
+
   /**
    * Use the Lucene FieldCache to get counts for each unique field value in <code>docs</code>.
    * The field must have at most one indexed token per document.
@@ -1018,30 +1086,38 @@ public class SimpleFacets {
         // count collection array only needs to be as big as the number of terms we are
         // going to collect counts for.
         // final int[] counts = new int[nTerms];
-        counts = HS.allocArray(nTerms, HS.INT_SIZE, true);
+        counts = HS.allocArray(nTerms, HS.INT_SIZE, true, HS.MEM_FACET);
+
+        StrLeafValues values = si instanceof NativeSortedDocValues ? ((NativeSortedDocValues)si).getWrappedValues() : null;
+        LongArray ordArr = values == null ? null : values.getOrdArray();
 
-        if (HS.loaded && si instanceof NativeSortedDocValues && docs instanceof DocSetBaseNative) {
+        if (HS.loaded && values != null && docs instanceof DocSetBaseNative && (ordArr != null || values instanceof StrGlobalValues || si.getValueCount() == 0)) {
 
           DocSetBaseNative base = (DocSetBaseNative)docs;
-          LongArray ordArr = ((NativeSortedDocValues)si).getWrappedValues().getOrdArray();
+          numNativeCounts.incrementAndGet();
 
-          if (ordArr == null) {
+          if (ordArr == null && si.getValueCount() == 0) {
             if (missing) {
               missingCount = docs.size();
             }
           } else {
 
-            // private static native void fillCounts(long baseArr, int baseFormat, long baseSize
-            // , long ordArr, int ordFormat, long ordSize, int numTermsInField
-            // , int startTermIndex, int endTermIndex
-            // , int offset, int limit
-            // , long counts);
-            fillCounts(base.getNativeData(), base.getNativeFormat(), base.getNativeSize()
-                , ordArr == null ? 0 : ordArr.getNativeData(), ordArr == null ? 0 : ordArr.getNativeFormat(), ordArr == null ? 0 : ordArr.getNativeSize(), si.getValueCount()
-                , startTermIndex, endTermIndex
-                , offset, limit
-                , counts
-            );
+            if (ordArr == null) {
+              // global ords over the segments have no top level ord array, so count each segment by its own ords
+              fillGlobalCounts(searcher, base, (StrGlobalValues)values, startTermIndex, endTermIndex, counts);
+            } else {
+              // private static native void fillCounts(long baseArr, int baseFormat, long baseSize
+              // , long ordArr, int ordFormat, long ordSize, int numTermsInField
+              // , int startTermIndex, int endTermIndex
+              // , int offset, int limit
+              // , long counts);
+              fillCounts(base.getNativeData(), base.getNativeFormat(), base.getNativeSize()
+                  , ordArr.getNativeData(), ordArr.getNativeFormat(), ordArr.getNativeSize(), si.getValueCount()
+                  , startTermIndex, endTermIndex
+                  , offset, limit
+                  , counts
+              );
+            }
 
             if (startTermIndex == -1) {
               missingCount = HS.getInt(counts, 0);
@@ -19,17 +19,26 @@ package org.apache.solr.search.facet;
 
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.FixedBitSet;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.HS;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.QueryContext;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.search.field.FieldUtil;
+import org.apache.solr.search.field.NativeSortedDocValues;
 import org.apache.solr.search.function.FuncValues;
 import org.apache.solr.search.function.ValueSource;
 import org.apache.solr.search.mutable.MutableValueInt;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public abstract class SlotAcc extends Acc {
   protected final MutableValueInt slot;
@@ -55,6 +64,28 @@ public abstract class SlotAcc extends Acc {
       bucket.add(key, getValue(slotNum));
     }
   }
+
+  /** Returns the value of a slot (or the global value for -1) in the form sent by a shard in a distributed request.
+   * This may contain more information than {@link #getValue} so that values from different shards can be merged.
+   */
+  public Object getShardValue(int slotNum) throws IOException {
+    return slotNum == -1 ? getGlobalValue() : getValue(slotNum);
+  }
+
+  public void setShardValues(NamedList<Object> bucket, int slotNum) throws IOException {
+    if (key == null) return;
+    bucket.add(key, getShardValue(slotNum));
+  }
+
+  /** Returns true if {@link #merge} is supported, allowing collection to be split across threads. */
+  public boolean canMerge() {
+    return false;
+  }
+
+  /** Adds the values collected by another accumulator of the same type and number of slots into this one. */
+  public void merge(SlotAcc other) {
+    throw new UnsupportedOperationException("merge not supported by " + getClass().getSimpleName());
+  }
 }
 
 
@@ -87,48 +118,87 @@ abstract class FuncSlotAcc extends SlotAcc {
 // double-slot-func -> double-slot -> slot -> acc
 
 abstract class DoubleFuncSlotAcc extends FuncSlotAcc {
-  double[] result;  // TODO: use DoubleArray
+  final int numSlots;
+  long result;  // off-heap double per slot, freed by close()
 
   public DoubleFuncSlotAcc(MutableValueInt slot, ValueSource values, QueryContext queryContext, int numSlots) {
     super(slot, values, queryContext, numSlots);
-    result = new double[numSlots];
+    this.numSlots = numSlots;
+    result = SlotArrays.alloc(queryContext, numSlots, HS.DOUBLE_SIZE);
   }
   public DoubleFuncSlotAcc(MutableValueInt slot, ValueSource values, QueryContext queryContext, int numSlots, double initialValue) {
-    super(slot, values, queryContext, numSlots);
-    result = new double[numSlots];
-    for (int i=0; i<result.length; i++) {
-      result[i] = initialValue;
+    this(slot, values, queryContext, numSlots);
+    for (int i=0; i<numSlots; i++) {
+      HS.setDouble(result, i, initialValue);
     }
   }
 
+  final double get(int slotNum) {
+    return HS.getDouble(result, slotNum);
+  }
+
+  final void set(int slotNum, double val) {
+    HS.setDouble(result, slotNum, val);
+  }
+
+  final void add(int slotNum, double val) {
+    HS.setDouble(result, slotNum, HS.getDouble(result, slotNum) + val);
+  }
+
   @Override
   public int compare(int slotA, int slotB) {
-    return Double.compare(result[slotA], result[slotB]);
+    return Double.compare(get(slotA), get(slotB));
   }
 
 
   @Override
   public Double getValue() {
-    return result[slot.value];
+    return get(slot.value);
+  }
+
+  @Override
+  public void close() throws IOException {
+    // may be called more than once
+    if (result != 0) {
+      SlotArrays.free(queryContext, result);
+      result = 0;
+    }
   }
 }
 
 abstract class IntSlotAcc extends SlotAcc {
-  int[] result;  // use LongArray32
+  final int numSlots;
+  final QueryContext qContext;
+  long result;  // off-heap int per slot, freed by close()
 
-  public IntSlotAcc(MutableValueInt slot, int numSlots) {
+  public IntSlotAcc(MutableValueInt slot, QueryContext qContext, int numSlots) {
     super(slot);
-    result = new int[numSlots];
+    this.numSlots = numSlots;
+    this.qContext = qContext;
+    result = SlotArrays.alloc(qContext, numSlots, HS.INT_SIZE);
+  }
+
+  final int get(int slotNum) {
+    return HS.getInt(result, slotNum);
   }
 
   @Override
   public int compare(int slotA, int slotB) {
-    return Integer.compare(result[slotA], result[slotB]);
+    return Integer.compare(get(slotA), get(slotB));
   }
 
   @Override
   public Integer getValue() {
-    return result[slot.value];
+    return get(slot.value);
+  }
+
+  @Override
+  public void close() throws IOException {
+    // may be called more than once
+    if (result != 0) {
+      SlotArrays.free(qContext, result);
+      result = 0;
+    }
   }
 }
 
@@ -147,12 +217,26 @@ class SumSlotAcc extends DoubleFuncSlotAcc {
     double val = values.doubleVal(doc);  // todo: worth trying to share this value across multiple stats that need it?
     int slotNum = slot.value;  // todo: more efficient to pass it in?
     total += val;
-    result[slotNum] += val;
+    add(slotNum, val);
   }
 
   public Comparable getGlobalValue() {
     return total;
   }
+
+  @Override
+  public boolean canMerge() {
+    return true;
+  }
+
+  @Override
+  public void merge(SlotAcc other) {
+    SumSlotAcc o = (SumSlotAcc)other;
+    total += o.total;
+    for (int i=0; i<numSlots; i++) {
+      add(i, o.get(i));
+    }
+  }
 }
 
 class SumsqSlotAcc extends DoubleFuncSlotAcc {
@@ -168,12 +252,26 @@ class SumsqSlotAcc extends DoubleFuncSlotAcc {
 
     val = val * val;
     total += val;
-    result[slotNum] += val;
+    add(slotNum, val);
   }
 
   public Comparable getGlobalValue() {
     return total;
   }
+
+  @Override
+  public boolean canMerge() {
+    return true;
+  }
+
+  @Override
+  public void merge(SlotAcc other) {
+    SumsqSlotAcc o = (SumsqSlotAcc)other;
+    total += o.total;
+    for (int i=0; i<numSlots; i++) {
+      add(i, o.get(i));
+    }
+  }
 }
 
 
@@ -190,9 +288,9 @@ class MinSlotAcc extends DoubleFuncSlotAcc {
     if (val == 0 && !values.exists(doc)) return;  // depend on fact that non existing values return 0 for func query
 
     int slotNum = slot.value;
-    double currMin = result[slotNum];
+    double currMin = get(slotNum);
     if (!(val >= currMin)) {  // val>=currMin will be false for staring value: val>=NaN
-      result[slotNum] = val;
+      set(slotNum, val);
     }
     if (!(val >= min)) {
       min = val;
@@ -202,6 +300,25 @@ class MinSlotAcc extends DoubleFuncSlotAcc {
   public Comparable getGlobalValue() {
     return min;
   }
+
+  @Override
+  public boolean canMerge() {
+    return true;
+  }
+
+  @Override
+  public void merge(SlotAcc other) {
+    MinSlotAcc o = (MinSlotAcc)other;
+    for (int i=0; i<numSlots; i++) {
+      double val = o.get(i);
+      if (!Double.isNaN(val) && !(val >= get(i))) {
+        set(i, val);
+      }
+    }
+    if (!(o.min >= min)) {
+      min = o.min;
+    }
+  }
 }
 
 class MaxSlotAcc extends DoubleFuncSlotAcc {
@@ -216,9 +333,9 @@ class MaxSlotAcc extends DoubleFuncSlotAcc {
     if (val == 0 && !values.exists(doc)) return;  // depend on fact that non existing values return 0 for func query
 
     int slotNum = slot.value;
-    double currMax = result[slotNum];
+    double currMax = get(slotNum);
     if (!(val <= currMax)) {  // reversed order to handle NaN
-      result[slotNum] = val;
+      set(slotNum, val);
     }
     if (!(val <= max)) {
       max = val;
@@ -228,26 +345,45 @@ class MaxSlotAcc extends DoubleFuncSlotAcc {
   public Comparable getGlobalValue() {
     return max;
   }
+
+  @Override
+  public boolean canMerge() {
+    return true;
+  }
+
+  @Override
+  public void merge(SlotAcc other) {
+    MaxSlotAcc o = (MaxSlotAcc)other;
+    for (int i=0; i<numSlots; i++) {
+      double val = o.get(i);
+      if (!Double.isNaN(val) && !(val <= get(i))) {
+        set(i, val);
+      }
+    }
+    if (!(o.max <= max)) {
+      max = o.max;
+    }
+  }
 }
 
 
 class AvgSlotAcc extends DoubleFuncSlotAcc {
   double tot = 0;
   int count = 0;
-  int[] counts;
+  long counts;  // off-heap int per slot
 
   public AvgSlotAcc(MutableValueInt slot, ValueSource values, QueryContext queryContext, int numSlots) {
     super(slot, values, queryContext, numSlots);
-    counts = new int[numSlots];
+    counts = SlotArrays.alloc(queryContext, numSlots, HS.INT_SIZE);
   }
 
   public void collect(int doc) {
     double val = values.doubleVal(doc);  // todo: worth trying to share this value across multiple stats that need it?
     int slotNum = slot.value;  // todo: more efficient to pass it in?
     tot += val;
-    result[slotNum] += val;
+    add(slotNum, val);
     count += 1;
-    counts[slotNum] += 1;
+    HS.incInt(counts, slotNum, 1);
   }
 
   private double avg(double tot, int count) {
@@ -259,7 +395,7 @@ class AvgSlotAcc extends DoubleFuncSlotAcc {
   }
 
   private double avg(int slot) {
-    return avg(result[slot], counts[slot]);  // calc once and cache in result?
+    return avg(get(slot), HS.getInt(counts, slot));  // calc once and cache in result?
   }
 
   @Override
@@ -273,6 +409,44 @@ class AvgSlotAcc extends DoubleFuncSlotAcc {
     return avg(slot.value);
   }
 
+  @Override
+  public Object getShardValue(int slotNum) {
+    List<Number> lst = new ArrayList<>(2);  // sum and count so that the average can be merged
+    if (slotNum == -1) {
+      lst.add(tot);
+      lst.add(count);
+    } else {
+      lst.add(get(slotNum));
+      lst.add(HS.getInt(counts, slotNum));
+    }
+    return lst;
+  }
+
+  @Override
+  public boolean canMerge() {
+    return true;
+  }
+
+  @Override
+  public void merge(SlotAcc other) {
+    AvgSlotAcc o = (AvgSlotAcc)other;
+    tot += o.tot;
+    count += o.count;
+    for (int i=0; i<numSlots; i++) {
+      add(i, o.get(i));
+      HS.incInt(counts, i, HS.getInt(o.counts, i));
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    super.close();
+    if (counts != 0) {
+      SlotArrays.free(queryContext, counts);
+      counts = 0;
+    }
+  }
+
 }
 
 
@@ -281,18 +455,31 @@ class CountSlotAcc extends IntSlotAcc {
   int total = 0;
 
   public CountSlotAcc(MutableValueInt slot, QueryContext qContext, int numSlots) {
-    super(slot, numSlots);
+    super(slot, qContext, numSlots);
   }
 
   public void collect(int doc) {       // TODO: count arrays can use fewer bytes based on the number of docs in the base set (that's the upper bound for single valued) - look at ttf?
     total++;
-    int slotNum = slot.value;
-    result[slotNum] = result[slotNum] + 1;
+    HS.incInt(result, slot.value, 1);
   }
 
   public Comparable getGlobalValue() {
     return total;
   }
+
+  @Override
+  public boolean canMerge() {
+    return true;
+  }
+
+  @Override
+  public void merge(SlotAcc other) {
+    CountSlotAcc o = (CountSlotAcc)other;
+    total += o.total;
+    for (int i=0; i<numSlots; i++) {
+      HS.incInt(result, i, o.get(i));
+    }
+  }
 }
 
 
@@ -328,54 +515,91 @@ class SortSlotAcc extends SlotAcc {
 
 
 abstract class UniqueSlotAcc extends SlotAcc {
+  SchemaField field;
   FixedBitSet ords;
-  FixedBitSet[] arr;
+  OrdSet[] arr;  // most slots only see a few ords, so these start small and grow as needed
   int currentDocBase;
-  int[] counts;
   int nTerms;
 
 
   public UniqueSlotAcc(MutableValueInt slot, QueryContext qContext, String field, int numSlots) throws IOException {
     super(slot);
-    arr = new FixedBitSet[numSlots];
+    this.field = qContext.searcher().getSchema().getField(field);
+    arr = new OrdSet[numSlots];
   }
 
-  @Override
-  public void setNextReader(AtomicReaderContext readerContext) throws IOException {
-    currentDocBase = readerContext.docBase;
+  /** Returns the set of ords for the given slot, creating it if necessary */
+  protected OrdSet getOrdSet(int slotNum) {
+    OrdSet set = arr[slotNum];
+    if (set == null) {
+      set = new OrdSet(nTerms);
+      arr[slotNum] = set;
+    }
+    return set;
   }
 
+  /** Returns the term for the given ord */
+  protected abstract BytesRef lookupOrd(int ord) throws IOException;
+
+  // the values themselves are sent by shards so that the same value on different shards is only counted once
   @Override
-  public Comparable getValue() {
-    if (counts != null) {  // will only be pre-populated if this was used for sorting.
-      return counts[slot.value];
+  public Object getShardValue(int slotNum) throws IOException {
+    FieldType ft = field.getType();
+    List<Object> lst;
+    if (slotNum == -1) {
+      lst = new ArrayList<>((int)ords.cardinality());
+      for (int ord = nTerms == 0 ? -1 : ords.nextSetBit(0); ord >= 0; ord = ord+1 < nTerms ? ords.nextSetBit(ord+1) : -1) {
+        lst.add(ft.toObject(field, lookupOrd(ord)));
+      }
+    } else {
+      OrdSet set = arr[slotNum];
+      int[] slotOrds = set == null ? new int[0] : set.getOrds();
+      lst = new ArrayList<>(slotOrds.length);
+      for (int ord : slotOrds) {
+        lst.add(ft.toObject(field, lookupOrd(ord)));
+      }
     }
+    return lst;
+  }
 
-    FixedBitSet bs = arr[slot.value];
-    return bs==null ? 0 : bs.cardinality();
+  @Override
+  public void setNextReader(AtomicReaderContext readerContext) throws IOException {
+    currentDocBase = readerContext.docBase;
   }
 
+  private int getCount(int slotNum) {
+    OrdSet set = arr[slotNum];
+    return set == null ? 0 : set.size();
+  }
 
-  // we only calculate all the counts when sorting by count
-  public void calcCounts() {
-    counts = new int[arr.length];
-    for (int i=0; i<arr.length; i++) {
-      FixedBitSet bs = arr[i];
-      counts[i] = bs == null ? 0 : bs.cardinality();
-    }
+  @Override
+  public Comparable getValue() {
+    return getCount(slot.value);
   }
 
   @Override
   public int compare(int slotA, int slotB) {
-    if (counts == null) {  // TODO: a more efficient way to do this?  prepareSort?
-      calcCounts();
-    }
-    return counts[slotA] - counts[slotB];
+    return Integer.compare(getCount(slotA), getCount(slotB));
   }
 
   public Comparable getGlobalValue() {
     return ords.cardinality();
   }
+
+  @Override
+  public void merge(SlotAcc other) {
+    UniqueSlotAcc o = (UniqueSlotAcc)other;
+    ords.or(o.ords);
+    for (int i=0; i<arr.length; i++) {
+      OrdSet set = o.arr[i];
+      if (set == null) continue;
+      if (arr[i] == null) {
+        arr[i] = set;
+      } else {
+        arr[i].addAll(set);
+      }
+    }
+  }
 }
 
 
@@ -390,6 +614,16 @@ class UniqueSinglevaluedSlotAcc extends UniqueSlotAcc {
     ords = new FixedBitSet(nTerms);
   }
 
+  @Override
+  protected BytesRef lookupOrd(int ord) {
+    return si.lookupOrd(ord);
+  }
+
+  @Override
+  public boolean canMerge() {
+    return si instanceof NativeSortedDocValues;  // other implementations may not be safe to share across threads
+  }
+
   public void collect(int doc) {
     int ord = si.getOrd(doc + currentDocBase);
     if (ord < 0) return;  // -1 means missing
@@ -398,17 +632,13 @@ class UniqueSinglevaluedSlotAcc extends UniqueSlotAcc {
     int slotNum = slot.value;
     if (slotNum < 0) return;
 
-    FixedBitSet bits = arr[slotNum];
-    if (bits == null) {
-      bits = new FixedBitSet(nTerms);
-      arr[slotNum] = bits;
-    }
-
-    bits.set(ord);
+    getOrdSet(slotNum).add(ord);
   }
 }
 
 class UniqueMultivaluedSlotAcc extends UniqueSlotAcc implements UnInvertedField.Callback {
+  private SolrIndexSearcher searcher;
+  private TermsEnum te;  // only needed to look up values for a shard response
   private UnInvertedField uif;
   private UnInvertedField.DocToTerm docToTerm;
 
@@ -419,33 +649,38 @@ class UniqueMultivaluedSlotAcc extends UniqueSlotAcc implements UnInvertedField.
     docToTerm = uif.new DocToTerm();
     nTerms = uif.numTerms();
     ords = new FixedBitSet(nTerms);
+    this.searcher = searcher;
+  }
+
+  @Override
+  protected BytesRef lookupOrd(int ord) throws IOException {
+    if (te == null) {
+      te = uif.getOrdTermsEnum(searcher.getAtomicReader());
+    }
+    return uif.getTermValue(te, ord);
   }
 
 
-  FixedBitSet bits;  // bits for the current slot, only set for the callback
+  OrdSet set;  // ords for the current slot, only set for the callback
   @Override
   public void call(int termNum) {
     ords.set(termNum);
-    if (bits != null) {
-      bits.set(termNum);
+    if (set != null) {
+      set.add(termNum);
     }
   }
 
   public void collect(int doc) throws IOException {
     int slotNum = slot.value;
-    FixedBitSet bs = null;
-    if (slotNum >= 0) {
-      bs = arr[slotNum];
-      if (bs == null) {
-        bs = new FixedBitSet(nTerms);
-        arr[slotNum] = bs;
-      }
-    }
-
-    this.bits = bs;
+    this.set = slotNum >= 0 ? getOrdSet(slotNum) : null;
     docToTerm.getTerms(doc + currentDocBase, this);
   }
 
+  @Override
+  public boolean canMerge() {
+    return true;  // the UnInvertedField is immutable, and each accumulator reads it through its own DocToTerm
+  }
+
   @Override
   public void close() throws IOException {
     if (docToTerm != null) {
@@ -453,4 +688,254 @@ class UniqueMultivaluedSlotAcc extends UniqueSlotAcc implements UnInvertedField.
       docToTerm = null;
     }
   }
-}
\ No newline at end of file
+}
+
+/** Approximate number of unique values per slot using HyperLogLog.  Each slot that is hit
+ * gets a fixed size set of off-heap registers, regardless of the number of terms in the field.
+ * The registers are freed when the accumulator is closed, so those of sub-facet buckets don't pile up
+ * until the end of the request.
+ */
+class HLLSlotAcc extends SlotAcc {
+  final int log2m;
+  final int m;
+  final SortedDocValues si;
+  long globalRegs;   // registers for all values, regardless of slot
+  long[] slotRegs;   // off-heap registers for each slot, 0 if the slot has not been hit
+  final QueryContext qContext;
+  long[] estimates;  // only calculated when sorting, -1 until calculated for a slot
+  int currentDocBase;
+  // hashes of recently collected ords, direct mapped by ord, so that a term is usually looked up and hashed
+  // once per request rather than once per doc.  Exact for fields with up to MAX_CACHED_HASHES values.
+  final int[] hashOrds;
+  final long[] hashes;
+
+  static final int MAX_CACHED_HASHES = 1 << 16;
+
+  public HLLSlotAcc(MutableValueInt slot, QueryContext qContext, String field, int log2m, int numSlots) throws IOException {
+    super(slot);
+    this.log2m = log2m;
+    this.m = 1 << log2m;
+    SolrIndexSearcher searcher = qContext.searcher();
+    si = FieldUtil.getSortedDocValues(qContext, searcher.getSchema().getField(field), null);
+    slotRegs = new long[numSlots];
+    this.qContext = qContext;
+    globalRegs = SlotArrays.alloc(qContext, m, 1);
+
+    int cacheSize = 1;
+    while (cacheSize < si.getValueCount() && cacheSize < MAX_CACHED_HASHES) {
+      cacheSize <<= 1;
+    }
+    hashOrds = new int[cacheSize];
+    Arrays.fill(hashOrds, -1);
+    hashes = new long[cacheSize];
+  }
+
+  @Override
+  public void setNextReader(AtomicReaderContext readerContext) throws IOException {
+    currentDocBase = readerContext.docBase;
+  }
+
+  @Override
+  public void collect(int doc) {
+    int ord = si.getOrd(doc + currentDocBase);
+    if (ord < 0) return;  // -1 means missing
+    long hash;
+    int idx = ord & (hashOrds.length - 1);
+    if (hashOrds[idx] == ord) {
+      hash = hashes[idx];
+    } else {
+      hash = hashes[idx] = HLL.hash(si.lookupOrd(ord));
+      hashOrds[idx] = ord;
+    }
+    HLL.add(globalRegs, hash, log2m);
+
+    int slotNum = slot.value;
+    if (slotNum < 0) return;
+    long regs = slotRegs[slotNum];
+    if (regs == 0) {
+      regs = slotRegs[slotNum] = SlotArrays.alloc(qContext, m, 1);
+    }
+    HLL.add(regs, hash, log2m);
+    estimates = null;
+  }
+
+  private long estimate(int slotNum) {
+    long regs = slotRegs[slotNum];
+    return regs == 0 ? 0 : HLL.estimate(regs, m);
+  }
+
+  @Override
+  public int compare(int slotA, int slotB) {
+    if (estimates == null) {
+      estimates = new long[slotRegs.length];
+      Arrays.fill(estimates, -1);
+    }
+    return Long.compare(sortEstimate(slotA), sortEstimate(slotB));
+  }
+
+  private long sortEstimate(int slotNum) {
+    long est = estimates[slotNum];
+    if (est < 0) {
+      est = estimates[slotNum] = estimate(slotNum);
+    }
+    return est;
+  }
+
+  @Override
+  public Comparable getValue() {
+    return estimates != null ? sortEstimate(slot.value) : estimate(slot.value);
+  }
+
+  @Override
+  public Comparable getGlobalValue() {
+    return HLL.estimate(globalRegs, m);
+  }
+
+  // the registers are sent so that the estimate can be made after merging
+  @Override
+  public Object getShardValue(int slotNum) {
+    long regs = slotNum == -1 ? globalRegs : slotRegs[slotNum];
+    return regs == 0 ? new byte[m] : HLL.toBytes(regs, m);
+  }
+
+  @Override
+  public boolean canMerge() {
+    return si instanceof NativeSortedDocValues;  // other implementations may not be safe to share across threads
+  }
+
+  @Override
+  public void merge(SlotAcc other) {
+    HLLSlotAcc o = (HLLSlotAcc)other;
+    HLL.union(globalRegs, o.globalRegs, m);
+    for (int i=0; i<slotRegs.length; i++) {
+      long regs = o.slotRegs[i];
+      if (regs == 0) continue;
+      if (slotRegs[i] == 0) {
+        // take over the registers rather than copying them
+        slotRegs[i] = regs;
+        o.slotRegs[i] = 0;
+      } else {
+        HLL.union(slotRegs[i], regs, m);
+      }
+    }
+    estimates = null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    // may be called more than once
+    if (globalRegs != 0) {
+      SlotArrays.free(qContext, globalRegs);
+      globalRegs = 0;
+    }
+    for (int i=0; i<slotRegs.length; i++) {
+      if (slotRegs[i] != 0) {
+        SlotArrays.free(qContext, slotRegs[i]);
+        slotRegs[i] = 0;
+      }
+    }
+  }
+}
+
+
+class PercentileSlotAcc extends FuncSlotAcc {
+  final double[] percentiles;
+  TDigest global = new TDigest(TDigest.DEFAULT_COMPRESSION);
+  TDigest[] digests;     // null if the slot has not been hit
+  double[] sortValues;   // the first percentile of each slot, only calculated when sorting
+  FixedBitSet hasSortValue;
+
+  public PercentileSlotAcc(MutableValueInt slot, ValueSource values, QueryContext queryContext, int numSlots, double[] percentiles) {
+    super(slot, values, queryContext, numSlots);
+    this.percentiles = percentiles;
+    digests = new TDigest[numSlots];
+  }
+
+  @Override
+  public void collect(int doc) {
+    if (!values.exists(doc)) return;
+    double val = values.doubleVal(doc);
+    global.add(val);
+
+    int slotNum = slot.value;
+    TDigest digest = digests[slotNum];
+    if (digest == null) {
+      digest = digests[slotNum] = new TDigest(TDigest.DEFAULT_COMPRESSION);
+    }
+    digest.add(val);
+    sortValues = null;
+  }
+
+  private double sortValue(int slotNum) {
+    TDigest digest = digests[slotNum];
+    return digest == null ? Double.NaN : digest.quantile(percentiles[0] / 100);
+  }
+
+  @Override
+  public int compare(int slotA, int slotB) {
+    if (sortValues == null) {
+      sortValues = new double[digests.length];
+      hasSortValue = new FixedBitSet(digests.length);
+    }
+    return Double.compare(cachedSortValue(slotA), cachedSortValue(slotB));
+  }
+
+  private double cachedSortValue(int slotNum) {
+    if (!hasSortValue.get(slotNum)) {
+      sortValues[slotNum] = sortValue(slotNum);
+      hasSortValue.set(slotNum);
+    }
+    return sortValues[slotNum];
+  }
+
+  @Override
+  public Comparable getValue() {
+    return sortValue(slot.value);
+  }
+
+  @Override
+  public Comparable getGlobalValue() {
+    return global.quantile(percentiles[0] / 100);
+  }
+
+  // the values are a list when more than one percentile is requested, so they can't go through getValue
+  @Override
+  public void setValues(NamedList<Object> bucket) {
+    if (key == null) return;
+    bucket.add(key, PercentileAgg.getValue(digests[slot.value], percentiles));
+  }
+
+  @Override
+  public void setValues(NamedList<Object> bucket, int slotNum) {
+    if (key == null) return;
+    bucket.add(key, PercentileAgg.getValue(slotNum == -1 ? global : digests[slotNum], percentiles));
+  }
+
+  // the digest is sent so that the percentiles can be estimated after merging
+  @Override
+  public Object getShardValue(int slotNum) {
+    TDigest digest = slotNum == -1 ? global : digests[slotNum];
+    return digest == null ? new TDigest(TDigest.DEFAULT_COMPRESSION).toBytes() : digest.toBytes();
+  }
+
+  @Override
+  public boolean canMerge() {
+    return true;
+  }
+
+  @Override
+  public void merge(SlotAcc other) {
+    PercentileSlotAcc o = (PercentileSlotAcc)other;
+    global.add(o.global);
+    for (int i=0; i<digests.length; i++) {
+      TDigest digest = o.digests[i];
+      if (digest == null) continue;
+      if (digests[i] == null) {
+        digests[i] = digest;
+      } else {
+        digests[i].add(digest);
+      }
+    }
+    sortValues = null;
+  }
+}
@@ -0,0 +1,107 @@
+package org.apache.solr.search.facet;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.solr.core.HS;
+import org.apache.solr.search.QueryContext;
+
+import java.io.Closeable;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Off-heap memory for slot accumulators, so that per-request arrays sized by the number of terms don't
+ * churn the java heap.  Arrays that nearly fill a pooled buffer are rounded up to one, and the
+ * {@link HS.Allocator} pools the other larger sizes by size class.  The peak bytes in use by the arrays of
+ * a request are tracked so that they can be shown in debug output.
+ * <p>
+ * Accumulators free their arrays when the facet processor closes them.  Any array still allocated at the
+ * end of the request (e.g. after an error) is freed then, through a single close hook per request rather
+ * than one per accumulator, since sub-facets create accumulators for every bucket.
+ */
+final class SlotArrays {
+  private SlotArrays() {}
+
+  // key of the per-request usage in the QueryContext
+  private static final Object USAGE_KEY = new Object();
+
+  private static class Usage implements Closeable {
+    final Set<Long> arrays = new HashSet<>();  // allocated and not yet freed
+    long live;
+    long peak;
+
+    @Override
+    public synchronized void close() {
+      for (long ptr : arrays) {
+        HS.freeArray(ptr);
+      }
+      arrays.clear();
+      live = 0;
+    }
+  }
+
+  /** Allocates a zeroed array, which must be freed with {@link #free} */
+  public static long alloc(QueryContext qContext, int numSlots, int elementSize) {
+    long bytes = (long)numSlots * elementSize;
+    if (bytes > (HS.BUFFER_SIZE_BYTES >> 1) && bytes < HS.BUFFER_SIZE_BYTES) {
+      bytes = HS.BUFFER_SIZE_BYTES;  // round up so the allocator can reuse a pooled buffer
+    }
+    long ptr = HS.allocArray(bytes, 1, true, HS.MEM_FACET);
+    if (qContext != null) {
+      Usage usage = getUsage(qContext);
+      synchronized (usage) {
+        usage.arrays.add(ptr);
+        usage.live += bytes;
+        usage.peak = Math.max(usage.peak, usage.live);
+      }
+    }
+    return ptr;
+  }
+
+  /** Frees an array allocated by {@link #alloc} with the same context */
+  public static void free(QueryContext qContext, long ptr) {
+    if (qContext != null) {
+      Usage usage = getUsage(qContext);
+      synchronized (usage) {
+        if (!usage.arrays.remove(ptr)) return;  // already freed at the end of the request
+        usage.live -= HS.arraySizeBytes(ptr);
+      }
+    }
+    HS.freeArray(ptr);
+  }
+
+  /** Returns the most off-heap bytes in use by accumulator arrays at any one time during the request */
+  public static long getPeakBytes(QueryContext qContext) {
+    Usage usage = (Usage)qContext.get(USAGE_KEY);
+    if (usage == null) return 0;
+    synchronized (usage) {
+      return usage.peak;
+    }
+  }
+
+  private static Usage getUsage(QueryContext qContext) {
+    Usage usage = (Usage)qContext.get(USAGE_KEY);
+    if (usage == null) {
+      usage = new Usage();
+      Usage prev = (Usage)qContext.putIfAbsent(USAGE_KEY, usage);
+      if (prev != null) return prev;
+      qContext.addCloseHook(usage);
+    }
+    return usage;
+  }
+}
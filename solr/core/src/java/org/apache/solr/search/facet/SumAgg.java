@@ -38,5 +38,9 @@ public class SumAgg extends SimpleAggValueSource {
   public SlotAcc createSlotAcc(MutableValueInt slot, QueryContext qContext, SolrQueryRequest req, int numDocs, int numSlots) throws IOException {
     return new SumSlotAcc(slot, getArg(), qContext, numSlots);
   }
-}
 
+  @Override
+  public FacetMerger createFacetMerger(Object prototype) {
+    return new FacetSumMerger();
+  }
+}
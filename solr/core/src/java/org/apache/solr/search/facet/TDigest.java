@@ -0,0 +1,238 @@
+package org.apache.solr.search.facet;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.lucene.util.InPlaceMergeSorter;
+
+/**
+ * A mergeable sketch of a distribution of values, from which quantiles can be estimated (a merging t-digest).
+ * Values are buffered and periodically merged into a list of centroids sorted by mean.  Centroids near
+ * the tails are kept small so that extreme quantiles stay accurate, which bounds the number of centroids
+ * to roughly <code>compression * PI/2</code> no matter how many values are added.
+ */
+final class TDigest {
+  public static final double DEFAULT_COMPRESSION = 100;
+  private static final int INITIAL_BUFFER = 8;
+
+  private final double compression;
+  private final int maxBuffer;
+
+  // merged centroids, sorted by mean
+  private int numCentroids;
+  private double[] means;
+  private double[] weights;
+
+  // values added since the last merge
+  private int numBuffered;
+  private double[] bufMeans;
+  private double[] bufWeights;
+
+  private double totalWeight;  // of both centroids and buffered values
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  TDigest(double compression) {
+    this.compression = compression;
+    this.maxBuffer = (int)(5 * compression);
+    means = new double[0];
+    weights = new double[0];
+    // the buffer starts small since most buckets of a big facet only see a few values
+    bufMeans = new double[INITIAL_BUFFER];
+    bufWeights = new double[INITIAL_BUFFER];
+  }
+
+  public double size() {
+    return totalWeight;
+  }
+
+  public void add(double x) {
+    add(x, 1);
+  }
+
+  public void add(double x, double w) {
+    if (numBuffered == bufMeans.length) {
+      if (bufMeans.length < maxBuffer) {
+        int newSize = Math.min(maxBuffer, bufMeans.length << 1);
+        bufMeans = Arrays.copyOf(bufMeans, newSize);
+        bufWeights = Arrays.copyOf(bufWeights, newSize);
+      } else {
+        compress();
+      }
+    }
+    bufMeans[numBuffered] = x;
+    bufWeights[numBuffered] = w;
+    numBuffered++;
+    totalWeight += w;
+    if (x < min) min = x;
+    if (x > max) max = x;
+  }
+
+  /** Adds all of the values summarized by other to this digest */
+  public void add(TDigest other) {
+    other.compress();
+    for (int i=0; i<other.numCentroids; i++) {
+      add(other.means[i], other.weights[i]);
+    }
+    if (other.min < min) min = other.min;
+    if (other.max > max) max = other.max;
+  }
+
+  /** Merges any buffered values into the centroids */
+  private void compress() {
+    if (numBuffered == 0) return;
+
+    final double[] bm = bufMeans;
+    final double[] bw = bufWeights;
+    new InPlaceMergeSorter() {
+      @Override
+      protected int compare(int i, int j) {
+        return Double.compare(bm[i], bm[j]);
+      }
+
+      @Override
+      protected void swap(int i, int j) {
+        double tmp = bm[i]; bm[i] = bm[j]; bm[j] = tmp;
+        tmp = bw[i]; bw[i] = bw[j]; bw[j] = tmp;
+      }
+    }.sort(0, numBuffered);
+
+    double[] newMeans = new double[numCentroids + numBuffered];
+    double[] newWeights = new double[numCentroids + numBuffered];
+    int out = 0;
+
+    // walk the centroids and buffer in order of mean, growing the current centroid until it would exceed
+    // the size allowed for its position in the distribution
+    double weightSoFar = 0;
+    double qLimit = 0;
+    double curMean = 0;
+    double curWeight = 0;
+    int c = 0;
+    int b = 0;
+    while (c < numCentroids || b < numBuffered) {
+      double m, w;
+      if (b >= numBuffered || (c < numCentroids && means[c] <= bm[b])) {
+        m = means[c];
+        w = weights[c];
+        c++;
+      } else {
+        m = bm[b];
+        w = bw[b];
+        b++;
+      }
+
+      if (curWeight == 0) {
+        curMean = m;
+        curWeight = w;
+        qLimit = nextQLimit(weightSoFar / totalWeight);
+      } else if ((weightSoFar + curWeight + w) / totalWeight <= qLimit) {
+        curWeight += w;
+        curMean += (m - curMean) * w / curWeight;
+      } else {
+        newMeans[out] = curMean;
+        newWeights[out] = curWeight;
+        out++;
+        weightSoFar += curWeight;
+        curMean = m;
+        curWeight = w;
+        qLimit = nextQLimit(weightSoFar / totalWeight);
+      }
+    }
+    if (curWeight > 0) {
+      newMeans[out] = curMean;
+      newWeights[out] = curWeight;
+      out++;
+    }
+
+    means = newMeans.length == out ? newMeans : Arrays.copyOf(newMeans, out);
+    weights = newWeights.length == out ? newWeights : Arrays.copyOf(newWeights, out);
+    numCentroids = out;
+    numBuffered = 0;
+  }
+
+  /** The largest quantile that a centroid starting at quantile q may reach, using the scale function k(q) = compression/2PI * asin(2q-1) */
+  private double nextQLimit(double q) {
+    double normalizer = compression / (2 * Math.PI);
+    double k = normalizer * Math.asin(2 * q - 1) + 1;
+    if (k >= normalizer * Math.PI / 2) return 1;
+    return (Math.sin(k / normalizer) + 1) / 2;
+  }
+
+  /** Estimates the value at quantile q (between 0 and 1), or NaN if no values have been added */
+  public double quantile(double q) {
+    compress();
+    if (numCentroids == 0) return Double.NaN;
+    if (numCentroids == 1) return means[0];
+
+    // interpolate between the centers of neighboring centroids, and from the outer centers to the min and max
+    double index = q * totalWeight;
+    double halfFirst = weights[0] / 2;
+    if (index <= halfFirst) {
+      return min + (means[0] - min) * (index / halfFirst);
+    }
+
+    double cum = halfFirst;
+    for (int i=0; i<numCentroids-1; i++) {
+      double dw = (weights[i] + weights[i+1]) / 2;
+      if (cum + dw >= index) {
+        double t = (index - cum) / dw;
+        return means[i] + t * (means[i+1] - means[i]);
+      }
+      cum += dw;
+    }
+
+    int last = numCentroids - 1;
+    double t = Math.min(1, (index - cum) / (weights[last] / 2));
+    return means[last] + t * (max - means[last]);
+  }
+
+  /** Serializes the centroids, so that the digest can be sent between shards */
+  public byte[] toBytes() {
+    compress();
+    ByteBuffer buf = ByteBuffer.allocate(8 + 8 + 4 + numCentroids * 16);
+    buf.putDouble(min);
+    buf.putDouble(max);
+    buf.putInt(numCentroids);
+    for (int i=0; i<numCentroids; i++) {
+      buf.putDouble(means[i]);
+      buf.putDouble(weights[i]);
+    }
+    return buf.array();
+  }
+
+  public static TDigest fromBytes(byte[] bytes, double compression) {
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    TDigest digest = new TDigest(compression);
+    double min = buf.getDouble();
+    double max = buf.getDouble();
+    int n = buf.getInt();
+    digest.means = new double[n];
+    digest.weights = new double[n];
+    for (int i=0; i<n; i++) {
+      digest.means[i] = buf.getDouble();
+      digest.weights[i] = buf.getDouble();
+      digest.totalWeight += digest.weights[i];
+    }
+    digest.numCentroids = n;
+    digest.min = min;
+    digest.max = max;
+    return digest;
+  }
+}
@@ -34,4 +34,9 @@ public class UniqueAgg extends StrAggValueSource {
     // TODO: handle multiValued
     // return new UniqueMultivaluedSlotAcc(slot, getArg(), qContext, numSlots);
   }
+
+  @Override
+  public FacetMerger createFacetMerger(Object prototype) {
+    return new FacetUniqueMerger();
+  }
 }
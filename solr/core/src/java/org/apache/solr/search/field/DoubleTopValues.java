@@ -55,7 +55,7 @@ public class DoubleTopValues extends TopValues {
       if (first) {
         first = false;
         stats.firstValue = currentValue;
-        arr = HS.allocArray(maxDoc, 8, true);
+        arr = HS.allocArray(maxDoc, 8, true, HS.MEM_FIELD_VALUES);
       }
     }
 
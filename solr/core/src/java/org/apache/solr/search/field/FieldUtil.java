@@ -36,18 +36,18 @@ public class FieldUtil {
   /** The returned StrLeafValues do not need to be reference counted,
    * they will be valid for the lifetime of the context (at a minimum... normally the request context).
    * These returned StrLeafValues are actually top-level (i.e. the "leaf" used is the top-level reader).
+   * Unless the field is configured with cacheTop, they are global ords over the per-segment values.
    */
   public static StrLeafValues getTopStrings(QueryContext context, SchemaField field, QParser qparser) throws IOException {
-    StrFieldValues fieldValues = new StrFieldValues(field, qparser, true);
+    StrFieldValues fieldValues = new StrFieldValues(field, qparser);
     TopValues vals = fieldValues.getTopValues(context);
     if (!(vals instanceof StrTopValues)) {
       // This should now be impossible...
       throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "getTopStrings type mismatch for field " + field + ", found " + vals);
     }
     StrTopValues svals = (StrTopValues) vals;
-    assert svals.cacheTop;
 
-    StrLeafValues actualValues = svals.createTopValue(context);
+    StrLeafValues actualValues = svals.getTopLevelValues(context);
     return actualValues;
   }
 
@@ -56,12 +56,7 @@ public abstract class FieldValues extends ValueSource {
 
   public String getFieldName() { return field.getName(); }
 
-  public TopValues getTopValues(QueryContext context) {
-    assert context != null;
-
-    // TODO: return null for no values indexed???
-    // prevent memory filling up by misspelled fields?
-
+  private String getCacheKey() {
     String key = field.getName();
 
     if (this instanceof StrFieldValues) {
@@ -71,6 +66,27 @@ public abstract class FieldValues extends ValueSource {
         key = key + "__FORCED_STRING__";
       }
     }
+    return key;
+  }
+
+  /** Returns true if these values are already in the nCache of the searcher, without creating them or updating cache statistics */
+  public boolean isCached(SolrIndexSearcher searcher) {
+    SolrCache<String, TopValues> fieldCache = searcher.getnCache();
+    if (fieldCache == null) return false;
+    TopValues entry = fieldCache.check(getCacheKey());
+    if (entry == null) return false;
+    boolean accepted = accept(entry);
+    entry.decref();
+    return accepted;
+  }
+
+  public TopValues getTopValues(QueryContext context) {
+    assert context != null;
+
+    // TODO: return null for no values indexed???
+    // prevent memory filling up by misspelled fields?
+
+    String key = getCacheKey();
 
     // check context cache first
     TopValues entry = context.getTopValues(key);
@@ -55,7 +55,7 @@ public class FloatTopValues extends TopValues {
       if (first) {
         first = false;
         stats.firstValue = currentValue;
-        arr = HS.allocArray(maxDoc, 4, true);
+        arr = HS.allocArray(maxDoc, 4, true, HS.MEM_FIELD_VALUES);
       }
     }
 
@@ -55,7 +55,7 @@ public class IntTopValues extends TopValues {
       if (first) {
         first = false;
         stats.firstValue = currentValue;
-        arr = HS.allocArray(maxDoc, 4, true);
+        arr = HS.allocArray(maxDoc, 4, true, HS.MEM_FIELD_VALUES);
       }
     }
 
@@ -118,7 +118,7 @@ public class IntTopValues extends TopValues {
         //   offset = 0;
         // }
 
-        long arr2 = HS.allocArray(u.maxDoc, 1, false);
+        long arr2 = HS.allocArray(u.maxDoc, 1, false, HS.MEM_FIELD_VALUES);
         for (int i=0; i<u.maxDoc; i++) {
           byte v = (byte)(HS.getInt(arr, i) - offset);
           HS.setByte(arr2, i, v);
@@ -131,7 +131,7 @@ public class IntTopValues extends TopValues {
         // if (minValue >= -32768 && maxValue <= 32767) {
         //  offset = 0;
         // }
-        long arr2 = HS.allocArray(u.maxDoc, 2, false);
+        long arr2 = HS.allocArray(u.maxDoc, 2, false, HS.MEM_FIELD_VALUES);
         for (int i=0; i<u.maxDoc; i++) {
           short v = (short)(HS.getInt(arr, i) - offset);
           HS.setShort(arr2, i, v);
@@ -0,0 +1,518 @@
+package org.apache.solr.search.field;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.core.HS;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.AccessController;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the per-segment field values in sidecar files, one per segment and field, so that they can be
+ * memory mapped after a restart instead of being uninverted again.
+ * <p>
+ * The arrays are laid out in the file with the same header as arrays allocated by {@link HS}, flagged
+ * with {@link HS#MAPPED_FLAG}, so the mapped arrays are used (and "freed") like any other native array,
+ * and native code reads them directly.  The file is unmapped when the values are freed.  Files are
+ * written in the native byte order, and are rebuilt if read on a machine with another one.
+ * <p>
+ * Only the segment values of string fields are persisted for now.  Values built by a request are written
+ * by a single background thread, so that requests never wait for the files.
+ */
+public class LeafValuesStore {
+  private static final Logger log = LoggerFactory.getLogger(LeafValuesStore.class);
+
+  private static final int MAGIC = 0x534c5646;  // "SLVF"
+  private static final int VERSION = 1;
+  private static final String STR_SUFFIX = ".str";
+  private static final String TMP_SUFFIX = ".tmp";
+  private static final int ALIGN = 16;
+
+  // shared by all stores, since the store of a reloaded core may still be writing to the same directory
+  private static final AtomicInteger tmpCounter = new AtomicInteger();
+
+  private final File dir;
+  private final ThreadPoolExecutor writer;
+  private final AtomicLong numLoaded = new AtomicLong();
+  private final AtomicLong numSaved = new AtomicLong();
+
+  public LeafValuesStore(File dir) {
+    this.dir = dir;
+    this.writer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new DefaultSolrThreadFactory("leafValuesWriter"));
+    this.writer.allowCoreThreadTimeOut(true);
+  }
+
+  public File getDirectory() {
+    return dir;
+  }
+
+  public long getNumLoaded() {
+    return numLoaded.get();
+  }
+
+  public long getNumSaved() {
+    return numSaved.get();
+  }
+
+  /** Returns the store of the searcher's core, or null if field values aren't persisted */
+  public static LeafValuesStore get(SolrIndexSearcher searcher) {
+    SolrCore core = searcher == null ? null : searcher.getCore();
+    return core == null ? null : core.getLeafValuesStore();
+  }
+
+  /** Returns the segment of the leaf if it belongs to the searcher, or null if its values can't be persisted */
+  private static SegmentReader getSegment(SolrIndexSearcher searcher, AtomicReaderContext readerContext) {
+    if (!(readerContext.reader() instanceof SegmentReader)) return null;
+    // values may be requested for the leaves of another core's searcher, where segment names mean something else
+    List<AtomicReaderContext> leaves = searcher.getTopReaderContext().leaves();
+    if (readerContext.ord >= leaves.size() || leaves.get(readerContext.ord).reader() != readerContext.reader()) {
+      return null;
+    }
+    return (SegmentReader)readerContext.reader();
+  }
+
+  private File getFile(SegmentReader segment, String field, String suffix) {
+    return new File(dir, segment.getSegmentName() + '-' + escape(field) + suffix);
+  }
+
+  /** Encodes the field name for use in a file name.  Segment names never contain '-', so it separates them. */
+  static String escape(String field) {
+    StringBuilder sb = new StringBuilder(field.length());
+    for (byte b : field.getBytes(StandardCharsets.UTF_8)) {
+      if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_' || b == '-' || b == '.') {
+        sb.append((char)b);
+      } else {
+        sb.append('%').append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+    }
+    return sb.toString();
+  }
+
+  /** Describes the segment well enough to tell it from another segment that got the same name (e.g. a new index) */
+  private static String segmentId(SegmentReader segment) {
+    SegmentInfo info = segment.getSegmentInfo().info;
+    String timestamp = info.getDiagnostics() == null ? null : info.getDiagnostics().get("timestamp");
+    return info.name + ':' + info.getDocCount() + ':' + timestamp;
+  }
+
+
+  /**
+   * Maps the stored values of a string field for the segment, or returns null if there are none
+   * (or they can't be used, in which case the file is removed).
+   */
+  public StrLeafValues loadStr(SolrIndexSearcher searcher, FieldValues fieldValues, AtomicReaderContext readerContext) {
+    SegmentReader segment = getSegment(searcher, readerContext);
+    if (segment == null) return null;
+    File file = getFile(segment, fieldValues.getFieldName(), STR_SUFFIX);
+    if (!file.exists()) return null;
+
+    Mapping mapping = new Mapping();
+    boolean success = false;
+    try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+      readHeader(in, segment, fieldValues.getFieldName());
+
+      StrFieldStats stats = new StrFieldStats();
+      stats.numDocsWithField = in.readInt();
+      stats.numUniqueValues = in.readLong();
+      LongArray ords = readLongArray(in, mapping);
+      LongArray offsets = readLongArray(in, mapping);
+      long termBytes = readArray(in, mapping);
+
+      if (ords.getSize() != segment.maxDoc() || offsets.getSize() != stats.numUniqueValues) {
+        throw new IOException("Values don't match the segment");
+      }
+
+      success = true;
+      numLoaded.incrementAndGet();
+      return new StrArrLeafValues(fieldValues, ords, offsets, termBytes, stats, mapping);
+
+    } catch (IOException | RuntimeException e) {
+      log.warn("Unable to use stored field values " + file + ", they will be rebuilt", e);
+      return null;
+    } finally {
+      if (!success) {
+        mapping.close();
+        if (file.exists() && !file.delete()) {
+          log.warn("Unable to delete stored field values " + file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Stores the values of a string field for the segment, if they can be.  They are written by the
+   * background writer, which holds a reference to them until then.  Failures are logged, since the
+   * values can always be uninverted again.
+   */
+  public void saveStr(SolrIndexSearcher searcher, StrLeafValues values, AtomicReaderContext readerContext) {
+    if (!(values instanceof StrArrLeafValues)) return;  // nothing worth storing
+    final SegmentReader segment = getSegment(searcher, readerContext);
+    if (segment == null) return;
+    final StrArrLeafValues vals = (StrArrLeafValues)values;
+    if (!vals.tryIncref()) return;
+
+    try {
+      writer.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            writeStr(segment, vals);
+          } finally {
+            vals.decref();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // the store is being closed
+      vals.decref();
+    }
+  }
+
+  private void writeStr(SegmentReader segment, StrArrLeafValues vals) {
+    String field = vals.fieldValues.getFieldName();
+    File file = getFile(segment, field, STR_SUFFIX);
+    File tmp = new File(file.getPath() + TMP_SUFFIX + tmpCounter.incrementAndGet());
+    try {
+      if (!dir.exists() && !dir.mkdirs() && !dir.isDirectory()) {
+        throw new IOException("Unable to create directory " + dir);
+      }
+
+      try (Writer out = new Writer(tmp)) {
+        writeHeader(out, segment, field);
+        out.writeInt(vals.getFieldStats().numDocsWithField);
+        out.writeLong(vals.getFieldStats().numUniqueValues);
+        writeLongArray(out, vals._getDocToOrdArray());
+        writeLongArray(out, vals._getOrdToOffsetArray());
+        writeArray(out, vals._getTermBytes());
+      }
+
+      // readers only ever see a complete file
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      numSaved.incrementAndGet();
+    } catch (IOException | RuntimeException e) {
+      log.warn("Unable to store field values " + file, e);
+      tmp.delete();
+    }
+  }
+
+  /** Waits for the values queued by {@link #saveStr} so far to be written. */
+  public void waitForWrites() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    try {
+      writer.execute(new Runnable() {
+        @Override
+        public void run() {
+          done.countDown();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      return;  // closed, nothing more will be written
+    }
+    done.await();
+  }
+
+  /** Stops the background writer once the values already queued are written. */
+  public void close() {
+    ExecutorUtil.shutdownAndAwaitTermination(writer);
+  }
+
+  /**
+   * Removes the stored values of segments that aren't part of the given searcher.  Searchers that still
+   * use them keep their mappings (on file systems that allow removing mapped files).
+   */
+  public void removeUnused(SolrIndexSearcher searcher) {
+    File[] files = dir.listFiles();
+    if (files == null) return;
+
+    Set<String> segments = new HashSet<>();
+    for (AtomicReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+      if (leaf.reader() instanceof SegmentReader) {
+        segments.add(((SegmentReader)leaf.reader()).getSegmentName());
+      }
+    }
+
+    for (File file : files) {
+      String name = file.getName();
+      int sep = name.indexOf('-');
+      if (sep > 0 && segments.contains(name.substring(0, sep))) continue;  // including files being written
+      if (!file.delete()) {
+        log.debug("Unable to delete unused field values " + file);
+      }
+    }
+  }
+
+
+  private static void writeHeader(Writer out, SegmentReader segment, String field) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeByte(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 0);
+    out.writeString(segmentId(segment));
+    out.writeString(field);
+  }
+
+  private static void readHeader(RandomAccessFile in, SegmentReader segment, String field) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a field values file");
+    }
+    if (in.readInt() != VERSION) {
+      throw new IOException("Unsupported version");
+    }
+    if (in.readByte() != (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 0)) {
+      throw new IOException("Written with another byte order");
+    }
+    if (!segmentId(segment).equals(readString(in)) || !field.equals(readString(in))) {
+      throw new IOException("Written for another segment or field");
+    }
+  }
+
+  private static String readString(RandomAccessFile in) throws IOException {
+    int len = in.readInt();
+    if (len < 0 || len > 65536) {
+      throw new IOException("Bad string length " + len);
+    }
+    byte[] bytes = new byte[len];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+
+  private static void writeLongArray(Writer out, LongArray arr) throws IOException {
+    out.writeInt(arr.getNativeFormat());
+    if (arr instanceof MonotonicLongArray) {
+      MonotonicLongArray monotonic = (MonotonicLongArray)arr;
+      out.writeLong(monotonic.getScaledAverageLength());
+      out.writeInt(monotonic.getOffset());
+      writeLongArray(out, monotonic.getAdjustments());
+    } else if (arr instanceof LongArrayPacked) {
+      out.writeLong(arr.getSize());
+      writeArray(out, ((LongArrayPacked)arr).getNativeArray());
+    } else if (arr instanceof LongArrayBasicNative) {
+      writeArray(out, ((LongArrayBasicNative)arr).getNativeArray());
+    } else {
+      throw new IOException("Can't store " + arr.getClass().getName());
+    }
+  }
+
+  private static LongArray readLongArray(RandomAccessFile in, Mapping mapping) throws IOException {
+    int format = in.readInt();
+    switch (format & 0xff) {
+      case HS.FORMAT_MONOTONIC:
+        long scaledAverageLength = in.readLong();
+        int offset = in.readInt();
+        return new MonotonicLongArray(readLongArray(in, mapping), scaledAverageLength, offset);
+      case HS.FORMAT_PACKED:
+        int bits = format >>> 8;
+        long size = in.readLong();
+        if (bits <= 0 || bits >= 32 || size < 0) {
+          throw new IOException("Bad packed array: " + bits + " bits, " + size + " values");
+        }
+        long arr = readArray(in, mapping);
+        if (HS.arraySizeBytes(arr) < LongArrayPacked.bytesNeeded(size, bits)) {
+          throw new IOException("Packed array is too small");
+        }
+        return new LongArrayPacked(arr, size, bits);
+      case HS.FORMAT_INT8:
+        return new LongArray8(readArray(in, mapping));
+      case HS.FORMAT_INT16:
+        return new LongArray16(readArray(in, mapping));
+      case HS.FORMAT_INT32:
+        return new LongArray32(readArray(in, mapping));
+      case HS.FORMAT_INT64:
+        return new LongArray64(readArray(in, mapping));
+      default:
+        throw new IOException("Unknown array format " + format);
+    }
+  }
+
+  /** Writes a native array with its header, aligned so that the mapped array is aligned like an allocated one */
+  private static void writeArray(Writer out, long arr) throws IOException {
+    long size = HS.arraySizeBytes(arr);
+    if (size + HS.HEADER_SIZE > Integer.MAX_VALUE) {
+      throw new IOException("Array of " + size + " bytes is too big to map");
+    }
+    out.align(ALIGN);
+    out.writeNativeLong(HS.mappedHeader(HS.MEM_FIELD_VALUES));
+    out.writeNativeLong(size);
+    out.writeNative(arr, size);
+  }
+
+  private static long readArray(RandomAccessFile in, Mapping mapping) throws IOException {
+    long pos = in.getFilePointer();
+    pos = (pos + ALIGN - 1) & -ALIGN;
+    in.seek(pos + HS.HEADER_SIZE - HS.SIZE_OFFSET);
+    long size = in.readLong();
+    if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+      size = Long.reverseBytes(size);
+    }
+    if (size < 0 || size + HS.HEADER_SIZE > Integer.MAX_VALUE || pos + HS.HEADER_SIZE + size > in.length()) {
+      throw new IOException("Bad array size " + size + " at " + pos);
+    }
+
+    long arr = mapping.map(in.getChannel(), pos, HS.HEADER_SIZE + size) + HS.HEADER_SIZE;
+    if (!HS.isMapped(arr) || HS.arraySizeBytes(arr) != size) {
+      throw new IOException("Bad array header at " + pos);
+    }
+    in.seek(pos + HS.HEADER_SIZE + size);
+    return arr;
+  }
+
+
+  /** Writes big-endian scalars (like {@link RandomAccessFile} reads them) and native arrays, keeping track of the position */
+  private static class Writer implements Closeable {
+    private final DataOutputStream out;
+    private final byte[] buf = new byte[HS.BUFFER_SIZE_BYTES];
+    private long pos;
+
+    Writer(File file) throws IOException {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    }
+
+    void writeByte(int v) throws IOException {
+      out.writeByte(v);
+      pos += 1;
+    }
+
+    void writeInt(int v) throws IOException {
+      out.writeInt(v);
+      pos += 4;
+    }
+
+    void writeLong(long v) throws IOException {
+      out.writeLong(v);
+      pos += 8;
+    }
+
+    void writeNativeLong(long v) throws IOException {
+      writeLong(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? v : Long.reverseBytes(v));
+    }
+
+    void writeString(String s) throws IOException {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      writeInt(bytes.length);
+      out.write(bytes);
+      pos += bytes.length;
+    }
+
+    void align(int alignment) throws IOException {
+      while ((pos & (alignment - 1)) != 0) {
+        writeByte(0);
+      }
+    }
+
+    void writeNative(long arr, long size) throws IOException {
+      for (long off = 0; off < size; off += buf.length) {
+        int n = (int)Math.min(buf.length, size - off);
+        HS.copyBytes(arr, off, buf, 0, n);
+        out.write(buf, 0, n);
+      }
+      pos += size;
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+
+  /** The mapped regions of one file, unmapped all together when the values are freed */
+  static class Mapping implements Closeable {
+    private static final long ADDRESS_OFFSET;
+    static {
+      try {
+        ADDRESS_OFFSET = HS.unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+      } catch (NoSuchFieldException e) {
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Can't find the address of direct buffers", e);
+      }
+    }
+
+    private final List<MappedByteBuffer> buffers = new ArrayList<>(4);
+
+    /** Maps a region of the file read-only (segment values are never modified once built), and returns its address */
+    synchronized long map(FileChannel channel, long pos, long size) throws IOException {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+      buffers.add(buffer);
+      return HS.unsafe.getLong(buffer, ADDRESS_OFFSET);
+    }
+
+    @Override
+    public synchronized void close() {
+      for (MappedByteBuffer buffer : buffers) {
+        unmap(buffer);
+      }
+      buffers.clear();
+    }
+
+    /** Unmaps the buffer now rather than when it's garbage collected, as MMapDirectory does */
+    private static void unmap(final MappedByteBuffer buffer) {
+      try {
+        AccessController.doPrivileged(new PrivilegedExceptionAction<Void>() {
+          @Override
+          public Void run() throws Exception {
+            Method getCleanerMethod = buffer.getClass().getMethod("cleaner");
+            getCleanerMethod.setAccessible(true);
+            Object cleaner = getCleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+              cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+            return null;
+          }
+        });
+      } catch (Exception e) {
+        log.debug("Unable to unmap field values, leaving it to the garbage collector", e);
+      }
+    }
+  }
+}
@@ -35,19 +35,30 @@ public abstract class LongArray implements Closeable, HS.NativeData {
 
   public abstract long memSize();
 
+  /** If false, arrays are always rounded up to 8, 16, 32 or 64 bits per value (for comparing performance) */
+  public static volatile boolean usePacked = true;
 
   /**
-   * 8 bits needed means storing signed -128 to 127
+   * 8 bits needed means storing signed -128 to 127.
+   * Widths other than 8, 16 and 32 bits are bit packed when that takes less memory.
    */
   public static LongArray create(long size, int bitsNeeded) {
+    if (usePacked && bitsNeeded < 32 && bitsNeeded != 8 && bitsNeeded != 16) {
+      int bits = Math.max(bitsNeeded, 1);
+      long alignedBytes = size * (bits <= 8 ? 1 : bits <= 16 ? 2 : 4);
+      if (LongArrayPacked.bytesNeeded(size, bits) < alignedBytes) {
+        return new LongArrayPacked(size, bits);
+      }
+    }
+
     if (bitsNeeded <= 8) {
-      return new LongArray8(HS.allocArray(size, 1, true));
+      return new LongArray8(HS.allocArray(size, 1, true, HS.MEM_FIELD_VALUES));
     } else if (bitsNeeded <= 16) {
-      return new LongArray16(HS.allocArray(size, 2, true));
+      return new LongArray16(HS.allocArray(size, 2, true, HS.MEM_FIELD_VALUES));
     } else if (bitsNeeded <= 32) {
-      return new LongArray32(HS.allocArray(size, 4, true));
+      return new LongArray32(HS.allocArray(size, 4, true, HS.MEM_FIELD_VALUES));
     } else {
-      return new LongArray64(HS.allocArray(size, 8, true));
+      return new LongArray64(HS.allocArray(size, 8, true, HS.MEM_FIELD_VALUES));
     }
   }
 
@@ -212,4 +223,65 @@ class LongArray8 extends LongArrayBasicNative {
   public int getNativeFormat() {
     return HS.FORMAT_INT8;
   }
-}
\ No newline at end of file
+}
+
+
+// A long array bit packed into a native array with any number of bits per value less than 32.
+// Values are read with a single unaligned 8 byte load, so the array is padded to allow that at the end.
+// Setting a value rewrites the word around it, so arrays must not be written by more than one thread at a time.
+class LongArrayPacked extends LongArrayBasicNative {
+  private final long size;
+  private final int bits;
+
+  static long bytesNeeded(long size, int bits) {
+    return ((size * bits + 7) >>> 3) + 8;
+  }
+
+  public LongArrayPacked(long size, int bits) {
+    this(HS.allocArray(bytesNeeded(size, bits), 1, true, HS.MEM_FIELD_VALUES), size, bits);
+  }
+
+  LongArrayPacked(long ptr, long size, int bits) {
+    super(ptr);
+    assert bits > 0 && bits < 32 && HS.arraySizeBytes(ptr) >= bytesNeeded(size, bits);
+    this.size = size;
+    this.bits = bits;
+  }
+
+  public int getBitsPerValue() {
+    return bits;
+  }
+
+  @Override
+  public long getSize() {
+    return size;
+  }
+
+  @Override
+  public long getLong(int idx) {
+    long bitPos = (long)idx * bits;
+    long word = HS.getLongUnaligned(arr, bitPos >>> 3);
+    // shift the value to the top of the word, then back down to sign extend it
+    return (word << (64 - bits - (int)(bitPos & 7))) >> (64 - bits);
+  }
+
+  @Override
+  public int getInt(int idx) {
+    return (int)getLong(idx);
+  }
+
+  @Override
+  public void setLong(int idx, long value) {
+    long bitPos = (long)idx * bits;
+    long byteOffset = bitPos >>> 3;
+    int shift = (int)(bitPos & 7);
+    long mask = ((1L << bits) - 1) << shift;
+    long word = HS.getLongUnaligned(arr, byteOffset);
+    HS.setLongUnaligned(arr, byteOffset, (word & ~mask) | ((value << shift) & mask));
+  }
+
+  @Override
+  public int getNativeFormat() {
+    return HS.packedFormat(bits);
+  }
+}
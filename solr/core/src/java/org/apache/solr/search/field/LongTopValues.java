@@ -55,7 +55,7 @@ public class LongTopValues extends TopValues {
       if (first) {
         first = false;
         stats.firstValue = currentValue;
-        arr = HS.allocArray(maxDoc, 8, true);
+        arr = HS.allocArray(maxDoc, 8, true, HS.MEM_FIELD_VALUES);
       }
     }
 
@@ -114,7 +114,7 @@ public class LongTopValues extends TopValues {
         //   offset = 0;
         // }
 
-        long arr2 = HS.allocArray(u.maxDoc, 1, false);
+        long arr2 = HS.allocArray(u.maxDoc, 1, false, HS.MEM_FIELD_VALUES);
         for (int i=0; i<u.maxDoc; i++) {
           byte v = (byte)(HS.getLong(arr, i) - offset);
           HS.setByte(arr2, i, v);
@@ -127,7 +127,7 @@ public class LongTopValues extends TopValues {
         // if (minValue >= -32768 && maxValue <= 32767) {
         //  offset = 0;
         // }
-        long arr2 = HS.allocArray(u.maxDoc, 2, false);
+        long arr2 = HS.allocArray(u.maxDoc, 2, false, HS.MEM_FIELD_VALUES);
         for (int i=0; i<u.maxDoc; i++) {
           short v = (short)(HS.getLong(arr, i) - offset);
           HS.setShort(arr2, i, v);
@@ -139,7 +139,7 @@ public class LongTopValues extends TopValues {
         // if (minValue >= -32768 && maxValue <= 32767) {
         //  offset = 0;
         // }
-        long arr2 = HS.allocArray(u.maxDoc, 4, false);
+        long arr2 = HS.allocArray(u.maxDoc, 4, false, HS.MEM_FIELD_VALUES);
         for (int i=0; i<u.maxDoc; i++) {
           int v = (int)(HS.getLong(arr, i) - offset);
           HS.setInt(arr2, i, v);
@@ -40,6 +40,18 @@ public class MonotonicLongArray extends LongArray {
     this.offset = offset;
   }
 
+  LongArray getAdjustments() {
+    return adjustments;
+  }
+
+  long getScaledAverageLength() {
+    return scaled_average_length;
+  }
+
+  int getOffset() {
+    return offset;
+  }
+
   @Override
   public long getSize() {
     return adjustments.getSize();
@@ -87,12 +99,14 @@ public class MonotonicLongArray extends LongArray {
 
   public static class Tracker {
     long numValues;
+    long maxValue;
     long scaled_average_length;
     int min_diff = Integer.MAX_VALUE;
     int max_diff = Integer.MIN_VALUE;
 
     public Tracker(long numValues, long maxValue) {
       this.numValues = numValues;
+      this.maxValue = maxValue;
       double averageLength = ((double)maxValue) / numValues;
       scaled_average_length = (long) (averageLength * (1<<24));  // scaled by 1<<24 and then rounded down
     }
@@ -122,17 +136,15 @@ public class MonotonicLongArray extends LongArray {
 
     public LongArray createArray() {
       int bitsRequired = getRequiredBits();
-      LongArray adjustments = LongArray.create(numValues, bitsRequired);
-
-      int offset;
-      if (bitsRequired <= 8) {
-        offset = (int)((1<<7) + min_diff);
-      } else if (bitsRequired <= 16) {
-        offset = (int)((1<<15) + min_diff);
-      } else {
-        return adjustments;  // use the array directly for 32/64 bit
+      if (bitsRequired >= 32) {
+        // use an array big enough for the values themselves
+        return LongArray.create(numValues, PackedInts.bitsRequired(maxValue) + 1);
       }
 
+      // center the adjustments around 0, since the array values are signed
+      LongArray adjustments = LongArray.create(numValues, bitsRequired);
+      int offset = (1 << (bitsRequired - 1)) + min_diff;
+
       MonotonicLongArray arr = new MonotonicLongArray(adjustments, scaled_average_length, offset);
       return arr;
     }
@@ -64,7 +64,7 @@ public final class NativePagedBytes implements Closeable {
       blockEnd.add(upto);
     }
     bytesUsedInPrevBlocks += upto;
-    currentBlock = HS.allocArray(blockSize, 1, false);
+    currentBlock = HS.allocArray(blockSize, 1, false, HS.MEM_FIELD_VALUES);
     upto = 0;
   }
 
@@ -94,7 +94,7 @@ public final class NativePagedBytes implements Closeable {
 
   public long buildSingleArray() {
     long sz = getUsedSize();
-    long arr = HS.allocArray(sz, 1, false);
+    long arr = HS.allocArray(sz, 1, false, HS.MEM_FIELD_VALUES);
     long pos = 0;
     for (int i=0; i<blocks.size(); i++) {
       long block = blocks.get(i);
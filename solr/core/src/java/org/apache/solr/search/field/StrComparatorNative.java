@@ -179,6 +179,8 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
           return new Ord16(this);
         } else if (arr instanceof LongArray32) {
           return new Ord32(this);
+        } else if (arr instanceof LongArrayPacked) {
+          return new OrdPacked(this);
         }
       } else if (strValues instanceof Str0Values) {
         return new Ord0(this);
@@ -192,6 +194,8 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
           return new Ord16M(this);
         } else if (arr instanceof LongArray32) {
           return new Ord32M(this);
+        } else if (arr instanceof LongArrayPacked) {
+          return new OrdPackedM(this);
         }
       } else if (strValues instanceof Str0Values) {
         return new Ord0(this);
@@ -580,6 +584,89 @@ public class StrComparatorNative extends FieldComparator<BytesRef> {
   }
 
 
+  public static class OrdPacked extends StrComparatorNative {
+    final LongArrayPacked longArr;
+
+    public OrdPacked(StrComparatorNative prev) {
+      super(prev);
+      longArr = (LongArrayPacked) ((StrArrLeafValues)strValues)._getDocToOrdArray();
+    }
+
+    @Override
+    public int compareBottom(int doc) {
+      int docOrd = longArr.getInt(doc) - 1;
+      if (bottomSameReader) {
+        // ord is precisely comparable, even in the equal case
+        return bottomOrd - docOrd;
+      } else if (bottomOrd >= docOrd) {
+        // the equals case always means bottom is > doc
+        // (because we set bottomOrd to the lower bound in
+        // setBottom):
+        return 1;
+      } else {
+        return -1;
+      }
+    }
+
+    @Override
+    public void copy(int slot, int doc) {
+      int ord = longArr.getInt(doc) - 1;
+
+      if (ord < 0) {
+        termPointers[slot] = 0;
+      } else {
+        termPointers[slot] = strValues.ordToTermPointer(ord);
+      }
+      ords[slot] = ord;
+      readerGen[slot] = currentReaderGen;
+    }
+  }
+
+
+
+  public static class OrdPackedM extends StrComparatorNative {
+    final LongArrayPacked longArr;
+
+    public OrdPackedM(StrComparatorNative prev) {
+      super(prev);
+      longArr = (LongArrayPacked) ((StrArrLeafValues)strValues)._getDocToOrdArray();
+    }
+
+    @Override
+    public int compareBottom(int doc) {
+      int docOrd = longArr.getInt(doc) - 1;
+      if (docOrd < 0) {
+        docOrd = missingOrd;
+      }
+      if (bottomSameReader) {
+        // ord is precisely comparable, even in the equal case
+        return bottomOrd - docOrd;
+      } else if (bottomOrd >= docOrd) {
+        // the equals case always means bottom is > doc
+        // (because we set bottomOrd to the lower bound in
+        // setBottom):
+        return 1;
+      } else {
+        return -1;
+      }
+    }
+
+    @Override
+    public void copy(int slot, int doc) {
+      int ord = longArr.getInt(doc) - 1;
+
+      if (ord < 0) {
+        ord = missingOrd;
+        termPointers[slot] = 0;
+      } else {
+        termPointers[slot] = strValues.ordToTermPointer(ord);
+      }
+      ords[slot] = ord;
+      readerGen[slot] = currentReaderGen;
+    }
+  }
+
+
   public static class AnyOrd extends StrComparatorNative {
 
     public AnyOrd(StrComparatorNative prev) {
@@ -0,0 +1,420 @@
+package org.apache.solr.search.field;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.PriorityQueue;
+import org.apache.lucene.util.packed.PackedInts;
+import org.apache.solr.core.HS;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Top level string values with global ords, built from the per-segment values plus an off-heap
+ * ordinal map (segment ord to global ord, and global ord back to a segment that has the term).
+ * Unlike a top level uninversion, only the map needs to be rebuilt when the index changes, and the
+ * map of the previous searcher is reused for the segments that are shared with it.
+ * <p>
+ * The segment values are owned by the {@link StrTopValues} this was created from, and must outlive it.
+ */
+public class StrGlobalValues extends StrLeafValues {
+  private final StrLeafValues[] leaves;
+  private final int[] docStarts;
+  private final LongArray[] segToGlobal;  // null for segments without any terms
+  private final LongArray globalToSeg;
+  private final LongArray globalToSegOrd;
+  private final int numOrds;
+  private final long sizeInBytes;
+
+  private StrGlobalValues(FieldValues fieldValues, StrLeafValues[] leaves, int[] docStarts, LongArray[] segToGlobal, LongArray globalToSeg, LongArray globalToSegOrd, int numOrds) {
+    super(fieldValues, new StrFieldStats());
+    this.leaves = leaves;
+    this.docStarts = docStarts;
+    this.segToGlobal = segToGlobal;
+    this.globalToSeg = globalToSeg;
+    this.globalToSegOrd = globalToSegOrd;
+    this.numOrds = numOrds;
+    stats.numUniqueValues = numOrds;
+
+    long size = globalToSeg.memSize() + globalToSegOrd.memSize();
+    for (LongArray map : segToGlobal) {
+      if (map != null) size += map.memSize();
+    }
+    this.sizeInBytes = size;
+  }
+
+  private static int numTerms(StrLeafValues leaf) {
+    return (int)leaf.getFieldStats().getNumUniqueValues();
+  }
+
+  /** Bits needed by LongArray to store values from 0 to max (the values are signed) */
+  private static int bitsFor(long max) {
+    return PackedInts.bitsRequired(max) + 1;
+  }
+
+  /**
+   * Builds the ordinal map over the given segment values.  If the values of the previous searcher
+   * are given, the terms of the segments shared with it are not compared again: their global ords are
+   * remapped, and only the terms of the new segments are merged in.
+   *
+   * @param old the values of the previous searcher, or null
+   * @param oldToNewOrd for each segment of the previous searcher, its position in leaves or -1
+   */
+  public static StrGlobalValues create(FieldValues fieldValues, StrLeafValues[] leaves, int[] docStarts, StrGlobalValues old, int[] oldToNewOrd) {
+    final int nSegs = leaves.length;
+
+    // the segments whose ords can be remapped through the old map
+    int[] newToOldOrd = new int[nSegs];
+    Arrays.fill(newToOldOrd, -1);
+    boolean anyShared = false;
+    if (old != null) {
+      assert oldToNewOrd.length == old.leaves.length;
+      for (int i=0; i<oldToNewOrd.length; i++) {
+        int newOrd = oldToNewOrd[i];
+        if (newOrd >= 0 && old.leaves[i] == leaves[newOrd]) {
+          newToOldOrd[newOrd] = i;
+          anyShared = true;
+        }
+      }
+    }
+    if (!anyShared) {
+      old = null;
+    }
+
+    long bound = old == null ? 0 : old.numOrds;
+    int maxSegTerms = 0;
+    for (int i=0; i<nSegs; i++) {
+      int n = numTerms(leaves[i]);
+      maxSegTerms = Math.max(maxSegTerms, n);
+      if (newToOldOrd[i] < 0) bound += n;
+    }
+    if (bound >= Integer.MAX_VALUE) {
+      throw new IllegalStateException("Too many terms in field " + fieldValues.getFieldName() + ": " + bound);
+    }
+
+    LongArray[] segToGlobal = new LongArray[nSegs];
+    LongArray globalToSeg = LongArray.create(bound, bitsFor(nSegs));
+    LongArray globalToSegOrd = LongArray.create(bound, bitsFor(maxSegTerms));
+
+    // for each old global ord still in use: the first shared segment that has it (plus one, so 0 means unused) and its ord there
+    LongArray oldFirstSeg = null;
+    LongArray oldFirstOrd = null;
+    LongArray oldToGlobal = null;
+
+    try {
+      if (old != null) {
+        oldFirstSeg = LongArray.create(old.numOrds, bitsFor(nSegs + 1));
+        oldFirstOrd = LongArray.create(old.numOrds, bitsFor(maxSegTerms));
+        oldToGlobal = LongArray.create(old.numOrds, bitsFor(bound));
+        for (int seg=0; seg<nSegs; seg++) {
+          int oldSeg = newToOldOrd[seg];
+          if (oldSeg < 0 || old.segToGlobal[oldSeg] == null) continue;
+          LongArray map = old.segToGlobal[oldSeg];
+          int n = numTerms(leaves[seg]);
+          for (int ord=0; ord<n; ord++) {
+            int g = map.getInt(ord);
+            if (oldFirstSeg.getLong(g) == 0) {
+              oldFirstSeg.setLong(g, seg + 1);
+              oldFirstOrd.setLong(g, ord);
+            }
+          }
+        }
+      }
+
+      PriorityQueue<TermCursor> queue = new PriorityQueue<TermCursor>(nSegs + 1) {
+        @Override
+        protected boolean lessThan(TermCursor a, TermCursor b) {
+          return HS.compareLengthPrefixBytes(a.pointer, b.pointer) < 0;
+        }
+      };
+
+      for (int seg=0; seg<nSegs; seg++) {
+        int n = numTerms(leaves[seg]);
+        if (n == 0 || newToOldOrd[seg] >= 0) continue;
+        segToGlobal[seg] = LongArray.create(n, bitsFor(bound));
+        TermCursor cursor = new SegmentCursor(leaves[seg], seg, n);
+        if (cursor.next()) queue.add(cursor);
+      }
+      if (old != null) {
+        TermCursor cursor = new OldCursor(old.numOrds, leaves, oldFirstSeg, oldFirstOrd);
+        if (cursor.next()) queue.add(cursor);
+      }
+
+      int numOrds = 0;
+      long lastPointer = 0;
+      while (queue.size() > 0) {
+        TermCursor top = queue.top();
+        if (numOrds == 0 || HS.compareLengthPrefixBytes(lastPointer, top.pointer) != 0) {
+          globalToSeg.setLong(numOrds, top.firstSeg());
+          globalToSegOrd.setLong(numOrds, top.firstOrd());
+          lastPointer = top.pointer;
+          numOrds++;
+        }
+
+        int global = numOrds - 1;
+        if (top.seg >= 0) {
+          segToGlobal[top.seg].setLong(top.ord, global);
+        } else {
+          oldToGlobal.setLong(top.ord, global);
+        }
+
+        if (top.next()) {
+          queue.updateTop();
+        } else {
+          queue.pop();
+        }
+      }
+
+      // remap the shared segments through the old map
+      for (int seg=0; seg<nSegs; seg++) {
+        int oldSeg = newToOldOrd[seg];
+        if (oldSeg < 0 || old.segToGlobal[oldSeg] == null) continue;
+        LongArray oldMap = old.segToGlobal[oldSeg];
+        int n = numTerms(leaves[seg]);
+        LongArray map = segToGlobal[seg] = LongArray.create(n, bitsFor(numOrds));
+        for (int ord=0; ord<n; ord++) {
+          map.setLong(ord, oldToGlobal.getLong(oldMap.getInt(ord)));
+        }
+      }
+
+      if (numOrds < bound - (bound >> 2)) {
+        // don't keep the slack of a loose bound (e.g. the same terms in many segments)
+        globalToSeg = shrink(globalToSeg, numOrds, bitsFor(nSegs));
+        globalToSegOrd = shrink(globalToSegOrd, numOrds, bitsFor(maxSegTerms));
+      }
+
+      return new StrGlobalValues(fieldValues, leaves, docStarts, segToGlobal, globalToSeg, globalToSegOrd, numOrds);
+
+    } finally {
+      close(oldFirstSeg);
+      close(oldFirstOrd);
+      close(oldToGlobal);
+    }
+  }
+
+  private static LongArray shrink(LongArray arr, int size, int bits) {
+    LongArray exact = LongArray.create(size, bits);
+    for (int i=0; i<size; i++) {
+      exact.setLong(i, arr.getLong(i));
+    }
+    close(arr);
+    return exact;
+  }
+
+  private static void close(LongArray arr) {
+    if (arr == null) return;
+    try {
+      arr.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+
+  /** Walks the terms of one source in sorted order */
+  private static abstract class TermCursor {
+    final int seg;    // the segment, or -1 for the old map
+    int ord = -1;     // the current ord in the source
+    long pointer;     // the current term
+
+    TermCursor(int seg) {
+      this.seg = seg;
+    }
+
+    abstract boolean next();
+    abstract long firstSeg();
+    abstract long firstOrd();
+  }
+
+  private static final class SegmentCursor extends TermCursor {
+    final StrLeafValues leaf;
+    final int numTerms;
+
+    SegmentCursor(StrLeafValues leaf, int seg, int numTerms) {
+      super(seg);
+      this.leaf = leaf;
+      this.numTerms = numTerms;
+    }
+
+    @Override
+    boolean next() {
+      if (++ord >= numTerms) return false;
+      pointer = leaf.ordToTermPointer(ord);
+      return true;
+    }
+
+    @Override
+    long firstSeg() {
+      return seg;
+    }
+
+    @Override
+    long firstOrd() {
+      return ord;
+    }
+  }
+
+  /**
+   * Walks the global ords of the old map that are still used by a shared segment.  The terms are read
+   * from those shared segments, never through the old map: the segments it points to may already have
+   * been merged away and their values freed along with the old searcher.
+   */
+  private static final class OldCursor extends TermCursor {
+    final int numOldOrds;
+    final StrLeafValues[] leaves;
+    final LongArray firstSeg;
+    final LongArray firstOrd;
+
+    OldCursor(int numOldOrds, StrLeafValues[] leaves, LongArray firstSeg, LongArray firstOrd) {
+      super(-1);
+      this.numOldOrds = numOldOrds;
+      this.leaves = leaves;
+      this.firstSeg = firstSeg;
+      this.firstOrd = firstOrd;
+    }
+
+    @Override
+    boolean next() {
+      while (++ord < numOldOrds) {
+        long seg = firstSeg.getLong(ord);
+        if (seg != 0) {
+          pointer = leaves[(int)seg - 1].ordToTermPointer(firstOrd.getLong(ord));
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    long firstSeg() {
+      return firstSeg.getLong(ord) - 1;
+    }
+
+    @Override
+    long firstOrd() {
+      return firstOrd.getLong(ord);
+    }
+  }
+
+
+  @Override
+  public LongArray getOrdArray() {
+    return null;  // there is no top level doc to ord array
+  }
+
+  public int getNumSegments() {
+    return leaves.length;
+  }
+
+  /** The values of a segment, by its position in the leaves of the searcher */
+  public StrLeafValues getSegmentValues(int seg) {
+    return leaves[seg];
+  }
+
+  /** Maps the ords of a segment to global ords, or null if the segment has no terms */
+  public LongArray getSegmentToGlobal(int seg) {
+    return segToGlobal[seg];
+  }
+
+  @Override
+  public int ordVal(int doc) {
+    int seg = ReaderUtil.subIndex(doc, docStarts);
+    LongArray map = segToGlobal[seg];
+    if (map == null) return -1;
+    int ord = leaves[seg].ordVal(doc - docStarts[seg]);
+    return ord < 0 ? -1 : map.getInt(ord);
+  }
+
+  @Override
+  public long ordToTermPointer(long ord) {
+    return leaves[globalToSeg.getInt((int)ord)].ordToTermPointer(globalToSegOrd.getLong((int)ord));
+  }
+
+  @Override
+  public int termPointerToOrd(long termPointer) {
+    int low = 0;
+    int high = numOrds - 1;
+
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = HS.compareLengthPrefixBytes(ordToTermPointer(mid), termPointer);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid; // key found
+      }
+    }
+
+    return -(low + 1);  // key not found.
+  }
+
+  @Override
+  public long termToOrd(BytesRef key) {
+    int low = 0;
+    int high = numOrds - 1;
+
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = HS.compareLengthPrefixBytes(ordToTermPointer(mid), key);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid; // key found
+      }
+    }
+
+    return -(low + 1);  // key not found.
+  }
+
+  @Override
+  public void ordToTerm(long ord, BytesRef target) {
+    leaves[globalToSeg.getInt((int)ord)].ordToTerm(globalToSegOrd.getLong((int)ord), target);
+  }
+
+  @Override
+  public boolean bytesVal(int doc, BytesRef target) {
+    int ord = ordVal(doc);
+    if (ord < 0) {
+      target.length = 0;
+      return false;
+    }
+    ordToTerm(ord, target);
+    return true;
+  }
+
+  /** The size of the ordinal map only, the segment values are accounted for by their StrTopValues */
+  @Override
+  public long getSizeInBytes() {
+    return sizeInBytes;
+  }
+
+  @Override
+  protected void free() {
+    for (LongArray map : segToGlobal) {
+      close(map);
+    }
+    close(globalToSeg);
+    close(globalToSegOrd);
+  }
+}
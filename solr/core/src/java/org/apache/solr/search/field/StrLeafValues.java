@@ -26,6 +26,7 @@ import org.apache.solr.search.function.ValueSourceScorer;
 import org.apache.solr.search.mutable.MutableValue;
 import org.apache.solr.search.mutable.MutableValueStr;
 
+import java.io.Closeable;
 import java.io.IOException;
 
 
@@ -146,14 +147,20 @@ class StrArrLeafValues extends StrLeafValues {
   private final LongArray ords;  // contains 1-numOrd, with 0 meaning "missing"... subtract 1 to get the "real" ord
   private final LongArray ordToOffset;  // indexed by ord (so 0 is first real value...)
   private final long termBytes; // offset 0 is first real value
+  private final Closeable mapping;  // the file the arrays are mapped from, or null
 
   // offset = avg_term_length * ord + adjustment;
 
   public StrArrLeafValues(FieldValues fieldValues, LongArray ords, LongArray offsets, long termBytes, StrFieldStats stats) {
+    this(fieldValues, ords, offsets, termBytes, stats, null);
+  }
+
+  public StrArrLeafValues(FieldValues fieldValues, LongArray ords, LongArray offsets, long termBytes, StrFieldStats stats, Closeable mapping) {
     super(fieldValues, stats);
     this.ords = ords;
     this.ordToOffset = offsets;
     this.termBytes = termBytes;
+    this.mapping = mapping;
   }
 
   @Override
@@ -253,6 +260,9 @@ class StrArrLeafValues extends StrLeafValues {
       HS.freeArray(termBytes);
       ords.close();
       ordToOffset.close();
+      if (mapping != null) {
+        mapping.close();
+      }
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
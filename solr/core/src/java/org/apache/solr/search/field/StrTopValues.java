@@ -32,10 +32,18 @@ import org.apache.solr.search.QueryContext;
 import org.apache.solr.search.SolrIndexSearcher;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 public class StrTopValues extends TopValues {
   protected volatile StrLeafValues allSegs;
+  protected volatile StrGlobalValues globalValues;  // global ords over the per-segment values when !cacheTop
+  private final Object globalLock = new Object();   // not "this", so getLeafValues and getSizeInBytes aren't blocked while the map is built
+  // the global values of the previous searcher, held until global ords are first built on this one so that
+  // its map can be reused for the shared segments (guarded by globalLock)
+  private StrGlobalValues prevGlobal;
+  private int[] prevOldToNewOrd;
   protected final boolean cacheTop;
 
   public StrTopValues(StrFieldValues strFieldValues) {
@@ -48,7 +56,8 @@ public class StrTopValues extends TopValues {
     if (cacheTop) {
       return allSegs == null ? 0 : allSegs.getSizeInBytes();
     } else {
-      return super.getSizeInBytes();
+      StrGlobalValues global = globalValues;
+      return super.getSizeInBytes() + (global == null ? 0 : global.getSizeInBytes());
     }
   }
 
@@ -58,6 +67,48 @@ public class StrTopValues extends TopValues {
     if (cacheTop) {
       map.put("cacheTop", "true");
     }
+    if (globalValues != null) {
+      map.put("globalOrds", globalValues.getFieldStats().getNumUniqueValues());
+    }
+  }
+
+  /** Returns values over the whole index: the top level cache if cacheTop, otherwise global ords over the segments. */
+  public StrLeafValues getTopLevelValues(QueryContext context) throws IOException {
+    return cacheTop ? createTopValue(context) : getGlobalValues(context);
+  }
+
+  public StrGlobalValues getGlobalValues(QueryContext context) throws IOException {
+    if (globalValues != null) return globalValues;
+    assert !cacheTop;
+
+    synchronized (globalLock) {
+      if (globalValues == null) {
+        globalValues = createGlobalValues(context, prevGlobal, prevOldToNewOrd);
+        releasePrevGlobal();
+      }
+    }
+
+    return globalValues;
+  }
+
+  private void releasePrevGlobal() {
+    if (prevGlobal != null) {
+      prevGlobal.decref();
+      prevGlobal = null;
+      prevOldToNewOrd = null;
+    }
+  }
+
+  private StrGlobalValues createGlobalValues(QueryContext context, StrGlobalValues old, int[] oldToNewOrd) throws IOException {
+    List<AtomicReaderContext> leaves = context.searcher().getTopReaderContext().leaves();
+    StrLeafValues[] segValues = new StrLeafValues[leaves.size()];
+    int[] docStarts = new int[leaves.size()];
+    for (int i=0; i<segValues.length; i++) {
+      AtomicReaderContext leaf = leaves.get(i);
+      segValues[i] = (StrLeafValues)getLeafValues(context, leaf);
+      docStarts[i] = leaf.docBase;
+    }
+    return StrGlobalValues.create(fieldValues, segValues, docStarts, old, oldToNewOrd);
   }
 
   /** These "StrLeafValues" are really top level (i.e. the leaf is the top level reader). */
@@ -82,7 +133,19 @@ public class StrTopValues extends TopValues {
       return new StrSliceValues(allSegs, readerContext.docBase, readerContext.reader().maxDoc());
     }
 
-    return uninvert(context, create, readerContext);
+    LeafValuesStore store = LeafValuesStore.get(context.searcher());
+    if (store != null) {
+      StrLeafValues stored = store.loadStr(context.searcher(), fieldValues, readerContext);
+      if (stored != null) {
+        return stored;
+      }
+    }
+
+    StrLeafValues values = uninvert(context, create, readerContext);
+    if (store != null) {
+      store.saveStr(context.searcher(), values, readerContext);
+    }
+    return values;
   }
 
   public static long singleValuedUpperBoundTerms(Terms terms, int maxDoc) throws IOException {
@@ -280,12 +343,47 @@ public class StrTopValues extends TopValues {
       return null;
     }
     StrTopValues tv = new StrTopValues((StrFieldValues)fieldValues);
+
+    StrGlobalValues oldGlobal = globalValues;
+    if (oldGlobal != null && warmContext.segmentsShared > 0 && oldGlobal.tryIncref()) {
+      // global ords were used on the old searcher, so its map is kept to be reused for the shared segments.
+      // Only the new segments need to be merged in, once their values exist.
+      tv.prevGlobal = oldGlobal;
+      tv.prevOldToNewOrd = warmContext.oldToNewOrd;
+    }
+
     tv.create(warmContext, this);
     return tv;
   }
 
+  @Override
+  public void warmLeaves(SolrIndexSearcher.WarmContext warmContext) {
+    super.warmLeaves(warmContext);
+
+    boolean remap;
+    synchronized (globalLock) {
+      remap = prevGlobal != null;
+    }
+    if (remap) {
+      // queued after the values of the new segments that it needs, and built on first use instead if it is cancelled
+      final QueryContext context = QueryContext.newContext(warmContext.searcher);
+      submitWarming(warmContext, new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          return getGlobalValues(context);
+        }
+      });
+    }
+  }
+
   @Override
   public void free() {
+    if (globalValues != null) {
+      globalValues.decref();
+    }
+    synchronized (globalLock) {
+      releasePrevGlobal();
+    }
     super.free();
     if (allSegs != null) {
       allSegs.decref();
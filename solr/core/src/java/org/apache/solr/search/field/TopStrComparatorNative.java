@@ -155,6 +155,8 @@ public class TopStrComparatorNative extends FieldComparator<BytesRef> {
           return new Ord16(this);
         } else if (arr instanceof LongArray32) {
           return new Ord32(this);
+        } else if (arr instanceof LongArrayPacked) {
+          return new OrdPacked(this);
         }
       } else if (strValues instanceof Str0Values) {
         return new Ord0(this);
@@ -168,6 +170,8 @@ public class TopStrComparatorNative extends FieldComparator<BytesRef> {
           return new Ord16M(this);
         } else if (arr instanceof LongArray32) {
           return new Ord32M(this);
+        } else if (arr instanceof LongArrayPacked) {
+          return new OrdPackedM(this);
         }
       } else if (strValues instanceof Str0Values) {
         return new Ord0(this);
@@ -418,6 +422,57 @@ public class TopStrComparatorNative extends FieldComparator<BytesRef> {
 
 
 
+  public static class OrdPacked extends TopStrComparatorNative {
+    final LongArrayPacked longArr;
+
+    public OrdPacked(TopStrComparatorNative prev) {
+      super(prev);
+      longArr = (LongArrayPacked) ((StrArrLeafValues)strValues)._getDocToOrdArray();
+    }
+
+    @Override
+    public int compareBottom(int doc) {
+      int docOrd = longArr.getInt(doc + base) - 1;
+      return bottomOrd - docOrd;
+    }
+
+    @Override
+    public void copy(int slot, int doc) {
+      int ord = longArr.getInt(doc + base) - 1;
+      ords[slot] = ord;
+    }
+  }
+
+
+  public static class OrdPackedM extends TopStrComparatorNative {
+    final LongArrayPacked longArr;
+
+    public OrdPackedM(TopStrComparatorNative prev) {
+      super(prev);
+      longArr = (LongArrayPacked) ((StrArrLeafValues)strValues)._getDocToOrdArray();
+    }
+
+    @Override
+    public int compareBottom(int doc) {
+      int docOrd = longArr.getInt(doc + base) - 1;
+      if (docOrd < 0) {
+        docOrd = missingOrd;
+      }
+      return bottomOrd - docOrd;
+    }
+
+    @Override
+    public void copy(int slot, int doc) {
+      int ord = longArr.getInt(doc + base) - 1;
+      if (ord < 0) {
+        ord = missingOrd;
+      }
+      ords[slot] = ord;
+    }
+  }
+
+
+
   public static class AnyOrd extends TopStrComparatorNative {
 
     public AnyOrd(TopStrComparatorNative prev) {
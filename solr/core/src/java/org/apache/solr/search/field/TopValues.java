@@ -18,6 +18,7 @@ package org.apache.solr.search.field;
  */
 
 import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
 import org.apache.solr.core.RefCountBase;
 import org.apache.solr.search.CacheRegenerator;
 import org.apache.solr.search.QueryContext;
@@ -26,7 +27,12 @@ import org.noggit.JSONUtil;
 
 import java.io.IOException;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 
@@ -37,6 +43,7 @@ public abstract class TopValues extends RefCountBase {
   protected volatile int nSegs;  // number of segments instantiated
   protected int carriedOver;    // number of segments carried over
   protected AtomicLong uses = new AtomicLong();
+  private final AtomicLong leafBytes = new AtomicLong();  // size of the leaves created or carried over so far
 
   // top terms?
 
@@ -82,6 +89,7 @@ public abstract class TopValues extends RefCountBase {
             leafValues[readerOrd] = create.value;
             nSegs++;
           }
+          leafBytes.addAndGet(create.value.getSizeInBytes());
         }
         leaf = create.value;
       }
@@ -114,21 +122,9 @@ public abstract class TopValues extends RefCountBase {
     map.put("size", getSizeInBytes());
   }
 
+  /** Kept up to date as leaves are added, since the nCache measures its entries on every access */
   public long getSizeInBytes() {
-    LeafValues[] snapshot;
-    synchronized (this) {
-      if (leafValues == null) return 0;
-      snapshot = leafValues.clone();
-    }
-
-    long answer = 0;
-    for (LeafValues leaf : snapshot) {
-      if (leaf != null && !(leaf instanceof CreationLeafValue)) {
-        answer += leaf.getSizeInBytes();
-      }
-    }
-
-    return answer;
+    return leafBytes.get();
   }
 
 
@@ -220,6 +216,13 @@ public abstract class TopValues extends RefCountBase {
 
   // called on a newly created TopValues
   public void create(SolrIndexSearcher.WarmContext warmContext, TopValues oldTopValues) {
+    carryOver(warmContext, oldTopValues);
+    if (warmContext.valuesExecutor != null) {
+      warmLeaves(warmContext);
+    }
+  }
+
+  private void carryOver(SolrIndexSearcher.WarmContext warmContext, TopValues oldTopValues) {
     LeafValues[] oldLeafValues = oldTopValues.leafValues;
 
     if (warmContext.segmentsShared == 0 || oldLeafValues == null) {
@@ -238,6 +241,7 @@ public abstract class TopValues extends RefCountBase {
           if (lf != null && !(lf instanceof CreationLeafValue)) {
             lf.incref();
             leafValues[newOrd] = lf;
+            leafBytes.addAndGet(lf.getSizeInBytes());
             carriedOver++;
             nSegs++;
           }
@@ -246,4 +250,99 @@ public abstract class TopValues extends RefCountBase {
     }
   }
 
-}
\ No newline at end of file
+  /**
+   * Creates the values of the segments that weren't carried over (the new segments of the searcher being
+   * warmed) on the warming executor, in parallel, so that the first queries don't wait for them.
+   * These values were in use on the old searcher, so they will most likely be needed on the new one.
+   * Each task holds a reference to this and to the reader of the searcher, since the searcher may be
+   * closed or registered without waiting for it.
+   */
+  public void warmLeaves(SolrIndexSearcher.WarmContext warmContext) {
+    final QueryContext context = QueryContext.newContext(warmContext.searcher);
+    List<AtomicReaderContext> leaves = warmContext.searcher.getTopReaderContext().leaves();
+
+    for (final AtomicReaderContext leaf : leaves) {
+      synchronized (this) {
+        if (leafValues != null && leafValues[leaf.ord] != null) continue;
+      }
+
+      boolean queued = submitWarming(warmContext, new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          return getLeafValues(context, leaf);
+        }
+      });
+      if (!queued) return;
+    }
+  }
+
+  /**
+   * Queues work on the warming executor that the new searcher will wait for (up to nCacheWarmTimeout).
+   * Returns false if it wasn't queued because this, the searcher or the core is being closed.
+   */
+  protected boolean submitWarming(SolrIndexSearcher.WarmContext warmContext, Callable<Object> work) {
+    final IndexReader reader = warmContext.searcher.getIndexReader();
+    if (!tryIncref()) return false;
+    if (!reader.tryIncRef()) {
+      // the searcher has already been closed
+      decref();
+      return false;
+    }
+
+    WarmTask task = new WarmTask(work) {
+      @Override
+      protected void release() {
+        try {
+          reader.decRef();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        } finally {
+          decref();
+        }
+      }
+    };
+
+    warmContext.valueFutures.add(task);  // before it is queued, so that it can always be cancelled
+    try {
+      warmContext.valuesExecutor.execute(task);
+    } catch (RejectedExecutionException e) {
+      // the core is closing
+      task.cancel(false);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * A task that holds references until it has run, or until it is cancelled before it starts.
+   * The references are released exactly once, by whichever of those happens first.
+   */
+  private static abstract class WarmTask extends FutureTask<Object> {
+    private final AtomicBoolean claimed = new AtomicBoolean();
+
+    WarmTask(Callable<Object> callable) {
+      super(callable);
+    }
+
+    protected abstract void release();
+
+    @Override
+    public void run() {
+      if (!claimed.compareAndSet(false, true)) return;  // cancelled, and already released
+      try {
+        super.run();
+      } finally {
+        release();
+      }
+    }
+
+    @Override
+    protected void done() {
+      if (isCancelled() && claimed.compareAndSet(false, true)) {
+        // it will never run
+        release();
+      }
+    }
+  }
+
+}
@@ -27,6 +27,7 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
@@ -40,6 +41,11 @@ import java.lang.ref.WeakReference;
  * strategy. Instead it strives to remove least recently used items but when the initial
  * cleanup does not remove enough items to reach the 'acceptableWaterMark' limit, it can
  * remove more items forcefully regardless of access order.
+ * <p/>
+ * A cache may also be bounded by the memory its values use, as measured by a {@link RamEstimator}.
+ * Java heap and off-heap (native) bytes are tracked separately, with an optional limit on the total
+ * and another on the off-heap part alone.  When a limit is exceeded, entries are evicted in order
+ * of last access until the usage is back under the low water mark.
  *
  *
  * @since solr 1.4
@@ -58,10 +64,30 @@ public class ConcurrentLRUCache<K,V> {
   private long oldestEntry = 0;  // not volatile, only accessed in the cleaning method
   private final EvictionListener<K,V> evictionListener;
   private CleanupThread cleanupThread ;
+  private final AtomicBoolean asyncCleanupPending = new AtomicBoolean();  // a sweep requested by get() is queued
+
+  private final RamEstimator<? super V> ramEstimator;
+  private final boolean ramLimited;  // true if the cache is bounded by memory
+  private final long ramUpperWaterMark, ramLowerWaterMark;  // heap + off-heap bytes
+  private final long offHeapUpperWaterMark, offHeapLowerWaterMark;
 
   public ConcurrentLRUCache(int upperWaterMark, final int lowerWaterMark, int acceptableWatermark,
                             int initialSize, boolean runCleanupThread, boolean runNewThreadForCleanup,
                             EvictionListener<K,V> evictionListener) {
+    this(upperWaterMark, lowerWaterMark, acceptableWatermark, initialSize, runCleanupThread, runNewThreadForCleanup,
+        evictionListener, -1, -1, null);
+  }
+
+  /**
+   * @param maxRamBytes limit on the heap plus off-heap bytes used by the values, or -1 for no limit
+   * @param maxOffHeapBytes limit on the off-heap bytes used by the values, or -1 for no limit
+   * @param ramEstimator measures the values, must be non-null if either byte limit is set or
+   *                     {@link #evictOffHeap} is used
+   */
+  public ConcurrentLRUCache(int upperWaterMark, final int lowerWaterMark, int acceptableWatermark,
+                            int initialSize, boolean runCleanupThread, boolean runNewThreadForCleanup,
+                            EvictionListener<K,V> evictionListener,
+                            long maxRamBytes, long maxOffHeapBytes, RamEstimator<? super V> ramEstimator) {
     if (upperWaterMark < 1) throw new IllegalArgumentException("upperWaterMark must be > 0");
     if (lowerWaterMark >= upperWaterMark)
       throw new IllegalArgumentException("lowerWaterMark must be  < upperWaterMark");
@@ -71,6 +97,14 @@ public class ConcurrentLRUCache<K,V> {
     this.lowerWaterMark = lowerWaterMark;
     this.acceptableWaterMark = acceptableWatermark;
     this.evictionListener = evictionListener;
+    if ((maxRamBytes > 0 || maxOffHeapBytes > 0) && ramEstimator == null)
+      throw new IllegalArgumentException("ramEstimator is required to limit memory");
+    this.ramEstimator = ramEstimator;
+    this.ramLimited = maxRamBytes > 0 || maxOffHeapBytes > 0;
+    this.ramUpperWaterMark = maxRamBytes > 0 ? maxRamBytes : Long.MAX_VALUE;
+    this.ramLowerWaterMark = maxRamBytes > 0 ? (long)(maxRamBytes * 0.9) : Long.MAX_VALUE;
+    this.offHeapUpperWaterMark = maxOffHeapBytes > 0 ? maxOffHeapBytes : Long.MAX_VALUE;
+    this.offHeapLowerWaterMark = maxOffHeapBytes > 0 ? (long)(maxOffHeapBytes * 0.9) : Long.MAX_VALUE;
     if (runCleanupThread) {
       cleanupThread = new CleanupThread(this);
       cleanupThread.start();
@@ -99,6 +133,12 @@ public class ConcurrentLRUCache<K,V> {
     }
 
     if (islive) e.lastAccessed = stats.accessCounter.incrementAndGet();
+    if (ramLimited) {
+      // values like TopValues grow after they are inserted, so measure again on each access.
+      // Estimators must be cheap, e.g. TopValues keeps a running total of the size of its leaves.
+      measure(e);
+      if (isOverRamLimit() && !isCleaning) cleanupAsync();
+    }
     return e.value;
   }
 
@@ -120,6 +160,7 @@ public class ConcurrentLRUCache<K,V> {
     CacheEntry<K,V> cacheEntry = map.remove(key);
     if (cacheEntry != null) {
       stats.size.decrementAndGet();
+      release(cacheEntry);
       return cacheEntry.value;
     }
     return null;
@@ -134,6 +175,10 @@ public class ConcurrentLRUCache<K,V> {
       currentSize = stats.size.incrementAndGet();
     } else {
       currentSize = stats.size.get();
+      release(oldCacheEntry);
+    }
+    if (ramLimited) {
+      measure(e);
     }
     if (islive) {
       stats.putCounter.incrementAndGet();
@@ -151,21 +196,75 @@ public class ConcurrentLRUCache<K,V> {
     //
     // Thread safety note: isCleaning read is piggybacked (comes after) other volatile reads
     // in this method.
-    if (currentSize > upperWaterMark && !isCleaning) {
-      if (newThreadForCleanup) {
-        new Thread() {
-          @Override
-          public void run() {
+    if ((currentSize > upperWaterMark || isOverRamLimit()) && !isCleaning) {
+      cleanup();
+    }
+    return oldCacheEntry == null ? null : oldCacheEntry.value;
+  }
+
+  private void cleanup() {
+    if (newThreadForCleanup) {
+      new Thread() {
+        @Override
+        public void run() {
+          markAndSweep();
+        }
+      }.start();
+    } else if (cleanupThread != null){
+      cleanupThread.wakeThread();
+    } else {
+      markAndSweep();
+    }
+  }
+
+  /** Like cleanup, but never sweeps on the calling thread.  Used by get(), which shouldn't pay for an eviction
+   * pass because a value grew.  Without a cleanup thread, at most one sweep thread is started at a time.
+   */
+  private void cleanupAsync() {
+    if (cleanupThread != null) {
+      cleanupThread.wakeThread();
+    } else if (asyncCleanupPending.compareAndSet(false, true)) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
             markAndSweep();
+          } finally {
+            asyncCleanupPending.set(false);
           }
-        }.start();
-      } else if (cleanupThread != null){
-        cleanupThread.wakeThread();
-      } else {
-        markAndSweep();
-      }
+        }
+      }.start();
+    }
+  }
+
+  private boolean isOverRamLimit() {
+    if (!ramLimited) return false;
+    long offHeap = stats.offHeapBytes.get();
+    return offHeap > offHeapUpperWaterMark || stats.ramBytes.get() + offHeap > ramUpperWaterMark;
+  }
+
+  /** Measures the value of the entry again and updates the byte counts with the difference */
+  private void measure(CacheEntry<K,V> ce) {
+    long ram = ramEstimator.ramBytes(ce.value);
+    long offHeap = ramEstimator.offHeapBytes(ce.value);
+    if (ram == ce.ramBytes && offHeap == ce.offHeapBytes) return;  // the common case, unchanged since the last access
+    synchronized (ce) {
+      if (ce.released) return;
+      stats.ramBytes.addAndGet(ram - ce.ramBytes);
+      stats.offHeapBytes.addAndGet(offHeap - ce.offHeapBytes);
+      ce.ramBytes = ram;
+      ce.offHeapBytes = offHeap;
+    }
+  }
+
+  /** Removes the bytes of an entry that has been taken out of the map from the byte counts */
+  private void release(CacheEntry<K,V> ce) {
+    synchronized (ce) {
+      if (ce.released) return;
+      ce.released = true;
+      stats.ramBytes.addAndGet(-ce.ramBytes);
+      stats.offHeapBytes.addAndGet(-ce.offHeapBytes);
     }
-    return oldCacheEntry == null ? null : oldCacheEntry.value;
   }
 
   /**
@@ -178,6 +277,9 @@ public class ConcurrentLRUCache<K,V> {
    * <p/>
    * The second stage is more intensive and tries to bring down the cache size
    * to the 'lowerWaterMark' config parameter.
+   * <p/>
+   * If the cache is bounded by memory and over its limit, the least recently used entries
+   * are first evicted until the bytes used are under the lower byte limits.
    */
   private void markAndSweep() {
     // if we want to keep at least 1000 entries, then timestamps of
@@ -194,8 +296,13 @@ public class ConcurrentLRUCache<K,V> {
       isCleaning = true;
       this.oldestEntry = oldestEntry;     // volatile write to make isCleaning visible
 
+      if (isOverRamLimit()) {
+        markAndSweepByRam();
+      }
+
       long timeCurrent = stats.accessCounter.get();
       int sz = stats.size.get();
+      if (sz <= upperWaterMark) return;
 
       int numRemoved = 0;
       int numKept = 0;
@@ -373,6 +480,55 @@ public class ConcurrentLRUCache<K,V> {
     }
   }
 
+  /** Evicts entries in order of last access until the bytes used are under the lower byte limits. */
+  private void markAndSweepByRam() {
+    @SuppressWarnings("unchecked")
+    CacheEntry<K,V>[] entries = map.values().toArray(new CacheEntry[0]);
+    for (CacheEntry<K,V> ce : entries) {
+      ce.lastAccessedCopy = ce.lastAccessed;
+      measure(ce);
+    }
+    // oldest first
+    Arrays.sort(entries, Collections.reverseOrder());
+
+    for (CacheEntry<K,V> ce : entries) {
+      long offHeap = stats.offHeapBytes.get();
+      if (offHeap <= offHeapLowerWaterMark && stats.ramBytes.get() + offHeap <= ramLowerWaterMark) break;
+      evictEntry(ce.key);
+    }
+  }
+
+  /**
+   * Evicts the least recently used entries that hold off-heap memory until about the given number of
+   * bytes have been released, for when the process is short of off-heap memory.  Does nothing if
+   * another thread is already cleaning the cache.
+   * @return the off-heap bytes of the evicted entries
+   */
+  public long evictOffHeap(long bytesWanted) {
+    if (ramEstimator == null || !markAndSweepLock.tryLock()) return 0;
+    try {
+      @SuppressWarnings("unchecked")
+      CacheEntry<K,V>[] entries = map.values().toArray(new CacheEntry[0]);
+      for (CacheEntry<K,V> ce : entries) {
+        ce.lastAccessedCopy = ce.lastAccessed;
+      }
+      // oldest first
+      Arrays.sort(entries, Collections.reverseOrder());
+
+      long evicted = 0;
+      for (CacheEntry<K,V> ce : entries) {
+        if (evicted >= bytesWanted) break;
+        long offHeap = ramEstimator.offHeapBytes(ce.value);
+        if (offHeap <= 0) continue;
+        evictEntry(ce.key);
+        evicted += offHeap;
+      }
+      return evicted;
+    } finally {
+      markAndSweepLock.unlock();
+    }
+  }
+
   private static class PQueue<K,V> extends PriorityQueue<CacheEntry<K,V>> {
     int myMaxSize;
     final Object[] heap;
@@ -417,6 +573,7 @@ public class ConcurrentLRUCache<K,V> {
     if (o == null) return;
     stats.size.decrementAndGet();
     stats.evictionCounter.incrementAndGet();
+    release(o);
     if(evictionListener != null) evictionListener.evictedEntry(o.key,o.value);
     if (o.value instanceof RefCount) {
       ((RefCount)o.value).decref();
@@ -510,6 +667,7 @@ public class ConcurrentLRUCache<K,V> {
       markAndSweepLock.lock();
 
       for (CacheEntry<K, V> ce : map.values()) {
+        release(ce);
         if (ce.value instanceof RefCount) {
           ((RefCount) ce.value).decref();
         }
@@ -531,6 +689,9 @@ public class ConcurrentLRUCache<K,V> {
     V value;
     volatile long lastAccessed = 0;
     long lastAccessedCopy = 0;
+    // bytes last measured for the value, written under the entry's monitor
+    volatile long ramBytes, offHeapBytes;
+    boolean released;
 
 
     public CacheEntry(K key, V value, long lastAccessed) {
@@ -602,6 +763,7 @@ public class ConcurrentLRUCache<K,V> {
             missCounter = new AtomicLong();
     private final AtomicInteger size = new AtomicInteger();
     private AtomicLong evictionCounter = new AtomicLong();
+    private final AtomicLong ramBytes = new AtomicLong(), offHeapBytes = new AtomicLong();
 
     public long getCumulativeLookups() {
       return (accessCounter.get() - putCounter.get() - nonLivePutCounter.get()) + missCounter.get();
@@ -623,6 +785,16 @@ public class ConcurrentLRUCache<K,V> {
       return size.get();
     }
 
+    /** Returns the java heap bytes used by the values, if the cache is measuring them */
+    public long getRamBytes() {
+      return ramBytes.get();
+    }
+
+    /** Returns the off-heap bytes used by the values, if the cache is measuring them */
+    public long getOffHeapBytes() {
+      return offHeapBytes.get();
+    }
+
     public long getCumulativeNonLivePuts() {
       return nonLivePutCounter.get();
     }
@@ -645,6 +817,14 @@ public class ConcurrentLRUCache<K,V> {
     public void evictedEntry(K key, V value);
   }
 
+  /** Measures the memory used by cached values.  Values are measured again on every access, so this must be cheap. */
+  public static interface RamEstimator<V> {
+    /** Returns the approximate java heap bytes used by the value */
+    public long ramBytes(V value);
+    /** Returns the approximate off-heap (native) bytes used by the value */
+    public long offHeapBytes(V value);
+  }
+
   private static class CleanupThread extends Thread {
     private WeakReference<ConcurrentLRUCache> cache;
 
@@ -19,10 +19,19 @@ package org.apache.solr;
 
 import org.noggit.JSONUtil;
 import org.noggit.ObjectBuilder;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.CoreDescriptor;
+import org.apache.solr.core.SolrInfoMBean;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.CommitUpdateCommand;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -133,6 +142,143 @@ public class TestJoin extends SolrTestCaseJ4 {
 
   }
 
+  @Test
+  public void testValuesJoin() throws Exception {
+    clearIndex();
+    assertU(add(doc("id", "p1", "pid_s1", "A", "pid_i", "1")));
+    assertU(add(doc("id", "p2", "pid_s1", "B", "pid_i", "2")));
+    assertU(add(doc("id", "p3", "pid_s1", "C", "pid_i", "3")));
+    assertU(commit());  // multiple segments
+    assertU(add(doc("id", "c1", "parent_s1", "A", "parent_i", "1", "name", "john")));
+    assertU(add(doc("id", "c2", "parent_s1", "A", "parent_i", "1", "name", "mark")));
+    assertU(add(doc("id", "c3", "parent_s1", "C", "parent_i", "3", "name", "john")));
+    assertU(add(doc("id", "c4", "name", "john")));
+    assertU(add(doc("id", "p4", "pid_s1", "D", "pid_i", "4")));
+    assertU(commit());
+
+    // without a method, values are only used when both fields are already in the nCache
+    SolrTestCaseHS.clearNCache();
+    String dbgMethod = "/debug/join/{!join from=parent_s1 to=pid_s1}name:john/method";
+    assertJQ(req("q", "{!join from=parent_s1 to=pid_s1 cache=false}name:john", "fl", "id", "debugQuery", "true")
+        , dbgMethod + "=='terms'"
+    );
+    assertJQ(req("q", "{!join from=parent_s1 to=pid_s1 method=values cache=false}name:john", "fl", "id", "debugQuery", "true")
+        , dbgMethod + "=='values'"
+    );
+    assertJQ(req("q", "{!join from=parent_s1 to=pid_s1 cache=false}name:john", "fl", "id", "debugQuery", "true")
+        , dbgMethod + "=='values'"
+    );
+
+    for (String method : new String[] {"terms", "values"}) {
+      assertJQ(req("q", "{!join from=parent_s1 to=pid_s1 method=" + method + "}name:john", "fl", "id", "sort", "id asc")
+          , "/response=={'numFound':2,'start':0,'docs':[{'id':'p1'},{'id':'p3'}]}"
+      );
+      assertJQ(req("q", "{!join from=parent_i to=pid_i method=" + method + "}name:john", "fl", "id", "sort", "id asc")
+          , "/response=={'numFound':2,'start':0,'docs':[{'id':'p1'},{'id':'p3'}]}"
+      );
+      // to the same field across segments
+      assertJQ(req("q", "{!join from=pid_s1 to=pid_s1 method=" + method + "}id:(p1 p4)", "fl", "id", "sort", "id asc")
+          , "/response=={'numFound':2,'start':0,'docs':[{'id':'p1'},{'id':'p4'}]}"
+      );
+      assertJQ(req("q", "{!join from=parent_s1 to=pid_s1 method=" + method + "}id:c4", "fl", "id")
+          , "/response=={'numFound':0,'start':0,'docs':[]}"
+      );
+    }
+
+    assertJQ(req("q", "{!join from=parent_s1 to=pid_s1 method=values}name:john", "fl", "id", "debugQuery", "true")
+        , "/debug/join/{!join from=parent_s1 to=pid_s1}name:john=={'_MATCH_':'method,fromSetSize,toSetSize', 'method':'values', 'fromSetSize':3, 'toSetSize':2}"
+    );
+
+    // multi-valued fields can't use the values method
+    assertJQ(req("q", "{!join from=parent_s1 to=pid_s method=values}name:mark", "fl", "id", "debugQuery", "true")
+        , "/debug/join/{!join from=parent_s1 to=pid_s}name:mark=={'_MATCH_':'method,toSetSize', 'method':'terms', 'toSetSize':0}"
+    );
+
+    // deleted documents should not be joined to
+    assertU(delI("p3"));
+    assertU(commit());
+    assertJQ(req("q", "{!join from=parent_s1 to=pid_s1 method=values}name:john", "fl", "id")
+        , "/response=={'numFound':1,'start':0,'docs':[{'id':'p1'}]}"
+    );
+    assertJQ(req("q", "{!join from=parent_i to=pid_i method=values}name:john", "fl", "id")
+        , "/response=={'numFound':1,'start':0,'docs':[{'id':'p1'}]}"
+    );
+
+    assertQEx("unknown join method", req("q", "{!join from=parent_s1 to=pid_s1 method=foo}name:john"), 400);
+
+    clearIndex();
+    assertU(commit());
+  }
+
+  private void addFromDoc(SolrCore core, String... fieldValues) throws IOException {
+    AddUpdateCommand cmd = new AddUpdateCommand(new LocalSolrQueryRequest(core, new NamedList<>()));
+    cmd.solrDoc = sdoc((Object[]) fieldValues);
+    core.getUpdateHandler().addDoc(cmd);
+  }
+
+  private void commitFrom(SolrCore core) throws IOException {
+    SolrQueryRequest req = new LocalSolrQueryRequest(core, new NamedList<>());
+    try {
+      core.getUpdateHandler().commit(new CommitUpdateCommand(req, false));
+    } finally {
+      req.close();
+    }
+  }
+
+  @Test
+  public void testCrossCoreJoinCache() throws Exception {
+    CoreContainer cores = h.getCoreContainer();
+    SolrCore fromCore = cores.create(new CoreDescriptor(cores, "joinFrom", "collection1",
+        CoreDescriptor.CORE_CONFIG, "solrconfig.xml", CoreDescriptor.CORE_SCHEMA, "schema12.xml",
+        CoreDescriptor.CORE_DATADIR, createTempDir("joinFromData").getAbsolutePath()));
+    try {
+      clearIndex();
+      assertU(add(doc("id", "p1", "pid_s1", "A")));
+      assertU(add(doc("id", "p2", "pid_s1", "B")));
+      assertU(add(doc("id", "p3", "pid_s1", "C")));
+      assertU(commit());
+
+      addFromDoc(fromCore, "id", "c1", "parent_s1", "A", "name", "john");
+      addFromDoc(fromCore, "id", "c2", "parent_s1", "C", "name", "mark");
+      commitFrom(fromCore);
+
+      // cache=false keeps the queryResultCache and filterCache from answering repeated requests
+      String q = "{!join from=parent_s1 to=pid_s1 fromIndex=joinFrom cache=false}name:john";
+      String dbgPath = "/debug/join/{!join from=parent_s1 to=pid_s1 fromIndex=joinFrom}name:john";
+      assertJQ(req("q", q, "fl", "id", "sort", "id asc", "debugQuery", "true")
+          , "/response=={'numFound':1,'start':0,'docs':[{'id':'p1'}]}"
+          , dbgPath + "/cached==false"
+      );
+      assertJQ(req("q", q, "fl", "id", "sort", "id asc", "debugQuery", "true")
+          , "/response=={'numFound':1,'start':0,'docs':[{'id':'p1'}]}"
+          , dbgPath + "/cached==true"
+      );
+
+      // a change on the from side must not use the cached result
+      addFromDoc(fromCore, "id", "c3", "parent_s1", "B", "name", "john");
+      commitFrom(fromCore);
+      assertJQ(req("q", q, "fl", "id", "sort", "id asc", "debugQuery", "true")
+          , "/response=={'numFound':2,'start':0,'docs':[{'id':'p1'},{'id':'p2'}]}"
+          , dbgPath + "/cached==false"
+      );
+
+      // a new to side searcher is autowarmed with the join against the current from side
+      assertU(add(doc("id", "p4", "pid_s1", "A")));
+      assertU(commit());
+      assertJQ(req("q", q, "fl", "id", "sort", "id asc", "debugQuery", "true")
+          , "/response=={'numFound':3,'start':0,'docs':[{'id':'p1'},{'id':'p2'},{'id':'p4'}]}"
+          , dbgPath + "/cached==true"
+      );
+      // only that join was regenerated, the one cached against the older from side searcher was dropped
+      SolrInfoMBean joinCacheInfo = h.getCore().getInfoRegistry().get("joinCache");
+      assertEquals(1, ((Number)joinCacheInfo.getStatistics().get("size")).intValue());
+    } finally {
+      cores.unload("joinFrom", true, true, false);
+      clearIndex();
+      assertU(commit());
+    }
+  }
+
 
   @Test
   public void testRandomJoin() throws Exception {
@@ -142,7 +288,7 @@ public class TestJoin extends SolrTestCaseJ4 {
     // groups of fields that have any chance of matching... used to
     // increase test effectiveness by avoiding 0 resultsets much of the time.
     String[][] compat = new String[][] {
-        {"small_s","small2_s","small2_ss","small3_ss"},
+        {"small_s","small2_s","small2_ss","small3_ss","small_s1","small2_s1"},
         {"small_i","small2_i","small2_is","small3_is"}
     };
 
@@ -157,6 +303,8 @@ public class TestJoin extends SolrTestCaseJ4 {
       types.add(new FldType("small2_s",ZERO_ONE, new SVal('a',(char)('c'+indexSize/3),1,1)));
       types.add(new FldType("small2_ss",ZERO_TWO, new SVal('a',(char)('c'+indexSize/3),1,1)));
       types.add(new FldType("small3_ss",new IRange(0,25), new SVal('A','z',1,1)));
+      types.add(new FldType("small_s1",ZERO_ONE, new SVal('a',(char)('c'+indexSize/3),1,1)));
+      types.add(new FldType("small2_s1",ZERO_ONE, new SVal('a',(char)('c'+indexSize/3),1,1)));
       types.add(new FldType("small_i",ZERO_ONE, new IRange(0,5+indexSize/3)));
       types.add(new FldType("small2_i",ZERO_ONE, new IRange(0,5+indexSize/3)));
       types.add(new FldType("small2_is",ZERO_TWO, new IRange(0,5+indexSize/3)));
@@ -208,6 +356,7 @@ public class TestJoin extends SolrTestCaseJ4 {
         SolrQueryRequest req = req("wt","json","indent","true", "echoParams","all",
             "q","{!join from="+fromField+" to="+toField
                 + (random().nextInt(4)==0 ? " fromIndex=collection1" : "")
+                + (random().nextInt(3)==0 ? " method=" + (random().nextBoolean() ? "terms" : "values") : "")
                 +"}*:*"
         );
 
@@ -127,5 +127,39 @@ public class TestArray extends LuceneTestCase {
   }
 
 
+  @Test
+  public void testPackedArray() throws Exception {
+    Random r = random();
+    for (int iter=0; iter<1000; iter++) {
+      int bits = r.nextInt(31) + 1;
+      int sz = r.nextInt(5000) + 1;
+      long min = -(1L << (bits-1));
+      long max = (1L << (bits-1)) - 1;
+
+      LongArray arr = LongArray.create(sz, bits);
+      if (sz > 1000 && bits != 8 && bits != 16) {
+        assertEquals(HS.FORMAT_PACKED, arr.getNativeFormat() & 0xff);
+        assertEquals(bits, arr.getNativeFormat() >> 8);
+      }
+
+      long[] vals = new long[sz];
+      for (int i=0; i<sz; i++) {
+        vals[i] = min + ((r.nextLong()>>>1) % (max - min + 1));
+      }
+      // set out of order so that writes to neighboring values in the same word are exercised
+      for (int i=sz-1; i>=0; i-=2) {
+        arr.setLong(i, vals[i]);
+      }
+      for (int i=sz-2; i>=0; i-=2) {
+        arr.setLong(i, vals[i]);
+      }
+
+      for (int i=0; i<sz; i++) {
+        assertEquals(vals[i], arr.getLong(i));
+      }
+
+      arr.close();
+    }
+  }
 
 }
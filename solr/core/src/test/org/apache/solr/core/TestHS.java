@@ -19,6 +19,7 @@ package org.apache.solr.core;
 
 import org.apache.lucene.util.LuceneTestCase;
 import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.SolrException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -69,6 +70,7 @@ public class TestHS extends LuceneTestCase {
     HS.freeArray(arr);
     HS.freeArray(arr2);
 
+    HS.allocator.clearBufferPool();  // arrays of pooled sizes are only freed when the pools are cleared
     assertEquals( HS.getNumAllocations() , HS.getNumFrees() );
   }
 
@@ -97,6 +99,7 @@ public class TestHS extends LuceneTestCase {
 
     HS.freeArray(arr);
 
+    HS.allocator.clearBufferPool();
     assertEquals( HS.getNumAllocations() , HS.getNumFrees() );
   }
 
@@ -125,6 +128,7 @@ public class TestHS extends LuceneTestCase {
 
     HS.freeArray(arr);
 
+    HS.allocator.clearBufferPool();
     assertEquals( HS.getNumAllocations() , HS.getNumFrees() );
   }
 
@@ -561,6 +565,19 @@ public class TestHS extends LuceneTestCase {
     assertTrue(failed);
     log.warn("CHECKPOINT 24");
 
+    // arrays are marked while pooled, so freeing a pooled array twice always trips the asserts
+    long pooled = HS.allocArray(1000, 8, false);
+    HS.freeArray(pooled);
+    failed=false;
+    try {
+      HS.freeArray(pooled);
+    } catch (Throwable e) {
+      failed = true;
+    }
+    assertTrue(failed);
+    HS.allocator.clearBufferPool();
+    log.warn("CHECKPOINT 24a");
+
 
     failed=false;
     try {
@@ -614,4 +631,163 @@ public class TestHS extends LuceneTestCase {
     HS.freeArray(arr);
   }
 
+  public void testBufferPool() {
+    HS.Allocator alloc = new HS.Allocator();
+    long fresh = alloc.getFreshBufferAllocations();
+
+    long buf = alloc.getBuffer();
+    assertEquals(HS.BUFFER_SIZE_BYTES, HS.arraySizeBytes(buf));
+    assertEquals(fresh + 1, alloc.getFreshBufferAllocations());
+
+    // released buffers come back from this thread's stripe
+    alloc.releaseBuffer(buf);
+    assertEquals(buf, alloc.getBuffer());
+    assertEquals(1, alloc.getLocalBufferRetrievals());
+    assertEquals(fresh + 1, alloc.getFreshBufferAllocations());
+
+    // more buffers than a stripe holds overflow to the shared pool
+    alloc.releaseBuffer(buf);
+    long[] bufs = new long[40];
+    for (int i = 0; i < bufs.length; i++) {
+      bufs[i] = alloc.getBuffer();
+    }
+    for (long b : bufs) {
+      alloc.releaseBuffer(b);
+    }
+    assertEquals(bufs.length * (long)HS.BUFFER_SIZE_BYTES, alloc.getPooledBytes(HS.BUFFER_SIZE_BITS));
+    for (int i = 0; i < bufs.length; i++) {
+      bufs[i] = alloc.getBuffer();
+    }
+    assertEquals(2 + bufs.length, alloc.getLocalBufferRetrievals() + alloc.getCachedBufferRetrievals());
+    assertTrue(alloc.getCachedBufferRetrievals() > 0);
+    assertEquals(fresh + bufs.length, alloc.getFreshBufferAllocations());
+    for (long b : bufs) {
+      alloc.freeArray(b);
+    }
+    alloc.clearBufferPool();
+    assertEquals(0, alloc.getPooledBytes(HS.BUFFER_SIZE_BITS));
+  }
+
+  public void testSizeClasses() {
+    HS.Allocator alloc = new HS.Allocator();
+
+    // arrays are reused by later allocations of the same power of two size class
+    long arr = alloc.allocArray(3000, 1, false);
+    assertEquals(3000, HS.arraySizeBytes(arr));
+    alloc.freeArray(arr);
+    assertEquals(4096, alloc.getPooledBytes(12));
+
+    long arr2 = alloc.allocArray(1000, 4, true);
+    assertEquals(arr, arr2);
+    assertEquals(4000, HS.arraySizeBytes(arr2));
+    assertEquals(0, HS.getInt(arr2, 999));
+    assertEquals(0, alloc.getPooledBytes(12));
+
+    // small and large arrays aren't pooled
+    long small = alloc.allocArray(100, 1, false);
+    long large = alloc.allocArray(2 << HS.Allocator.MAX_CLASS_BITS, 1, false);
+    alloc.freeArray(small);
+    alloc.freeArray(large);
+    for (int bits = HS.Allocator.MIN_CLASS_BITS; bits <= HS.Allocator.MAX_CLASS_BITS; bits++) {
+      assertEquals(0, alloc.getPooledBytes(bits));
+    }
+
+    alloc.freeArray(arr2);
+    alloc.clearBufferPool();
+  }
+
+  public void testPoolLimit() {
+    // the pools of all size classes together hold at most bufferPoolSize buffers
+    HS.Allocator alloc = new HS.Allocator(4);
+    long limit = 4L * HS.BUFFER_SIZE_BYTES;
+    long[] arrs = new long[16];
+    for (int bits = HS.Allocator.MIN_CLASS_BITS; bits <= HS.Allocator.MAX_CLASS_BITS; bits++) {
+      for (int i = 0; i < arrs.length; i++) {
+        arrs[i] = alloc.allocArray(1L << bits, 1, false);
+      }
+      for (long arr : arrs) {
+        alloc.freeArray(arr);
+      }
+      assertTrue(alloc.getPooledBytes() <= limit);
+    }
+
+    long pooled = 0;
+    for (int bits = HS.Allocator.MIN_CLASS_BITS; bits <= HS.Allocator.MAX_CLASS_BITS; bits++) {
+      pooled += alloc.getPooledBytes(bits);
+    }
+    assertEquals(pooled, alloc.getPooledBytes());
+    assertEquals(limit, pooled);  // filled up by the smaller classes
+
+    alloc.clearBufferPool();
+    assertEquals(0, alloc.getPooledBytes());
+  }
+
+  public void testArena() {
+    HS.allocator.clearBufferPool();
+    long live = HS.getLiveBytes();
+    HS.Arena arena = new HS.Arena();
+    for (int i = 0; i < 100; i++) {
+      long arr = arena.allocArray(i + 1, 8, true, HS.MEM_FACET);
+      assertEquals((i + 1) * 8, HS.arraySizeBytes(arr));
+    }
+    assertEquals(100, arena.getNumArrays());
+    assertTrue(HS.getLiveBytes() > live);
+    arena.close();
+    assertEquals(0, arena.getNumArrays());
+    HS.allocator.clearBufferPool();
+    assertEquals(live, HS.getLiveBytes());
+  }
+
+  public void testMaxBytes() {
+    HS.allocator.clearBufferPool();
+    long live = HS.getLiveBytes();
+    long facetBytes = HS.getLiveBytes(HS.MEM_FACET);
+
+    // rounded up to the 8K size class
+    long arr = HS.allocArray(1000, 8, false, HS.MEM_FACET);
+    assertEquals(live + 8192 + HS.HEADER_SIZE, HS.getLiveBytes());
+    assertEquals(facetBytes + 8192 + HS.HEADER_SIZE, HS.getLiveBytes(HS.MEM_FACET));
+
+    final long[] cached = new long[] { HS.allocArray(1000, 8, false, HS.MEM_DOCSET) };
+    final int[] reclaimed = new int[1];
+    HS.Reclaimer reclaimer = new HS.Reclaimer() {
+      @Override
+      public void reclaim(long bytesWanted) {
+        reclaimed[0]++;
+        if (cached[0] != 0) {
+          HS.freeArray(cached[0]);
+          cached[0] = 0;
+        }
+      }
+    };
+
+    HS.addReclaimer(reclaimer);
+    HS.setMaxBytes(HS.getLiveBytes() + 10000);
+    try {
+      // fits after the reclaimer frees the cached array
+      long arr2 = HS.allocArray(2000, 8, false, HS.MEM_FACET);
+      assertEquals(1, reclaimed[0]);
+      assertEquals(0, cached[0]);
+      HS.freeArray(arr2);
+
+      // can't fit no matter what is reclaimed
+      long rejected = HS.getNumRejected();
+      try {
+        HS.allocArray(5000, 8, false, HS.MEM_FACET);
+        fail("allocation over the limit should fail");
+      } catch (SolrException e) {
+        assertEquals(SolrException.ErrorCode.SERVICE_UNAVAILABLE.code, e.code());
+      }
+      assertEquals(rejected + 1, HS.getNumRejected());
+    } finally {
+      HS.setMaxBytes(Long.MAX_VALUE);
+      HS.removeReclaimer(reclaimer);
+    }
+
+    HS.freeArray(arr);
+    assertEquals(facetBytes, HS.getLiveBytes(HS.MEM_FACET));
+    HS.allocator.clearBufferPool();
+    assertEquals(live, HS.getLiveBytes());
+  }
+
 }
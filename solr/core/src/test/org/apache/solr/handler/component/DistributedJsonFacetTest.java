@@ -0,0 +1,148 @@
+package org.apache.solr.handler.component;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.solr.BaseDistributedSearchTestCase;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Tests merging of json.facet responses from each shard, and refinement of the top buckets.
+ *
+ * NOTE: This test ignores the control collection since numeric types differ between
+ * merged and non-distributed responses.
+ */
+public class DistributedJsonFacetTest extends BaseDistributedSearchTestCase {
+
+  public DistributedJsonFacetTest() {
+    this.fixShardCount = true;
+    this.shardCount = 3;
+    // *_d fields are multiValued in the version 1.0 schema.xml
+    schemaString = "schema_latest.xml";
+  }
+
+  @Override
+  public void doTest() throws Exception {
+    final SolrServer shard0 = clients.get(0);
+    final SolrServer shard1 = clients.get(1);
+    final SolrServer shard2 = clients.get(2);
+
+    // A is the top term overall, but is only the top term on shard0
+    shard0.add(sdoc("id", "1", "cat_s", "A", "num_d", "1"));
+    shard0.add(sdoc("id", "2", "cat_s", "A", "num_d", "2"));
+    shard0.add(sdoc("id", "3", "cat_s", "A", "num_d", "3"));
+    shard0.add(sdoc("id", "4", "cat_s", "B", "num_d", "-5"));
+    shard0.add(sdoc("id", "5", "cat_s", "B", "num_d", "4"));
+
+    shard1.add(sdoc("id", "6", "cat_s", "A", "num_d", "10"));
+    shard1.add(sdoc("id", "7", "cat_s", "A", "num_d", "10"));
+    shard1.add(sdoc("id", "8", "cat_s", "C", "num_d", "1"));
+    shard1.add(sdoc("id", "9", "cat_s", "C", "num_d", "1"));
+    shard1.add(sdoc("id", "10", "cat_s", "C", "num_d", "1"));
+
+    shard2.add(sdoc("id", "11", "cat_s", "B", "num_d", "2"));
+    shard2.add(sdoc("id", "12", "cat_s", "B", "num_d", "2"));
+    shard2.add(sdoc("id", "13", "cat_s", "C", "num_d", "20"));
+
+    shard0.commit();
+    shard1.commit();
+    shard2.commit();
+
+    // top level stats
+    NamedList<Object> facets = jsonFacets("{n:'sum(num_d)', mn:'min(num_d)', mx:'max(num_d)', a:'avg(num_d)', u:'unique(cat_s)', p:'percentile(num_d,50)'}");
+    assertEquals(13L, ((Number)facets.get("count")).longValue());
+    assertEquals(52.0, ((Number)facets.get("n")).doubleValue(), 0.0);
+    assertEquals(-5.0, ((Number)facets.get("mn")).doubleValue(), 0.0);
+    assertEquals(20.0, ((Number)facets.get("mx")).doubleValue(), 0.0);
+    assertEquals(4.0, ((Number)facets.get("a")).doubleValue(), 0.0);
+    assertEquals(3L, ((Number)facets.get("u")).longValue());
+    assertEquals(2.0, ((Number)facets.get("p")).doubleValue(), 0.0);
+
+    // buckets are merged across shards
+    facets = jsonFacets("{f1:{terms:{field:cat_s, facet:{n:'sum(num_d)', a:'avg(num_d)'}}}}");
+    List<NamedList<Object>> buckets = getBuckets(facets, "f1");
+    assertEquals(3, buckets.size());
+    assertBucket(buckets.get(0), "A", 5);
+    assertEquals(26.0, ((Number)buckets.get(0).get("n")).doubleValue(), 0.0);
+    assertEquals(26.0/5, ((Number)buckets.get(0).get("a")).doubleValue(), 0.0);
+    assertBucket(buckets.get(1), "B", 4);
+    assertBucket(buckets.get(2), "C", 4);
+
+    // without refinement, A is only counted on shard0 since it is not in the top bucket of the other shards
+    String shallow = "{f1:{terms:{field:cat_s, limit:1, overrequest:0 %s, facet:{n:'sum(num_d)'}}}}";
+    buckets = getBuckets(jsonFacets(String.format(Locale.ROOT, shallow, "")), "f1");
+    assertEquals(1, buckets.size());
+    assertBucket(buckets.get(0), "A", 3);
+
+    // refinement asks shard1 and shard2 for the stats of A
+    buckets = getBuckets(jsonFacets(String.format(Locale.ROOT, shallow, ", refine:true")), "f1");
+    assertEquals(1, buckets.size());
+    assertBucket(buckets.get(0), "A", 5);
+    assertEquals(26.0, ((Number)buckets.get(0).get("n")).doubleValue(), 0.0);
+
+    // sort by stat, with offset
+    facets = jsonFacets("{f1:{terms:{field:cat_s, offset:1, limit:1, sort:'n desc', facet:{n:'sum(num_d)'}}}}");
+    buckets = getBuckets(facets, "f1");
+    assertEquals(1, buckets.size());
+    assertEquals("C", buckets.get(0).get("val"));
+    assertEquals(23.0, ((Number)buckets.get(0).get("n")).doubleValue(), 0.0);
+
+    // classic facets are merged along with the json facets
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set("q", "*:*");
+    params.set("rows", "0");
+    params.set("facet", "true");
+    params.set("facet.field", "cat_s");
+    params.set("facet.query", "num_d:[0 TO *]");
+    params.set("json.facet", "{n:'sum(num_d)'}");
+    QueryResponse rsp = queryServer(params);
+    assertEquals(52.0, ((Number)((NamedList<Object>)rsp.getResponse().get("facets")).get("n")).doubleValue(), 0.0);
+    assertEquals(Integer.valueOf(12), rsp.getFacetQuery().get("num_d:[0 TO *]"));
+    FacetField cat = rsp.getFacetField("cat_s");
+    assertEquals(3, cat.getValueCount());
+    assertEquals("A", cat.getValues().get(0).getName());
+    assertEquals(5, cat.getValues().get(0).getCount());
+    assertEquals("B", cat.getValues().get(1).getName());
+    assertEquals(4, cat.getValues().get(1).getCount());
+  }
+
+  private NamedList<Object> jsonFacets(String jsonFacet) throws Exception {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set("q", "*:*");
+    params.set("rows", "0");
+    params.set("facet", "true");
+    params.set("json.facet", jsonFacet);
+    QueryResponse rsp = queryServer(params);
+    return (NamedList<Object>)rsp.getResponse().get("facets");
+  }
+
+  private List<NamedList<Object>> getBuckets(NamedList<Object> facets, String key) {
+    return (List<NamedList<Object>>)((NamedList<Object>)facets.get(key)).get("buckets");
+  }
+
+  private void assertBucket(NamedList<Object> bucket, String val, long count) {
+    assertEquals(val, bucket.get("val"));
+    assertEquals(count, ((Number)bucket.get("count")).longValue());
+  }
+}
@@ -111,6 +111,13 @@ public class TestDocSet extends LuceneTestCase {
     return set;
   }
 
+  public DocSet getRoaringDocSetNative(FixedBitSet bs) {
+    BitDocSetNative bits = (BitDocSetNative)getBitDocSetNative(bs);
+    DocSet set = RoaringDocSetNative.compress(bits);
+    bits.decref();
+    return set;
+  }
+
 
   public DocSet getSmallSet(FixedBitSet obs) {
     return getIntDocSet(obs);
@@ -177,6 +177,100 @@ public class TestDocSetNative extends TestDocSet {
   }
 
 
+  /** a set with empty, sparse, dense and run-length regions, so every container type gets used */
+  private FixedBitSet getRoaringTestSet(int maxDoc) {
+    FixedBitSet bs = new FixedBitSet(maxDoc);
+    for (int start=0; start<maxDoc; start+=65536) {
+      int end = Math.min(maxDoc, start + 65536);
+      switch (rand.nextInt(4)) {
+        case 0:
+          for (int i=rand.nextInt(200); i>0; i--) {
+            bs.set(start + rand.nextInt(end - start));
+          }
+          break;
+        case 1:
+          for (int i=start; i<end; i++) {
+            if (rand.nextInt(4) != 0) bs.set(i);
+          }
+          break;
+        case 2:
+          for (int pos=start; pos<end;) {
+            int len = rand.nextInt(2000) + 1;
+            if (rand.nextBoolean()) bs.set(pos, Math.min(end, pos + len));
+            pos += len;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return bs;
+  }
+
+  public void testRoaring() throws Exception {
+    for (int i=0; i<20; i++) {
+      int maxDoc = rand.nextInt(6 * 65536) + 1;
+      FixedBitSet bs1 = getRoaringTestSet(maxDoc);
+      FixedBitSet bs2 = getRoaringTestSet(maxDoc);
+
+      DocSet r1 = getRoaringDocSetNative(bs1);
+      DocSet r2 = getRoaringDocSetNative(bs2);
+      DocSet b2 = getBitDocSetNative(bs2);
+      DocSet i2 = getIntDocSetNative(bs2);
+
+      doSingle(bs1, bs2, r1, r2);
+      doSingle(bs1, bs2, r1, b2);
+      doSingle(bs1, bs2, r1, i2);
+      doSingle(bs2, bs1, b2, r1);
+      doSingle(bs2, bs1, i2, r1);
+
+      r1.decref();
+      r2.decref();
+      b2.decref();
+      i2.decref();
+    }
+  }
+
+  public void testJavaSetOps() throws Exception {
+    // the java fallbacks are what run when the native library isn't loaded
+    DocSetBaseNative.useNativeOps = false;
+    try {
+      doMany(130, 2000);
+      testRoaring();
+    } finally {
+      DocSetBaseNative.useNativeOps = true;
+    }
+  }
+
+  public void testRoaringCompression() throws Exception {
+    FixedBitSet bs = new FixedBitSet(1000000);
+    bs.set(1000, 500000);
+    bs.set(700000);
+    BitDocSetNative bits = (BitDocSetNative)getBitDocSetNative(bs);
+    RoaringDocSetNative roaring = RoaringDocSetNative.compress(bits);
+
+    assertEquals(bs.cardinality(), roaring.size());
+    assertTrue(roaring.memSize() * 100 < bits.memSize());
+    checkEqual(bs, roaring);
+    iter(bits, roaring);
+
+    bits.decref();
+    roaring.decref();
+  }
+
+  public void testRoaringFilter() throws Exception {
+    for (int i=0; i<200; i++) {
+      IndexReader r = dummyMultiReader(rand.nextInt(10) + 1, rand.nextInt(200000) + 2);
+      FixedBitSet bs = getRoaringTestSet(r.maxDoc());
+      DocSet a = getBitDocSetNative(bs);
+      DocSet b = getRoaringDocSetNative(bs);
+      doFilterTest(r, a, b);
+      a.decref();
+      b.decref();
+    }
+  }
+
+
   public void doDedupDocSetCollector(IndexReader reader) throws Exception {
     Random r = random();
     int maxDoc = reader.maxDoc();
@@ -59,7 +59,9 @@ public class TestDocSetPerf extends LuceneTestCase  {
     BIT,
     INT,
     HASH,
-    NINT
+    NINT,
+    NBIT,
+    NROARING
   }
 
 
@@ -112,6 +114,13 @@ public class TestDocSetPerf extends LuceneTestCase  {
     return set;
   }
 
+  public DocSet getRoaringDocSetNative(FixedBitSet bs) {
+    BitDocSetNative bits = (BitDocSetNative)getBitDocSetNative(bs);
+    DocSet set = RoaringDocSetNative.compress(bits);
+    bits.decref();
+    return set;
+  }
+
   public DocSet getSmallSet(FixedBitSet obs) {
     return getIntDocSet(obs);
   }
@@ -191,6 +200,8 @@ public class TestDocSetPerf extends LuceneTestCase  {
       case INT: return getIntDocSet(obs);
       case HASH: return getHashDocSet(obs);
       case NINT: return getIntDocSetNative(obs);
+      case NBIT: return getBitDocSetNative(obs);
+      case NROARING: return getRoaringDocSetNative(obs);
       case ANY:
       default: return new BitDocSet(obs, n);
     }
@@ -383,6 +394,7 @@ public class TestDocSetPerf extends LuceneTestCase  {
     int nLarge = a==e ? 5 : Integer.parseInt(args[a++]);
     int smallSz = a==e ? 10000 : Integer.parseInt(args[a++]);
     int largeSz = a==e ? 100000 : Integer.parseInt(args[a++]);
+    SetType bigType = a==e ? SetType.NBIT : SetType.valueOf(args[a++]);
 
 
     int maxDoc = Math.max((int)(largeSz*1.2),1000000);
@@ -393,8 +405,31 @@ public class TestDocSetPerf extends LuceneTestCase  {
     // smallSetCuttoff = maxDoc>>6; // break even for SortedIntSet is /32... but /64 is better for performance
     smallSetCuttoff = maxDoc;  // make sure we always use small sets
 
+    SetType smallType = stype;
+    stype = bigType;
     DocSet[] bigsets = getRandomSets(nLarge, minBigSetSize, maxBigSetSize, maxDoc);
+    stype = smallType;
     DocSet[] smallsets = getRandomSets(nSmall, minSmallSetSize/2, maxSmallSetSize, maxDoc);
+
+    // compare the native set operations against the java fallbacks on the same sets
+    try {
+      if (HS.loaded) {
+        DocSetBaseNative.useNativeOps = true;
+        timeOps("native", iter, bigsets, smallsets);
+      }
+      DocSetBaseNative.useNativeOps = false;
+      timeOps("java", iter, bigsets, smallsets);
+    } finally {
+      DocSetBaseNative.useNativeOps = true;
+    }
+    System.out.println("native_loaded="+ HS.loaded + " count_isizeNative=" + SortedIntDocSetNative.count_isizeNative);
+
+    // free resources
+    for (DocSet s : bigsets) s.decref();
+    for (DocSet s : smallsets) s.decref();
+  }
+
+  private void timeOps(String label, int iter, DocSet[] bigsets, DocSet[] smallsets) {
     int ret=0;
     long start=System.currentTimeMillis();
     for (int i=0; i<iter; i++) {
@@ -405,12 +440,23 @@ public class TestDocSetPerf extends LuceneTestCase  {
       }
     }
     long end=System.currentTimeMillis();
-    System.out.println("intersectionSizePerformance="+(end-start)+" ms");
-    System.out.println("ret="+ret+ " native_loaded="+ HS.loaded + " count_isizeNative=" + SortedIntDocSetNative.count_isizeNative);
-
-    // free resources
-    for (DocSet s : bigsets) s.decref();
-    for (DocSet s : smallsets) s.decref();
+    System.out.println(label + " intersectionSizePerformance="+(end-start)+" ms ret="+ret);
+
+    for (String op : new String[] {"intersection", "union", "andNot"}) {
+      ret=0;
+      start=System.currentTimeMillis();
+      for (int i=0; i<iter; i++) {
+        for (DocSet s1 : bigsets) {
+          for (DocSet s2 : smallsets) {
+            DocSet result = op.equals("intersection") ? s1.intersection(s2) : op.equals("union") ? s1.union(s2) : s1.andNot(s2);
+            ret += result.size();
+            result.decref();
+          }
+        }
+      }
+      end=System.currentTimeMillis();
+      System.out.println(label + " " + op + "Performance="+(end-start)+" ms ret="+ret);
+    }
   }
 
 
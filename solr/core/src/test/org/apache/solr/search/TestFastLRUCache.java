@@ -25,6 +25,9 @@ import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
@@ -236,6 +239,71 @@ public class TestFastLRUCache extends LuceneTestCase {
     scNew.close();
   }
 
+  public void testMaxRam() throws IOException {
+    FastLRUCache<Object, DocSet> sc = new FastLRUCache<>();
+    Map<String, String> params = new HashMap<>();
+    params.put("maxRamMB", "2.5");
+    sc.init(params, null, new NoOpRegenerator());
+    sc.setState(SolrCache.State.LIVE);
+
+    // each set is 1MB of heap
+    int[] docs = new int[256 * 1024];
+    for (int i = 0; i < docs.length; i++) docs[i] = i;
+    long setSize = new SortedIntDocSet(docs).memSize();
+
+    sc.put(1, new SortedIntDocSet(docs));
+    sc.put(2, new SortedIntDocSet(docs));
+    assertNotNull(sc.get(1));
+    sc.put(3, new SortedIntDocSet(docs));  // over the limit, so the least recently used entry goes
+
+    assertNotNull(sc.get(1));
+    assertNull(sc.get(2));
+    assertNotNull(sc.get(3));
+    NamedList<Serializable> nl = sc.getStatistics();
+    assertEquals(1L, nl.get("evictions"));
+    assertEquals(2 * setSize, nl.get("ramBytes"));
+    assertEquals(0L, nl.get("offHeapBytes"));
+    sc.close();
+  }
+
+  public void testGrowthEvictedAsync() throws Exception {
+    final Map<Integer, Thread> evictedBy = new ConcurrentHashMap<>();
+    final CountDownLatch evicted = new CountDownLatch(1);
+    ConcurrentLRUCache<Integer, long[]> cache = new ConcurrentLRUCache<>(100, 90, 95, 10, false, false,
+        new ConcurrentLRUCache.EvictionListener<Integer, long[]>() {
+          @Override
+          public void evictedEntry(Integer key, long[] value) {
+            evictedBy.put(key, Thread.currentThread());
+            evicted.countDown();
+          }
+        }, 1000, -1,
+        new ConcurrentLRUCache.RamEstimator<long[]>() {
+          @Override
+          public long ramBytes(long[] value) {
+            return value[0];
+          }
+          @Override
+          public long offHeapBytes(long[] value) {
+            return 0;
+          }
+        });
+
+    long[] a = {400};
+    long[] b = {400};
+    cache.put(1, a);
+    cache.put(2, b);
+    b[0] = 800;  // grows after it was inserted, like TopValues
+    assertSame(b, cache.get(2));  // now over the limit, but get() leaves the sweep to another thread
+
+    assertTrue(evicted.await(10, TimeUnit.SECONDS));
+    assertNotNull(evictedBy.get(1));
+    assertNotSame(Thread.currentThread(), evictedBy.get(1));
+    assertNull(cache.get(1));
+    assertSame(b, cache.get(2));
+    assertEquals(1, evictedBy.size());
+    cache.destroy();
+  }
+
   public void testOldestItems() {
     ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<>(100, 90);
     for (int i = 0; i < 50; i++) {
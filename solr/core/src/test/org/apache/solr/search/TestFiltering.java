@@ -22,7 +22,9 @@ import org.apache.lucene.util.FixedBitSet;
 import org.apache.solr.SolrTestCaseJ4;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.SolrException;
+import org.apache.solr.core.SolrInfoMBean;
 import org.apache.solr.request.SolrQueryRequest;
+import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -33,9 +35,15 @@ public class TestFiltering extends SolrTestCaseJ4 {
   @BeforeClass
   public static void beforeTests() throws Exception {
     System.setProperty("enable.update.log", "false"); // schema12 doesn't support _version_
+    System.setProperty("solr.filterThreads", Integer.toString(random().nextInt(3)));  // exercise concurrent filters
     initCore("solrconfig.xml","schema12.xml");
   }
 
+  @AfterClass
+  public static void afterTests() throws Exception {
+    System.clearProperty("solr.filterThreads");
+  }
+
 
   public void testCaching() throws Exception {
     clearIndex();
@@ -342,6 +350,71 @@ public class TestFiltering extends SolrTestCaseJ4 {
     }
   }
 
+  public void testIncrementalWarming() throws Exception {
+    clearIndex();
+    for (int i=1; i<=10; i++) {
+      assertU(adoc("id", Integer.toString(i), "val_i", Integer.toString(i)));
+    }
+    assertU(commit());
+    for (int i=11; i<=20; i++) {
+      assertU(adoc("id", Integer.toString(i), "val_i", Integer.toString(i)));
+    }
+    assertU(commit());
+
+    String fq1 = "val_i:[5 TO 15]";
+    String fq2 = "val_i:[1 TO 3] OR val_i:19";
+    assertJQ(req("q","*:*", "fq",fq1), "/response/numFound==11");
+    assertJQ(req("q","*:*", "fq",fq2), "/response/numFound==4");
+
+    // delete from the existing segments and add a new one.  The autowarmed filters should only
+    // be executed against the new segment, and must not contain the deleted docs.
+    assertU(delI("5"));
+    assertU(delI("19"));
+    for (int i=21; i<=25; i++) {
+      assertU(adoc("id", Integer.toString(i), "val_i", Integer.toString(i - 10)));
+    }
+    assertU(commit());
+
+    // a different main query so that the warmed queryResultCache does not answer these
+    SolrInfoMBean filterCacheInfo = h.getCore().getInfoRegistry().get("filterCache");
+    long hits = ((Number)filterCacheInfo.getStatistics().get("hits")).longValue();
+    assertJQ(req("q","val_i:[* TO *]", "fq",fq1), "/response/numFound==15");
+    assertJQ(req("q","val_i:[* TO *]", "fq",fq2), "/response/numFound==3");
+    assertEquals(hits + 2, ((Number)filterCacheInfo.getStatistics().get("hits")).longValue());
+
+    // both were copied from the old sets for the shared segments, rather than recomputed over the whole index
+    SolrInfoMBean searcherInfo = h.getCore().getInfoRegistry().get("searcher");
+    assertEquals(2, ((Number)searcherInfo.getStatistics().get("filtersWarmedIncrementally")).intValue());
+    assertEquals(0, ((Number)searcherInfo.getStatistics().get("filtersRecomputed")).intValue());
+
+    // a function range may depend on the whole index, so it's always recomputed (only the 2 most recent filters are warmed)
+    String fq3 = "{!frange l=5 u=15}val_i";
+    assertJQ(req("q","*:*", "fq",fq3), "/response/numFound==15");
+    assertU(adoc("id", "26", "val_i", "26"));
+    assertU(commit());
+    searcherInfo = h.getCore().getInfoRegistry().get("searcher");
+    assertEquals(1, ((Number)searcherInfo.getStatistics().get("filtersWarmedIncrementally")).intValue());
+    assertEquals(1, ((Number)searcherInfo.getStatistics().get("filtersRecomputed")).intValue());
+    assertJQ(req("q","val_i:[* TO *]", "fq",fq2), "/response/numFound==3");
+    assertJQ(req("q","val_i:[* TO *]", "fq",fq3), "/response/numFound==15");
+  }
+
+  public void testUncachedFilterStats() throws Exception {
+    clearIndex();
+    for (int i=1; i<=10; i++) {
+      assertU(adoc("id", Integer.toString(i), "val_i", Integer.toString(i)));
+    }
+    assertU(commit());
+
+    // each filter that is computed (concurrently or not) counts as a single lookup and miss
+    SolrInfoMBean filterCacheInfo = h.getCore().getInfoRegistry().get("filterCache");
+    long lookups = ((Number)filterCacheInfo.getStatistics().get("lookups")).longValue();
+    long hits = ((Number)filterCacheInfo.getStatistics().get("hits")).longValue();
+    assertJQ(req("q","*:*", "fq","val_i:[2 TO 8]", "fq","val_i:[5 TO 9]", "fq","val_i:[1 TO 6]"), "/response/numFound==2");
+    assertEquals(lookups + 3, ((Number)filterCacheInfo.getStatistics().get("lookups")).longValue());
+    assertEquals(hits, ((Number)filterCacheInfo.getStatistics().get("hits")).longValue());
+  }
+
   public void testHossssSanity() throws Exception {
     clearIndex();
 
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.request.SolrQueryRequest;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+public class TestSegmentParallelSearch extends SolrTestCaseJ4 {
+  static int NUM_SEGMENTS = 5;
+  static int DOCS_PER_SEGMENT = 10;
+  static int NUM_DOCS = NUM_SEGMENTS * DOCS_PER_SEGMENT;
+
+  @BeforeClass
+  public static void beforeTests() throws Exception {
+    // keep one segment per commit, in docid order
+    System.setProperty("solr.tests.mergePolicy", LogDocMergePolicy.class.getName());
+    System.setProperty("solr.searchThreads", "2");
+    System.setProperty("enable.update.log", "false"); // schema12 doesn't support _version_
+    initCore("solrconfig.xml","schema12.xml");
+  }
+
+  @AfterClass
+  public static void afterTests() throws Exception {
+    System.clearProperty("solr.searchThreads");
+  }
+
+  static int val(int id) {
+    return id % 7;
+  }
+
+  static String docs(List<Integer> ids) {
+    StringBuilder sb = new StringBuilder("/response/docs==[");
+    for (int i=0; i<ids.size(); i++) {
+      if (i > 0) sb.append(',');
+      sb.append("{'id':'").append(ids.get(i)).append("'}");
+    }
+    return sb.append(']').toString();
+  }
+
+  @Test
+  public void testSlices() throws Exception {
+    clearIndex();
+    assertU(commit());
+
+    List<Integer> ids = new ArrayList<>();
+    for (int seg=0; seg<NUM_SEGMENTS; seg++) {
+      for (int i=0; i<DOCS_PER_SEGMENT; i++) {
+        int id = ids.size();
+        assertU(adoc("id", Integer.toString(id), "val_i", Integer.toString(val(id))));
+        ids.add(id);
+      }
+      assertU(commit());
+    }
+
+    SolrQueryRequest req = req();
+    try {
+      assertTrue(req.getSearcher().getTopReaderContext().leaves().size() > 1);
+    } finally {
+      req.close();
+    }
+
+    // all scores are equal, so ties must be broken by docid across slices
+    assertJQ(req("q", "*:*", "fl", "id", "rows", Integer.toString(NUM_DOCS))
+        , "/response/numFound==" + NUM_DOCS
+        , docs(ids)
+    );
+
+    // same with a DocSet requested by faceting
+    assertJQ(req("q", "*:*", "fl", "id", "rows", "3", "facet", "true", "facet.field", "val_i")
+        , "/response/numFound==" + NUM_DOCS
+        , docs(ids.subList(0, 3))
+        , "/facet_counts/facet_fields/val_i==['0',8,'1',7,'2',7,'3',7,'4',7,'5',7,'6',7]"
+    );
+
+    List<Integer> sorted = new ArrayList<>(ids);
+    Collections.sort(sorted, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return val(b) - val(a);  // stable, so equal values stay in docid order
+      }
+    });
+    assertJQ(req("q", "*:*", "fl", "id", "sort", "val_i desc", "rows", "12")
+        , "/response/numFound==" + NUM_DOCS
+        , docs(sorted.subList(0, 12))
+    );
+
+    // paging with a cursor needs the sort values of the merged documents
+    assertJQ(req("q", "*:*", "fl", "id", "sort", "val_i desc,id asc", "rows", "5", "cursorMark", "*")
+        , "/response/numFound==" + NUM_DOCS
+        , "/response/docs/[0]/id=='13'"
+        , "/response/docs/[4]/id=='41'"
+    );
+
+    // counts only, with filters and a time limit that is not exceeded
+    int count = 0;
+    for (int id : ids) {
+      if (val(id) >= 2 && val(id) <= 4) count++;
+    }
+    assertJQ(req("q", "*:*", "fq", "val_i:[2 TO 4]", "rows", "0", "timeAllowed", "100000", "facet", "true")
+        , "/response/numFound==" + count
+        , "!/responseHeader/partialResults==true"
+    );
+
+    // function queries keep per-request state in their weights, so each slice must get its own.
+    // Distinct queries so that the queryResultCache doesn't answer them.
+    for (int k=0; k<10; k++) {
+      assertJQ(req("q", "{!func}sum(val_i," + k + ")", "fl", "id", "rows", "12")
+          , "/response/numFound==" + NUM_DOCS
+          , docs(sorted.subList(0, 12))
+      );
+
+      int lower = k % 5;
+      int inRange = 0;
+      for (int id : ids) {
+        if (val(id) >= lower && val(id) <= lower + 2) inRange++;
+      }
+      int shift = k / 5;
+      assertJQ(req("q", "{!frange l=" + (lower + shift) + " u=" + (lower + 2 + shift) + "}sum(val_i," + shift + ")", "rows", "0")
+          , "/response/numFound==" + inRange
+      );
+    }
+
+    // post filters are applied serially
+    assertJQ(req("q", "*:*", "fq", "{!frange l=6 cache=false cost=200}val_i", "fl", "id", "rows", "2")
+        , "/response/numFound==" + (NUM_DOCS / 7)
+        , docs(sorted.subList(0, 2))
+    );
+  }
+}
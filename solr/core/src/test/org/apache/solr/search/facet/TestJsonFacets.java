@@ -19,28 +19,173 @@ package org.apache.solr.search.facet;
 
 import org.apache.lucene.util.LuceneTestCase;
 import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.HS;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.QueryContext;
+import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 @LuceneTestCase.SuppressCodecs({"Lucene3x","Lucene40","Lucene41","Lucene42","Appending","Asserting"})
 public class TestJsonFacets extends SolrTestCaseJ4 {
 
   @BeforeClass
   public static void beforeTests() throws Exception {
+    System.setProperty("solr.facetThreads", "2");
     initCore("solrconfig-tlog.xml","schema_latest.xml");
   }
 
+  @AfterClass
+  public static void afterTests() throws Exception {
+    System.clearProperty("solr.facetThreads");
+  }
+
+  @Test
+  public void testNativeCounts() throws Exception {
+    clearIndex();
+    // the same values in a field with global ords (v_s), a cacheTop field (v_sTop), and a docValues field (v_sd).
+    // Count-only facets on the first two are counted natively, and on the last doc-by-doc in Java.
+    String[][] segs = {{"1","a1", "2","b1", "3",null}, {"4","a1", "5","b2", "6","c1"}, {"7","b1", "8",null, "9","a2"}};
+    for (String[] seg : segs) {
+      for (int i=0; i<seg.length; i+=2) {
+        if (seg[i+1] == null) {
+          assertU(adoc("id", seg[i]));
+        } else {
+          assertU(adoc("id", seg[i], "v_s", seg[i+1], "v_sTop", seg[i+1], "v_sd", seg[i+1]));
+        }
+      }
+      assertU(commit());
+    }
+
+    try {
+      for (String suffix : new String[]{"_s", "_sTop", "_sd"}) {
+        String v = "v" + suffix;
+        String none = "none" + suffix;
+
+        // the full range, with and without the missing bucket (only visible in the allBuckets count)
+        assertJQ(req("q", "*:*", "rows", "0",
+                "facet","true"
+                , "json.facet", "{f1:{terms:{field:'" + v + "', missing:true, allBuckets:true}}, f2:{terms:{field:'" + v + "', allBuckets:true}} }"
+            )
+            , "facets=={ 'count':9, " +
+                "f1:{ allBuckets:{count:9}, 'buckets':[{val:'a1',count:2}, {val:'b1',count:2}, {val:'a2',count:1}, {val:'b2',count:1}, {val:'c1',count:1}]}" +
+                ", f2:{ allBuckets:{count:7}, 'buckets':[{val:'a1',count:2}, {val:'b1',count:2}, {val:'a2',count:1}, {val:'b2',count:1}, {val:'c1',count:1}]} }"
+        );
+
+        // a prefix restricts the range of ords that are counted
+        assertJQ(req("q", "*:*", "rows", "0",
+                "facet","true"
+                , "json.facet", "{f1:{terms:{field:'" + v + "', prefix:'b', offset:1, allBuckets:true}}, f2:{terms:{field:'" + v + "', prefix:'z', allBuckets:true}} }"
+            )
+            , "facets=={ 'count':9, f1:{ allBuckets:{count:3}, 'buckets':[{val:'b2',count:1}]}, f2:{ allBuckets:{count:0}, 'buckets':[]} }"
+        );
+
+        // terms that don't match any of the base docs
+        assertJQ(req("q", "*:*", "fq", "id:(1 2 3 4 5 6)", "rows", "0",
+                "facet","true"
+                , "json.facet", "{f1:{terms:{field:'" + v + "', mincount:0, missing:true, allBuckets:true}}, f2:{terms:{field:'" + v + "', prefix:'a', mincount:0}} }"
+            )
+            , "facets=={ 'count':6, " +
+                "f1:{ allBuckets:{count:6}, 'buckets':[{val:'a1',count:2}, {val:'b1',count:1}, {val:'b2',count:1}, {val:'c1',count:1}, {val:'a2',count:0}]}" +
+                ", f2:{ 'buckets':[{val:'a1',count:2}, {val:'a2',count:0}]} }"
+        );
+
+        // a field without any values, so every doc is missing
+        assertJQ(req("q", "*:*", "rows", "0",
+                "facet","true"
+                , "json.facet", "{f1:{terms:{field:'" + none + "', missing:true, allBuckets:true}}, f2:{terms:{field:'" + none + "', allBuckets:true}} }"
+            )
+            , "facets=={ 'count':9, f1:{ allBuckets:{count:9}, 'buckets':[]}, f2:{ allBuckets:{count:0}, 'buckets':[]} }"
+        );
+      }
+    } finally {
+      clearIndex();
+      assertU(commit());
+    }
+  }
+
+  @Test
+  public void testSharedQueryContext() throws Exception {
+    final int nThreads = 4;
+    final int nHooks = 100;
+    final AtomicInteger closed = new AtomicInteger();
+    final Closeable hook = new Closeable() {
+      @Override
+      public void close() throws IOException {
+        closed.incrementAndGet();
+      }
+    };
+
+    SolrQueryRequest req = req();
+    SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, new SolrQueryResponse()));
+    try {
+      final QueryContext qContext = QueryContext.newContext(req.getSearcher());
+      // The per-request setup happens on the requesting thread first, as it does for partition 0 of a
+      // parallel facet.  The other threads have no SolrRequestInfo and only add to what is already set up.
+      qContext.addCloseHook(hook);
+
+      final Object sharedKey = new Object();
+      final Set<Object> sharedVals = Collections.synchronizedSet(new HashSet<>());
+      final AtomicReference<Throwable> error = new AtomicReference<>();
+      Thread[] threads = new Thread[nThreads];
+      for (int i=0; i<nThreads; i++) {
+        threads[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              Object val = new Object();
+              Object prev = qContext.putIfAbsent(sharedKey, val);
+              sharedVals.add(prev == null ? val : prev);
+              for (int j=0; j<nHooks; j++) {
+                Object key = new Object();
+                qContext.put(key, val);
+                assertSame(val, qContext.get(key));
+                qContext.addCloseHook(hook);
+              }
+            } catch (Throwable t) {
+              error.set(t);
+            }
+          }
+        };
+      }
+      for (Thread thread : threads) thread.start();
+      for (Thread thread : threads) thread.join();
+
+      assertNull(error.get());
+      assertEquals(1, sharedVals.size());
+      assertTrue(sharedVals.contains(qContext.get(sharedKey)));
+      assertEquals(0, closed.get());
+    } finally {
+      SolrRequestInfo.clearRequestInfo();
+      req.close();
+    }
+
+    // every hook runs once, at the end of the request
+    assertEquals(1 + nThreads * nHooks, closed.get());
+  }
+
   @Test
   public void testStats() throws Exception {
-    assertU(add(doc("id", "1", "cat_s", "A", "where_s", "NY", "num_d", "4", "num_i", "2", "val_b", "true")));
-    assertU(add(doc("id", "2", "cat_s", "B", "where_s", "NJ", "num_d", "-9", "num_i", "-5", "val_b", "false")));
+    assertU(add(doc("id", "1", "cat_s", "A", "where_s", "NY", "where_sd", "NY", "num_d", "4", "num_i", "2", "val_b", "true")));
+    assertU(add(doc("id", "2", "cat_s", "B", "where_s", "NJ", "where_sd", "NJ", "num_d", "-9", "num_i", "-5", "val_b", "false")));
     assertU(add(doc("id", "3")));
     assertU(commit());
-    assertU(add(doc("id", "4", "cat_s", "A", "where_s", "NJ", "num_d", "2", "num_i", "3")));
-    assertU(add(doc("id", "5", "cat_s", "B", "where_s", "NJ", "num_d", "11", "num_i", "7")));
+    assertU(add(doc("id", "4", "cat_s", "A", "where_s", "NJ", "where_sd", "NJ", "num_d", "2", "num_i", "3")));
+    assertU(add(doc("id", "5", "cat_s", "B", "where_s", "NJ", "where_sd", "NJ", "num_d", "11", "num_i", "7")));
     assertU(commit());
-    assertU(add(doc("id", "6", "cat_s", "B", "where_s", "NY", "num_d", "-5", "num_i", "-5")));
+    assertU(add(doc("id", "6", "cat_s", "B", "where_s", "NY", "where_sd", "NY", "num_d", "-5", "num_i", "-5")));
     assertU(commit());
 
 
@@ -74,6 +219,15 @@ public class TestJsonFacets extends SolrTestCaseJ4 {
         , "facets=={ 'count':6, 'catB':{'count':3, 'nj':{'count':2}, 'ny':{'count':1}}}"
     );
 
+    // classic field facets and json facets in the same request, both restricted to the base DocSet
+    assertJQ(req("q", "where_s:NJ", "rows", "0",
+            "facet","true", "facet.field", "cat_s"
+            , "json.facet", "{ catB:{query:'cat_s:B'}, cat:{terms:{field:'cat_s', facet:{x:'sum(num_d)'} }} }"
+        )
+        , "facet_counts/facet_fields=={ 'cat_s':['B',2, 'A',1] }"
+        , "facets=={ 'count':3, 'catB':{'count':2}, 'cat':{ 'buckets':[{ val:'B', count:2, x:2.0 }, { val:'A', count:1, x:2.0 }]} }"
+    );
+
     // nested query facets with stats
     assertJQ(req("q", "*:*", "rows", "0",
             "facet","true"  // currently still needed
@@ -141,6 +295,28 @@ public class TestJsonFacets extends SolrTestCaseJ4 {
             ", f2:{ /*stats:{ n1:3.0},*/ 'buckets':[{ val:'B', n1:-3.0}, { val:'A', n1:6.0 }]} }"
     );
 
+    // stats other than the sort are only collected for the returned buckets
+    assertJQ(req("q", "*:*", "rows", "0",
+            "facet","true"
+            , "json.facet", "{f1:{terms:{field:'cat_s', limit:1, facet:{n1:'sum(num_d)', x:'avg(num_d)', u:'unique(where_s)'}  }}" +
+                " , f2:{terms:{field:'cat_s', limit:1, sort:'n1 desc', facet:{n1:'sum(num_d)', x:'avg(num_d)'}  }} }"
+        )
+        , "facets=={ 'count':6, " +
+            "  f1:{ 'buckets':[{ val:'B', count:3, n1:-3.0, x:-1.0, u:2 }]}" +
+            ", f2:{ 'buckets':[{ val:'A', n1:6.0, x:3.0 }]} }"
+    );
+
+    // sorting by stat skips buckets below mincount, even though count isn't one of the stats
+    assertJQ(req("q", "id:1", "rows", "0",
+            "facet","true"
+            , "json.facet", "{f1:{terms:{field:'cat_s', sort:'n1 asc', facet:{n1:'sum(num_d)'}  }}" +
+                " , f2:{terms:{field:'cat_s', sort:'n1 asc', mincount:0, facet:{n1:'sum(num_d)'}  }} }"
+        )
+        , "facets=={ 'count':1, " +
+            "  f1:{ 'buckets':[{ val:'A', n1:4.0 }]}" +
+            ", f2:{ 'buckets':[{ val:'B', n1:0.0 }, { val:'A', n1:4.0 }]} }"
+    );
+
     // terms facet with nested query facet
     assertJQ(req("q", "*:*", "rows", "0",
         "facet","true"  // currently still needed
@@ -168,6 +344,16 @@ public class TestJsonFacets extends SolrTestCaseJ4 {
         , "facets=={count:6, f:{buckets:[ {val:-5.0,count:1,x:-5.0,ny:{count:1}}, {val:0.0,count:2,x:5.0,ny:{count:1}}, {val:5.0,count:0,x:0.0,ny:{count:0}} ] } }"
     );
 
+    // range facet with stats only (collected in a single pass), a value on a boundary is in both ranges
+    assertJQ(req("q", "*:*", "rows", "0",
+            "facet","true"  // currently still needed
+            , "json.facet", "{f1:{range:{field:num_i, start:-5, end:9, gap:7, facet:{x:'sum(num_d)'}}}" +
+                            ",f2:{range:{field:num_i, start:-5, end:9, gap:7, include:'lower,upper', facet:{x:'sum(num_d)'}}} }"
+        )
+        , "facets=={count:6, f1:{buckets:[ {val:-5,count:2,x:-14.0}, {val:2,count:3,x:17.0} ] }" +
+                           ", f2:{buckets:[ {val:-5,count:3,x:-10.0}, {val:2,count:3,x:17.0} ] } }"
+    );
+
     // stats at top level
     assertJQ(req("q", "*:*", "rows", "0",
             "facet","true"  // currently still needed
@@ -186,6 +372,97 @@ public class TestJsonFacets extends SolrTestCaseJ4 {
             "sum1:0.0, sumsq1:0.0, avg1:0.0, min1:'NaN', max1:'NaN', numwhere:0  }"
     );
 
+    // sorting by unique values
+    assertJQ(req("q", "*:*", "rows", "0",
+            "facet","true"
+            , "json.facet", "{ f1:{terms:{field:'cat_s', sort:'u desc', facet:{u:'unique(id)'} }}, f2:{terms:{field:'cat_s', sort:'u asc', facet:{u:'unique(id)'} }} }"
+        )
+        , "facets=={ 'count':6, f1:{ 'buckets':[{ val:'B', u:3 }, { val:'A', u:2 }]}, f2:{ 'buckets':[{ val:'A', u:2 }, { val:'B', u:3 }]} }"
+    );
+
+    // approximate unique values
+    assertJQ(req("q", "*:*", "rows", "0",
+            "facet","true"
+            , "json.facet", "{ u1:'hll(where_s)', u2:'hll(where_s,4)', f1:{terms:{field:'cat_s', sort:'u desc', facet:{u:'hll(id)'} }} }"
+        )
+        , "facets=={ 'count':6, u1:2, u2:2, f1:{ 'buckets':[{ val:'B', u:3 }, { val:'A', u:2 }]} }"
+    );
+
+    assertJQ(req("q", "id:DOESNOTEXIST", "rows", "0",
+            "facet","true"
+            , "json.facet", "{ u1:'hll(where_s)' }"
+        )
+        , "facets=={count:0, u1:0 }"
+    );
+
+    assertQEx("hll() of a multiValued field should fail",
+        req("q", "*:*", "rows", "0", "facet", "true", "json.facet", "{ u1:'hll(where_ss)' }"),
+        SolrException.ErrorCode.BAD_REQUEST);
+
+    // peak off-heap memory used for slot arrays: one int count for each of the 2 terms, small arrays aren't rounded up
+    assertJQ(req("q", "*:*", "rows", "0", "debugQuery", "true",
+            "facet","true"
+            , "json.facet", "{f1:{terms:{field:'cat_s'}}}"
+        )
+        , "/debug/facets/slotArrayPeakBytes==8"
+    );
+
+    // the slot arrays of every bucket's sub-facet stats are released by the end of the request
+    long facetBytes = HS.getLiveBytes(HS.MEM_FACET);
+    assertJQ(req("q", "*:*", "rows", "0",
+            "facet","true"
+            , "json.facet", "{f1:{terms:{field:'cat_s', facet:{x:'sum(num_i)', f2:{terms:{field:'where_s', facet:{y:'avg(num_d)', u:'hll(id)'}}}}}}}"
+        )
+        , "facets/count==6"
+    );
+    assertEquals(facetBytes, HS.getLiveBytes(HS.MEM_FACET));
+
+    // percentiles
+    assertJQ(req("q", "*:*", "rows", "0",
+            "facet","true"
+            , "json.facet", "{ p1:'percentile(num_d,50)', p2:'percentile(num_d,0,50,90,100)', f1:{terms:{field:'cat_s', sort:'p desc', facet:{p:'percentile(num_d,50)'} }} }"
+        )
+        , "facets=={ 'count':6, p1:2.0, p2:[-9.0, 2.0, 11.0, 11.0], f1:{ 'buckets':[{ val:'A', p:3.0 }, { val:'B', p:-5.0 }]} }"
+    );
+
+    assertJQ(req("q", "id:DOESNOTEXIST", "rows", "0",
+            "facet","true"
+            , "json.facet", "{ p1:'percentile(num_d,50)' }"
+        )
+        , "facets=={count:0, p1:'NaN' }"
+    );
+
+    // stats and sorting by stat, collected in parallel across segments
+    for (String threads : new String[]{"1", "2", "-1"}) {
+      assertJQ(req("q", "*:*", "rows", "0",
+              "facet","true", "facet.threads", threads
+              , "json.facet", "{ sum1:'sum(num_d)', sumsq1:'sumsq(num_d)', avg1:'avg(num_d)', min1:'min(num_d)', max1:'max(num_d)', numwhere:'unique(where_s)', hllwhere:'hll(where_s)' }"
+          )
+          , "facets=={ 'count':6, " +
+              "sum1:3.0, sumsq1:247.0, avg1:0.5, min1:-9.0, max1:11.0, numwhere:2, hllwhere:2  }"
+      );
+
+      assertJQ(req("q", "*:*", "rows", "0",
+              "facet","true", "facet.threads", threads
+              , "json.facet", "{f1:{terms:{field:'cat_s', sort:'n1 desc', facet:{n1:'sum(num_d)'}  }}" +
+                  " , f2:{terms:{field:'cat_s', sort:'n1 asc', facet:{n1:'sum(num_d)'}  }} }"
+          )
+          , "facets=={ 'count':6, " +
+              "  f1:{ 'buckets':[{ val:'A', n1:6.0 }, { val:'B', n1:-3.0}]}" +
+              ", f2:{ 'buckets':[{ val:'B', n1:-3.0}, { val:'A', n1:6.0 }]} }"
+      );
+    }
+
+    // unique() over docValues ords, which are not safe to share across threads, is collected serially
+    for (String threads : new String[]{"1", "2", "-1"}) {
+      assertJQ(req("q", "*:*", "rows", "0",
+              "facet","true", "facet.threads", threads
+              , "json.facet", "{ numwhere:'unique(where_sd)', f1:{terms:{field:'cat_s', facet:{u:'unique(where_sd)'} }} }"
+          )
+          , "facets=={ 'count':6, numwhere:2, f1:{ 'buckets':[{ val:'B', count:3, u:2 }, { val:'A', count:2, u:2 }]} }"
+      );
+    }
+
     // TODO:
     // multi-valued!!!
     // missing bucket
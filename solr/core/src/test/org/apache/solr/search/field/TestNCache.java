@@ -17,21 +17,29 @@ package org.apache.solr.search.field;
  * limitations under the License.
  */
 
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.util.BytesRef;
 import org.apache.solr.JSONTestUtil;
 import org.apache.solr.SolrTestCaseHS;
 import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.core.HS;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.request.SolrRequestInfo;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.QueryContext;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.facet.SimpleFacets;
 import org.apache.solr.search.function.FuncValues;
 import org.apache.solr.search.function.ValueSource;
+import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.noggit.JSONUtil;
 import org.noggit.ObjectBuilder;
 
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -44,9 +52,15 @@ public class TestNCache extends SolrTestCaseHS {
 
   @BeforeClass
   public static void beforeTests() throws Exception {
+    System.setProperty("solr.nCacheWarmThreads", "2");
     initCore("solrconfig.xml","schema_latest.xml");
   }
 
+  @AfterClass
+  public static void afterTests() throws Exception {
+    System.clearProperty("solr.nCacheWarmThreads");
+  }
+
 
   String big;
   private void addDoc(int num) {
@@ -264,6 +278,208 @@ public class TestNCache extends SolrTestCaseHS {
   }
 
 
+  public void testGlobalOrds() throws Exception {
+    clearNCache();
+    clearIndex();
+    String f = "glob_s1";
+
+    assertU(adoc("id", "1", f, "b"));
+    assertU(adoc("id", "2", f, "d"));
+    assertU(commit());
+    assertU(adoc("id", "3", f, "a"));
+    assertU(adoc("id", "4", f, "d"));
+    assertU(adoc("id", "5"));
+    assertU(commit());
+
+    assertJQ(req("q", "*:*", "facet", "true", "facet.method", "fc", "facet.field", f, "facet.missing", "true")
+        , "/facet_counts/facet_fields/" + f + "==['d',2,'a',1,'b',1,null,1]"
+    );
+
+    StrTopValues vals = (StrTopValues)getCacheEntry(f);
+    assertFalse(vals.cacheTop);
+    assertEquals(3, vals.globalValues.getFieldStats().getNumUniqueValues());
+    vals.decref();
+
+    // the new searcher builds its global ords once the values of its new segments exist (on first use, or while
+    // warming with nCacheWarmThreads), reusing the map of the old searcher for the shared segments
+    assertU(adoc("id", "6", f, "c"));
+    assertU(adoc("id", "7", f, "a"));
+    assertU(commit());
+
+    assertJQ(req("q", "*:*", "facet", "true", "facet.method", "fc", "facet.field", f, "facet.missing", "true")
+        , "/facet_counts/facet_fields/" + f + "==['a',2,'d',2,'b',1,'c',1,null,1]"
+    );
+
+    vals = (StrTopValues)getCacheEntry(f);
+    assertEquals(4, vals.globalValues.getFieldStats().getNumUniqueValues());
+    vals.decref();
+    long nativeCounts = SimpleFacets.numNativeCounts.get();
+    assertJQ(req("q", "*:*", "facet", "true", "facet.method", "fc", "facet.field", f, "facet.prefix", "c")
+        , "/facet_counts/facet_fields/" + f + "==['c',1]"
+    );
+    assertJQ(req("q", "*:*", "rows", "0", "facet", "true", "json.facet", "{f:{terms:{field:'" + f + "', mincount:0}}}")
+        , "facets=={count:7, f:{buckets:[{val:'a',count:2}, {val:'d',count:2}, {val:'b',count:1}, {val:'c',count:1}]}}"
+    );
+    if (HS.loaded) {
+      // global ords have no top level ord array, but are still counted natively segment by segment
+      assertEquals(nativeCounts + 2, SimpleFacets.numNativeCounts.get());
+    }
+
+    // nothing shared after a merge down to one segment
+    assertU(optimize());
+    assertJQ(req("q", "id:[3 TO 7]", "facet", "true", "facet.method", "fc", "facet.field", f, "facet.sort", "index")
+        , "/facet_counts/facet_fields/" + f + "==['a',2,'b',0,'c',1,'d',1]"
+    );
+  }
+
+
+  public void testGlobalOrdsAfterClose() throws Exception {
+    // without warming threads, global ords are first built on the new searcher after the old one is closed
+    System.setProperty("solr.nCacheWarmThreads", "0");
+    h.reload();
+    try {
+      clearNCache();
+      clearIndex();
+      String f = "glob_s1";
+
+      assertU(adoc("id", "1", f, "a"));
+      assertU(commit());
+      assertU(adoc("id", "2", f, "b"));
+      assertU(commit());
+      assertU(adoc("id", "3", f, "b"));
+      assertU(adoc("id", "4", f, "c"));
+      assertU(commit());
+
+      assertJQ(req("q", "*:*", "facet", "true", "facet.method", "fc", "facet.field", f)
+          , "/facet_counts/facet_fields/" + f + "==['b',2,'a',1,'c',1]"
+      );
+
+      // the old map points to the second segment for 'b', which is dropped along with the old searcher.
+      // Its values are freed before the map is reused for the two shared segments.
+      assertU(delI("2"));
+      assertU(commit());
+
+      StrTopValues vals = (StrTopValues)getCacheEntry(f);
+      assertNull(vals.globalValues);
+      vals.decref();
+
+      assertJQ(req("q", "*:*", "facet", "true", "facet.method", "fc", "facet.field", f, "facet.sort", "index")
+          , "/facet_counts/facet_fields/" + f + "==['a',1,'b',1,'c',1]"
+      );
+      assertJQ(req("q", "*:*", "rows", "0", "facet", "true", "json.facet", "{f:{terms:{field:'" + f + "', sort:'index asc'}}}")
+          , "facets=={count:3, f:{buckets:[{val:'a',count:1}, {val:'b',count:1}, {val:'c',count:1}]}}"
+      );
+
+      vals = (StrTopValues)getCacheEntry(f);
+      assertEquals(3, vals.globalValues.getFieldStats().getNumUniqueValues());
+      vals.decref();
+    } finally {
+      System.setProperty("solr.nCacheWarmThreads", "2");
+      h.reload();
+    }
+  }
+
+
+  public void testWarmLeaves() throws Exception {
+    clearNCache();
+    clearIndex();
+    String f = "warm_i";
+
+    assertU(adoc("id", "1", f, "10"));
+    assertU(commit());
+    assertJQ(req("q", "*:*", "sort", f+" desc", "fl", "id")
+        , "/response/docs==[{'id':'1'}]"
+    );
+
+    // the values of the new segment should be created while warming, before the searcher is registered
+    assertU(adoc("id", "2", f, "20"));
+    assertU(commit());
+
+    TopValues vals = getCacheEntry(f);
+    assertNotNull(vals);
+    assertTrue(vals.allSegmentsLoaded());
+    vals.decref();
+
+    assertJQ(req("q", "*:*", "sort", f+" desc", "fl", "id")
+        , "/response/docs==[{'id':'2'},{'id':'1'}]"
+    );
+  }
+
+
+  public void testLeafValuesStore() throws Exception {
+    clearIndex();
+    String f = "stored_s1";
+    assertU(adoc("id", "1", f, "b"));
+    assertU(adoc("id", "2", f, "d"));
+    assertU(adoc("id", "3"));
+    assertU(commit());
+    assertU(adoc("id", "4", f, "a"));
+    assertU(adoc("id", "5", f, "d"));
+    assertU(commit());
+
+    SolrQueryRequest req = req();
+    SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, new SolrQueryResponse()));
+    try {
+      SolrIndexSearcher searcher = req.getSearcher();
+      QueryContext qcontext = QueryContext.newContext(searcher);
+      StrFieldValues fieldValues = new StrFieldValues(req.getSchema().getField(f), null, false);
+      TopValues topValues = fieldValues.getTopValues(qcontext);
+      LeafValuesStore store = new LeafValuesStore(createTempDir("nvalues"));
+
+      BytesRef builtTerm = new BytesRef();
+      BytesRef loadedTerm = new BytesRef();
+      for (AtomicReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+        StrLeafValues built = (StrLeafValues)topValues.getLeafValues(qcontext, leaf);
+        store.saveStr(searcher, built, leaf);
+        store.waitForWrites();
+        StrLeafValues loaded = store.loadStr(searcher, fieldValues, leaf);
+        if (!(built instanceof StrArrLeafValues)) {
+          assertNull(loaded);
+          continue;
+        }
+
+        assertNotNull(loaded);
+        assertEquals(built.getFieldStats().getNumUniqueValues(), loaded.getFieldStats().getNumUniqueValues());
+        for (int doc=0; doc<leaf.reader().maxDoc(); doc++) {
+          assertEquals(built.ordVal(doc), loaded.ordVal(doc));
+          assertEquals(built.bytesVal(doc, builtTerm), loaded.bytesVal(doc, loadedTerm));
+          assertEquals(builtTerm, loadedTerm);
+        }
+        assertEquals(built.termToOrd(new BytesRef("d")), loaded.termToOrd(new BytesRef("d")));
+        loaded.decref();
+      }
+      assertTrue(store.getNumLoaded() > 0);
+      assertEquals(store.getNumSaved(), store.getNumLoaded());
+
+      // a damaged file is ignored and removed, so that the values are built again
+      File[] files = store.getDirectory().listFiles();
+      RandomAccessFile raf = new RandomAccessFile(files[0], "rw");
+      raf.setLength(raf.length() / 2);
+      raf.close();
+      long loadedBefore = store.getNumLoaded();
+      for (AtomicReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+        StrLeafValues loaded = store.loadStr(searcher, fieldValues, leaf);
+        if (loaded != null) loaded.decref();
+      }
+      assertEquals(loadedBefore + files.length - 1, store.getNumLoaded());
+      assertFalse(files[0].exists());
+
+      // values queued once the store is closed are not written
+      store.close();
+      StrLeafValues built = (StrLeafValues)topValues.getLeafValues(qcontext, searcher.getTopReaderContext().leaves().get(0));
+      int refCount = built.getRefCount();
+      long savedBefore = store.getNumSaved();
+      store.saveStr(searcher, built, searcher.getTopReaderContext().leaves().get(0));
+      store.waitForWrites();
+      assertEquals(savedBefore, store.getNumSaved());
+      assertEquals(refCount, built.getRefCount());
+    } finally {
+      req.close();
+      SolrRequestInfo.clearRequestInfo();
+    }
+  }
+
+
   public static TopValues getCacheEntry(String field) {
     SolrQueryRequest req = req();
     TopValues entry = req.getSearcher().getnCache().check(field);
@@ -304,34 +520,37 @@ public class TestNCache extends SolrTestCaseHS {
 
     SolrQueryRequest req = req();
     SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, new SolrQueryResponse()));
-
-    SchemaField sf = req.getSchema().getField("val_s1");
-    ValueSource vs = sf.getType().getValueSource(sf, null);
-    QueryContext qcontext = QueryContext.newContext(req.getSearcher());
-    vs.createWeight(qcontext);
-
-    FuncValues funcValues = vs.getValues(qcontext, req.getSearcher().getTopReaderContext().leaves().get(0));
-    assertTrue(vs instanceof StrFieldValues);
-    if (((StrFieldValues)vs).cacheTop()) {
-      assertTrue(funcValues instanceof StrSliceValues);
-    } else {
-      StrArrLeafValues vals = (StrArrLeafValues)funcValues;
-
-      assertTrue(vals._getDocToOrdArray() instanceof LongArray8);
-      assertTrue(vals._getOrdToOffsetArray().memSize() == nTerms*1);
-
-      long estSize =
-          (nDocs * 1) // docToOrd array
-              +(nTerms * 1) // ordToOffset array
-              +(termSize);  // term bytes
-
-      long reportedSize = vals.getSizeInBytes();
-
-      assertTrue(estSize >= reportedSize);
+    try {
+      SchemaField sf = req.getSchema().getField("val_s1");
+      ValueSource vs = sf.getType().getValueSource(sf, null);
+      QueryContext qcontext = QueryContext.newContext(req.getSearcher());
+      vs.createWeight(qcontext);
+
+      FuncValues funcValues = vs.getValues(qcontext, req.getSearcher().getTopReaderContext().leaves().get(0));
+      assertTrue(vs instanceof StrFieldValues);
+      if (((StrFieldValues)vs).cacheTop()) {
+        assertTrue(funcValues instanceof StrSliceValues);
+      } else {
+        StrArrLeafValues vals = (StrArrLeafValues)funcValues;
+
+        assertTrue(vals._getDocToOrdArray() instanceof LongArray8);
+        // the offset adjustments only need a few bits, so they may be bit packed into less than a byte each
+        long ordToOffsetSize = vals._getOrdToOffsetArray().memSize();
+        assertTrue(ordToOffsetSize <= nTerms*1);
+
+        long estSize =
+            (nDocs * 1) // docToOrd array
+                +(ordToOffsetSize) // ordToOffset array, at most 1 byte per term
+                +(termSize);  // term bytes
+
+        long reportedSize = vals.getSizeInBytes();
+
+        assertTrue(estSize >= reportedSize);
+      }
+    } finally {
+      req.close();
+      SolrRequestInfo.clearRequestInfo();
     }
-
-    req.close();
-    SolrRequestInfo.clearRequestInfo();
   }
 
 
@@ -17,8 +17,15 @@
 #define HS_FORMAT_INT16 org_apache_solr_core_HS_FORMAT_INT16 
 #define HS_FORMAT_INT32 org_apache_solr_core_HS_FORMAT_INT32 
 #define HS_FORMAT_INT64 org_apache_solr_core_HS_FORMAT_INT64 
+#define HS_FORMAT_ROARING org_apache_solr_core_HS_FORMAT_ROARING
+#define HS_FORMAT_PACKED org_apache_solr_core_HS_FORMAT_PACKED
+
+#define HS_OP_AND org_apache_solr_core_HS_OP_AND
+#define HS_OP_OR org_apache_solr_core_HS_OP_OR
+#define HS_OP_ANDNOT org_apache_solr_core_HS_OP_ANDNOT
 
 #define ctz64(val) __builtin_ctzll(val)
+#define popcount64(val) __builtin_popcountll(val)
 
 #endif // HS_H
 
@@ -103,3 +103,590 @@ JNIEXPORT void JNICALL Java_org_apache_solr_search_BitDocSetNative_setBits
   }
 }
 
+JNIEXPORT void JNICALL Java_org_apache_solr_search_BitDocSetNative_clearBits
+  (JNIEnv *env, jclass clazz, jlong words, jlong wlen, jlong intArr, jint sz)
+{
+  uint64_t* bits = (uint64_t*)words;
+  int* docsToClear = (int*)intArr;
+  for (int i=0; i<sz; i++) {
+    int doc = docsToClear[i];
+    bits[doc >> 6] &= ~(((uint64_t)1) << (doc & 0x3f));
+  }
+}
+
+
+//////////////////////////////////////////////////////////////////////////////
+// Bitset word loops.  These are kept as simple loops over non-aliased arrays
+// so that gcc can vectorize them (see VEC in make.sh).
+//////////////////////////////////////////////////////////////////////////////
+
+struct AndOp {
+  static inline uint64_t apply(uint64_t a, uint64_t b) { return a & b; }
+};
+
+struct OrOp {
+  static inline uint64_t apply(uint64_t a, uint64_t b) { return a | b; }
+};
+
+struct AndNotOp {
+  static inline uint64_t apply(uint64_t a, uint64_t b) { return a & ~b; }
+};
+
+template <typename Op>
+static int64_t bitsOpCount(const uint64_t* __restrict a, const uint64_t* __restrict b, int wlen) {
+  // independent accumulators so the popcounts don't serialize on a single add chain
+  uint64_t c0=0, c1=0, c2=0, c3=0;
+  int i=0;
+  for (; i+4<=wlen; i+=4) {
+    c0 += popcount64(Op::apply(a[i], b[i]));
+    c1 += popcount64(Op::apply(a[i+1], b[i+1]));
+    c2 += popcount64(Op::apply(a[i+2], b[i+2]));
+    c3 += popcount64(Op::apply(a[i+3], b[i+3]));
+  }
+  for (; i<wlen; i++) {
+    c0 += popcount64(Op::apply(a[i], b[i]));
+  }
+  return c0 + c1 + c2 + c3;
+}
+
+// target = a OP b, returning the cardinality of the result
+template <typename Op>
+static int64_t bitsOp(uint64_t* __restrict target, const uint64_t* __restrict a, const uint64_t* __restrict b, int wlen) {
+  uint64_t count = 0;
+  for (int i=0; i<wlen; i++) {
+    uint64_t word = Op::apply(a[i], b[i]);
+    target[i] = word;
+    count += popcount64(word);
+  }
+  return count;
+}
+
+JNIEXPORT jint JNICALL Java_org_apache_solr_search_BitDocSetNative_opCountNative
+  (JNIEnv *env, jclass clazz, jlong a, jlong b, jint wlen, jint op)
+{
+  switch (op) {
+    case HS_OP_AND: return bitsOpCount<AndOp>((const uint64_t*)a, (const uint64_t*)b, wlen);
+    case HS_OP_OR: return bitsOpCount<OrOp>((const uint64_t*)a, (const uint64_t*)b, wlen);
+    default: return bitsOpCount<AndNotOp>((const uint64_t*)a, (const uint64_t*)b, wlen);
+  }
+}
+
+JNIEXPORT jint JNICALL Java_org_apache_solr_search_BitDocSetNative_opNative
+  (JNIEnv *env, jclass clazz, jlong target, jlong a, jlong b, jint wlen, jint op)
+{
+  switch (op) {
+    case HS_OP_AND: return bitsOp<AndOp>((uint64_t*)target, (const uint64_t*)a, (const uint64_t*)b, wlen);
+    case HS_OP_OR: return bitsOp<OrOp>((uint64_t*)target, (const uint64_t*)a, (const uint64_t*)b, wlen);
+    default: return bitsOp<AndNotOp>((uint64_t*)target, (const uint64_t*)a, (const uint64_t*)b, wlen);
+  }
+}
+
+JNIEXPORT jboolean JNICALL Java_org_apache_solr_search_BitDocSetNative_intersectsNative
+  (JNIEnv *env, jclass clazz, jlong aptr, jlong bptr, jint wlen)
+{
+  const uint64_t* a = (const uint64_t*)aptr;
+  const uint64_t* b = (const uint64_t*)bptr;
+  // check a block of words at a time, which vectorizes, rather than a branch per word
+  int i=0;
+  for (; i+16<=wlen; i+=16) {
+    uint64_t any = 0;
+    for (int j=i; j<i+16; j++) {
+      any |= a[j] & b[j];
+    }
+    if (any != 0) return true;
+  }
+  for (; i<wlen; i++) {
+    if ((a[i] & b[i]) != 0) return true;
+  }
+  return false;
+}
+
+static inline int bitIsSet(const uint64_t* bits, int wlen, int doc) {
+  int word = doc >> 6;
+  return word < wlen ? (int)((bits[word] >> (doc & 0x3f)) & 1) : 0;
+}
+
+JNIEXPORT jint JNICALL Java_org_apache_solr_search_BitDocSetNative_intersectionSizeIntsNative
+  (JNIEnv *env, jclass clazz, jlong words, jint wlen, jlong intArr, jint len)
+{
+  const uint64_t* bits = (const uint64_t*)words;
+  const int* docs = (const int*)intArr;
+  int count = 0;
+  for (int i=0; i<len; i++) {
+    count += bitIsSet(bits, wlen, docs[i]);
+  }
+  return count;
+}
+
+// copies the docs that are (keep=true) or are not (keep=false) in the bitset to target
+JNIEXPORT jint JNICALL Java_org_apache_solr_search_BitDocSetNative_filterIntsNative
+  (JNIEnv *env, jclass clazz, jlong words, jint wlen, jlong intArr, jint len, jboolean keep, jlong targetArr)
+{
+  const uint64_t* bits = (const uint64_t*)words;
+  const int* docs = (const int*)intArr;
+  int* target = (int*)targetArr;
+  int want = keep ? 1 : 0;
+  int count = 0;
+  for (int i=0; i<len; i++) {
+    // branch free: always write, only advance when the doc is kept
+    int doc = docs[i];
+    target[count] = doc;
+    count += bitIsSet(bits, wlen, doc) == want;
+  }
+  return count;
+}
+
+
+//////////////////////////////////////////////////////////////////////////////
+// Sorted int lists
+//////////////////////////////////////////////////////////////////////////////
+
+// Returns the first index in [low, len) where b[index] >= target, or len if there is none.
+// Gallops forward from low in doubling steps, then binary searches the last step, so the cost
+// is logarithmic in the distance moved rather than in the length of the list.
+static inline int gallop(const int* b, int low, int len, int target) {
+  if (low >= len || b[low] >= target) return low;
+  int bound = 1;
+  while (low + bound < len && b[low + bound] < target) {
+    bound <<= 1;
+  }
+  int lo = low + (bound >> 1) + 1;  // b[low + bound/2] < target
+  int hi = low + bound < len ? low + bound : len;
+  while (lo < hi) {
+    int mid = ((unsigned int)(lo + hi)) >> 1;
+    if (b[mid] < target) {
+      lo = mid + 1;
+    } else {
+      hi = mid;
+    }
+  }
+  return lo;
+}
+
+// target must have room for min(lena, lenb) ints
+int intersectionInts(const int* a, int lena, const int* b, int lenb, int* target) {
+  if (lena > lenb) {
+    const int* t = a; a = b; b = t;
+    int tl = lena; lena = lenb; lenb = tl;
+  }
+  if (lena == 0) return 0;
+
+  int count = 0;
+  if ((lenb >> 3) >= lena) {
+    // skewed sizes: gallop through the bigger list
+    int j = 0;
+    for (int i=0; i<lena; i++) {
+      int doc = a[i];
+      j = gallop(b, j, lenb, doc);
+      if (j >= lenb) break;
+      if (b[j] == doc) {
+        target[count++] = doc;
+        j++;
+      }
+    }
+    return count;
+  }
+
+  // similar sizes: branch free merge
+  int i=0, j=0;
+  while (i < lena && j < lenb) {
+    int da = a[i];
+    int db = b[j];
+    target[count] = da;
+    count += da == db;
+    i += da <= db;
+    j += db <= da;
+  }
+  return count;
+}
+
+// target must have room for lena ints
+int andNotInts(const int* a, int lena, const int* b, int lenb, int* target) {
+  if (lena == 0) return 0;
+  int count = 0;
+
+  if ((lenb >> 3) >= lena) {
+    int j = 0;
+    for (int i=0; i<lena; i++) {
+      int doc = a[i];
+      j = gallop(b, j, lenb, doc);
+      if (j < lenb && b[j] == doc) {
+        j++;
+      } else {
+        target[count++] = doc;
+      }
+    }
+    return count;
+  }
+
+  int i=0, j=0;
+  while (i < lena && j < lenb) {
+    int da = a[i];
+    int db = b[j];
+    target[count] = da;
+    count += da < db;
+    i += da <= db;
+    j += db <= da;
+  }
+  memcpy(target + count, a + i, (lena - i) * sizeof(int));
+  return count + (lena - i);
+}
+
+// target must have room for lena + lenb ints
+int unionInts(const int* a, int lena, const int* b, int lenb, int* target) {
+  int count = 0;
+  int i=0, j=0;
+  while (i < lena && j < lenb) {
+    int da = a[i];
+    int db = b[j];
+    target[count++] = da <= db ? da : db;
+    i += da <= db;
+    j += db <= da;
+  }
+  memcpy(target + count, a + i, (lena - i) * sizeof(int));
+  count += lena - i;
+  memcpy(target + count, b + j, (lenb - j) * sizeof(int));
+  return count + (lenb - j);
+}
+
+JNIEXPORT jint JNICALL Java_org_apache_solr_search_SortedIntDocSetNative_intersectionNative
+  (JNIEnv *env, jclass clazz, jlong a, jint lena, jlong b, jint lenb, jlong target)
+{
+  return intersectionInts((const int*)a, lena, (const int*)b, lenb, (int*)target);
+}
+
+JNIEXPORT jint JNICALL Java_org_apache_solr_search_SortedIntDocSetNative_andNotNative
+  (JNIEnv *env, jclass clazz, jlong a, jint lena, jlong b, jint lenb, jlong target)
+{
+  return andNotInts((const int*)a, lena, (const int*)b, lenb, (int*)target);
+}
+
+JNIEXPORT jint JNICALL Java_org_apache_solr_search_SortedIntDocSetNative_unionNative
+  (JNIEnv *env, jclass clazz, jlong a, jint lena, jlong b, jint lenb, jlong target)
+{
+  return unionInts((const int*)a, lena, (const int*)b, lenb, (int*)target);
+}
+
+
+
+static void setRange(uint64_t* words, int from, int to) {
+  int startWord = from >> 6;
+  int endWord = (to-1) >> 6;
+  // gcc will optimize the masks of the shift counts away on x86, but the standard doesn't define shifts >= 64
+  uint64_t startMask = ~((uint64_t)0) << (from & 0x3f);
+  uint64_t endMask = ~((uint64_t)0) >> ((-to) & 0x3f);
+  if (startWord == endWord) {
+    words[startWord] |= startMask & endMask;
+    return;
+  }
+  words[startWord] |= startMask;
+  for (int i=startWord+1; i<endWord; i++) {
+    words[i] = ~((uint64_t)0);
+  }
+  words[endWord] |= endMask;
+}
+
+void RoaringDocSet::decode(int container, uint64_t* words) const {
+  const RoaringContainer& c = dir[container];
+  const char* d = data(container);
+
+  if (c.type == ROARING_BITMAP) {
+    memcpy(words, d, ROARING_BITMAP_BYTES);
+    return;
+  }
+
+  memset(words, 0, ROARING_BITMAP_BYTES);
+  if (c.type == ROARING_ARRAY) {
+    const uint16_t* values = (const uint16_t*)d;
+    for (int i=0; i<c.card; i++) {
+      int low = values[i];
+      words[low >> 6] |= ((uint64_t)1) << (low & 0x3f);
+    }
+  } else {
+    int runs = *(const int32_t*)d;
+    const uint16_t* run = (const uint16_t*)(d + 4);
+    for (int i=0; i<runs; i++, run+=2) {
+      setRange(words, run[0], run[0] + run[1] + 1);
+    }
+  }
+}
+
+// returns the next set bit at or after "from", or 65536
+static int nextSetBit(const uint64_t* words, int from) {
+  int i = from >> 6;
+  if (i >= ROARING_BITMAP_WORDS) return ROARING_BITMAP_WORDS << 6;
+  uint64_t word = words[i] >> (from & 0x3f);
+  if (word != 0) return from + ctz64(word);
+  while (++i < ROARING_BITMAP_WORDS) {
+    if (words[i] != 0) return (i << 6) + ctz64(words[i]);
+  }
+  return ROARING_BITMAP_WORDS << 6;
+}
+
+// returns the next clear bit at or after "from", or 65536
+static int nextClearBit(const uint64_t* words, int from) {
+  int i = from >> 6;
+  uint64_t word = ~words[i] >> (from & 0x3f);
+  if (word != 0) return from + ctz64(word);
+  while (++i < ROARING_BITMAP_WORDS) {
+    if (~words[i] != 0) return (i << 6) + ctz64(~words[i]);
+  }
+  return ROARING_BITMAP_WORDS << 6;
+}
+
+// Encodes a bitmap as the smallest container, the same way RoaringDocSetNative.Builder does.
+// Returns the number of data bytes written, or 0 if the bitmap is empty.
+static int roaringEncode(const uint64_t* words, int key, RoaringContainer* entry, char* out) {
+  int card = 0;
+  int runs = 0;
+  uint64_t carry = 0;  // highest bit of the previous word
+  for (int i=0; i<ROARING_BITMAP_WORDS; i++) {
+    uint64_t w = words[i];
+    card += popcount64(w);
+    runs += popcount64(w & ~((w << 1) | carry));
+    carry = w >> 63;
+  }
+  if (card == 0) return 0;
+
+  entry->key = key;
+  entry->card = card;
+  int arrayBytes = card << 1;
+  int runBytes = 4 + (runs << 2);
+
+  if (runBytes < arrayBytes && runBytes < ROARING_BITMAP_BYTES) {
+    entry->type = ROARING_RUN;
+    *(int32_t*)out = runs;
+    uint16_t* run = (uint16_t*)(out + 4);
+    int start = nextSetBit(words, 0);
+    while (start < (ROARING_BITMAP_WORDS << 6)) {
+      int end = nextClearBit(words, start);
+      *run++ = (uint16_t)start;
+      *run++ = (uint16_t)(end - start - 1);
+      start = nextSetBit(words, end);
+    }
+    return runBytes;
+  } else if (card <= ROARING_MAX_ARRAY_CARDINALITY) {
+    entry->type = ROARING_ARRAY;
+    uint16_t* values = (uint16_t*)out;
+    for (int i=0; i<ROARING_BITMAP_WORDS; i++) {
+      uint64_t w = words[i];
+      while (w != 0) {
+        *values++ = (uint16_t)((i << 6) | ctz64(w));
+        w &= w - 1;
+      }
+    }
+    return arrayBytes;
+  } else {
+    entry->type = ROARING_BITMAP;
+    memcpy(out, words, ROARING_BITMAP_BYTES);
+    return ROARING_BITMAP_BYTES;
+  }
+}
+
+static inline int64_t align8(int64_t bytes) {
+  return (bytes + 7) & ~((int64_t)7);
+}
+
+int roaringIntersectionSize(const RoaringDocSet& a, const RoaringDocSet& b) {
+  uint64_t wa[ROARING_BITMAP_WORDS];
+  uint64_t wb[ROARING_BITMAP_WORDS];
+  int count = 0;
+  for (int i=0, j=0; i<a.numContainers && j<b.numContainers;) {
+    int ka = a.dir[i].key;
+    int kb = b.dir[j].key;
+    if (ka < kb) {
+      i++;
+    } else if (ka > kb) {
+      j++;
+    } else {
+      a.decode(i++, wa);
+      b.decode(j++, wb);
+      for (int w=0; w<ROARING_BITMAP_WORDS; w++) {
+        count += popcount64(wa[w] & wb[w]);
+      }
+    }
+  }
+  return count;
+}
+
+// Containers are expanded to bitmaps, combined a word at a time, and re-encoded.  Containers that
+// are only in one set are copied as-is.  Directory space is reserved for maxContainers entries.
+int64_t roaringCombine(const RoaringDocSet& a, const RoaringDocSet& b, int op, int maxContainers, char* out) {
+  uint64_t wa[ROARING_BITMAP_WORDS];
+  uint64_t wb[ROARING_BITMAP_WORDS];
+  RoaringContainer* dir = (RoaringContainer*)(out + ROARING_HEADER_BYTES);
+  int64_t off = align8(ROARING_HEADER_BYTES + (int64_t)maxContainers * sizeof(RoaringContainer));
+  int n = 0;
+  int card = 0;
+
+  int i=0, j=0;
+  while (i<a.numContainers || j<b.numContainers) {
+    int ka = i < a.numContainers ? a.dir[i].key : INT32_MAX;
+    int kb = j < b.numContainers ? b.dir[j].key : INT32_MAX;
+    int bytes;
+
+    if (ka == kb) {
+      a.decode(i++, wa);
+      b.decode(j++, wb);
+      switch (op) {
+        case HS_OP_AND:
+          for (int w=0; w<ROARING_BITMAP_WORDS; w++) wa[w] &= wb[w];
+          break;
+        case HS_OP_OR:
+          for (int w=0; w<ROARING_BITMAP_WORDS; w++) wa[w] |= wb[w];
+          break;
+        default:
+          for (int w=0; w<ROARING_BITMAP_WORDS; w++) wa[w] &= ~wb[w];
+          break;
+      }
+      bytes = roaringEncode(wa, ka, dir + n, out + off);
+      if (bytes == 0) continue;
+    } else {
+      const RoaringDocSet& src = ka < kb ? a : b;
+      int c = ka < kb ? i++ : j++;
+      if (ka < kb ? op == HS_OP_AND : op != HS_OP_OR) continue;
+      dir[n] = src.dir[c];
+      bytes = src.dataBytes(c);
+      memcpy(out + off, src.data(c), bytes);
+    }
+
+    assert(n < maxContainers);
+    dir[n].offset = (int32_t)off;
+    card += dir[n].card;
+    n++;
+    off += align8(bytes);
+  }
+
+  ((int32_t*)out)[0] = n;
+  ((int32_t*)out)[1] = card;
+  return off;
+}
+
+JNIEXPORT jint JNICALL Java_org_apache_solr_search_RoaringDocSetNative_intersectionSizeNative
+  (JNIEnv *env, jclass clazz, jlong a, jlong b)
+{
+  return roaringIntersectionSize( RoaringDocSet((const void*)a), RoaringDocSet((const void*)b) );
+}
+
+JNIEXPORT jlong JNICALL Java_org_apache_solr_search_RoaringDocSetNative_combineNative
+  (JNIEnv *env, jclass clazz, jlong a, jlong b, jint op, jint maxContainers, jlong out)
+{
+  return roaringCombine( RoaringDocSet((const void*)a), RoaringDocSet((const void*)b), op, maxContainers, (char*)out );
+}
+
+
+// copies the words of a bitset that correspond to a container, zero padding past the end of the bitset
+static void bitsWindow(const uint64_t* bits, int wlen, int key, uint64_t* words) {
+  int start = key * ROARING_BITMAP_WORDS;
+  int n = wlen - start;
+  if (n > ROARING_BITMAP_WORDS) n = ROARING_BITMAP_WORDS;
+  if (n < 0) n = 0;
+  memcpy(words, bits + start, n * sizeof(uint64_t));
+  memset(words + n, 0, (ROARING_BITMAP_WORDS - n) * sizeof(uint64_t));
+}
+
+int roaringIntersectionSizeBits(const RoaringDocSet& a, const uint64_t* bits, int wlen) {
+  uint64_t wa[ROARING_BITMAP_WORDS];
+  uint64_t wb[ROARING_BITMAP_WORDS];
+  int count = 0;
+  for (int i=0; i<a.numContainers; i++) {
+    const RoaringContainer& c = a.dir[i];
+    if (c.type == ROARING_ARRAY) {
+      // sparse: look up each value rather than expanding the container
+      const uint16_t* values = (const uint16_t*)a.data(i);
+      int hi = c.key << 16;
+      for (int j=0; j<c.card; j++) {
+        count += bitIsSet(bits, wlen, hi | values[j]);
+      }
+    } else {
+      a.decode(i, wa);
+      bitsWindow(bits, wlen, c.key, wb);
+      count += bitsOpCount<AndOp>(wa, wb, ROARING_BITMAP_WORDS);
+    }
+  }
+  return count;
+}
+
+// a AND bits, or a ANDNOT bits, in the roaring layout.  Directory space is reserved for maxContainers entries.
+int64_t roaringCombineBits(const RoaringDocSet& a, const uint64_t* bits, int wlen, int op, int maxContainers, char* out) {
+  uint64_t wa[ROARING_BITMAP_WORDS];
+  uint64_t wb[ROARING_BITMAP_WORDS];
+  RoaringContainer* dir = (RoaringContainer*)(out + ROARING_HEADER_BYTES);
+  int64_t off = align8(ROARING_HEADER_BYTES + (int64_t)maxContainers * sizeof(RoaringContainer));
+  int n = 0;
+  int card = 0;
+
+  for (int i=0; i<a.numContainers; i++) {
+    int key = a.dir[i].key;
+    a.decode(i, wa);
+    bitsWindow(bits, wlen, key, wb);
+    if (op == HS_OP_AND) {
+      for (int w=0; w<ROARING_BITMAP_WORDS; w++) wa[w] &= wb[w];
+    } else {
+      for (int w=0; w<ROARING_BITMAP_WORDS; w++) wa[w] &= ~wb[w];
+    }
+    int bytes = roaringEncode(wa, key, dir + n, out + off);
+    if (bytes == 0) continue;
+    assert(n < maxContainers);
+    dir[n].offset = (int32_t)off;
+    card += dir[n].card;
+    n++;
+    off += align8(bytes);
+  }
+
+  ((int32_t*)out)[0] = n;
+  ((int32_t*)out)[1] = card;
+  return off;
+}
+
+// bits = bits OR a, or bits = bits ANDNOT a
+void roaringApplyToBits(const RoaringDocSet& a, uint64_t* bits, int wlen, int op) {
+  uint64_t wa[ROARING_BITMAP_WORDS];
+  for (int i=0; i<a.numContainers; i++) {
+    const RoaringContainer& c = a.dir[i];
+    int start = c.key * ROARING_BITMAP_WORDS;
+    int n = wlen - start;
+    if (n <= 0) break;
+    if (n > ROARING_BITMAP_WORDS) n = ROARING_BITMAP_WORDS;
+    uint64_t* target = bits + start;
+
+    if (c.type == ROARING_ARRAY) {
+      const uint16_t* values = (const uint16_t*)a.data(i);
+      for (int j=0; j<c.card; j++) {
+        int low = values[j];
+        if ((low >> 6) >= n) break;
+        uint64_t mask = ((uint64_t)1) << (low & 0x3f);
+        if (op == HS_OP_OR) {
+          target[low >> 6] |= mask;
+        } else {
+          target[low >> 6] &= ~mask;
+        }
+      }
+    } else {
+      a.decode(i, wa);
+      if (op == HS_OP_OR) {
+        for (int w=0; w<n; w++) target[w] |= wa[w];
+      } else {
+        for (int w=0; w<n; w++) target[w] &= ~wa[w];
+      }
+    }
+  }
+}
+
+JNIEXPORT jint JNICALL Java_org_apache_solr_search_RoaringDocSetNative_intersectionSizeBitsNative
+  (JNIEnv *env, jclass clazz, jlong a, jlong bits, jint wlen)
+{
+  return roaringIntersectionSizeBits( RoaringDocSet((const void*)a), (const uint64_t*)bits, wlen );
+}
+
+JNIEXPORT jlong JNICALL Java_org_apache_solr_search_RoaringDocSetNative_combineBitsNative
+  (JNIEnv *env, jclass clazz, jlong a, jlong bits, jint wlen, jint op, jint maxContainers, jlong out)
+{
+  return roaringCombineBits( RoaringDocSet((const void*)a), (const uint64_t*)bits, wlen, op, maxContainers, (char*)out );
+}
+
+JNIEXPORT void JNICALL Java_org_apache_solr_search_RoaringDocSetNative_applyToBitsNative
+  (JNIEnv *env, jclass clazz, jlong a, jlong bits, jint wlen, jint op)
+{
+  roaringApplyToBits( RoaringDocSet((const void*)a), (uint64_t*)bits, wlen, op );
+}
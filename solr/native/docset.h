@@ -1,10 +1,23 @@
 #include "HS.h"
 #include "org_apache_solr_search_SortedIntDocSetNative.h"
 #include "org_apache_solr_search_BitDocSetNative.h"
+#include "org_apache_solr_search_RoaringDocSetNative.h"
+
+#include <string.h>
+#include <algorithm>
 
 
 int intersectionSize(const int* const a, int32_t a_size, const int* const b, int32_t b_size);
 
+// layout of RoaringDocSetNative, see the javadoc of that class
+#define ROARING_HEADER_BYTES org_apache_solr_search_RoaringDocSetNative_HEADER_BYTES
+#define ROARING_ARRAY org_apache_solr_search_RoaringDocSetNative_ARRAY
+#define ROARING_BITMAP org_apache_solr_search_RoaringDocSetNative_BITMAP
+#define ROARING_RUN org_apache_solr_search_RoaringDocSetNative_RUN
+#define ROARING_BITMAP_WORDS org_apache_solr_search_RoaringDocSetNative_BITMAP_WORDS
+#define ROARING_BITMAP_BYTES org_apache_solr_search_RoaringDocSetNative_BITMAP_BYTES
+#define ROARING_MAX_ARRAY_CARDINALITY org_apache_solr_search_RoaringDocSetNative_MAX_ARRAY_CARDINALITY
+
 
 class DocSet {
 };
@@ -55,6 +68,9 @@ class BitDocSet : public DocSet {
     iterator begin() const;
 
     iterator end() const;
+
+    // positioned on the first doc >= target
+    iterator seek(int target) const;
 };
 
 // TODO: we can probably do a little better with a more stateful iterator
@@ -113,6 +129,11 @@ class SortedIntDocSet : public DocSet {
     iterator end() const {
       return docs + len;
     }
+
+    // positioned on the first doc >= target
+    iterator seek(int target) const {
+      return std::lower_bound(docs, docs + len, target);
+    }
 };
 
 inline BitSetIterator BitDocSet::begin() const {
@@ -123,3 +144,186 @@ inline BitSetIterator BitDocSet::end() const {
   return BitSetIterator(*this, -1);
 }
 
+inline BitSetIterator BitDocSet::seek(int target) const {
+  return BitSetIterator(*this, nextSetBit(target));
+}
+
+
+// a directory entry of a RoaringDocSet
+struct RoaringContainer {
+  int32_t key;
+  int32_t type;
+  int32_t card;
+  int32_t offset;  // byte offset of the data from the start of the set
+};
+
+class RoaringIterator;
+
+class RoaringDocSet : public DocSet {
+  public:
+    const char* base;
+    int numContainers;
+    const RoaringContainer* dir;
+
+    typedef RoaringIterator iterator;
+
+    RoaringDocSet(const void* arr) : base((const char*)arr), numContainers(((const int32_t*)arr)[0]),
+        dir((const RoaringContainer*)(base + ROARING_HEADER_BYTES)) {
+    }
+
+    int cardinality() const {
+      return ((const int32_t*)base)[1];
+    }
+
+    const char* data(int container) const {
+      return base + dir[container].offset;
+    }
+
+    // number of bytes used by the data of a container
+    int dataBytes(int container) const {
+      switch (dir[container].type) {
+        case ROARING_ARRAY: return dir[container].card << 1;
+        case ROARING_BITMAP: return ROARING_BITMAP_BYTES;
+        default: return 4 + (*(const int32_t*)data(container) << 2);
+      }
+    }
+
+    // expands a container into a bitmap of ROARING_BITMAP_WORDS words
+    void decode(int container, uint64_t* words) const;
+
+    iterator begin() const;
+
+    iterator end() const;
+
+    // positioned on the first doc >= target
+    iterator seek(int target) const;
+};
+
+class RoaringIterator {
+  public:
+    const RoaringDocSet rs;
+    int idx;        // current container
+    int type;
+    int n;          // number of values (ARRAY) or runs (RUN) in the current container
+    const char* data;
+    int hi;         // high bits of the current container
+    int pos;        // next value or run (ARRAY, RUN), or current word (BITMAP)
+    uint64_t word;  // remaining bits of the current word (BITMAP)
+    int cur;        // next value of the current run (RUN)
+    int runEnd;     // one past the last value of the current run (RUN)
+    int doc;        // the current doc, or -1 for "end"
+
+    RoaringIterator(const RoaringDocSet& set) : rs(set), idx(-1), type(ROARING_ARRAY), n(0), data(0), hi(0), pos(0), word(0), cur(0), runEnd(0) {
+      doc = nextDoc();
+    }
+
+    // custom positioning.  use -1 for "end"
+    RoaringIterator(const RoaringDocSet& set, int position) : rs(set), idx(rs.numContainers), type(ROARING_ARRAY), n(0), data(0), hi(0), pos(0), word(0), cur(0), runEnd(0), doc(position) {
+    }
+
+    bool operator==(const RoaringIterator& other) {
+      return(doc == other.doc);
+    }
+
+    bool operator!=(const RoaringIterator& other) {
+      return(doc != other.doc);
+    }
+
+    RoaringIterator operator++() {
+      doc = nextDoc();
+      return *this;
+    }
+
+    RoaringIterator operator++(int) {
+      RoaringIterator tmp(*this); // shallow copy
+      ++(*this);
+      return(tmp);
+    }
+
+    int operator*() {
+      return doc;
+    }
+
+    // moves to the first doc >= target, skipping the containers below it without decoding them
+    void advance(int target) {
+      int key = target >> 16;
+      if (doc >= 0 && (doc >> 16) < key) {
+        int container = idx + 1;
+        while (container < rs.numContainers && rs.dir[container].key < key) container++;
+        if (container >= rs.numContainers) {
+          idx = rs.numContainers;
+          doc = -1;
+          return;
+        }
+        load(container);
+        doc = nextDoc();
+      }
+      while (doc >= 0 && doc < target) {
+        doc = nextDoc();
+      }
+    }
+
+  private:
+    void load(int container) {
+      idx = container;
+      const RoaringContainer& c = rs.dir[container];
+      hi = c.key << 16;
+      type = c.type;
+      data = rs.data(container);
+      n = type == ROARING_RUN ? *(const int32_t*)data : c.card;
+      pos = type == ROARING_BITMAP ? -1 : 0;
+      word = 0;
+      cur = runEnd = 0;
+    }
+
+    int nextDoc() {
+      for (;;) {
+        if (idx >= 0) {
+          switch (type) {
+            case ROARING_ARRAY:
+              if (pos < n) return hi | ((const uint16_t*)data)[pos++];
+              break;
+            case ROARING_BITMAP:
+              while (word == 0 && pos < ROARING_BITMAP_WORDS-1) {
+                word = ((const uint64_t*)data)[++pos];
+              }
+              if (word != 0) {
+                int bit = ctz64(word);
+                word &= word - 1;
+                return hi | (pos << 6) | bit;
+              }
+              break;
+            default:
+              if (cur < runEnd) return hi | cur++;
+              if (pos < n) {
+                const uint16_t* run = (const uint16_t*)(data + 4) + (pos << 1);
+                cur = run[0];
+                runEnd = cur + run[1] + 1;
+                pos++;
+                return hi | cur++;
+              }
+              break;
+          }
+        }
+        if (idx+1 >= rs.numContainers) {
+          idx = rs.numContainers;
+          return -1;
+        }
+        load(idx+1);
+      }
+    }
+};
+
+inline RoaringIterator RoaringDocSet::begin() const {
+  return RoaringIterator(*this);
+}
+
+inline RoaringIterator RoaringDocSet::end() const {
+  return RoaringIterator(*this, -1);
+}
+
+inline RoaringIterator RoaringDocSet::seek(int target) const {
+  RoaringIterator iter(*this);
+  iter.advance(target);
+  return iter;
+}
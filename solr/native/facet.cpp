@@ -4,7 +4,26 @@
 using namespace std;
 
 
+// Reads the values of a bit packed LongArray (HS.FORMAT_PACKED): value i is at bit i*bits of a little
+// endian bit stream.  Each value is read with a single unaligned 8 byte load, which the Java side
+// allows for by padding the array.
+struct PackedOrds {
+  const uint8_t* data;
+  int bits;
+  uint64_t mask;
 
+  PackedOrds(jlong arr, int bitsPerValue) : data((const uint8_t*)arr), bits(bitsPerValue), mask((1ULL << bitsPerValue) - 1) {}
+
+  inline uint32_t operator[](int idx) const {
+    uint64_t bitPos = (uint64_t)idx * bits;
+    uint64_t word;
+    memcpy(&word, data + (bitPos >> 3), sizeof(word));  // compiles to a plain unaligned load
+#if defined(__BYTE_ORDER__) && __BYTE_ORDER__ == __ORDER_BIG_ENDIAN__
+    word = __builtin_bswap64(word);
+#endif
+    return (uint32_t)((word >> (bitPos & 7)) & mask);
+  }
+};
 
 
 template <typename DS, typename NumericPtr>
@@ -40,7 +59,10 @@ template <typename DS>
 void fillCounts(DS& docs, jlong ordArr, int ordFormat, jlong ordSize, int numTermsInField,
     int startTermIndex, int endTermIndex, int* counts) {
 
-  switch (ordFormat) {
+  switch (ordFormat & 0xff) {
+    case HS_FORMAT_PACKED:
+      fillCounts(docs, PackedOrds(ordArr, ordFormat >> 8), numTermsInField, startTermIndex, endTermIndex, counts);
+      break;
     case HS_FORMAT_INT8:
       fillCounts(docs, (uint8_t*)ordArr, numTermsInField, startTermIndex, endTermIndex, counts);
       break;
@@ -85,6 +107,97 @@ JNIEXPORT void JNICALL Java_org_apache_solr_search_facet_SimpleFacets_fillCounts
       fillCounts(intDocs, ordArr, ordFormat, ordSize, numTermsInField, startTermIndex, endTermIndex, (int*)counts);
       break;
       }
+    case HS_FORMAT_ROARING:
+      {
+      RoaringDocSet roaringDocs = RoaringDocSet((const void*)baseArr);
+      fillCounts(roaringDocs, ordArr, ordFormat, ordSize, numTermsInField, startTermIndex, endTermIndex, (int*)counts);
+      break;
+      }
+    default:
+      // log error
+      break;
+  }
+}
+
+
+// Counts the docs of the base set that are in one segment, [docBase, docBase+maxDoc), by the ords of that segment.
+// Segment ords are stored like top level ords, so counts[0] is the number of docs without a value, and counts[ord+1]
+// is the count of ord.  The caller maps the segment ords to global ords.
+template <typename Iter, typename NumericPtr>
+void fillSegmentCounts(Iter docIter, Iter end, NumericPtr ords, int docBase, int maxDoc, int* counts) {
+  for (; docIter != end; ++docIter) {
+    int doc = *docIter - docBase;
+    if (doc >= maxDoc) break;
+    counts[ords[doc]]++;
+  }
+}
+
+template <typename DS>
+void fillSegmentCounts(DS& docs, int docBase, int maxDoc, jlong ordArr, int ordFormat, int* counts) {
+  typename DS::iterator docIter = docs.seek(docBase);
+  typename DS::iterator end = docs.end();
+
+  if (ordArr == 0) {
+    // no terms in this segment, so every doc is missing
+    for (; docIter != end && *docIter - docBase < maxDoc; ++docIter) {
+      counts[0]++;
+    }
+    return;
+  }
+
+  switch (ordFormat & 0xff) {
+    case HS_FORMAT_PACKED:
+      fillSegmentCounts(docIter, end, PackedOrds(ordArr, ordFormat >> 8), docBase, maxDoc, counts);
+      break;
+    case HS_FORMAT_INT8:
+      fillSegmentCounts(docIter, end, (uint8_t*)ordArr, docBase, maxDoc, counts);
+      break;
+    case HS_FORMAT_INT16:
+      fillSegmentCounts(docIter, end, (uint16_t*)ordArr, docBase, maxDoc, counts);
+      break;
+    case HS_FORMAT_INT32:
+      fillSegmentCounts(docIter, end, (uint32_t*)ordArr, docBase, maxDoc, counts);
+      break;
+    case HS_FORMAT_INT64:
+      fillSegmentCounts(docIter, end, (uint64_t*)ordArr, docBase, maxDoc, counts);
+      break;
+    default:
+      //log("unknown format"); // TODO
+      break;
+  }
+}
+
+//  static native void fillSegmentCounts(long baseArr, int baseFormat, long baseSize, int docBase, int maxDoc, long ordArr, int ordFormat, long counts);
+
+JNIEXPORT void JNICALL Java_org_apache_solr_search_facet_SimpleFacets_fillSegmentCounts
+  (JNIEnv *env, jclass clazz,
+   jlong baseArr, jint baseFormat, jlong baseSize,
+   jint docBase, jint maxDoc,
+   jlong ordArr, jint ordFormat, jlong counts)
+{
+  if (baseArr == 0 || counts == 0) {
+    return;
+  }
+
+  switch (baseFormat) {
+    case HS_FORMAT_BITS:
+      {
+      BitDocSet bitDocs = BitDocSet((uint64_t*)baseArr, (int)baseSize);
+      fillSegmentCounts(bitDocs, docBase, maxDoc, ordArr, ordFormat, (int*)counts);
+      break;
+      }
+    case HS_FORMAT_INT32:
+      {
+      SortedIntDocSet intDocs = SortedIntDocSet((int*)baseArr, (int)baseSize);
+      fillSegmentCounts(intDocs, docBase, maxDoc, ordArr, ordFormat, (int*)counts);
+      break;
+      }
+    case HS_FORMAT_ROARING:
+      {
+      RoaringDocSet roaringDocs = RoaringDocSet((const void*)baseArr);
+      fillSegmentCounts(roaringDocs, docBase, maxDoc, ordArr, ordFormat, (int*)counts);
+      break;
+      }
     default:
       // log error
       break;
@@ -28,6 +28,12 @@ LIBNAME=$CLASS
 
 OPT="-m64 -mtune=corei7 -O6 -msse -msse2 -msse3 -mfpmath=sse"
 
+# the docset set operations are written so that the compiler can vectorize them.
+# By default only the instructions in OPT are used, since the JVM crashes (SIGILL) on a CPU without an
+# instruction the library was built for.  When building for known hardware, set HS_VEC for wider vectors
+# and a native popcount, e.g. HS_VEC="-msse4.2 -mpopcnt" or HS_VEC="-march=native"
+VEC="-ftree-vectorize $HS_VEC"
+
 OS=`uname`
 case $OS in
   Darwin)
@@ -64,14 +70,15 @@ CLASSES="$SOLR/build/solr-core/classes/java${JSEP}$SOLR/build/solr-solrj/classes
 javah -d $BUILD/inc -force -classpath ${CLASSES} ${FULLCLASS}
 javah -d $BUILD/inc -force -classpath ${CLASSES} org.apache.solr.search.SortedIntDocSetNative
 javah -d $BUILD/inc -force -classpath ${CLASSES} org.apache.solr.search.BitDocSetNative
+javah -d $BUILD/inc -force -classpath ${CLASSES} org.apache.solr.search.RoaringDocSetNative
 javah -d $BUILD/inc -force -classpath ${CLASSES} org.apache.solr.search.facet.SimpleFacets
 
 CPPFILES="$CLASS.cpp docset.cpp facet.cpp"
 INC="$JNI_INC -I$BUILD/inc"
-$GPP $DEBUG $OPT -Wall $CFLAGS $INC -shared -fPIC $CPPFILES -o $BUILD/$OUT
+$GPP $DEBUG $OPT $VEC -Wall $CFLAGS $INC -shared -fPIC $CPPFILES -o $BUILD/$OUT
 #$GPP -S $DEBUG $OPT -Wall $CFLAGS $INC -shared -fPIC docset.cpp
 
-$GPP $OPT -Wall $CFLAGS $INC         -fPIC $CPPFILES test.cpp -o $BUILD/test.exe
+$GPP $OPT $VEC -Wall $CFLAGS $INC         -fPIC $CPPFILES test.cpp -o $BUILD/test.exe
 # $GPP -S $OPT -Wall $CFLAGS $INC    -fPIC $CPPFILES test.cpp 
 
 mkdir -p $SOLR/example/native/